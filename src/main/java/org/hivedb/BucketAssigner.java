@@ -36,8 +36,13 @@ public class BucketAssigner implements Assigner {
 		return Lists.newList(nodes).get(bucket % nodes.size());
 	}
 	
-	private int getBucket(Object value) {
-		return castAsNumber(value).intValue() % getBucketCount();
+	/***
+	 * The bucket of a partition key, between 0 and the bucket count. Shared with
+	 * {@link org.hivedb.meta.directory.BucketDirectory} so keys land where this assigner would put them.
+	 */
+	public int getBucket(Object value) {
+		int bucket = castAsNumber(value).intValue() % getBucketCount();
+		return bucket < 0 ? bucket + getBucketCount() : bucket;
 	}
 	
 	private Number castAsNumber(Object value) {
@@ -45,6 +50,8 @@ public class BucketAssigner implements Assigner {
 			return (Integer)value;
 		else if(value.getClass() == Long.class ||  value.getClass() == long.class)
 			return (Long)value;
+		else if(value instanceof Number)
+			return (Number)value;
 		else
 			throw new UnsupportedOperationException(String.format("Cannot convert object of type %s, the object must be a number.", value.getClass()));
 	}
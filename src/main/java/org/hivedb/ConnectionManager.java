@@ -1,6 +1,7 @@
 package org.hivedb;
 
 import org.hivedb.meta.AccessType;
+import org.hivedb.meta.HiveMetadataDelta;
 import org.hivedb.meta.Node;
 import org.hivedb.meta.directory.DirectoryFacade;
 import org.hivedb.meta.directory.KeySemaphore;
@@ -9,26 +10,34 @@ import org.hivedb.meta.persistence.HiveDataSourceProvider;
 import org.hivedb.util.Preconditions;
 import org.hivedb.util.functional.Filter;
 import org.hivedb.util.functional.Unary;
+import org.springframework.jdbc.support.JdbcUtils;
 
 import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class ConnectionManager {
-  private DirectoryFacade directory;
+  private volatile DirectoryFacade directory;
   private HiveDataSourceProvider dataSourceProvider;
   private Map<Integer, DataSource> nodeDataSources;
   private JdbcDaoSupportCacheImpl cache;
   private Hive hive;
+  private ScatterGather scatterGather;
 
   public ConnectionManager(DirectoryFacade directory, Hive hive, HiveDataSourceProvider provider) {
+    this(directory, hive, provider, hive.getScatterGather());
+  }
+
+  public ConnectionManager(DirectoryFacade directory, Hive hive, HiveDataSourceProvider provider, ScatterGather scatterGather) {
     this.hive = hive;
     this.directory = directory;
     this.dataSourceProvider = provider;
+    this.scatterGather = scatterGather;
     this.cache = new JdbcDaoSupportCacheImpl(directory, hive, provider);
     this.nodeDataSources = getDataSourceMap(hive.getNodes(), provider);
   }
@@ -76,6 +85,86 @@ public class ConnectionManager {
     return connections;
   }
 
+  /**
+   * Runs the callback on every node holding the primary index key at once, see {@link ScatterGather}.
+   *
+   * @return the result of each node in node order
+   */
+  public <T> List<T> executeByPartitionKey(Object primaryIndexKey, AccessType intent, NodeCallback<T> callback) throws HiveLockableException {
+    return execute(directory.getKeySemamphoresOfPrimaryIndexKey(primaryIndexKey), intent, callback);
+  }
+
+  public <T> List<T> executeByResourceId(String resourceName, Object resourceId, AccessType intent, NodeCallback<T> callback) throws HiveLockableException {
+    return execute(directory.getKeySemaphoresOfResourceId(resourceName, resourceId), intent, callback);
+  }
+
+  public <T> List<T> executeBySecondaryIndexKey(String secondaryIndexName, String resourceName, Object secondaryIndexKey, NodeCallback<T> callback) throws HiveLockableException {
+    return executeBySecondaryIndexKey(secondaryIndexName, resourceName, secondaryIndexKey, callback, scatterGather.getFailurePolicy());
+  }
+
+  /**
+   * Runs the read-only callback on every node holding the secondary index key at once.
+   *
+   * @param failurePolicy whether a failed or slow node fails the read or is left out of the results
+   */
+  public <T> List<T> executeBySecondaryIndexKey(String secondaryIndexName, String resourceName, Object secondaryIndexKey, NodeCallback<T> callback, ScatterGather.FailurePolicy failurePolicy) throws HiveLockableException {
+    Collection<KeySemaphore> keySemaphores = directory.getKeySemaphoresOfSecondaryIndexKey(resourceName, secondaryIndexName, secondaryIndexKey);
+    return execute(keySemaphores, AccessType.Read, callback, failurePolicy);
+  }
+
+  /**
+   * Runs the callback on all nodes of the hive at once, regardless of their status.
+   */
+  public <T> List<T> executeOnAllNodes(NodeCallback<T> callback, ScatterGather.FailurePolicy failurePolicy) {
+    return scatterGather.execute(hive.getNodes(), toTask(callback), failurePolicy);
+  }
+
+  private <T> List<T> execute(Collection<KeySemaphore> semaphores, AccessType intent, NodeCallback<T> callback) throws HiveLockableException {
+    return execute(semaphores, intent, callback, scatterGather.getFailurePolicy());
+  }
+
+  private <T> List<T> execute(Collection<KeySemaphore> semaphores, AccessType intent, NodeCallback<T> callback, ScatterGather.FailurePolicy failurePolicy) throws HiveLockableException {
+    semaphores = Filter.getUnique(semaphores, new Unary<KeySemaphore, Integer>() {
+      public Integer f(KeySemaphore item) {
+        return item.getNodeId();
+      }
+    });
+    Collection<Node> nodes = new ArrayList<Node>();
+    for (KeySemaphore semaphore : semaphores) {
+      if (intent == AccessType.ReadWrite)
+        Preconditions.isWritable(hive, semaphore, hive.getNode(semaphore.getNodeId()));
+      nodes.add(hive.getNode(semaphore.getNodeId()));
+    }
+    return scatterGather.execute(nodes, toTask(callback), failurePolicy);
+  }
+
+  private <T> Unary<Node, T> toTask(final NodeCallback<T> callback) {
+    return new Unary<Node, T>() {
+      public T f(Node node) {
+        Connection connection = null;
+        try {
+          connection = nodeDataSources.get(node.getId()).getConnection();
+          return callback.doInNode(node, connection);
+        } catch (SQLException e) {
+          throw new HiveRuntimeException(String.format("Query of node %s failed: %s", node.getName(), e.getMessage()), e);
+        } finally {
+          JdbcUtils.closeConnection(connection);
+        }
+      }
+    };
+  }
+
+  /**
+   * The DataSource connections to the node are taken from, or null if the node is unknown.
+   */
+  public DataSource getNodeDataSource(int nodeId) {
+    return nodeDataSources.get(nodeId);
+  }
+
+  public ScatterGather getScatterGather() {
+    return scatterGather;
+  }
+
   public JdbcDaoSupportCache daoSupport() {
     return cache;
   }
@@ -90,4 +179,19 @@ public class ConnectionManager {
     cache.removeNode(node);
     return nodeDataSources.remove(node.getId());
   }
+
+  /**
+   * Carries the ConnectionManager over to a new hive revision: switches to the revision's directory
+   * and adds, replaces or removes only the DataSources and DAO supports of the nodes in the delta.
+   */
+  public void update(DirectoryFacade directory, HiveMetadataDelta delta) {
+    for (Node node : delta.getAddedNodes())
+      addNode(node);
+    for (Node node : delta.getReconnectedNodes())
+      addNode(node);
+    this.directory = directory;
+    cache.setDirectory(directory);
+    for (Node node : delta.getRemovedNodes())
+      removeNode(node);
+  }
 }
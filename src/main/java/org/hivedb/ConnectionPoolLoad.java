@@ -0,0 +1,50 @@
+package org.hivedb;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hivedb.meta.Node;
+import org.hivedb.meta.persistence.HiveBasicDataSource;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+
+/**
+ * The load of a node is the utilization of the connection pool the hive's ConnectionManager uses
+ * for it. The pool is found by unwrapping the node's DataSource, e.g. the LazyConnectionDataSourceProxy
+ * of a HiveBasicDataSourceProvider. Nodes whose pools are not {@link HiveBasicDataSource}s, and all
+ * nodes before the hive's first sync, report no load.
+ * <p/>
+ * The hive has to exist before the load, so set the assigner once the hive is loaded:
+ * <code>hive.setAssigner(new WeightedAssigner(interval, new ConnectionPoolLoad(hive)))</code>.
+ */
+public class ConnectionPoolLoad implements NodeLoad {
+  private final static Log log = LogFactory.getLog(ConnectionPoolLoad.class);
+  private Hive hive;
+
+  public ConnectionPoolLoad(Hive hive) {
+    this.hive = hive;
+  }
+
+  public double getLoad(Node node) {
+    ConnectionManager connection = hive.connection();
+    HiveBasicDataSource pool = connection == null ? null : getPool(connection.getNodeDataSource(node.getId()));
+    if (pool == null)
+      return 0;
+    try {
+      return pool.getUtilization();
+    } catch (SQLException e) {
+      log.warn(String.format("Unable to read the connection pool of node %s", node.getName()), e);
+      return 0;
+    }
+  }
+
+  /**
+   * The pool behind the DataSource, or null if it is not a HiveBasicDataSource.
+   */
+  public static HiveBasicDataSource getPool(DataSource dataSource) {
+    while (dataSource instanceof DelegatingDataSource)
+      dataSource = ((DelegatingDataSource) dataSource).getTargetDataSource();
+    return dataSource instanceof HiveBasicDataSource ? (HiveBasicDataSource) dataSource : null;
+  }
+}
@@ -0,0 +1,236 @@
+package org.hivedb;
+
+import org.hivedb.meta.Assigner;
+import org.hivedb.meta.Node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A node assigner that places each node on a hash ring many times, as virtual nodes, and assigns a
+ * partition key to the first virtual node at or after the hash of the key. Adding or removing a node
+ * only moves the keys of the ring arcs it gains or loses, about 1/n of new assignments, and the
+ * choice does not depend on the order of the nodes.
+ * <p/>
+ * The ring is built the first time a set of nodes is seen and kept until different nodes are passed,
+ * i.e. once per hive revision. It is recognized by the identity of the node collection, which a hive
+ * revision hands out as a single instance, so looking up a key is a binary search of the ring and
+ * allocates nothing. Another collection of the same nodes is compared node by node once. A collection
+ * must therefore not be changed after it was passed; pass a new one instead.
+ */
+public class ConsistentHashAssigner implements Assigner {
+  public static final int DEFAULT_VIRTUAL_NODES = 128;
+  private int virtualNodes;
+  private volatile Ring ring;
+
+  public ConsistentHashAssigner() {
+    this(DEFAULT_VIRTUAL_NODES);
+  }
+
+  /**
+   * @param virtualNodes the number of places on the ring of each node, more spreads keys more evenly
+   */
+  public ConsistentHashAssigner(int virtualNodes) {
+    if (virtualNodes < 1)
+      throw new IllegalArgumentException("Each node needs at least one virtual node.");
+    this.virtualNodes = virtualNodes;
+  }
+
+  public Node chooseNode(Collection<Node> nodes, Object value) {
+    if (nodes.size() == 0)
+      throw new HiveRuntimeException("The Hive has no Nodes; the Assigner cannot make a choice.");
+    return getRing(nodes).getNode(hash(value));
+  }
+
+  public Collection<Node> chooseNodes(Collection<Node> nodes, Object value) {
+    return Arrays.asList(new Node[]{chooseNode(nodes, value)});
+  }
+
+  public int getVirtualNodes() {
+    return virtualNodes;
+  }
+
+  /**
+   * The node id of each of the buckets, hashing the bucket number as a key. Pass it to
+   * {@link org.hivedb.meta.directory.BucketDirectory#assign(int[], Lockable.Status[])} to assign the
+   * buckets of a {@link org.hivedb.meta.directory.BucketDirectory} consistently.
+   */
+  public int[] getBucketAssignments(Collection<Node> nodes, int bucketCount) {
+    Ring ring = new Ring(nodes, virtualNodes);
+    int[] nodeIds = new int[bucketCount];
+    for (int bucket = 0; bucket < bucketCount; bucket++)
+      nodeIds[bucket] = ring.getNode(hash(bucket)).getId();
+    return nodeIds;
+  }
+
+  /**
+   * Lists the buckets whose node changes when the nodes change from before to after. Only these
+   * buckets' data has to be moved.
+   */
+  public List<BucketMove> getRebalancing(Collection<Node> before, Collection<Node> after, int bucketCount) {
+    Ring from = new Ring(before, virtualNodes);
+    Ring to = new Ring(after, virtualNodes);
+    List<BucketMove> moves = new ArrayList<BucketMove>();
+    for (int bucket = 0; bucket < bucketCount; bucket++) {
+      Node origin = from.getNode(hash(bucket));
+      Node destination = to.getNode(hash(bucket));
+      if (origin.getId() != destination.getId())
+        moves.add(new BucketMove(bucket, origin, destination));
+    }
+    return moves;
+  }
+
+  private Ring getRing(Collection<Node> nodes) {
+    Ring current = ring;
+    if (current != null && current.source == nodes)
+      return current;
+    ring = current = current != null && current.isOf(nodes) ? current.of(nodes) : new Ring(nodes, virtualNodes);
+    return current;
+  }
+
+  /**
+   * Numbers hash by value, so an Integer and a Long of the same key land on the same node.
+   */
+  static long hash(Object value) {
+    return mix(value instanceof Number ? ((Number) value).longValue() : value.hashCode());
+  }
+
+  private static long hash(int bucket) {
+    return mix(bucket);
+  }
+
+  /**
+   * The 64 bit finalizer of MurmurHash3, spreading consecutive keys over the whole ring.
+   */
+  private static long mix(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= key >>> 33;
+    return key;
+  }
+
+  /**
+   * The virtual nodes sorted by hash, with the node owning each.
+   */
+  private static class Ring {
+    private final Collection<Node> source;
+    private final long[] hashes;
+    private final Node[] owners;
+    private final int[] nodeIds;
+    private final Node[] nodesById;
+
+    public Ring(Collection<Node> nodes, int virtualNodes) {
+      source = nodes;
+      if (nodes.size() == 0)
+        throw new HiveRuntimeException("The Hive has no Nodes; the Assigner cannot make a choice.");
+      VirtualNode[] ring = new VirtualNode[nodes.size() * virtualNodes];
+      int i = 0;
+      for (Node node : nodes)
+        for (int replica = 0; replica < virtualNodes; replica++)
+          ring[i++] = new VirtualNode(mix(((long) node.getId() << 32) | replica), node);
+      Arrays.sort(ring);
+      nodesById = nodes.toArray(new Node[nodes.size()]);
+      Arrays.sort(nodesById, new Comparator<Node>() {
+        public int compare(Node a, Node b) {
+          return a.getId() - b.getId();
+        }
+      });
+      nodeIds = new int[nodesById.length];
+      for (i = 0; i < nodesById.length; i++)
+        nodeIds[i] = nodesById[i].getId();
+      hashes = new long[ring.length];
+      owners = new Node[ring.length];
+      for (i = 0; i < ring.length; i++) {
+        hashes[i] = ring[i].hash;
+        owners[i] = ring[i].node;
+      }
+    }
+
+    private Ring(Ring ring, Collection<Node> source) {
+      this.source = source;
+      this.hashes = ring.hashes;
+      this.owners = ring.owners;
+      this.nodeIds = ring.nodeIds;
+      this.nodesById = ring.nodesById;
+    }
+
+    /**
+     * The same ring, recognized by the given collection of its nodes.
+     */
+    public Ring of(Collection<Node> nodes) {
+      return new Ring(this, nodes);
+    }
+
+    public Node getNode(long hash) {
+      int index = Arrays.binarySearch(hashes, hash);
+      if (index < 0)
+        index = -index - 1;
+      return owners[index == hashes.length ? 0 : index];
+    }
+
+    /**
+     * Whether the ring was built from the same node instances. A hive revision loads new instances,
+     * so the ring never hands out a node with a stale status.
+     */
+    public boolean isOf(Collection<Node> nodes) {
+      if (nodes.size() != nodeIds.length)
+        return false;
+      for (Node node : nodes) {
+        int index = Arrays.binarySearch(nodeIds, node.getId());
+        if (index < 0 || nodesById[index] != node)
+          return false;
+      }
+      return true;
+    }
+  }
+
+  private static class VirtualNode implements Comparable<VirtualNode> {
+    private final long hash;
+    private final Node node;
+
+    public VirtualNode(long hash, Node node) {
+      this.hash = hash;
+      this.node = node;
+    }
+
+    public int compareTo(VirtualNode other) {
+      return hash < other.hash ? -1 : hash == other.hash ? node.getId() - other.node.getId() : 1;
+    }
+  }
+
+  /**
+   * A bucket assigned to a different node after the nodes changed.
+   */
+  public static class BucketMove {
+    private final int bucket;
+    private final Node origin;
+    private final Node destination;
+
+    public BucketMove(int bucket, Node origin, Node destination) {
+      this.bucket = bucket;
+      this.origin = origin;
+      this.destination = destination;
+    }
+
+    public int getBucket() {
+      return bucket;
+    }
+
+    public Node getOrigin() {
+      return origin;
+    }
+
+    public Node getDestination() {
+      return destination;
+    }
+
+    public String toString() {
+      return String.format("bucket %s: %s -> %s", bucket, origin.getName(), destination.getName());
+    }
+  }
+}
@@ -13,11 +13,15 @@ import org.hivedb.util.database.DriverLoader;
 import org.hivedb.util.database.HiveDbDialect;
 import org.hivedb.util.database.Schemas;
 import org.hivedb.util.functional.Atom;
-import org.hivedb.util.functional.Filter;
-import org.hivedb.util.functional.Predicate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.sql.DataSource;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @author Kevin Kelm (kkelm@fortress-consulting.com)
@@ -33,11 +37,13 @@ public class Hive extends Observable implements Synchronizeable, Observer, Locka
 
   private HiveSemaphore semaphore;
   private String hiveUri;
-  private ConnectionManager connection;
-  private PartitionDimension dimension;
-  private DirectoryFacade directory;
-  private Collection<Node> nodes = new ArrayList<Node>();
+  private volatile HiveMetadataSnapshot metadata = new HiveMetadataSnapshot(new ArrayList<Node>(), (PartitionDimension) null);
+  private volatile DirectoryFacade directory;
+  private volatile ConnectionManager connection;
   private DirectoryFacadeProvider directoryFacadeProvider;
+  private ScatterGather scatterGather = new ScatterGather();
+  // serializes publishing revisions, readers never take it; a Lock so waiting virtual threads do not pin their carrier
+  private final Lock lock = new ReentrantLock();
 
   private DataSource hiveDataSource;
   private HiveDataSourceProvider dataSourceProvider;
@@ -80,7 +86,12 @@ public class Hive extends Observable implements Synchronizeable, Observer, Locka
 
   }
 
-  private static DirectoryFacadeProvider getDirectoryFacadeProvider() {
+  /**
+   * The default DirectoryFacadeProvider, a DirectoryWrapper over a DbDirectory. Decorate it, e.g. with a
+   * {@see org.hivedb.meta.directory.CachingDirectoryFacadeProvider}, and pass it to
+   * {@see #load(String,HiveDataSourceProvider,Assigner,DirectoryFacadeProvider)}.
+   */
+  public static DirectoryFacadeProvider getDirectoryFacadeProvider() {
     DirectoryProvider directoryProvider = new DbDirectoryFactory(CachingDataSourceProvider.getInstance());
     DirectoryFacadeProvider directoryFacadeProvider = new DirectoryWrapperFactory(directoryProvider, CachingDataSourceProvider.getInstance());
     return directoryFacadeProvider;
@@ -132,15 +143,20 @@ public class Hive extends Observable implements Synchronizeable, Observer, Locka
    * Used internally to synchronize the loaded Hive instance to the current state of the Hive database metadata.
    */
   public boolean sync() {
-    boolean updated = false;
+    return synchronize() != null;
+  }
+
+  /**
+   * Syncs if the revision changed and returns the change, null otherwise.
+   */
+  private HiveMetadataDelta synchronize() {
     HiveSemaphore hs = new HiveSemaphoreDao(hiveDataSource).get();
 
     if (this.getRevision() != hs.getRevision()) {
       this.setSemaphore(hs);
-      initialize(hiveDataSource);
-      updated = true;
+      return initialize(hiveDataSource);
     }
-    return updated;
+    return null;
   }
 
   /**
@@ -153,27 +169,39 @@ public class Hive extends Observable implements Synchronizeable, Observer, Locka
     return true;
   }
 
-  private void initialize(DataSource ds) {
-    //Always fetch and add nodes
-    Collection<Node> nodes = new NodeDao(hiveDataSource).loadAll();
-    synchronized (this) {
-      this.nodes = nodes;
-    }
-
-    //Only synchronize other properties if a Partition Dimension exists
+  /**
+   * Loads the metadata and applies the difference to the last revision. The directory facade is
+   * rebuilt, but the ConnectionManager of the last revision is kept and only gains and loses the
+   * DataSources of added, removed and reconnected nodes.
+   */
+  private HiveMetadataDelta initialize(DataSource ds) {
+    lock.lock();
     try {
-      PartitionDimension dimension = new PartitionDimensionDao(ds).get();
-      DirectoryFacade directory = directoryFacadeProvider.getDirectoryFacade(hiveUri, getAssigner(), getSemaphore(), dimension);
-      synchronized (this) {
-        ConnectionManager connection = new ConnectionManager(directory, this, dataSourceProvider);
-        this.dimension = dimension;
+      HiveMetadataSnapshot previous = metadata;
+      //Always fetch and add nodes
+      Collection<Node> nodes = new NodeDao(hiveDataSource).loadAll();
+      HiveMetadataSnapshot next = new HiveMetadataSnapshot(nodes, previous.getPartitionDimension());
+
+      //Only synchronize other properties if a Partition Dimension exists
+      try {
+        PartitionDimension dimension = new PartitionDimensionDao(ds).get();
+        DirectoryFacade directory = directoryFacadeProvider.getDirectoryFacade(hiveUri, getAssigner(), getSemaphore(), dimension);
+        next = new HiveMetadataSnapshot(nodes, dimension);
+        if (connection == null) {
+          this.metadata = next;
+          this.connection = new ConnectionManager(directory, this, dataSourceProvider, scatterGather);
+        } else
+          // add the DataSources of new nodes before the nodes are published
+          connection.update(directory, new HiveMetadataDelta(previous, next));
         this.directory = directory;
-        this.connection = connection;
+      } catch (HiveRuntimeException e) {
+        //quash
       }
-    } catch (HiveRuntimeException e) {
-      //quash
+      this.metadata = next;
+      return new HiveMetadataDelta(previous, next);
+    } finally {
+      lock.unlock();
     }
-
   }
 
 
@@ -217,7 +245,7 @@ public class Hive extends Observable implements Synchronizeable, Observer, Locka
    * Hashes the Hive based on hiveUri, revision, partition dimension
    */
   public int hashCode() {
-    return HiveUtils.makeHashCode(new Object[]{hiveUri, getRevision(), dimension});
+    return HiveUtils.makeHashCode(new Object[]{hiveUri, getRevision(), getPartitionDimension()});
   }
 
   /**
@@ -264,7 +292,14 @@ public class Hive extends Observable implements Synchronizeable, Observer, Locka
    * {@inheritDoc}
    */
   public PartitionDimension getPartitionDimension() {
-    return this.dimension;
+    return metadata.getPartitionDimension();
+  }
+
+  /**
+   * The nodes, resources and secondary indexes of the current revision, indexed for lookups.
+   */
+  public HiveMetadataSnapshot getMetadata() {
+    return metadata;
   }
 
   /**
@@ -272,15 +307,26 @@ public class Hive extends Observable implements Synchronizeable, Observer, Locka
    * @return
    */
   public PartitionDimension setPartitionDimension(PartitionDimension dimension) {
-    this.dimension = dimension;
+    this.metadata = new HiveMetadataSnapshot(metadata.getNodes(), dimension);
     incrementAndPersistHive(hiveDataSource);
     sync();
     return getPartitionDimension();
   }
 
-  private void incrementAndPersistHive(DataSource datasource) {
-    new HiveSemaphoreDao(datasource).incrementAndPersist();
-    this.sync();
+  /**
+   * Publishes a new revision: increments the semaphore and logs the revision in the change log for the
+   * HiveSyncDaemons of other JVMs, in one transaction, then broadcasts it to those of this JVM.
+   */
+  private void incrementAndPersistHive(final DataSource datasource) {
+    TransactionTemplate transaction = new TransactionTemplate(new DataSourceTransactionManager(datasource));
+    HiveChange change = (HiveChange) transaction.execute(new TransactionCallback() {
+      public Object doInTransaction(TransactionStatus status) {
+        int revision = new HiveSemaphoreDao(datasource).incrementRevision();
+        return new HiveChange(new HiveChangeLogDao(datasource).append(revision), hiveUri, revision);
+      }
+    });
+    syncAndNotifyObservers();
+    HiveChangeBroadcast.publish(change);
   }
 
   /**
@@ -292,6 +338,13 @@ public class Hive extends Observable implements Synchronizeable, Observer, Locka
     return this.connection;
   }
 
+  /**
+   * The thread pool of the multi-node reads of {@link ConnectionManager}, shared by every revision.
+   */
+  public ScatterGather getScatterGather() {
+    return scatterGather;
+  }
+
   /**
    * e
    * Dumps the properties of the Hive.
@@ -313,8 +366,19 @@ public class Hive extends Observable implements Synchronizeable, Observer, Locka
    * {@inheritDoc}
    */
   public void update(Observable o, Object arg) {
-    if (sync())
-      notifyObservers();
+    syncAndNotifyObservers();
+  }
+
+  /**
+   * Syncs and passes the change to the observers, so they see the changes made through this hive as
+   * well as those read by the HiveSyncDaemon.
+   */
+  private void syncAndNotifyObservers() {
+    HiveMetadataDelta delta = synchronize();
+    if (delta != null) {
+      super.setChanged();
+      super.notifyObservers(delta);
+    }
   }
 
   /**
@@ -397,23 +461,23 @@ public class Hive extends Observable implements Synchronizeable, Observer, Locka
    * {@inheritDoc}
    */
   public boolean doesResourceExist(String resourceName) {
-    return !Preconditions.isNameUnique(dimension.getResources(), resourceName);
+    return !Preconditions.isNameUnique(getPartitionDimension().getResources(), resourceName);
   }
 
   /**
    * {@inheritDoc}
    */
   public Resource addResource(Resource resource) throws HiveLockableException {
-    resource.setPartitionDimension(dimension);
+    resource.setPartitionDimension(getPartitionDimension());
 
     Preconditions.isWritable(this);
-    Preconditions.isNameUnique(dimension.getResources(), resource.getName());
+    Preconditions.isNameUnique(getPartitionDimension().getResources(), resource.getName());
 
     ResourceDao resourceDao = new ResourceDao(hiveDataSource);
     resourceDao.create(resource);
     incrementAndPersistHive(hiveDataSource);
-    Schemas.install(dimension);
-    return dimension.getResource(resource.getName());
+    Schemas.install(getPartitionDimension());
+    return getPartitionDimension().getResource(resource.getName());
   }
 
   /**
@@ -428,7 +492,7 @@ public class Hive extends Observable implements Synchronizeable, Observer, Locka
     SecondaryIndexDao secondaryIndexDao = new SecondaryIndexDao(hiveDataSource);
     secondaryIndexDao.create(secondaryIndex);
     incrementAndPersistHive(hiveDataSource);
-    Schemas.install(dimension);
+    Schemas.install(getPartitionDimension());
     return secondaryIndex;
   }
 
@@ -515,18 +579,14 @@ public class Hive extends Observable implements Synchronizeable, Observer, Locka
    * {@inheritDoc}
    */
   public Collection<Node> getNodes() {
-    return nodes;
+    return metadata.getNodes();
   }
 
   /**
    * {@inheritDoc}
    */
   public Node getNode(final String name) {
-    return Filter.grepSingle(new Predicate<Node>() {
-      public boolean f(Node item) {
-        return item.getName().equalsIgnoreCase(name);
-      }
-    }, getNodes());
+    return metadata.getNode(name);
   }
 
   /**
@@ -536,11 +596,7 @@ public class Hive extends Observable implements Synchronizeable, Observer, Locka
    * @return
    */
   public Node getNode(final int id) {
-    return Filter.grepSingle(new Predicate<Node>() {
-      public boolean f(Node item) {
-        return item.getId() == id;
-      }
-    }, getNodes());
+    return metadata.getNode(id);
   }
 
   /**
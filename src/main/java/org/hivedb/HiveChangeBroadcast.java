@@ -0,0 +1,38 @@
+package org.hivedb;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hivedb.meta.HiveChange;
+
+import java.util.Collection;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Hands every hive change published in this JVM to the registered listeners, so the
+ * {@link HiveSyncDaemon}s of the JVM sync within milliseconds instead of on their next check of the
+ * change log.
+ * <p/>
+ * It is also the hook for pushing changes between JVMs: register a listener that forwards changes to
+ * a message bus, and {@link #publish} the changes received from it.
+ */
+public class HiveChangeBroadcast {
+  private final static Log log = LogFactory.getLog(HiveChangeBroadcast.class);
+  private static final Collection<HiveChangeListener> listeners = new CopyOnWriteArrayList<HiveChangeListener>();
+
+  public static void addListener(HiveChangeListener listener) {
+    listeners.add(listener);
+  }
+
+  public static void removeListener(HiveChangeListener listener) {
+    listeners.remove(listener);
+  }
+
+  public static void publish(HiveChange change) {
+    for (HiveChangeListener listener : listeners)
+      try {
+        listener.hiveChanged(change);
+      } catch (RuntimeException e) {
+        log.warn("Listener failed to handle " + change, e);
+      }
+  }
+}
@@ -0,0 +1,13 @@
+package org.hivedb;
+
+import org.hivedb.meta.HiveChange;
+
+/**
+ * Receives the changes published through {@link HiveChangeBroadcast}.
+ */
+public interface HiveChangeListener {
+  /**
+   * Called on the publishing thread, so it must return quickly.
+   */
+  void hiveChanged(HiveChange change);
+}
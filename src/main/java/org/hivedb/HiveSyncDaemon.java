@@ -7,26 +7,52 @@ package org.hivedb;
 import java.util.Collection;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.sql.DataSource;
 
+import org.hivedb.meta.HiveChange;
 import org.hivedb.meta.persistence.HiveBasicDataSource;
+import org.hivedb.meta.persistence.HiveChangeLogDao;
 import org.hivedb.meta.persistence.HiveSemaphoreDao;
 
 /**
- *  HiveSyncDaemon continually polls the hive and notifies listeners when
+ *  HiveSyncDaemon watches the hive and notifies listeners when
  *  the revision number increments. Listeners use this notification to reload the hive.
  *  The hive's revision number increase increments when any metadata of the hive changes,
  *  such as a new data node or secondary index. See Hive for more details.
+ *  <p/>
+ *  Changes published by a Hive of the same JVM arrive through the HiveChangeBroadcast and are
+ *  synced at once. Between them the daemon checks the hive_change_log every sleep period, a
+ *  primary key lookup, and reads the semaphore only when a change was logged. While nothing
+ *  changes the check period doubles up to the maximum sleep period, which defaults to the sleep
+ *  period; raise it to trade staleness of changes from other JVMs for less idle load, or
+ *  publish their changes through the broadcast.
  * @author Britt Crawford
  *
  */
 public class HiveSyncDaemon extends Thread {
 	private Observable hiveStatus;
-	private long lastRun = 0;
+	private volatile long lastRun = 0;
 	private String hiveUri;
 	private int lastRevision = Integer.MIN_VALUE;
+	private long lastChangeId = Long.MIN_VALUE;
 	private int sleepPeriodMs = 5000;
+	private int maxSleepPeriodMs = sleepPeriodMs;
+	private volatile long waitMs = sleepPeriodMs;
+	private volatile boolean running = true;
+	private final Lock lock = new ReentrantLock();
+	private final BlockingQueue<HiveChange> changes = new LinkedBlockingQueue<HiveChange>();
+	private final HiveChangeListener listener = new HiveChangeListener() {
+		public void hiveChanged(HiveChange change) {
+			if (hiveUri.equals(change.getHiveUri()))
+				changes.offer(change);
+		}
+	};
 	
 	@SuppressWarnings("unchecked")
 	public static HiveSyncDaemon startDaemon(String uri, int sleepPeriodMs, Collection observers) {
@@ -38,7 +64,7 @@ public class HiveSyncDaemon extends Thread {
 	
 	public HiveSyncDaemon(String uri, int sleepPeriodMs, Collection<Observer> observers) {
 		this(uri, observers);
-		this.sleepPeriodMs = sleepPeriodMs;
+		setSleepPeriodMs(sleepPeriodMs);
 	}
 	
 	public HiveSyncDaemon(String uri, Collection<Observer> observers) {
@@ -60,32 +86,73 @@ public class HiveSyncDaemon extends Thread {
 		return new HiveSemaphoreDao(getDataSource()).get().getRevision();
 	}
 	
-	public synchronized void detectChanges() {
-		int latestRevision = getLatestRevision();
-		if (lastRevision != latestRevision)
-			hiveStatus.notifyObservers();
-		lastRevision = latestRevision;
+	public void detectChanges() {
+		// a lock rather than a synchronized method, the revision query would pin a virtual thread to its carrier
+		lock.lock();
+		try {
+			int latestRevision = getLatestRevision();
+			if (lastRevision != latestRevision)
+				hiveStatus.notifyObservers();
+			lastRevision = latestRevision;
+		} finally {
+			lock.unlock();
+		}
 	}
 
-	public void run() {
-		while (true) {
-			try {
-				detectChanges();
-				lastRun = System.currentTimeMillis();
-			} catch (Exception e) {}
+	/**
+	 * Whether a change was logged since the last check. Always true for a hive without a change log,
+	 * whose semaphore is then read every period as before.
+	 */
+	private boolean isChangeLogged() {
+		long latestChangeId = new HiveChangeLogDao(getDataSource()).getLatestId();
+		if (latestChangeId == HiveChangeLogDao.NO_CHANGE_LOG)
+			return true;
+		boolean logged = latestChangeId != lastChangeId;
+		lastChangeId = latestChangeId;
+		return logged;
+	}
 
-			try {
-				sleep(getConfiguredSleepPeriodMs());
-			} catch (InterruptedException e) {}
+	public void run() {
+		HiveChangeBroadcast.addListener(listener);
+		try {
+			long wait = 0;
+			while (running) {
+				try {
+					HiveChange change = changes.poll(wait, TimeUnit.MILLISECONDS);
+					changes.clear();
+					wait = waitMs;
+					if (change != null && change.getId() > lastChangeId)
+						lastChangeId = change.getId();
+					if (change != null || isChangeLogged()) {
+						detectChanges();
+						waitMs = sleepPeriodMs;
+					} else
+						waitMs = Math.min(waitMs * 2, maxSleepPeriodMs);
+					wait = waitMs;
+					lastRun = System.currentTimeMillis();
+				} catch (InterruptedException e) {
+				} catch (Exception e) {
+					waitMs = sleepPeriodMs;
+				}
+			}
+		} finally {
+			HiveChangeBroadcast.removeListener(listener);
 		}
 	}
 
 	/**
-	 * Reports true if the sync thread has run within the last (2 *
-	 * getConfiguredSleepPeriodMs()).
+	 * Stops the daemon after its current check.
+	 */
+	public void shutdown() {
+		running = false;
+		interrupt();
+	}
+
+	/**
+	 * Reports true if the sync thread has run within twice its current check period.
 	 */
 	public boolean isRunning() {
-		return ((System.currentTimeMillis() - lastRun) < 2 * getConfiguredSleepPeriodMs());
+		return ((System.currentTimeMillis() - lastRun) < 2 * Math.max(waitMs, getConfiguredSleepPeriodMs()));
 	}
 
 	public int getConfiguredSleepPeriodMs() {
@@ -94,6 +161,19 @@ public class HiveSyncDaemon extends Thread {
 	
 	public void setSleepPeriodMs(int ms) {
 		this.sleepPeriodMs = ms;
+		this.maxSleepPeriodMs = Math.max(maxSleepPeriodMs, ms);
+		this.waitMs = ms;
+	}
+
+	public int getMaxSleepPeriodMs() {
+		return maxSleepPeriodMs;
+	}
+
+	/**
+	 * The longest period between checks of the change log while the hive is idle.
+	 */
+	public void setMaxSleepPeriodMs(int ms) {
+		this.maxSleepPeriodMs = Math.max(ms, sleepPeriodMs);
 	}
 	
 	class HiveUpdateStatus extends Observable {
@@ -22,7 +22,7 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class JdbcDaoSupportCacheImpl implements JdbcDaoSupportCache {
   private Map<Integer, SimpleJdbcDaoSupport> jdbcDaoSupports;
-  private DirectoryFacade directory;
+  private volatile DirectoryFacade directory;
   private DataSourceProvider dataSourceProvider;
   private Hive hive;
 
@@ -53,6 +53,10 @@ public class JdbcDaoSupportCacheImpl implements JdbcDaoSupportCache {
     return jdbcDaoSupports.remove(node.getId());
   }
 
+  public void setDirectory(DirectoryFacade directory) {
+    this.directory = directory;
+  }
+
   private SimpleJdbcDaoSupport get(KeySemaphore semaphore, AccessType intention) throws HiveLockableException {
     Node node = null;
     node = hive.getNode(semaphore.getNodeId());
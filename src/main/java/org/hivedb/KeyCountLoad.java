@@ -0,0 +1,104 @@
+package org.hivedb;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hivedb.meta.Node;
+import org.hivedb.meta.directory.DirectoryProvider;
+import org.hivedb.util.HiveExecutors;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The load of a node is how full it is: its primary index key count per unit of capacity, relative to
+ * the fullest node. The counts come from the hive's directory, so they are right for partitioned and
+ * memory directories too. Directories that compute the node of a key, e.g. of ranges or buckets, do
+ * not store keys to count and do not place keys with the assigner, so getLoad throws
+ * UnsupportedOperationException for their hives.
+ * <p/>
+ * Counting is a scan, so the counts are kept for a while. The first call counts, later calls get the
+ * last counts while a single background task counts again once they expire.
+ */
+public class KeyCountLoad implements NodeLoad {
+  private final static Log log = LogFactory.getLog(KeyCountLoad.class);
+  public static final long DEFAULT_MAX_AGE = 5 * 60 * 1000;
+  private Hive hive;
+  private DirectoryProvider directories;
+  private long maxAge;
+  private volatile Map<Integer, Double> loads;
+  private volatile long counted;
+  private final AtomicBoolean counting = new AtomicBoolean();
+  private ExecutorService executor = HiveExecutors.getSharedExecutor("hive-key-count", 1);
+
+  public KeyCountLoad(Hive hive, DirectoryProvider directories) {
+    this(hive, directories, DEFAULT_MAX_AGE);
+  }
+
+  /**
+   * @param directories provides the directory of the hive the keys are counted in
+   * @param maxAge      milliseconds the key counts are used before counting again
+   */
+  public KeyCountLoad(Hive hive, DirectoryProvider directories, long maxAge) {
+    this.hive = hive;
+    this.directories = directories;
+    this.maxAge = maxAge;
+  }
+
+  public double getLoad(Node node) {
+    Map<Integer, Double> current = loads;
+    if (current == null)
+      current = countFirst();
+    else if (System.currentTimeMillis() - counted > maxAge)
+      countInBackground();
+    Double load = current.get(node.getId());
+    return load == null ? 0 : load;
+  }
+
+  private synchronized Map<Integer, Double> countFirst() {
+    if (loads == null) {
+      loads = count();
+      counted = System.currentTimeMillis();
+    }
+    return loads;
+  }
+
+  private void countInBackground() {
+    if (!counting.compareAndSet(false, true))
+      return;
+    try {
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            loads = count();
+          } catch (RuntimeException e) {
+            log.warn("Unable to count the primary index keys of the nodes, keeping the last counts", e);
+          } finally {
+            counted = System.currentTimeMillis();
+            counting.set(false);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      counting.set(false);
+    }
+  }
+
+  private Map<Integer, Double> count() {
+    Map<Integer, Long> counts = directories.getDirectory(hive.getUri()).countPrimaryIndexKeysByNode();
+    Map<Integer, Double> loads = new HashMap<Integer, Double>();
+    Map<Integer, Double> fills = new HashMap<Integer, Double>();
+    double fullest = 0;
+    for (Node node : hive.getNodes()) {
+      Long count = counts.get(node.getId());
+      double fill = (count == null ? 0 : count) / (node.getCapacity() > 0 ? node.getCapacity() : 1.0);
+      fills.put(node.getId(), fill);
+      fullest = Math.max(fullest, fill);
+    }
+    for (Map.Entry<Integer, Double> fill : fills.entrySet())
+      loads.put(fill.getKey(), fullest == 0 ? 0 : fill.getValue() / fullest);
+    return loads;
+  }
+}
@@ -0,0 +1,15 @@
+package org.hivedb;
+
+import org.hivedb.meta.Node;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Work done on one data node of a scatter-gather read, see
+ * {@link ConnectionManager#executeBySecondaryIndexKey}. The connection is opened and closed by the
+ * ConnectionManager.
+ */
+public interface NodeCallback<T> {
+  T doInNode(Node node, Connection connection) throws SQLException;
+}
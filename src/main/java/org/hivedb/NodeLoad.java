@@ -0,0 +1,14 @@
+package org.hivedb;
+
+import org.hivedb.meta.Node;
+
+/**
+ * A live measure of how busy or full a data node is, used by {@link WeightedAssigner} to send fewer
+ * new partition keys to loaded nodes.
+ */
+public interface NodeLoad {
+  /**
+   * @return the load of the node between 0, idle or empty, and 1, the most loaded
+   */
+  double getLoad(Node node);
+}
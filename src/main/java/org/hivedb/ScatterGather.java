@@ -0,0 +1,150 @@
+package org.hivedb;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hivedb.meta.Node;
+import org.hivedb.util.HiveExecutors;
+import org.hivedb.util.functional.Atom;
+import org.hivedb.util.functional.Unary;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs a task against several data nodes at once and gathers the results in node order, so a
+ * multi-node read takes as long as its slowest node rather than the sum of them. The default
+ * executor is the JVM-wide shared executor of {@link HiveExecutors}: a bounded thread pool, or
+ * virtual threads if enabled. Every hive of the JVM uses it, so hives that are loaded and dropped
+ * leave no pools behind. A single node is queried on the calling thread.
+ * <p/>
+ * Every node has to answer within the timeout, counted from when the tasks are submitted. What
+ * happens when a node fails or times out is decided by the {@link FailurePolicy}.
+ * <p/>
+ * Tasks must not scatter-gather on the same executor, they could wait on threads of the pool they
+ * hold.
+ */
+public class ScatterGather {
+  private final static Log log = LogFactory.getLog(ScatterGather.class);
+  public static final int DEFAULT_THREAD_COUNT = 16;
+  public static final long DEFAULT_TIMEOUT = 30000;
+
+  public enum FailurePolicy {
+    /**
+     * Cancel the remaining nodes and throw the first failure.
+     */
+    FAIL,
+    /**
+     * Log the failed nodes and return the results of the others.
+     */
+    SKIP_FAILED_NODES
+  }
+
+  private ExecutorService executor;
+  private boolean shared;
+  private long timeout;
+  private FailurePolicy failurePolicy;
+
+  public ScatterGather() {
+    this(HiveExecutors.getSharedExecutor("hive-scatter-gather", DEFAULT_THREAD_COUNT), DEFAULT_TIMEOUT, FailurePolicy.FAIL);
+    this.shared = true;
+  }
+
+  /**
+   * @param executor runs the node tasks and is shut down by {@link #shutdown}
+   * @param timeout  milliseconds each node has to answer in
+   */
+  public ScatterGather(ExecutorService executor, long timeout, FailurePolicy failurePolicy) {
+    if (timeout < 1)
+      throw new IllegalArgumentException("The scatter-gather timeout must be positive.");
+    this.executor = executor;
+    this.timeout = timeout;
+    this.failurePolicy = failurePolicy;
+  }
+
+  public <T> List<T> execute(Collection<Node> nodes, Unary<Node, T> task) {
+    return execute(nodes, task, failurePolicy);
+  }
+
+  public <T> List<T> execute(Collection<Node> nodes, final Unary<Node, T> task, FailurePolicy failurePolicy) {
+    List<T> results = new ArrayList<T>();
+    if (nodes.size() == 1) {
+      Node node = Atom.getFirstOrThrow(nodes);
+      try {
+        results.add(task.f(node));
+      } catch (RuntimeException e) {
+        failed(node, e, failurePolicy);
+      }
+      return results;
+    }
+
+    List<Node> targets = new ArrayList<Node>(nodes);
+    List<Future<T>> futures = new ArrayList<Future<T>>();
+    for (final Node node : targets)
+      futures.add(executor.submit(new Callable<T>() {
+        public T call() throws Exception {
+          return task.f(node);
+        }
+      }));
+    long deadline = System.currentTimeMillis() + timeout;
+    try {
+      for (int i = 0; i < futures.size(); i++) {
+        try {
+          results.add(futures.get(i).get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+        } catch (ExecutionException e) {
+          failed(targets.get(i), e.getCause(), failurePolicy);
+        } catch (TimeoutException e) {
+          futures.get(i).cancel(true);
+          failed(targets.get(i), new HiveRuntimeException(String.format("Node %s did not answer within %s ms", targets.get(i).getName(), timeout), e), failurePolicy);
+        }
+      }
+    } catch (InterruptedException e) {
+      cancel(futures);
+      Thread.currentThread().interrupt();
+      throw new HiveRuntimeException("Interrupted while querying the data nodes.", e);
+    } catch (RuntimeException e) {
+      cancel(futures);
+      throw e;
+    }
+    return results;
+  }
+
+  public long getTimeout() {
+    return timeout;
+  }
+
+  public FailurePolicy getFailurePolicy() {
+    return failurePolicy;
+  }
+
+  /**
+   * Shuts down the executor given to the constructor. The shared executor is left running.
+   */
+  public void shutdown() {
+    if (!shared)
+      executor.shutdownNow();
+  }
+
+  private static void failed(Node node, Throwable cause, FailurePolicy failurePolicy) {
+    if (failurePolicy == FailurePolicy.SKIP_FAILED_NODES) {
+      log.warn(String.format("Skipping node %s: %s", node.getName(), cause.getMessage()), cause);
+      return;
+    }
+    if (cause instanceof RuntimeException)
+      throw (RuntimeException) cause;
+    if (cause instanceof Error)
+      throw (Error) cause;
+    throw new HiveRuntimeException(String.format("Query of node %s failed: %s", node.getName(), cause.getMessage()), (Exception) cause);
+  }
+
+  private static <T> void cancel(Collection<Future<T>> futures) {
+    for (Future<T> future : futures)
+      future.cancel(true);
+  }
+}
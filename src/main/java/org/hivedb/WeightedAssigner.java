@@ -0,0 +1,159 @@
+package org.hivedb;
+
+import org.hivedb.meta.Assigner;
+import org.hivedb.meta.Node;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+/**
+ * A node assigner that gives each node a share of new partition keys in proportion to its
+ * capacity, so a large new node fills as fast, relative to its size, as the small old ones. If every
+ * node has no capacity set, nodes are weighted equally.
+ * <p/>
+ * Weights can be lowered by live {@link NodeLoad}s, e.g. {@link ConnectionPoolLoad} or
+ * {@link KeyCountLoad}: a node's weight is its capacity times one minus its highest load, but never
+ * less than {@link #MIN_LOAD_FACTOR} of its capacity. Keys then flow to the emptier nodes until the
+ * fill rates converge.
+ * <p/>
+ * The weights are kept as a cumulative table, rebuilt when different nodes are passed, i.e. on a
+ * hive revision, and, when there are loads, once the load interval has passed. A key is placed by
+ * its hash, so a key is placed the same way until the table changes.
+ */
+public class WeightedAssigner implements Assigner {
+  public static final long DEFAULT_LOAD_INTERVAL = 10000;
+  public static final double MIN_LOAD_FACTOR = 0.05;
+  private NodeLoad[] loads;
+  private long loadInterval;
+  private volatile Table table;
+
+  /**
+   * Weights nodes by capacity alone.
+   */
+  public WeightedAssigner() {
+    this(DEFAULT_LOAD_INTERVAL);
+  }
+
+  /**
+   * @param loadInterval milliseconds the loads of the nodes are used before they are read again
+   */
+  public WeightedAssigner(long loadInterval, NodeLoad... loads) {
+    this.loadInterval = loadInterval;
+    this.loads = loads;
+  }
+
+  public Node chooseNode(Collection<Node> nodes, Object value) {
+    if (nodes.size() == 0)
+      throw new HiveRuntimeException("The Hive has no Nodes; the Assigner cannot make a choice.");
+    return getTable(nodes).choose((ConsistentHashAssigner.hash(value) >>> 11) * 0x1.0p-53);
+  }
+
+  public Collection<Node> chooseNodes(Collection<Node> nodes, Object value) {
+    return Arrays.asList(new Node[]{chooseNode(nodes, value)});
+  }
+
+  /**
+   * The share of new keys each node currently gets, in the order of the nodes.
+   */
+  public double[] getShares(Collection<Node> nodes) {
+    Table current = getTable(nodes);
+    double[] shares = new double[nodes.size()];
+    int i = 0;
+    for (Node node : nodes)
+      shares[i++] = current.getShare(node);
+    return shares;
+  }
+
+  private Table getTable(Collection<Node> nodes) {
+    Table current = table;
+    if (current == null || !current.isOf(nodes) || (loads.length > 0 && System.currentTimeMillis() - current.built > loadInterval))
+      table = current = new Table(nodes, weigh(nodes));
+    return current;
+  }
+
+  private double[] weigh(Collection<Node> nodes) {
+    boolean anyCapacity = false;
+    for (Node node : nodes)
+      anyCapacity |= node.getCapacity() > 0;
+    double[] weights = new double[nodes.size()];
+    int i = 0;
+    for (Node node : nodes) {
+      double load = 0;
+      for (NodeLoad nodeLoad : loads)
+        load = Math.max(load, nodeLoad.getLoad(node));
+      double capacity = anyCapacity ? Math.max(0, node.getCapacity()) : 1;
+      weights[i++] = capacity * Math.max(MIN_LOAD_FACTOR, 1 - load);
+    }
+    return weights;
+  }
+
+  /**
+   * The running sum of the weights of the nodes, sorted by id so the table does not depend on the
+   * order of the nodes.
+   */
+  private static class Table {
+    private final Node[] nodes;
+    private final int[] nodeIds;
+    private final double[] cumulative;
+    private final long built = System.currentTimeMillis();
+
+    public Table(Collection<Node> nodes, double[] weights) {
+      final Node[] given = nodes.toArray(new Node[nodes.size()]);
+      Integer[] order = new Integer[given.length];
+      for (int i = 0; i < order.length; i++)
+        order[i] = i;
+      Arrays.sort(order, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          return given[a].getId() - given[b].getId();
+        }
+      });
+      this.nodes = new Node[given.length];
+      this.nodeIds = new int[given.length];
+      this.cumulative = new double[given.length];
+      double sum = 0;
+      for (int i = 0; i < order.length; i++) {
+        this.nodes[i] = given[order[i]];
+        this.nodeIds[i] = given[order[i]].getId();
+        sum += weights[order[i]];
+        this.cumulative[i] = sum;
+      }
+      if (sum <= 0)
+        throw new HiveRuntimeException("None of the nodes has capacity; the Assigner cannot make a choice.");
+    }
+
+    /**
+     * @param unit a number from 0 up to 1
+     */
+    public Node choose(double unit) {
+      double point = unit * cumulative[cumulative.length - 1];
+      int index = Arrays.binarySearch(cumulative, point);
+      index = index < 0 ? -index - 1 : index + 1;
+      // skip nodes without weight, whose running sum equals their predecessor's
+      while (index < cumulative.length - 1 && cumulative[index] == (index == 0 ? 0 : cumulative[index - 1]))
+        index++;
+      return nodes[Math.min(index, nodes.length - 1)];
+    }
+
+    public double getShare(Node node) {
+      int index = Arrays.binarySearch(nodeIds, node.getId());
+      if (index < 0)
+        return 0;
+      return (cumulative[index] - (index == 0 ? 0 : cumulative[index - 1])) / cumulative[cumulative.length - 1];
+    }
+
+    /**
+     * Whether the table was built from the same node instances, which a hive revision replaces.
+     */
+    public boolean isOf(Collection<Node> nodes) {
+      if (nodes.size() != nodeIds.length)
+        return false;
+      for (Node node : nodes) {
+        int index = Arrays.binarySearch(nodeIds, node.getId());
+        if (index < 0 || this.nodes[index] != node)
+          return false;
+      }
+      return true;
+    }
+  }
+}
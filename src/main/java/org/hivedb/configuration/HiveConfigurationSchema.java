@@ -51,6 +51,10 @@ public class HiveConfigurationSchema extends Schema {
     return Templater.render("sql/hive_semaphore.vsql", Schemas.getContext(dbURI));
   }
 
+  private String getCreateChangeLog() {
+    return Templater.render("sql/hive_change_log.vsql", Schemas.getContext(dbURI));
+  }
+
   private String getCreatePartitionDimension() {
     return Templater.render("sql/partition_dimension_configuration.vsql", Schemas.getContext(dbURI));
   }
@@ -72,6 +76,7 @@ public class HiveConfigurationSchema extends Schema {
   public String[] getCreateStatements() {
     return new String[]{
       getCreateHive(),
+      getCreateChangeLog(),
       getCreateNode(),
       getCreatePartitionDimension(),
       getCreateSecondaryIndex(),
@@ -82,6 +87,7 @@ public class HiveConfigurationSchema extends Schema {
   public Collection<TableInfo> getTables(String uri) {
     Collection<TableInfo> TableInfos = new ArrayList<TableInfo>();
     TableInfos.add(new TableInfo("semaphore_metadata", getCreateHive()));
+    TableInfos.add(new TableInfo("hive_change_log", getCreateChangeLog()));
     TableInfos.add(new TableInfo("node_metadata", getCreateNode()));
     TableInfos.add(new TableInfo("partition_dimension_metadata", getCreatePartitionDimension()));
     TableInfos.add(new TableInfo("secondary_index_metadata", getCreateSecondaryIndex()));
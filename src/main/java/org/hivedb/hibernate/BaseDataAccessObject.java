@@ -16,6 +16,7 @@ import org.hivedb.configuration.EntityConfig;
 import org.hivedb.configuration.EntityIndexConfig;
 import org.hivedb.configuration.EntityIndexConfigDelegator;
 import org.hivedb.configuration.EntityIndexConfigImpl;
+import org.hivedb.meta.directory.SecondaryIndexKeySemaphore;
 import org.hivedb.util.Lists;
 import org.hivedb.util.classgen.GenerateInstance;
 import org.hivedb.util.classgen.GeneratedClassFactory;
@@ -32,6 +33,7 @@ import java.util.Map.Entry;
 public class BaseDataAccessObject implements DataAccessObject<Object, Serializable> {
   private final Log log = LogFactory.getLog(BaseDataAccessObject.class);
   private static int CHUNK_SIZE = 10;
+  private static final int ID_LIST_CHUNK_SIZE = 100;
   private final HiveSessionFactory factory;
   private final EntityConfig config;
   private final Class<?> clazz;
@@ -116,9 +118,50 @@ public class BaseDataAccessObject implements DataAccessObject<Object, Serializab
   }
 
   public Collection<Object> findByProperty(final String propertyName, final Object propertyValue) {
+    EntityIndexConfig entityIndexConfig = resolveEntityIndexConfig(propertyName);
+    if (entityIndexConfig.getIndexType().equals(IndexType.Hive))
+      return getBySecondaryIndexKey(entityIndexConfig, propertyValue);
     return findByProperties(propertyName, Collections.singletonMap(propertyName, propertyValue));
   }
 
+  /**
+   * Reads the ids and nodes of the resources owning a hive indexed value from the directory and gets
+   * the resources of each node with one session and an id IN query per chunk of ids, instead of
+   * querying every node holding the value by property.
+   */
+  private Collection<Object> getBySecondaryIndexKey(EntityIndexConfig entityIndexConfig, Object propertyValue) {
+    Map<Integer, List<Serializable>> idsByNode = new LinkedHashMap<Integer, List<Serializable>>();
+    Map<Integer, Object> primaryIndexKeyOfNode = new HashMap<Integer, Object>();
+    Set<Serializable> ids = new HashSet<Serializable>();
+    for (SecondaryIndexKeySemaphore semaphore : hive.directory().getSecondaryIndexKeySemaphoresOfSecondaryIndexKey(
+        config.getResourceName(), entityIndexConfig.getIndexName(), propertyValue)) {
+      if (!ids.add((Serializable) semaphore.getResourceId()))
+        continue;
+      if (!idsByNode.containsKey(semaphore.getNodeId())) {
+        idsByNode.put(semaphore.getNodeId(), new ArrayList<Serializable>());
+        primaryIndexKeyOfNode.put(semaphore.getNodeId(), semaphore.getPrimaryIndexKey());
+      }
+      idsByNode.get(semaphore.getNodeId()).add((Serializable) semaphore.getResourceId());
+    }
+
+    Collection<Object> entities = new ArrayList<Object>();
+    for (final Entry<Integer, List<Serializable>> entry : idsByNode.entrySet())
+      entities.addAll(queryInTransaction(new QueryCallback() {
+        @SuppressWarnings("unchecked")
+        public Collection<Object> execute(Session session) {
+          Collection<Object> fetched = new ArrayList<Object>();
+          List<Serializable> nodeIds = entry.getValue();
+          for (int i = 0; i < nodeIds.size(); i += ID_LIST_CHUNK_SIZE)
+            fetched.addAll(session.createCriteria(config.getRepresentedInterface())
+                .setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY)
+                .add(Restrictions.in(config.getIdPropertyName(), nodeIds.subList(i, Math.min(i + ID_LIST_CHUNK_SIZE, nodeIds.size()))))
+                .list());
+          return fetched;
+        }
+      }, factory.openSession(primaryIndexKeyOfNode.get(entry.getKey()))));
+    return entities;
+  }
+
   public Collection<Object> findByProperty(final String propertyName, final Object propertyValue, final Integer firstResult, final Integer maxResults) {
     return findByProperties(propertyName, Collections.singletonMap(propertyName, propertyValue), firstResult, maxResults);
   }
@@ -1,6 +1,6 @@
 package org.hivedb.hibernate;
 
-import org.hibernate.shards.strategy.access.SequentialShardAccessStrategy;
+import org.hibernate.shards.strategy.access.ShardAccessStrategy;
 import org.hivedb.Hive;
 import org.hivedb.configuration.EntityHiveConfig;
 
@@ -13,11 +13,20 @@ public class BaseDataAccessObjectFactory<T, ID extends Serializable> implements
 	EntityHiveConfig entityHiveConfig;
 	Collection<Class<?>> mappedClasses;
 	Class<T> representedClass;
+	ShardAccessStrategy accessStrategy;
 	public BaseDataAccessObjectFactory(EntityHiveConfig entityHiveConfig, Collection<Class<?>> mappedClasses, Class<T> representedClass, Hive hive) {
+		this(entityHiveConfig, mappedClasses, representedClass, hive, HiveShardAccessStrategy.getInstance());
+	}
+	/**
+	 * @param accessStrategy runs the operations of the DAOs on the nodes, e.g. a HiveShardAccessStrategy
+	 * with timeouts
+	 */
+	public BaseDataAccessObjectFactory(EntityHiveConfig entityHiveConfig, Collection<Class<?>> mappedClasses, Class<T> representedClass, Hive hive, ShardAccessStrategy accessStrategy) {
 		this.entityHiveConfig = entityHiveConfig;
 		this.mappedClasses = mappedClasses;
 		this.representedClass = representedClass;
 		this.hive = hive;
+		this.accessStrategy = accessStrategy;
 	}
 	@SuppressWarnings("unchecked")
 	public DataAccessObject<T, ID> create() {
@@ -28,6 +37,6 @@ public class BaseDataAccessObjectFactory<T, ID extends Serializable> implements
 					entityHiveConfig, 
 					mappedClasses,
 					hive,
-					new SequentialShardAccessStrategy()));
+					accessStrategy));
 	}
 }
@@ -8,6 +8,7 @@ import org.hivedb.configuration.EntityIndexConfig;
 import org.hivedb.configuration.EntityIndexConfigDelegator;
 import org.hivedb.util.functional.*;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
@@ -22,10 +23,12 @@ public class HiveIndexer {
 
   public void insert(final EntityConfig config, final Object entity) throws HiveLockableException {
     try {
-      conditionallyInsertPrimaryIndexKey(config, entity);
-      hive.directory().insertResourceId(config.getResourceName(), config.getId(entity), config.getPrimaryIndexKey(entity));
+      hive.directory().indexEntity(
+        config.getResourceName(),
+        config.getPrimaryIndexKey(entity),
+        config.getId(entity),
+        getSecondaryIndexValues(config, entity));
       conditionallyInsertDelegatedResourceIndexes(config, entity);
-      insertSecondaryIndexes(config, entity);
     } catch (RuntimeException e) {
       hive.directory().deleteResourceId(config.getResourceName(), config.getId(entity));
       throw e;
@@ -50,8 +53,8 @@ public class HiveIndexer {
       }
   }
 
-  private void insertSecondaryIndexes(final EntityConfig config, final Object entity) throws HiveLockableException {
-    Map<String, Collection<Object>> secondaryIndexMap = Transform.toMap(
+  private Map<String, Collection<Object>> getSecondaryIndexValues(final EntityConfig config, final Object entity) {
+    return Transform.toMap(
       Filter.grep(
         new Filter.NotNullPredicate<Entry<String, Collection<Object>>>(),
         Transform.map(
@@ -62,7 +65,6 @@ public class HiveIndexer {
               return new Pair<String, Collection<Object>>(entityIndexConfig.getIndexName(), entityIndexConfig.getIndexValues(entity));
             }
           }, getSecondaryIndexConfigs(config))));
-    hive.directory().insertSecondaryIndexKeys(config.getResourceName(), secondaryIndexMap, config.getId(entity));
   }
 
   private Collection<EntityIndexConfig> getSecondaryIndexConfigs(final EntityConfig config) {
@@ -81,17 +83,16 @@ public class HiveIndexer {
     }, config.getEntityIndexConfigs());
   }
 
-  @SuppressWarnings("unchecked")
   private Map<String, Collection<Object>> getAllSecondaryIndexValues(EntityConfig config, Object entity) {
+    Map<String, Collection<Object>> indexedValues =
+      hive.directory().getAllSecondaryIndexKeysWithResourceId(config.getResourceName(), config.getId(entity));
     Map<String, Collection<Object>> secondaryIndexMap = new HashMap<String, Collection<Object>>();
-    for (EntityIndexConfig indexConfig :
-      getSecondaryIndexConfigs(config))
+    for (EntityIndexConfig indexConfig : getSecondaryIndexConfigs(config))
       secondaryIndexMap.put(
         indexConfig.getIndexName(),
-        hive.directory().getSecondaryIndexKeysWithResourceId(
-          config.getResourceName(),
-          indexConfig.getIndexName(),
-          config.getId(entity)));
+        indexedValues.containsKey(indexConfig.getIndexName())
+          ? indexedValues.get(indexConfig.getIndexName())
+          : new ArrayList<Object>());
     return secondaryIndexMap;
   }
 
@@ -1,5 +1,7 @@
 package org.hivedb.hibernate;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.hibernate.Interceptor;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
@@ -19,38 +21,59 @@ import org.hibernate.shards.strategy.ShardStrategyImpl;
 import org.hibernate.shards.strategy.access.ShardAccessStrategy;
 import org.hibernate.shards.util.Lists;
 import org.hibernate.shards.util.Maps;
+import org.hibernate.util.SerializationHelper;
 import org.hivedb.Hive;
 import org.hivedb.HiveKeyNotFoundException;
+import org.hivedb.HiveRuntimeException;
 import org.hivedb.Synchronizeable;
 import org.hivedb.configuration.EntityConfig;
 import org.hivedb.configuration.EntityHiveConfig;
+import org.hivedb.meta.HiveMetadataDelta;
 import org.hivedb.meta.Node;
 import org.hivedb.meta.persistence.CachingDataSourceProvider;
-import org.hivedb.util.Combiner;
+import org.hivedb.util.HiveExecutors;
 import org.hivedb.util.database.DriverLoader;
 import org.hivedb.util.database.HiveDbDialect;
 import org.hivedb.util.functional.Atom;
 import org.hivedb.util.functional.Filter;
-import org.hivedb.util.functional.Filter.BinaryPredicate;
 import org.hivedb.util.functional.Transform;
-import org.hivedb.util.functional.Transform.IdentityFunction;
 import org.hivedb.util.functional.Unary;
 
 import java.util.*;
 import java.util.Map.Entry;
-
-// TODO Node Set session factories have to go, combinatoric compexity
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Builds the Hibernate session factories of the hive: one per node, for sessions on the node of a
+ * key, and a sharded one over all nodes. The hibernate mappings are parsed once into a prototype
+ * Configuration, and the configuration of each factory is a copy of it with the node's connection
+ * properties, so the mapping metadata is not parsed again per node.
+ * <p/>
+ * In lazy mode, chosen by the constructor argument or the <code>hivedb.lazySessionFactories</code>
+ * system property, a factory is built the first time it is used, so a service only pays for the
+ * nodes it reaches. Otherwise every factory is built up front, independent factories in parallel.
+ */
 public class HiveSessionFactoryBuilderImpl implements HiveSessionFactoryBuilder, HiveSessionFactory, Observer, Synchronizeable {
-
+  public static final String LAZY_PROPERTY = "hivedb.lazySessionFactories";
   private static final int NODE_SET_LIMIT = 1;
+  private final static Log log = LogFactory.getLog(HiveSessionFactoryBuilderImpl.class);
   private static Map<HiveDbDialect, Class<?>> dialectMap = buildDialectMap();
-  private Map<Set<Integer>, SessionFactory> nodeSessionFactories;
+  private ConcurrentMap<Integer, NodeSessionFactory> nodeSessionFactories = new ConcurrentHashMap<Integer, NodeSessionFactory>();
   private Collection<Class<?>> hibernateClasses;
   private EntityHiveConfig config;
   private ShardAccessStrategy accessStrategy;
   private Properties overrides = new Properties();
-  private ShardedSessionFactory allNodesSessionFactory = null;
+  private volatile ShardedSessionFactory allNodesSessionFactory = null;
+  private Collection<Node> allNodes = null;
+  private final Object syncLock = new Object();
+  private Configuration prototype = null;
+  private boolean lazy = Boolean.getBoolean(LAZY_PROPERTY);
   private Hive hive;
 
   public HiveSessionFactoryBuilderImpl(String hiveUri, List<Class<?>> hibernateClasses, ShardAccessStrategy strategy) {
@@ -71,8 +94,16 @@ public class HiveSessionFactoryBuilderImpl implements HiveSessionFactoryBuilder,
   }
 
   public HiveSessionFactoryBuilderImpl(EntityHiveConfig config, Collection<Class<?>> mappedClasses, Hive hive, ShardAccessStrategy strategy) {
+    this(config, mappedClasses, hive, strategy, Boolean.getBoolean(LAZY_PROPERTY));
+  }
+
+  /**
+   * @param lazy build each session factory the first time it is used rather than now
+   */
+  public HiveSessionFactoryBuilderImpl(EntityHiveConfig config, Collection<Class<?>> mappedClasses, Hive hive, ShardAccessStrategy strategy, boolean lazy) {
     this.hive = hive;
     this.hibernateClasses = mappedClasses;
+    this.lazy = lazy;
     initialize(config, hive, strategy);
   }
 
@@ -94,78 +125,155 @@ public class HiveSessionFactoryBuilderImpl implements HiveSessionFactoryBuilder,
   private void initialize(EntityHiveConfig config, Hive hive, ShardAccessStrategy strategy) {
     this.accessStrategy = strategy;
     this.config = config;
-    this.nodeSessionFactories = buildNodeSetSessionFactories();
-    this.allNodesSessionFactory = buildAllNodesSessionFactory();
+    if (!lazy) {
+      Collection<Node> nodes = hive.getNodes();
+      buildEagerly(nodes, nodes);
+    }
     hive.addObserver(this);
   }
 
   public ShardedSessionFactory getSessionFactory() {
-    return allNodesSessionFactory;
+    ShardedSessionFactory factory = allNodesSessionFactory;
+    if (factory == null)
+      synchronized (this) {
+        if (allNodesSessionFactory == null) {
+          allNodes = hive.getNodes();
+          allNodesSessionFactory = buildAllNodesSessionFactory(allNodes);
+        }
+        factory = allNodesSessionFactory;
+      }
+    return factory;
   }
 
-  private Map<Set<Integer>, SessionFactory> buildNodeSetSessionFactories() {
-    final Map<Integer, Configuration> hibernateConfigs = getConfigurationsFromNodes(hive);
+  /**
+   * Sets the all nodes factory and the nodes it reaches, returning the factory it replaces.
+   */
+  private synchronized ShardedSessionFactory setAllNodesSessionFactory(ShardedSessionFactory factory, Collection<Node> nodes) {
+    ShardedSessionFactory previous = allNodesSessionFactory;
+    allNodesSessionFactory = factory;
+    allNodes = nodes;
+    return previous;
+  }
 
-    // Build non-sharded session factories for individual single-shard access
-    final Map<Integer, SessionFactory> hibernateSessionFactories = Transform.toMap(
-      new Transform.IdentityFunction<Integer>(),
-      new Unary<Integer, SessionFactory>() {
-        public SessionFactory f(Integer nodeId) {
-          return hibernateConfigs.get(nodeId).buildSessionFactory();
-        }
-      },
-      hibernateConfigs.keySet());
-
-    Collection<Set<Integer>> nodeSetCombinations = Combiner.generateSets(hibernateConfigs.keySet(), NODE_SET_LIMIT);
-    return Transform.toMap(
-      new IdentityFunction<Set<Integer>>(),
-      new Unary<Set<Integer>, SessionFactory>() {
-        public SessionFactory f(Set<Integer> nodeSet) {
-          return (nodeSet.size() == 1)
-            ? hibernateSessionFactories.get(Atom.getFirstOrThrow(nodeSet)) // non-sharded
-            : buildMultiNodeSessionFactory(getSomeNodeConfigurations(nodeSet)); // sharded
+  public boolean isLazy() {
+    return lazy;
+  }
 
+  /**
+   * Builds the factories of the given nodes and the all nodes factory of all nodes, on a thread each
+   * up to the number of processors. Returns the all nodes factory replaced.
+   */
+  private ShardedSessionFactory buildEagerly(Collection<Node> nodes, final Collection<Node> all) {
+    List<NodeSessionFactory> tasks = new ArrayList<NodeSessionFactory>();
+    for (Node node : nodes) {
+      NodeSessionFactory task = newNodeSessionFactory(node);
+      nodeSessionFactories.put(node.getId(), task);
+      tasks.add(task);
+    }
+    int threads = Math.max(1, Math.min(tasks.size() + 1, Runtime.getRuntime().availableProcessors()));
+    ExecutorService executor = HiveExecutors.newThreadPool("hive-session-factories", threads);
+    try {
+      Future<ShardedSessionFactory> allNodes = executor.submit(new Callable<ShardedSessionFactory>() {
+        public ShardedSessionFactory call() {
+          return buildAllNodesSessionFactory(all);
         }
-      }, nodeSetCombinations);
+      });
+      for (NodeSessionFactory task : tasks)
+        executor.execute(task);
+      for (NodeSessionFactory task : tasks)
+        get(task);
+      return setAllNodesSessionFactory(get(allNodes), all);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private NodeSessionFactory newNodeSessionFactory(final Node node) {
+    return new NodeSessionFactory(node, new Callable<SessionFactory>() {
+      public SessionFactory call() {
+        return setNodeProperties(copyPrototypeConfiguration(), node, overrides).buildSessionFactory();
+      }
+    });
   }
 
-  private ShardedSessionFactory buildAllNodesSessionFactory() {
+  /**
+   * Builds the factory of a node and remembers the node it was built for, so a reconnection of the
+   * node is noticed.
+   */
+  private static class NodeSessionFactory extends FutureTask<SessionFactory> {
+    private final Node node;
 
-    List<ShardConfiguration> shardConfigs = getNodeConfigurations();
-    return buildMultiNodeSessionFactory(shardConfigs);
+    public NodeSessionFactory(Node node, Callable<SessionFactory> builder) {
+      super(builder);
+      this.node = node;
+    }
+
+    public Node getNode() {
+      return node;
+    }
   }
 
-  private ShardedSessionFactory buildMultiNodeSessionFactory(List<ShardConfiguration> shardConfigs) {
-    Configuration prototypeConfig = buildPrototypeConfiguration();
-    ShardedConfiguration shardedConfig = new ShardedConfiguration(prototypeConfig, shardConfigs, buildShardStrategyFactory());
-    return shardedConfig.buildShardedSessionFactory();
+  /**
+   * The non-sharded factory of a node, built on first use in lazy mode. Threads asking for a factory
+   * being built wait for it rather than build another.
+   */
+  private SessionFactory getNodeSessionFactory(Integer nodeId) {
+    NodeSessionFactory task = nodeSessionFactories.get(nodeId);
+    if (task == null) {
+      NodeSessionFactory created = newNodeSessionFactory(hive.getNode(nodeId));
+      task = nodeSessionFactories.putIfAbsent(nodeId, created);
+      if (task == null) {
+        task = created;
+        task.run();
+      }
+    }
+    return get(task);
   }
 
-  private Map<Integer, Configuration> getConfigurationsFromNodes(Hive hive) {
-    Map<Integer, Configuration> configMap = Maps.newHashMap();
-    for (Node node : hive.getNodes())
-      configMap.put(node.getId(), addClassesToConfig(createConfigurationFromNode(node, overrides)));
-    return configMap;
+  private static <T> T get(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new HiveRuntimeException("Interrupted while building a session factory", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      if (e.getCause() instanceof Error)
+        throw (Error) e.getCause();
+      throw new HiveRuntimeException("Unable to build a session factory", (Exception) e.getCause());
+    }
   }
 
-  private List<ShardConfiguration> getNodeConfigurations() {
-    final Map<Integer, Configuration> nodeToHibernateConfigMap = getConfigurationsFromNodes(hive);
+  private ShardedSessionFactory buildAllNodesSessionFactory(Collection<Node> nodes) {
+    // the sharded configuration sets each shard's properties on its prototype in turn, so it gets its own copy
+    ShardedConfiguration shardedConfig = new ShardedConfiguration(copyPrototypeConfiguration(), getNodeConfigurations(nodes), buildShardStrategyFactory());
+    return shardedConfig.buildShardedSessionFactory();
+  }
+
+  /**
+   * The connection properties of each node. The shard configurations carry no mappings, those come
+   * from the prototype.
+   */
+  private List<ShardConfiguration> getNodeConfigurations(Collection<Node> nodes) {
     List<ShardConfiguration> configs = Lists.newArrayList();
-    for (Configuration hibernateConfig : nodeToHibernateConfigMap.values())
-      configs.add(new ConfigurationToShardConfigurationAdapter(hibernateConfig));
+    for (Node node : nodes)
+      configs.add(new ConfigurationToShardConfigurationAdapter(createConfigurationFromNode(node, overrides)));
     return configs;
   }
 
-  private List<ShardConfiguration> getSomeNodeConfigurations(Set<Integer> nodeIds) {
-    return new ArrayList<ShardConfiguration>(Filter.grepAgainstList(
-      nodeIds,
-      getNodeConfigurations(),
-      new BinaryPredicate<Integer, ShardConfiguration>() {
-        @Override
-        public boolean f(Integer nodeId, ShardConfiguration shardConfiguration) {
-          return shardConfiguration.getShardId().equals(nodeId);
-        }
-      }));
+  /**
+   * A copy of the prototype, whose mappings are parsed only once. The prototype itself is never
+   * changed, so copies can be made concurrently.
+   */
+  private Configuration copyPrototypeConfiguration() {
+    return (Configuration) SerializationHelper.clone(getPrototypeConfiguration());
+  }
+
+  private synchronized Configuration getPrototypeConfiguration() {
+    if (prototype == null)
+      prototype = buildPrototypeConfiguration();
+    return prototype;
   }
 
   private Configuration buildPrototypeConfiguration() {
@@ -203,7 +311,10 @@ public class HiveSessionFactoryBuilderImpl implements HiveSessionFactoryBuilder,
   }
 
   public static Configuration createConfigurationFromNode(Node node, Properties overrides) {
-    Configuration config = new Configuration().configure();
+    return setNodeProperties(new Configuration().configure(), node, overrides);
+  }
+
+  private static Configuration setNodeProperties(Configuration config, Node node, Properties overrides) {
     config.setProperty("hibernate.session_factory_name", "factory:" + node.getName());
 
     config.setProperty("hibernate.dialect", dialectMap.get(node.getDialect()).getName());
@@ -219,17 +330,99 @@ public class HiveSessionFactoryBuilderImpl implements HiveSessionFactoryBuilder,
   }
 
   public void update(Observable o, Object arg) {
-    sync();
+    if (arg instanceof HiveMetadataDelta)
+      sync((HiveMetadataDelta) arg);
+    else
+      sync();
   }
 
+  /**
+   * Rebuilds the session factories of the added and reconnected nodes, and the all nodes factory,
+   * only if the connections to the nodes changed. A change of node status or of the partition
+   * dimension leaves every factory in place.
+   */
+  private boolean sync(HiveMetadataDelta delta) {
+    return reconcile(false);
+  }
+
+  /**
+   * Rebuilds the all nodes factory, and the factories of the nodes whose connections changed.
+   */
   public boolean sync() {
-    ShardedSessionFactory newFactory = buildAllNodesSessionFactory();
-    synchronized (this) {
-      this.allNodesSessionFactory = newFactory;
+    return reconcile(true);
+  }
+
+  /**
+   * Checks every factory against the nodes of the hive rather than a delta, so a change this builder
+   * missed is caught by the next sync. The factories of removed and reconnected nodes, and the all
+   * nodes factory if its nodes changed, are replaced and closed. In lazy mode they are rebuilt on
+   * their next use, otherwise at once along with those of the added nodes.
+   */
+  private boolean reconcile(boolean rebuildAllNodes) {
+    synchronized (syncLock) {
+      Map<Integer, Node> nodes = new LinkedHashMap<Integer, Node>();
+      for (Node node : hive.getNodes())
+        nodes.put(node.getId(), node);
+      List<NodeSessionFactory> replaced = new ArrayList<NodeSessionFactory>();
+      for (NodeSessionFactory factory : nodeSessionFactories.values()) {
+        Node node = nodes.get(factory.getNode().getId());
+        if ((node == null || isReconnected(factory.getNode(), node)) && nodeSessionFactories.remove(factory.getNode().getId(), factory))
+          replaced.add(factory);
+      }
+      List<Node> added = new ArrayList<Node>();
+      if (!lazy)
+        for (Node node : nodes.values())
+          if (!nodeSessionFactories.containsKey(node.getId()))
+            added.add(node);
+      boolean allNodesChanged;
+      synchronized (this) {
+        allNodesChanged = allNodesSessionFactory != null && (rebuildAllNodes || !isConnectedTo(allNodes, nodes));
+      }
+      if (replaced.isEmpty() && added.isEmpty() && !allNodesChanged)
+        return false;
+
+      ShardedSessionFactory previous = null;
+      if (!lazy)
+        previous = buildEagerly(added, new ArrayList<Node>(nodes.values()));
+      else if (allNodesChanged)
+        previous = setAllNodesSessionFactory(null, null);
+      for (NodeSessionFactory factory : replaced)
+        close(factory);
+      if (previous != null)
+        close(previous);
+      return true;
     }
+  }
+
+  private static boolean isReconnected(Node before, Node after) {
+    return !before.getUri().equals(after.getUri()) || before.getDialect() != after.getDialect();
+  }
+
+  private static boolean isConnectedTo(Collection<Node> connected, Map<Integer, Node> nodes) {
+    if (connected.size() != nodes.size())
+      return false;
+    for (Node node : connected)
+      if (!nodes.containsKey(node.getId()) || isReconnected(node, nodes.get(node.getId())))
+        return false;
     return true;
   }
 
+  private static void close(NodeSessionFactory factory) {
+    try {
+      get(factory).close();
+    } catch (RuntimeException e) {
+      log.warn(String.format("Unable to close the replaced session factory of node %s", factory.getNode().getId()), e);
+    }
+  }
+
+  private static void close(ShardedSessionFactory factory) {
+    try {
+      factory.close();
+    } catch (RuntimeException e) {
+      log.warn("Unable to close the replaced all nodes session factory", e);
+    }
+  }
+
   private static Map<HiveDbDialect, Class<?>> buildDialectMap() {
     Map<HiveDbDialect, Class<?>> map = Maps.newHashMap();
     map.put(HiveDbDialect.H2, H2Dialect.class);
@@ -252,7 +445,7 @@ public class HiveSessionFactoryBuilderImpl implements HiveSessionFactoryBuilder,
   }
 
   private Session openAllShardsSession(Interceptor interceptor) {
-    return addOpenSessionEvents(allNodesSessionFactory.openSession(interceptor));
+    return addOpenSessionEvents(getSessionFactory().openSession(interceptor));
   }
 
   private Session addOpenSessionEvents(Session session) {
@@ -310,16 +503,15 @@ public class HiveSessionFactoryBuilderImpl implements HiveSessionFactoryBuilder,
       interceptor);
   }
 
-  @SuppressWarnings("unchecked")
   private Session openSession(Collection<Integer> nodeIds, Interceptor interceptor) {
     // We only create SessionFactories for 1 to NODE_SET_LIMIT nodes.
     // If more are requested then we delegate to the allNodesSessionFactory
     if (nodeIds.size() <= NODE_SET_LIMIT) {
-      Session session = nodeSessionFactories.get(new HashSet(nodeIds)).openSession(interceptor);
+      Session session = getNodeSessionFactory(Atom.getFirstOrThrow(nodeIds)).openSession(interceptor);
       RecordNodeOpenSessionEvent.setNode(session);
       return session;
     } else {
-      return allNodesSessionFactory.openSession(interceptor);
+      return getSessionFactory().openSession(interceptor);
     }
   }
 
@@ -327,8 +519,7 @@ public class HiveSessionFactoryBuilderImpl implements HiveSessionFactoryBuilder,
     return new HiveInterceptorDecorator(config, hive);
   }
 
-  @SuppressWarnings("unchecked")
   public SessionFactory getSessionFactory(Integer nodeId) {
-    return nodeSessionFactories.get(new HashSet(Arrays.asList(nodeId)));
+    return getNodeSessionFactory(nodeId);
   }
 }
@@ -0,0 +1,294 @@
+package org.hivedb.hibernate;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.shards.Shard;
+import org.hibernate.shards.ShardId;
+import org.hibernate.shards.ShardOperation;
+import org.hibernate.shards.strategy.access.ShardAccessStrategy;
+import org.hibernate.shards.strategy.exit.ExitOperationsCollector;
+import org.hibernate.shards.strategy.exit.ExitStrategy;
+import org.hivedb.HiveRuntimeException;
+import org.hivedb.util.HiveExecutors;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a sharded operation, e.g. a criteria query over all nodes, on every shard at once, so it takes
+ * as long as the slowest shard rather than the sum of them. The shards run on a bounded executor
+ * from {@link HiveExecutors} shared by every session factory using the strategy, and a single shard
+ * runs on the calling thread.
+ * <p/>
+ * Results are handed to the exit strategy on the calling thread as the shards finish. Once it is
+ * satisfied, e.g. by the first non-null result of a get, the outstanding shards are cancelled. A
+ * shard can be given a timeout counted from when it starts, and the operation an overall timeout;
+ * when one passes the outstanding shards are cancelled and a HiveRuntimeException is thrown, as it is
+ * for the failure of any shard. Neither is set by default. The shared instance reads them, in
+ * milliseconds, from the {@link #SHARD_TIMEOUT_PROPERTY} and {@link #TIMEOUT_PROPERTY} system
+ * properties.
+ * <p/>
+ * The calls, failures, timeouts, cancellations and time of each shard are counted in its
+ * {@link ShardStatistics}.
+ */
+public class HiveShardAccessStrategy implements ShardAccessStrategy {
+  private final static Log log = LogFactory.getLog(HiveShardAccessStrategy.class);
+  public static final int DEFAULT_THREAD_COUNT = 16;
+  public static final String SHARD_TIMEOUT_PROPERTY = "hivedb.shardTimeout";
+  public static final String TIMEOUT_PROPERTY = "hivedb.shardAccessTimeout";
+  public static final long NO_TIMEOUT = 0;
+  private static HiveShardAccessStrategy INSTANCE;
+
+  private ExecutorService executor;
+  private long shardTimeout;
+  private long timeout;
+  private ConcurrentMap<Integer, ShardStatistics> statistics = new ConcurrentHashMap<Integer, ShardStatistics>();
+
+  /**
+   * The strategy shared by the session factories the hive creates on its own, with the timeouts of
+   * the system properties.
+   */
+  public static synchronized HiveShardAccessStrategy getInstance() {
+    if (INSTANCE == null)
+      INSTANCE = new HiveShardAccessStrategy(
+          HiveExecutors.newExecutor("hive-shard-access", DEFAULT_THREAD_COUNT),
+          Long.getLong(SHARD_TIMEOUT_PROPERTY, NO_TIMEOUT),
+          Long.getLong(TIMEOUT_PROPERTY, NO_TIMEOUT));
+    return INSTANCE;
+  }
+
+  public HiveShardAccessStrategy() {
+    this(HiveExecutors.newExecutor("hive-shard-access", DEFAULT_THREAD_COUNT), NO_TIMEOUT, NO_TIMEOUT);
+  }
+
+  /**
+   * @param shardTimeout milliseconds a shard has to finish in once started, or {@link #NO_TIMEOUT}
+   * @param timeout      milliseconds all shards have to finish in, or {@link #NO_TIMEOUT}
+   */
+  public HiveShardAccessStrategy(ExecutorService executor, long shardTimeout, long timeout) {
+    if (shardTimeout < 0 || timeout < 0)
+      throw new IllegalArgumentException("The shard access timeouts must not be negative.");
+    this.executor = executor;
+    this.shardTimeout = shardTimeout;
+    this.timeout = timeout;
+  }
+
+  public <T> T apply(List<Shard> shards, ShardOperation<T> operation, ExitStrategy<T> exitStrategy, ExitOperationsCollector exitOperationsCollector) {
+    if (shards.size() == 1) {
+      Shard shard = shards.get(0);
+      exitStrategy.addResult(new ShardTask<T>(shard, operation).call(), shard);
+      return exitStrategy.compileResults(exitOperationsCollector);
+    }
+
+    CompletionService<T> completion = new ExecutorCompletionService<T>(executor);
+    Map<Future<T>, ShardTask<T>> outstanding = new HashMap<Future<T>, ShardTask<T>>();
+    for (Shard shard : shards) {
+      ShardTask<T> task = new ShardTask<T>(shard, operation);
+      outstanding.put(completion.submit(task), task);
+    }
+    long deadline = timeout == NO_TIMEOUT ? Long.MAX_VALUE : System.currentTimeMillis() + timeout;
+    try {
+      while (outstanding.size() > 0) {
+        long next = nextDeadline(outstanding, deadline);
+        Future<T> future = next == Long.MAX_VALUE
+            ? completion.take()
+            : completion.poll(Math.max(0, next - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        if (future == null) {
+          timedOut(outstanding, deadline, operation);
+          continue;
+        }
+        ShardTask<T> task = outstanding.remove(future);
+        T result;
+        try {
+          result = future.get();
+        } catch (ExecutionException e) {
+          throw failed(task, operation, e.getCause());
+        }
+        if (exitStrategy.addResult(result, task.shard)) {
+          log.debug(String.format("%s satisfied by shard %s, cancelling %s shards", operation.getOperationName(), task.shardId, outstanding.size()));
+          break;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new HiveRuntimeException("Interrupted while accessing the shards for " + operation.getOperationName(), e);
+    } finally {
+      cancel(outstanding);
+    }
+    return exitStrategy.compileResults(exitOperationsCollector);
+  }
+
+  /**
+   * The earlier of the overall deadline and the shard deadlines of the running shards. While a shard
+   * has yet to start the wait is cut to one shard timeout, since no shard starting during it can be
+   * due sooner, and the next wait counts from its start.
+   */
+  private <T> long nextDeadline(Map<Future<T>, ShardTask<T>> outstanding, long deadline) {
+    if (shardTimeout == NO_TIMEOUT)
+      return deadline;
+    long next = deadline;
+    for (ShardTask<T> task : outstanding.values()) {
+      long started = task.started;
+      next = Math.min(next, (started > 0 ? started : System.currentTimeMillis()) + shardTimeout);
+    }
+    return next;
+  }
+
+  private <T> void timedOut(Map<Future<T>, ShardTask<T>> outstanding, long deadline, ShardOperation<T> operation) {
+    long now = System.currentTimeMillis();
+    for (ShardTask<T> task : outstanding.values())
+      if (now >= deadline || (shardTimeout != NO_TIMEOUT && task.started > 0 && now >= task.started + shardTimeout)) {
+        getStatistics(task.shardId).timeouts.incrementAndGet();
+        throw new HiveRuntimeException(String.format("Shard %s did not finish %s within %s ms",
+            task.shardId, operation.getOperationName(), now >= deadline ? timeout : shardTimeout));
+      }
+  }
+
+  private <T> RuntimeException failed(ShardTask<T> task, ShardOperation<T> operation, Throwable cause) {
+    if (cause instanceof RuntimeException)
+      return (RuntimeException) cause;
+    if (cause instanceof Error)
+      throw (Error) cause;
+    return new HiveRuntimeException(String.format("Shard %s failed %s: %s", task.shardId, operation.getOperationName(), cause.getMessage()), (Exception) cause);
+  }
+
+  private <T> void cancel(Map<Future<T>, ShardTask<T>> outstanding) {
+    for (Map.Entry<Future<T>, ShardTask<T>> entry : outstanding.entrySet())
+      if (entry.getKey().cancel(true))
+        getStatistics(entry.getValue().shardId).cancellations.incrementAndGet();
+  }
+
+  public long getShardTimeout() {
+    return shardTimeout;
+  }
+
+  public long getTimeout() {
+    return timeout;
+  }
+
+  /**
+   * The statistics of each shard accessed so far, by shard id.
+   */
+  public Map<Integer, ShardStatistics> getStatistics() {
+    return Collections.unmodifiableMap(new HashMap<Integer, ShardStatistics>(statistics));
+  }
+
+  public ShardStatistics getStatistics(int shardId) {
+    ShardStatistics shardStatistics = statistics.get(shardId);
+    if (shardStatistics == null) {
+      statistics.putIfAbsent(shardId, new ShardStatistics());
+      shardStatistics = statistics.get(shardId);
+    }
+    return shardStatistics;
+  }
+
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  private static int getShardId(Shard shard) {
+    List<ShardId> shardIds = new ArrayList<ShardId>(shard.getShardIds());
+    return shardIds.size() == 0 ? -1 : shardIds.get(0).getId();
+  }
+
+  /**
+   * Runs the operation on a shard, recording when it started and how it went.
+   */
+  private class ShardTask<T> implements Callable<T> {
+    private final Shard shard;
+    private final int shardId;
+    private final ShardOperation<T> operation;
+    private volatile long started = 0;
+
+    public ShardTask(Shard shard, ShardOperation<T> operation) {
+      this.shard = shard;
+      this.shardId = getShardId(shard);
+      this.operation = operation;
+    }
+
+    public T call() {
+      ShardStatistics shardStatistics = getStatistics(shardId);
+      started = System.currentTimeMillis();
+      try {
+        T result = operation.execute(shard);
+        shardStatistics.succeeded(System.currentTimeMillis() - started);
+        return result;
+      } catch (RuntimeException e) {
+        shardStatistics.failures.incrementAndGet();
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Counts of the operations run on a shard.
+   */
+  public static class ShardStatistics {
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong cancellations = new AtomicLong();
+    private final AtomicLong totalTime = new AtomicLong();
+    private final AtomicLong maxTime = new AtomicLong();
+
+    private void succeeded(long time) {
+      calls.incrementAndGet();
+      totalTime.addAndGet(time);
+      long max = maxTime.get();
+      while (time > max && !maxTime.compareAndSet(max, time))
+        max = maxTime.get();
+    }
+
+    /**
+     * The operations that finished without failing.
+     */
+    public long getCallCount() {
+      return calls.get();
+    }
+
+    public long getFailureCount() {
+      return failures.get();
+    }
+
+    public long getTimeoutCount() {
+      return timeouts.get();
+    }
+
+    /**
+     * The operations cancelled because another shard satisfied the exit strategy or failed.
+     */
+    public long getCancellationCount() {
+      return cancellations.get();
+    }
+
+    /**
+     * The mean milliseconds of the finished operations.
+     */
+    public double getAverageTime() {
+      long count = calls.get();
+      return count == 0 ? 0 : (double) totalTime.get() / count;
+    }
+
+    public long getMaxTime() {
+      return maxTime.get();
+    }
+
+    public String toString() {
+      return String.format("calls %s, failures %s, timeouts %s, cancellations %s, average %.1f ms, max %s ms",
+          getCallCount(), getFailureCount(), getTimeoutCount(), getCancellationCount(), getAverageTime(), getMaxTime());
+    }
+  }
+}
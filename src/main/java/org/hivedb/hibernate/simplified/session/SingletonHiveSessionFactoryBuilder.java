@@ -17,6 +17,7 @@ import org.hivedb.hibernate.ConfigurationReader;
 import org.hivedb.hibernate.HiveShardResolver;
 import org.hivedb.hibernate.HiveShardSelector;
 import org.hivedb.hibernate.simplified.session.configuration.NodeConfiguration;
+import org.hivedb.meta.HiveMetadataDelta;
 import org.hivedb.meta.Node;
 import org.hivedb.util.Lists;
 import org.hivedb.util.functional.Atom;
@@ -101,6 +102,8 @@ public class SingletonHiveSessionFactoryBuilder implements HiveSessionFactoryBui
 
   public void update(Observable o, Object arg) {
     log.info("Update received");
+    if (arg instanceof HiveMetadataDelta && !((HiveMetadataDelta) arg).isNodeConnectionsChanged())
+      return;
     HiveSessionFactory newFactory = buildSessionFactory();
 		synchronized(this) {
 			this.factory = newFactory;
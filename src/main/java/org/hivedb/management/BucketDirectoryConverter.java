@@ -0,0 +1,123 @@
+package org.hivedb.management;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hivedb.BucketAssigner;
+import org.hivedb.HiveRuntimeException;
+import org.hivedb.Lockable;
+import org.hivedb.meta.Node;
+import org.hivedb.meta.PartitionDimension;
+import org.hivedb.meta.directory.BucketDirectory;
+import org.hivedb.meta.directory.DbDirectory;
+import org.hivedb.meta.persistence.CachingDataSourceProvider;
+import org.hivedb.meta.persistence.NodeDao;
+import org.hivedb.meta.persistence.PartitionDimensionDao;
+import org.hivedb.util.GetOpt;
+import org.hivedb.util.database.DriverLoader;
+import org.hivedb.util.database.Schemas;
+import org.hivedb.util.database.Statements;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import javax.sql.DataSource;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Converts the per-key primary index of a hive into the bucket table read by {@link BucketDirectory}.
+ * Each primary index key is hashed into its bucket. A bucket whose keys all live on one node is
+ * assigned to that node, read-only if any of its keys is. Buckets without keys are spread over the
+ * nodes as {@link BucketAssigner} would.
+ * <p/>
+ * A bucket whose keys live on several nodes cannot be converted until their data is moved. Such
+ * buckets are reported and nothing is written. The primary index rows are left in place, so the
+ * hive can go back to a {@link DbDirectory}.
+ */
+public class BucketDirectoryConverter implements Runnable {
+  private final static Log log = LogFactory.getLog(BucketDirectoryConverter.class);
+  private String uri;
+  private int bucketCount;
+  private long keyCount;
+  private int assignedCount;
+
+  public BucketDirectoryConverter(String uri, int bucketCount) {
+    this.uri = uri;
+    this.bucketCount = bucketCount;
+  }
+
+  public void run() {
+    DataSource dataSource = CachingDataSourceProvider.getInstance().getDataSource(uri);
+    PartitionDimension dimension = new PartitionDimensionDao(dataSource).get();
+    Schemas.installBucketIndex(dimension);
+    BucketDirectory directory = new BucketDirectory(new DbDirectory(dimension, dataSource), uri, dataSource, bucketCount);
+
+    final BucketAssigner assigner = new BucketAssigner(bucketCount);
+    final int[] nodeIds = new int[bucketCount];
+    final Lockable.Status[] statuses = new Lockable.Status[bucketCount];
+    final Map<Integer, Set<Integer>> spread = new TreeMap<Integer, Set<Integer>>();
+    Arrays.fill(nodeIds, BucketDirectory.UNASSIGNED);
+    Arrays.fill(statuses, Lockable.Status.writable);
+    keyCount = 0;
+
+    Statements.stream(new JdbcTemplate(dataSource), DriverLoader.discernDialect(uri),
+        String.format("select id, node, status from %s", Schemas.getPrimaryIndexTableName(dimension)), new RowCallbackHandler() {
+      public void processRow(ResultSet rs) throws SQLException {
+        int bucket = assigner.getBucket(rs.getObject("id"));
+        int node = rs.getInt("node");
+        if (nodeIds[bucket] == BucketDirectory.UNASSIGNED)
+          nodeIds[bucket] = node;
+        else if (nodeIds[bucket] != node)
+          addSpread(spread, bucket, nodeIds[bucket], node);
+        if (rs.getInt("status") == Lockable.Status.readOnly.getValue())
+          statuses[bucket] = Lockable.Status.readOnly;
+        keyCount++;
+      }
+    });
+
+    for (int bucket = 0; bucket < bucketCount; bucket++) {
+      int existing = directory.getNodeIdOfBucket(bucket);
+      if (existing != BucketDirectory.UNASSIGNED && nodeIds[bucket] != BucketDirectory.UNASSIGNED && existing != nodeIds[bucket])
+        addSpread(spread, bucket, existing, nodeIds[bucket]);
+    }
+    if (spread.size() > 0)
+      throw new HiveRuntimeException(String.format(
+          "%s buckets hold keys on more than one node, move their data before converting. Bucket to nodes: %s",
+          spread.size(), spread));
+
+    List<Node> nodes = new NodeDao(dataSource).loadAll();
+    for (int bucket = 0; bucket < bucketCount; bucket++)
+      if (nodeIds[bucket] == BucketDirectory.UNASSIGNED && nodes.size() > 0)
+        nodeIds[bucket] = nodes.get(bucket % nodes.size()).getId();
+    assignedCount = directory.assign(nodeIds, statuses);
+    log.info(String.format("Converted %s primary index keys into %s buckets, %s newly assigned", keyCount, bucketCount, assignedCount));
+  }
+
+  private static void addSpread(Map<Integer, Set<Integer>> spread, int bucket, int node, int otherNode) {
+    if (!spread.containsKey(bucket))
+      spread.put(bucket, new TreeSet<Integer>());
+    spread.get(bucket).add(node);
+    spread.get(bucket).add(otherNode);
+  }
+
+  public long getKeyCount() {
+    return keyCount;
+  }
+
+  public int getAssignedCount() {
+    return assignedCount;
+  }
+
+  public static void main(String[] argz) {
+    GetOpt opt = new GetOpt();
+    opt.add("uri", true);
+    opt.add("buckets", true);
+
+    Map<String, String> argMap = opt.toMap(argz);
+    if (!opt.validate())
+      throw new IllegalArgumentException(
+        "Usage: java -cp hivedb.jar org.hivedb.management.BucketDirectoryConverter -uri <hive uri> -buckets <bucket count>");
+    DriverLoader.initializeDriver(argMap.get("uri"));
+    new BucketDirectoryConverter(argMap.get("uri"), Integer.parseInt(argMap.get("buckets"))).run();
+  }
+}
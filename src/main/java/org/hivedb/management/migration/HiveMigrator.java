@@ -2,10 +2,12 @@ package org.hivedb.management.migration;
 
 import org.hivedb.Hive;
 import org.hivedb.HiveLockableException;
+import org.hivedb.ScatterGather;
 import org.hivedb.meta.Node;
 import org.hivedb.meta.PartitionDimension;
 import org.hivedb.meta.directory.DbDirectory;
 import org.hivedb.meta.directory.KeySemaphore;
+import org.hivedb.util.HiveExecutors;
 import org.hivedb.util.Lists;
 import org.hivedb.util.functional.Collect;
 import org.hivedb.util.functional.Pair;
@@ -16,12 +18,22 @@ import java.util.Collection;
 import java.util.List;
 
 public class HiveMigrator implements Migrator {
+  public static final long COPY_TIMEOUT = 60 * 60 * 1000;
   private Hive hive;
   private PartitionDimension dimension;
+  private ScatterGather copier;
 
   public HiveMigrator(Hive hive) {
+    this(hive, new ScatterGather(HiveExecutors.getSharedExecutor("hive-migration", ScatterGather.DEFAULT_THREAD_COUNT), COPY_TIMEOUT, ScatterGather.FailurePolicy.FAIL));
+  }
+
+  /**
+   * @param copier copies to the destination nodes, and deletes from the origin nodes, at once
+   */
+  public HiveMigrator(Hive hive, ScatterGather copier) {
     this.hive = hive;
     this.dimension = hive.getPartitionDimension();
+    this.copier = copier;
   }
 
   @SuppressWarnings("unchecked")
@@ -140,7 +152,7 @@ public class HiveMigrator implements Migrator {
     doMigration(key, destinations, mover);
   }
 
-  private void doMigration(Object key, Collection<Node> destinations, PartitionKeyMover mover) {
+  private void doMigration(Object key, Collection<Node> destinations, final PartitionKeyMover mover) {
     try {
       lock(key);
       DbDirectory dir = new DbDirectory(dimension);
@@ -151,17 +163,20 @@ public class HiveMigrator implements Migrator {
       }, dir.getKeySemamphoresOfPrimaryIndexKey(key));
 
       //Elect a random origin node as the authority
-      Node authority = Lists.random(origins);
-      Object migrant = mover.get(key, authority);
+      final Node authority = Lists.random(origins);
+      final Object migrant = mover.get(key, authority);
 
       //Copy the records
-      for (Node destination : destinations) {
-        try {
-          deepNodeToNodeCopy(migrant, authority, destination, mover);
-        } catch (RuntimeException e) {
-          throw new MigrationException(String.format("Error while copying records to node %s", destination.getName()), e);
+      copier.execute(destinations, new Unary<Node, Object>() {
+        public Object f(Node destination) {
+          try {
+            deepNodeToNodeCopy(migrant, authority, destination, mover);
+          } catch (RuntimeException e) {
+            throw new MigrationException(String.format("Error while copying records to node %s", destination.getName()), e);
+          }
+          return destination;
         }
-      }
+      });
       //Update the directory entries
       try {
         dir.deletePrimaryIndexKey(key);
@@ -179,14 +194,17 @@ public class HiveMigrator implements Migrator {
             key), e);
       }
 
-      for (Node node : origins) {
-        try {
-          cascadeDelete(migrant, node, mover);
-        }
-        catch (RuntimeException e) {
-          throw new MigrationException(String.format("Error deleting old records on node %s", node.getName()), e);
+      copier.execute(origins, new Unary<Node, Object>() {
+        public Object f(Node node) {
+          try {
+            cascadeDelete(migrant, node, mover);
+          }
+          catch (RuntimeException e) {
+            throw new MigrationException(String.format("Error deleting old records on node %s", node.getName()), e);
+          }
+          return node;
         }
-      }
+      });
 
     } finally {
       unlock(key);
@@ -0,0 +1,35 @@
+package org.hivedb.meta;
+
+/**
+ * One entry of the hive change log: a hive revision published by a metadata change.
+ */
+public class HiveChange {
+  private long id;
+  private String hiveUri;
+  private int revision;
+
+  /**
+   * @param id the change log id, 0 if the hive has no change log
+   */
+  public HiveChange(long id, String hiveUri, int revision) {
+    this.id = id;
+    this.hiveUri = hiveUri;
+    this.revision = revision;
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public String getHiveUri() {
+    return hiveUri;
+  }
+
+  public int getRevision() {
+    return revision;
+  }
+
+  public String toString() {
+    return String.format("change %s of %s: revision %s", id, hiveUri, revision);
+  }
+}
@@ -0,0 +1,93 @@
+package org.hivedb.meta;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The difference between the metadata of two hive revisions. A sync applies only the delta: the
+ * DataSources and DAO supports of the nodes it does not list as added, removed or reconnected are
+ * kept, and a change of node status alone needs nothing rebuilt. The Hive passes it to its observers
+ * as the argument of their update.
+ */
+public class HiveMetadataDelta {
+  private final Collection<Node> addedNodes = new ArrayList<Node>();
+  private final Collection<Node> removedNodes = new ArrayList<Node>();
+  private final Collection<Node> changedNodes = new ArrayList<Node>();
+  private final Collection<Node> reconnectedNodes = new ArrayList<Node>();
+  private final boolean partitionDimensionChanged;
+
+  public HiveMetadataDelta(HiveMetadataSnapshot before, HiveMetadataSnapshot after) {
+    Map<Integer, Node> previous = new HashMap<Integer, Node>();
+    for (Node node : before.getNodes())
+      previous.put(node.getId(), node);
+    for (Node node : after.getNodes()) {
+      Node old = previous.remove(node.getId());
+      if (old == null)
+        addedNodes.add(node);
+      else if (!old.equals(node)) {
+        changedNodes.add(node);
+        if (!old.getUri().equals(node.getUri()) || old.getDialect() != node.getDialect())
+          reconnectedNodes.add(node);
+      }
+    }
+    removedNodes.addAll(previous.values());
+
+    PartitionDimension from = before.getPartitionDimension();
+    PartitionDimension to = after.getPartitionDimension();
+    partitionDimensionChanged = from == null ? to != null : to == null || !from.equals(to);
+  }
+
+  /**
+   * The nodes of the new revision that were not in the old one.
+   */
+  public Collection<Node> getAddedNodes() {
+    return Collections.unmodifiableCollection(addedNodes);
+  }
+
+  /**
+   * The nodes of the old revision that are not in the new one.
+   */
+  public Collection<Node> getRemovedNodes() {
+    return Collections.unmodifiableCollection(removedNodes);
+  }
+
+  /**
+   * The nodes of the new revision with any property changed, e.g. their status or capacity.
+   */
+  public Collection<Node> getChangedNodes() {
+    return Collections.unmodifiableCollection(changedNodes);
+  }
+
+  /**
+   * The changed nodes whose database is reached differently, which need a new DataSource.
+   */
+  public Collection<Node> getReconnectedNodes() {
+    return Collections.unmodifiableCollection(reconnectedNodes);
+  }
+
+  /**
+   * Whether a node was added, removed or reconnected, i.e. the connections to the data nodes changed.
+   */
+  public boolean isNodeConnectionsChanged() {
+    return addedNodes.size() > 0 || removedNodes.size() > 0 || reconnectedNodes.size() > 0;
+  }
+
+  /**
+   * Whether the partition dimension, its resources or their secondary indexes changed.
+   */
+  public boolean isPartitionDimensionChanged() {
+    return partitionDimensionChanged;
+  }
+
+  public boolean isEmpty() {
+    return !partitionDimensionChanged && addedNodes.size() == 0 && removedNodes.size() == 0 && changedNodes.size() == 0;
+  }
+
+  public String toString() {
+    return String.format("added nodes %s, removed nodes %s, changed nodes %s, partition dimension changed %s",
+        addedNodes.size(), removedNodes.size(), changedNodes.size(), partitionDimensionChanged);
+  }
+}
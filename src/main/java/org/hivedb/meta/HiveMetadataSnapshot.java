@@ -0,0 +1,127 @@
+package org.hivedb.meta;
+
+import org.hivedb.HiveKeyNotFoundException;
+import org.hivedb.HiveRuntimeException;
+import org.hivedb.Lockable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * The nodes, resources and secondary indexes of one hive revision, indexed by id and by
+ * case-insensitive name. The snapshot is built once per revision and never changed, so it can be
+ * shared by any number of readers through a volatile reference without locking, and every lookup is
+ * a hash lookup.
+ * <p/>
+ * Only the collections are immutable. The Node, Resource and SecondaryIndex instances are those
+ * loaded for the revision; changes to them are made through the Hive, which publishes a new snapshot.
+ */
+public final class HiveMetadataSnapshot {
+  private final PartitionDimension partitionDimension;
+  private final List<Node> nodes;
+  private final List<Node> writableNodes;
+  private final Map<Integer, Node> nodesById;
+  private final Map<String, Node> nodesByName;
+  private final Collection<Resource> resources;
+  private final Map<String, Resource> resourcesByName;
+  private final Map<String, Map<String, SecondaryIndex>> secondaryIndexesByName;
+
+  /**
+   * @param partitionDimension null if the hive has none yet
+   */
+  public HiveMetadataSnapshot(Collection<Node> nodes, PartitionDimension partitionDimension) {
+    this(nodes, partitionDimension, partitionDimension == null ? Collections.<Resource>emptyList() : partitionDimension.getResources());
+  }
+
+  /**
+   * A snapshot of the given resources, for readers that are handed them without their dimension.
+   */
+  public HiveMetadataSnapshot(Collection<Node> nodes, Collection<Resource> resources) {
+    this(nodes, null, resources);
+  }
+
+  private HiveMetadataSnapshot(Collection<Node> nodes, PartitionDimension partitionDimension, Collection<Resource> resources) {
+    this.partitionDimension = partitionDimension;
+
+    List<Node> writable = new ArrayList<Node>();
+    Map<Integer, Node> byId = new HashMap<Integer, Node>();
+    Map<String, Node> byName = new HashMap<String, Node>();
+    for (Node node : nodes) {
+      byId.put(node.getId(), node);
+      byName.put(node.getName().toLowerCase(), node);
+      if (node.getStatus() == Lockable.Status.writable)
+        writable.add(node);
+    }
+    this.nodes = Collections.unmodifiableList(new ArrayList<Node>(nodes));
+    this.writableNodes = Collections.unmodifiableList(writable);
+    this.nodesById = byId;
+    this.nodesByName = byName;
+
+    Map<String, Resource> resourcesByName = new HashMap<String, Resource>();
+    Map<String, Map<String, SecondaryIndex>> indexesByName = new HashMap<String, Map<String, SecondaryIndex>>();
+    for (Resource resource : resources) {
+      String name = resource.getName().toLowerCase();
+      resourcesByName.put(name, resource);
+      Map<String, SecondaryIndex> indexes = new HashMap<String, SecondaryIndex>();
+      for (SecondaryIndex secondaryIndex : resource.getSecondaryIndexes())
+        indexes.put(secondaryIndex.getName().toLowerCase(), secondaryIndex);
+      indexesByName.put(name, indexes);
+    }
+    this.resources = Collections.unmodifiableList(new ArrayList<Resource>(resources));
+    this.resourcesByName = resourcesByName;
+    this.secondaryIndexesByName = indexesByName;
+  }
+
+  public PartitionDimension getPartitionDimension() {
+    return partitionDimension;
+  }
+
+  public Collection<Node> getNodes() {
+    return nodes;
+  }
+
+  /**
+   * The nodes new partition keys can be assigned to, the same instance for the whole revision.
+   */
+  public Collection<Node> getWritableNodes() {
+    return writableNodes;
+  }
+
+  public Node getNode(int id) {
+    Node node = nodesById.get(id);
+    if (node == null)
+      throw new NoSuchElementException(String.format("Node with id %s not found.", id));
+    return node;
+  }
+
+  public Node getNode(String name) {
+    Node node = nodesByName.get(name.toLowerCase());
+    if (node == null)
+      throw new NoSuchElementException(String.format("Node with name %s not found.", name));
+    return node;
+  }
+
+  public Collection<Resource> getResources() {
+    return resources;
+  }
+
+  public Resource getResource(String resourceName) {
+    Resource resource = resourcesByName.get(resourceName.toLowerCase());
+    if (resource == null)
+      throw new HiveKeyNotFoundException("Resource with name " + resourceName + " not found.", resourceName);
+    return resource;
+  }
+
+  public SecondaryIndex getSecondaryIndex(String resourceName, String secondaryIndexName) {
+    Resource resource = getResource(resourceName);
+    SecondaryIndex secondaryIndex = secondaryIndexesByName.get(resource.getName().toLowerCase()).get(secondaryIndexName.toLowerCase());
+    if (secondaryIndex == null)
+      throw new HiveRuntimeException(String.format("Secondary index %s of resource %s not found.", secondaryIndexName, resource.getName()));
+    return secondaryIndex;
+  }
+}
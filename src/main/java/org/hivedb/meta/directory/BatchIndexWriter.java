@@ -2,21 +2,33 @@ package org.hivedb.meta.directory;
 
 import org.hivedb.meta.Resource;
 import org.hivedb.meta.SecondaryIndex;
+import org.hivedb.util.database.RowMappers;
 import org.hivedb.util.database.Statements;
-import org.hivedb.util.functional.Transform;
-import org.hivedb.util.functional.Unary;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.PreparedStatementCreatorFactory;
+import org.springframework.jdbc.core.StatementCreatorUtils;
 import org.springframework.jdbc.core.simple.SimpleJdbcDaoSupport;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.TransactionCallback;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 /**
  * A class for transactionally performing batches of directory operations. This class is a close collaborator with DbDirectory.
  * It is probably more appropriately and inner class of DbDirectory.  It is only extracted for readability.
+ * <p/>
+ * Keys are written set-wise, one secondary index table at a time: the keys already present are
+ * locked with a single select ... for update, the missing ones are inserted with a single JDBC batch,
+ * and deletes are issued as a single delete ... in (...). Key lists longer than
+ * {@link DbDirectory#getInListChunkSize()} are split into chunks.
  *
  * @author bcrawford
  */
@@ -33,16 +45,13 @@ public class BatchIndexWriter extends SimpleJdbcDaoSupport {
   public Integer insertSecondaryIndexKeys(final Map<SecondaryIndex, Collection<Object>> secondaryIndexValueMap, final Object resourceId) {
     return (Integer) directory.newTransaction().execute(new TransactionCallback() {
       public Integer doInTransaction(TransactionStatus status) {
-        return Transform.flatMap(new Unary<Map.Entry<SecondaryIndex, Collection<Object>>, Collection<Object>>() {
-          public Collection<Object> f(final Entry<SecondaryIndex, Collection<Object>> secondaryIndexKeysEntry) {
-            return Transform.map(new Unary<Object, Object>() {
-              public Object f(Object secondaryIndexKey) {
-                return directory.insertSecondaryIndexKeyNoTransaction(secondaryIndexKeysEntry.getKey(), secondaryIndexKey, resourceId);
-              }
-            }, secondaryIndexKeysEntry.getValue());
-          }
-        },
-          secondaryIndexValueMap.entrySet()).size();
+        int count = 0;
+        for (Entry<SecondaryIndex, Collection<Object>> entry : secondaryIndexValueMap.entrySet()) {
+          for (List<Object> chunk : directory.chunk(entry.getValue()))
+            insertSecondaryIndexKeysNoTransaction(entry.getKey(), chunk, resourceId);
+          count += entry.getValue().size();
+        }
+        return count;
       }
     });
   }
@@ -50,16 +59,13 @@ public class BatchIndexWriter extends SimpleJdbcDaoSupport {
   public Integer deleteSecondaryIndexKeys(final Map<SecondaryIndex, Collection<Object>> secondaryIndexValueMap, final Object resourceId) {
     return (Integer) directory.newTransaction().execute(new TransactionCallback() {
       public Integer doInTransaction(TransactionStatus status) {
-        return Transform.flatMap(new Unary<Map.Entry<SecondaryIndex, Collection<Object>>, Collection<Object>>() {
-          public Collection<Object> f(final Entry<SecondaryIndex, Collection<Object>> secondaryIndexKeysEntry) {
-            return Transform.map(new Unary<Object, Object>() {
-              public Object f(Object secondaryIndexKey) {
-                return directory.deleteSecondaryIndexKeyNoTransaction(secondaryIndexKeysEntry.getKey(), secondaryIndexKey, resourceId);
-              }
-            }, secondaryIndexKeysEntry.getValue());
-          }
-        },
-          secondaryIndexValueMap.entrySet()).size();
+        int count = 0;
+        for (Entry<SecondaryIndex, Collection<Object>> entry : secondaryIndexValueMap.entrySet()) {
+          for (List<Object> chunk : directory.chunk(entry.getValue()))
+            deleteSecondaryIndexKeysNoTransaction(entry.getKey(), chunk, resourceId);
+          count += entry.getValue().size();
+        }
+        return count;
       }
     });
   }
@@ -79,4 +85,75 @@ public class BatchIndexWriter extends SimpleJdbcDaoSupport {
       }
     });
   }
+
+  /**
+   * Locks the keys of the chunk that already exist and inserts the rest in one batch. When the
+   * directory writes with upserts the lock is skipped and the whole chunk is sent as one batch.
+   */
+  @SuppressWarnings("unchecked")
+  void insertSecondaryIndexKeysNoTransaction(final SecondaryIndex secondaryIndex, List<Object> secondaryIndexKeys, final Object resourceId) {
+    final int keyType = secondaryIndex.getColumnInfo().getColumnType();
+    final int resourceType = secondaryIndex.getResource().getColumnType();
+
+    if (directory.isUpsert()) {
+      batchInsert(sql.upsertSecondaryIndexKey(secondaryIndex, directory.getDialect()), keyType, resourceType, secondaryIndexKeys, resourceId);
+      return;
+    }
+
+    Collection<Object> existing = getJdbcTemplate().query(
+      Statements.newStmtCreatorFactory(
+        sql.selectSecondaryIndexKeysForUpdateLock(secondaryIndex, secondaryIndexKeys.size()),
+        inListTypes(resourceType, keyType, secondaryIndexKeys.size())
+      ).newPreparedStatementCreator(inListParameters(resourceId, secondaryIndexKeys)),
+      RowMappers.newObjectRowMapper(keyType));
+
+    // keys equal under the column's type and collation are the same row
+    Set<Object> present = new HashSet<Object>();
+    for (Object key : existing)
+      present.add(directory.normalizeKey(key, keyType));
+    final List<Object> missing = new ArrayList<Object>();
+    for (Object key : secondaryIndexKeys)
+      if (present.add(directory.normalizeKey(key, keyType)))
+        missing.add(key);
+
+    if (missing.size() > 0)
+      batchInsert(sql.insertSecondaryIndexKey(secondaryIndex), keyType, resourceType, missing, resourceId);
+  }
+
+  private void batchInsert(String insert, final int keyType, final int resourceType, final List<Object> keys, final Object resourceId) {
+    getJdbcTemplate().batchUpdate(insert, new BatchPreparedStatementSetter() {
+      public void setValues(PreparedStatement ps, int i) throws SQLException {
+        StatementCreatorUtils.setParameterValue(ps, 1, keyType, keys.get(i));
+        StatementCreatorUtils.setParameterValue(ps, 2, resourceType, resourceId);
+      }
+
+      public int getBatchSize() {
+        return keys.size();
+      }
+    });
+  }
+
+  int deleteSecondaryIndexKeysNoTransaction(SecondaryIndex secondaryIndex, List<Object> secondaryIndexKeys, Object resourceId) {
+    return getJdbcTemplate().update(
+      Statements.newStmtCreatorFactory(
+        sql.deleteSecondaryIndexKeys(secondaryIndex, secondaryIndexKeys.size()),
+        inListTypes(secondaryIndex.getResource().getColumnType(), secondaryIndex.getColumnInfo().getColumnType(), secondaryIndexKeys.size())
+      ).newPreparedStatementCreator(inListParameters(resourceId, secondaryIndexKeys)));
+  }
+
+  private static int[] inListTypes(int leadingType, int inListType, int count) {
+    int[] types = new int[count + 1];
+    types[0] = leadingType;
+    for (int i = 1; i <= count; i++)
+      types[i] = inListType;
+    return types;
+  }
+
+  private static Object[] inListParameters(Object leadingParameter, List<Object> inList) {
+    Object[] parameters = new Object[inList.size() + 1];
+    parameters[0] = leadingParameter;
+    for (int i = 0; i < inList.size(); i++)
+      parameters[i + 1] = inList.get(i);
+    return parameters;
+  }
 }
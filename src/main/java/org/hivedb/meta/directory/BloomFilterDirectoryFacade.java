@@ -0,0 +1,327 @@
+package org.hivedb.meta.directory;
+
+import org.hivedb.HiveLockableException;
+import org.hivedb.meta.PartitionDimension;
+import org.hivedb.meta.Resource;
+import org.hivedb.util.BloomFilter;
+import org.hivedb.util.database.HiveDbDialect;
+import org.hivedb.util.database.Schemas;
+import org.hivedb.util.functional.Unary;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Answers existence checks of primary index keys and resource ids from in-memory Bloom filters of the
+ * ids in the directory, asking the delegate only when the filter reports a possible match. Most saves
+ * check keys that are new, and those are answered without a query.
+ * <p/>
+ * The filters are filled by scanning the directory tables and updated by inserts made through this
+ * facade. Keys inserted by other processes are not seen until the filters are reloaded, so use this
+ * facade only where every directory writer shares it.
+ */
+public class BloomFilterDirectoryFacade implements DirectoryFacade {
+  private DirectoryFacade delegate;
+  private KeyFilters filters;
+  private PartitionDimension partitionDimension;
+
+  public BloomFilterDirectoryFacade(DirectoryFacade delegate, KeyFilters filters, PartitionDimension partitionDimension) {
+    this.delegate = delegate;
+    this.filters = filters;
+    this.partitionDimension = partitionDimension;
+  }
+
+  public KeyFilters getFilters() {
+    return filters;
+  }
+
+  public boolean doesPrimaryIndexKeyExist(Object primaryIndexKey) {
+    if (!filters.mightContain(primaryFilterName(), primaryIndexKey))
+      return false;
+    return filters.recordLookup(delegate.doesPrimaryIndexKeyExist(primaryIndexKey));
+  }
+
+  public boolean doesResourceIdExist(String resource, Object resourceId) {
+    if (!filters.mightContain(resourceFilterName(resource), resourceId))
+      return false;
+    return filters.recordLookup(delegate.doesResourceIdExist(resource, resourceId));
+  }
+
+  public Collection<KeySemaphore> getKeySemamphoresOfPrimaryIndexKey(Object primaryIndexKey) {
+    if (!filters.mightContain(primaryFilterName(), primaryIndexKey))
+      return new ArrayList<KeySemaphore>();
+    return delegate.getKeySemamphoresOfPrimaryIndexKey(primaryIndexKey);
+  }
+
+  public Collection<KeySemaphore> getKeySemaphoresOfResourceId(String resource, Object resourceId) {
+    if (!filters.mightContain(resourceFilterName(resource), resourceId))
+      return new ArrayList<KeySemaphore>();
+    return delegate.getKeySemaphoresOfResourceId(resource, resourceId);
+  }
+
+  public Collection<Integer> getNodeIdsOfPrimaryIndexKey(Object primaryIndexKey) {
+    return delegate.getNodeIdsOfPrimaryIndexKey(primaryIndexKey);
+  }
+
+  public Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfPrimaryIndexKeys(Collection<Object> primaryIndexKeys) {
+    return delegate.getKeySemaphoresOfPrimaryIndexKeys(primaryIndexKeys);
+  }
+
+  public boolean getReadOnlyOfPrimaryIndexKey(Object primaryIndexKey) {
+    return delegate.getReadOnlyOfPrimaryIndexKey(primaryIndexKey);
+  }
+
+  /**
+   * Keys are added to the filter before they are written, so a concurrent check never
+   * misses a key that is already committed.
+   */
+  public void insertPrimaryIndexKey(Object primaryIndexKey) throws HiveLockableException {
+    filters.add(primaryFilterName(), primaryIndexKey);
+    delegate.insertPrimaryIndexKey(primaryIndexKey);
+  }
+
+  public void updatePrimaryIndexKeyReadOnly(Object primaryIndexKey, boolean isReadOnly) throws HiveLockableException {
+    delegate.updatePrimaryIndexKeyReadOnly(primaryIndexKey, isReadOnly);
+  }
+
+  public void deletePrimaryIndexKey(Object primaryIndexKey) throws HiveLockableException {
+    delegate.deletePrimaryIndexKey(primaryIndexKey);
+  }
+
+  public boolean doesSecondaryIndexKeyExist(String resource, String secondaryIndex, Object secondaryIndexKey, Object resourceId) {
+    return delegate.doesSecondaryIndexKeyExist(resource, secondaryIndex, secondaryIndexKey, resourceId);
+  }
+
+  public Collection<Integer> getNodeIdsOfSecondaryIndexKey(String resource, String secondaryIndex, Object secondaryIndexKey) {
+    return delegate.getNodeIdsOfSecondaryIndexKey(resource, secondaryIndex, secondaryIndexKey);
+  }
+
+  public Collection<KeySemaphore> getKeySemaphoresOfSecondaryIndexKey(String resource, String secondaryIndex, Object secondaryIndexKey) {
+    return delegate.getKeySemaphoresOfSecondaryIndexKey(resource, secondaryIndex, secondaryIndexKey);
+  }
+
+  public Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfSecondaryIndexKeys(String resource, String secondaryIndex, Collection<Object> secondaryIndexKeys) {
+    return delegate.getKeySemaphoresOfSecondaryIndexKeys(resource, secondaryIndex, secondaryIndexKeys);
+  }
+
+  public void insertSecondaryIndexKey(String resource, String secondaryIndex, Object secondaryIndexKey, Object resourceId) throws HiveLockableException {
+    delegate.insertSecondaryIndexKey(resource, secondaryIndex, secondaryIndexKey, resourceId);
+  }
+
+  public void deleteSecondaryIndexKey(String resource, String secondaryIndex, Object secondaryIndexKey, Object resourceId) throws HiveLockableException {
+    delegate.deleteSecondaryIndexKey(resource, secondaryIndex, secondaryIndexKey, resourceId);
+  }
+
+  public Collection<Integer> getNodeIdsOfResourceId(String resource, Object id) {
+    return delegate.getNodeIdsOfResourceId(resource, id);
+  }
+
+  public Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfResourceIds(String resource, Collection<Object> resourceIds) {
+    return delegate.getKeySemaphoresOfResourceIds(resource, resourceIds);
+  }
+
+  public boolean getReadOnlyOfResourceId(String resource, Object id) {
+    return delegate.getReadOnlyOfResourceId(resource, id);
+  }
+
+  public void insertResourceId(String resource, Object id, Object primaryIndexKey) throws HiveLockableException {
+    filters.add(resourceFilterName(resource), id);
+    delegate.insertResourceId(resource, id, primaryIndexKey);
+  }
+
+  public void updatePrimaryIndexKeyOfResourceId(String resource, Object resourceId, Object newPrimaryIndexKey) throws HiveLockableException {
+    delegate.updatePrimaryIndexKeyOfResourceId(resource, resourceId, newPrimaryIndexKey);
+  }
+
+  public void deleteResourceId(String resource, Object id) throws HiveLockableException {
+    delegate.deleteResourceId(resource, id);
+  }
+
+  public Collection getSecondaryIndexKeysWithResourceId(String resource, String secondaryIndex, Object id) {
+    return delegate.getSecondaryIndexKeysWithResourceId(resource, secondaryIndex, id);
+  }
+
+  public Collection<SecondaryIndexKeySemaphore> getSecondaryIndexKeySemaphoresOfSecondaryIndexKey(String resource, String secondaryIndex, Object secondaryIndexKey) {
+    return delegate.getSecondaryIndexKeySemaphoresOfSecondaryIndexKey(resource, secondaryIndex, secondaryIndexKey);
+  }
+
+  public Map<String, Collection<Object>> getAllSecondaryIndexKeysWithResourceId(String resource, Object id) {
+    return delegate.getAllSecondaryIndexKeysWithResourceId(resource, id);
+  }
+
+  public Object getPrimaryIndexKeyOfResourceId(String name, Object resourceId) {
+    return delegate.getPrimaryIndexKeyOfResourceId(name, resourceId);
+  }
+
+  public void deleteSecondaryIndexKeys(String resource, Map<String, Collection<Object>> secondaryIndexValueMap, Object resourceId) throws HiveLockableException {
+    delegate.deleteSecondaryIndexKeys(resource, secondaryIndexValueMap, resourceId);
+  }
+
+  public void indexEntity(String resource, Object primaryIndexKey, Object resourceId, Map<String, Collection<Object>> secondaryIndexValueMap) throws HiveLockableException {
+    filters.add(primaryFilterName(), primaryIndexKey);
+    filters.add(resourceFilterName(resource), resourceId);
+    delegate.indexEntity(resource, primaryIndexKey, resourceId, secondaryIndexValueMap);
+  }
+
+  public void insertSecondaryIndexKeys(String resource, Map<String, Collection<Object>> secondaryIndexValueMap, Object resourceId) throws HiveLockableException {
+    delegate.insertSecondaryIndexKeys(resource, secondaryIndexValueMap, resourceId);
+  }
+
+  private String primaryFilterName() {
+    return Schemas.getPrimaryIndexTableName(partitionDimension);
+  }
+
+  /**
+   * The ids of the partitioning resource are its primary index keys.
+   */
+  private String resourceFilterName(String resource) {
+    Resource r = partitionDimension.getResource(resource);
+    return r.isPartitioningResource() ? primaryFilterName() : Schemas.getResourceIndexTableName(r);
+  }
+
+  /**
+   * The Bloom filters of one hive, one per directory table, kept apart from the facade so
+   * they outlive hive revisions. Tables without a filter, e.g. of a resource added since
+   * the last load, are always looked up. Keys are normalized as the table's key column
+   * compares them, so e.g. Integer 5 and Long 5 are one entry.
+   */
+  public static class KeyFilters {
+    private Map<String, TableFilter> filters = new ConcurrentHashMap<String, TableFilter>();
+    private double falsePositiveProbability;
+    private AtomicLong negatives = new AtomicLong();
+    private AtomicLong truePositives = new AtomicLong();
+    private AtomicLong falsePositives = new AtomicLong();
+
+    public KeyFilters(double falsePositiveProbability) {
+      this.falsePositiveProbability = falsePositiveProbability;
+    }
+
+    /**
+     * Fills a filter with the keys of a directory table, streamed by the given directory read. The
+     * keys are streamed twice, first to count them so the filter is sized for twice the count and
+     * can absorb growth. A table whose keys the directory does not store, so that streaming them
+     * throws UnsupportedOperationException, gets no filter.
+     *
+     * @return false if the table got no filter
+     */
+    public boolean load(String table, int columnType, HiveDbDialect dialect, Unary<KeyHandler, Long> stream, int minimumCapacity) {
+      long keys;
+      try {
+        keys = stream.f(new KeyHandler() {
+          public boolean handle(Object key) {
+            return true;
+          }
+        });
+      } catch (UnsupportedOperationException e) {
+        return false;
+      }
+      final TableFilter filter = new TableFilter(
+          new BloomFilter((int) Math.min(Integer.MAX_VALUE / 2, Math.max(minimumCapacity, keys * 2)), falsePositiveProbability),
+          columnType,
+          dialect);
+      stream.f(new KeyHandler() {
+        public boolean handle(Object key) {
+          filter.add(key);
+          return true;
+        }
+      });
+      filters.put(table, filter);
+      return true;
+    }
+
+    public void setFilter(String table, BloomFilter filter, int columnType, HiveDbDialect dialect) {
+      filters.put(table, new TableFilter(filter, columnType, dialect));
+    }
+
+    public boolean isLoaded(String table) {
+      return filters.containsKey(table);
+    }
+
+    public void clear() {
+      filters.clear();
+    }
+
+    public BloomFilter getFilter(String table) {
+      TableFilter filter = filters.get(table);
+      return filter == null ? null : filter.filter;
+    }
+
+    boolean mightContain(String table, Object key) {
+      TableFilter filter = filters.get(table);
+      if (filter == null || filter.mightContain(key))
+        return true;
+      negatives.incrementAndGet();
+      return false;
+    }
+
+    void add(String table, Object key) {
+      TableFilter filter = filters.get(table);
+      if (filter != null)
+        filter.add(key);
+    }
+
+    boolean recordLookup(boolean exists) {
+      (exists ? truePositives : falsePositives).incrementAndGet();
+      return exists;
+    }
+
+    /**
+     * The number of existence checks answered by the filters without a query.
+     */
+    public long getNegativeCount() {
+      return negatives.get();
+    }
+
+    public long getTruePositiveCount() {
+      return truePositives.get();
+    }
+
+    public long getFalsePositiveCount() {
+      return falsePositives.get();
+    }
+
+    /**
+     * The observed share of absent keys the filters failed to rule out.
+     */
+    public double getFalsePositiveRate() {
+      long fp = falsePositives.get();
+      long absent = fp + negatives.get();
+      return absent == 0 ? 0 : (double) fp / absent;
+    }
+
+    public String toString() {
+      return String.format("KeyFilters negatives: %s true positives: %s false positives: %s false positive rate: %s",
+          getNegativeCount(), getTruePositiveCount(), getFalsePositiveCount(), getFalsePositiveRate());
+    }
+  }
+
+  /**
+   * The filter of one table and the type of its key column.
+   */
+  private static class TableFilter {
+    private BloomFilter filter;
+    private int columnType;
+    private HiveDbDialect dialect;
+
+    public TableFilter(BloomFilter filter, int columnType, HiveDbDialect dialect) {
+      this.filter = filter;
+      this.columnType = columnType;
+      this.dialect = dialect;
+    }
+
+    public boolean mightContain(Object key) {
+      return filter.mightContain(toFilterKey(key));
+    }
+
+    public void add(Object key) {
+      filter.add(toFilterKey(key));
+    }
+
+    private String toFilterKey(Object key) {
+      return DbDirectory.normalizeKey(key, columnType, dialect).toString();
+    }
+  }
+}
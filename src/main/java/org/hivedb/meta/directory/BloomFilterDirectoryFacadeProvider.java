@@ -0,0 +1,105 @@
+package org.hivedb.meta.directory;
+
+import org.hivedb.Lockable;
+import org.hivedb.meta.Assigner;
+import org.hivedb.meta.PartitionDimension;
+import org.hivedb.meta.Resource;
+import org.hivedb.meta.directory.BloomFilterDirectoryFacade.KeyFilters;
+import org.hivedb.util.database.DriverLoader;
+import org.hivedb.util.database.HiveDbDialect;
+import org.hivedb.util.database.Schemas;
+import org.hivedb.util.functional.Unary;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Wraps the DirectoryFacades of another provider in a {@link BloomFilterDirectoryFacade}. The filter
+ * of each directory table is loaded by streaming the keys of the directory the first time the table
+ * is seen, so a new resource gets its filter with the hive revision that adds it. Filters are kept
+ * across revisions. The keys are read from a directory of the given DirectoryProvider, which should
+ * be the one the wrapped facades use, so filters match however the directory stores its keys.
+ */
+public class BloomFilterDirectoryFacadeProvider implements DirectoryFacadeProvider {
+  public static final double DEFAULT_FALSE_POSITIVE_PROBABILITY = 0.01;
+  public static final int DEFAULT_MINIMUM_CAPACITY = 100000;
+  private DirectoryFacadeProvider delegate;
+  private DirectoryProvider directoryProvider;
+  private KeyFilters filters;
+  private Set<String> unfiltered = new HashSet<String>();
+  private int minimumCapacity = DEFAULT_MINIMUM_CAPACITY;
+
+  public BloomFilterDirectoryFacadeProvider(DirectoryFacadeProvider delegate, DirectoryProvider directoryProvider) {
+    this(delegate, directoryProvider, DEFAULT_FALSE_POSITIVE_PROBABILITY);
+  }
+
+  public BloomFilterDirectoryFacadeProvider(DirectoryFacadeProvider delegate, DirectoryProvider directoryProvider, double falsePositiveProbability) {
+    this.delegate = delegate;
+    this.directoryProvider = directoryProvider;
+    this.filters = new KeyFilters(falsePositiveProbability);
+  }
+
+  public DirectoryFacade getDirectoryFacade(String hiveConfigurationUri, Assigner assigner, Lockable semaphore, PartitionDimension partitionDimension) {
+    DirectoryFacade facade = delegate.getDirectoryFacade(hiveConfigurationUri, assigner, semaphore, partitionDimension);
+    loadFilters(hiveConfigurationUri, partitionDimension);
+    return new BloomFilterDirectoryFacade(facade, filters, partitionDimension);
+  }
+
+  private synchronized void loadFilters(String hiveConfigurationUri, PartitionDimension partitionDimension) {
+    Directory directory = null;
+    HiveDbDialect dialect = DriverLoader.discernDialect(partitionDimension.getIndexUri());
+    String primaryTable = Schemas.getPrimaryIndexTableName(partitionDimension);
+    if (!isChecked(primaryTable)) {
+      directory = directoryProvider.getDirectory(hiveConfigurationUri);
+      loadPrimaryIndexFilter(directory, primaryTable, partitionDimension.getColumnType(), dialect);
+    }
+    for (Resource resource : partitionDimension.getResources()) {
+      String resourceTable = Schemas.getResourceIndexTableName(resource);
+      if (!resource.isPartitioningResource() && !isChecked(resourceTable)) {
+        if (directory == null)
+          directory = directoryProvider.getDirectory(hiveConfigurationUri);
+        loadResourceFilter(directory, resource, resourceTable, dialect);
+      }
+    }
+  }
+
+  /**
+   * Whether a filter was loaded for the table, or the directory was found not to store its keys.
+   */
+  private boolean isChecked(String table) {
+    return filters.isLoaded(table) || unfiltered.contains(table);
+  }
+
+  private void loadPrimaryIndexFilter(final Directory directory, String table, int columnType, HiveDbDialect dialect) {
+    if (!filters.load(table, columnType, dialect, new Unary<KeyHandler, Long>() {
+      public Long f(KeyHandler handler) {
+        return directory.streamPrimaryIndexKeys(handler);
+      }
+    }, minimumCapacity))
+      unfiltered.add(table);
+  }
+
+  private void loadResourceFilter(final Directory directory, final Resource resource, String table, HiveDbDialect dialect) {
+    if (!filters.load(table, resource.getColumnType(), dialect, new Unary<KeyHandler, Long>() {
+      public Long f(KeyHandler handler) {
+        return directory.streamResourceIds(resource, handler);
+      }
+    }, minimumCapacity))
+      unfiltered.add(table);
+  }
+
+  public KeyFilters getFilters() {
+    return filters;
+  }
+
+  public int getMinimumCapacity() {
+    return minimumCapacity;
+  }
+
+  /**
+   * The fewest ids a filter is sized for, however small its table is when loaded.
+   */
+  public void setMinimumCapacity(int minimumCapacity) {
+    this.minimumCapacity = minimumCapacity;
+  }
+}
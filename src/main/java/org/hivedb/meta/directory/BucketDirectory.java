@@ -0,0 +1,191 @@
+package org.hivedb.meta.directory;
+
+import org.hivedb.BucketAssigner;
+import org.hivedb.HiveRuntimeException;
+import org.hivedb.Lockable;
+import org.hivedb.meta.Node;
+import org.hivedb.util.Lists;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+
+import javax.sql.DataSource;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A directory that hashes primary index keys into a fixed number of buckets, the same way
+ * {@link BucketAssigner} does, and stores only the node and status of each bucket. The bucket table
+ * is small enough to hold in memory as an array, so resolving a primary index key is a computation
+ * rather than a query, and inserting one writes nothing.
+ * <p/>
+ * Status is kept per bucket, so keys are made read-only a bucket at a time with
+ * {@link #updateBucketReadOnly}; the per-key updatePrimaryIndexKeyReadOnly is rejected.
+ */
+public class BucketDirectory extends ComputedDirectory {
+  public static final int UNASSIGNED = -1;
+  private BucketAssigner assigner;
+  private volatile Buckets buckets;
+
+  public BucketDirectory(DbDirectory delegate, String hiveUri, DataSource hiveDataSource, int bucketCount) {
+    super(delegate, hiveUri, hiveDataSource);
+    this.assigner = new BucketAssigner(bucketCount);
+    refresh();
+  }
+
+  /**
+   * Reloads the buckets from the bucket table.
+   */
+  public void refresh() {
+    buckets = loadBuckets();
+  }
+
+  public int getBucketCount() {
+    return assigner.getBucketCount();
+  }
+
+  public int getBucket(Object primaryIndexKey) {
+    return assigner.getBucket(MemoryDirectory.toLong(primaryIndexKey));
+  }
+
+  /**
+   * The node of the bucket, or {@link #UNASSIGNED}.
+   */
+  public int getNodeIdOfBucket(int bucket) {
+    return buckets.nodes[bucket];
+  }
+
+  public Lockable.Status getStatusOfBucket(int bucket) {
+    return buckets.statuses[bucket];
+  }
+
+  /**
+   * Assigns every unassigned bucket to one of the nodes, bucket modulo node count like
+   * {@link BucketAssigner}. The nodes are sorted by id, so the assignment does not depend on the
+   * order they are given in.
+   *
+   * @return the number of buckets assigned
+   */
+  public int assign(Collection<Node> nodes) {
+    List<Node> list = Lists.newList(nodes);
+    Collections.sort(list, new Comparator<Node>() {
+      public int compare(Node a, Node b) {
+        return a.getId() - b.getId();
+      }
+    });
+    if (list.size() == 0)
+      throw new HiveRuntimeException("There are no nodes to assign buckets to");
+    int[] nodeIds = new int[getBucketCount()];
+    for (int bucket = 0; bucket < nodeIds.length; bucket++)
+      nodeIds[bucket] = list.get(bucket % list.size()).getId();
+    return assign(nodeIds, null);
+  }
+
+  /**
+   * Assigns each unassigned bucket to the node id at its index, skipping {@link #UNASSIGNED} ids, in
+   * a single hive revision. Statuses default to writable.
+   *
+   * @return the number of buckets assigned
+   */
+  public int assign(final int[] nodeIds, final Lockable.Status[] statuses) {
+    if (nodeIds.length != getBucketCount())
+      throw new IllegalArgumentException(String.format("Expected %s node ids, one per bucket, not %s", getBucketCount(), nodeIds.length));
+    return (Integer) changeAndIncrementRevision(new TransactionCallback() {
+      public Object doInTransaction(TransactionStatus status) {
+        Buckets current = loadBuckets();
+        int assigned = 0;
+        for (int bucket = 0; bucket < nodeIds.length; bucket++)
+          if (current.nodes[bucket] == UNASSIGNED && nodeIds[bucket] != UNASSIGNED) {
+            insertBucket(bucket, nodeIds[bucket], statuses == null ? Lockable.Status.writable : statuses[bucket]);
+            assigned++;
+          }
+        return assigned;
+      }
+    });
+  }
+
+  /**
+   * Assigns a bucket to a node, e.g. after its keys' data was copied there.
+   */
+  public void moveBucket(final int bucket, final Node node) {
+    changeAndIncrementRevision(new TransactionCallback() {
+      public Object doInTransaction(TransactionStatus status) {
+        if (template().update(sql.updateNodeOfBucket(getPartitionDimension()), new Object[]{node.getId(), bucket}) == 0)
+          insertBucket(bucket, node.getId(), Lockable.Status.writable);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Status is kept per bucket, and changing it for one key would change it for every key of its
+   * bucket.
+   *
+   * @throws UnsupportedOperationException always; use {@link #updateBucketReadOnly}
+   */
+  public Object updatePrimaryIndexKeyReadOnly(Object primaryIndexKey, boolean readOnly) {
+    throw new UnsupportedOperationException(String.format(
+        "A bucket directory keeps status per bucket, use updateBucketReadOnly to change the status of bucket %s of %s and every key in it",
+        getBucket(primaryIndexKey), primaryIndexKey));
+  }
+
+  /**
+   * Sets the status of the bucket, and so of every key in it.
+   */
+  public void updateBucketReadOnly(final int bucket, final boolean readOnly) {
+    if (getNodeIdOfBucket(bucket) == UNASSIGNED)
+      throw new HiveRuntimeException(String.format("The bucket %s is not assigned to a node", bucket));
+    changeAndIncrementRevision(new TransactionCallback() {
+      public Object doInTransaction(TransactionStatus status) {
+        template().update(sql.updateStatusOfBucket(getPartitionDimension()), new Object[]{
+            (readOnly ? Lockable.Status.readOnly : Lockable.Status.writable).getValue(),
+            bucket});
+        return null;
+      }
+    });
+  }
+
+  protected KeySemaphore getSemaphore(Object key, long primaryIndexKey) {
+    Buckets current = buckets;
+    int bucket = assigner.getBucket(primaryIndexKey);
+    return current.nodes[bucket] == UNASSIGNED ? null : new KeySemaphoreImpl(key, current.nodes[bucket], current.statuses[bucket]);
+  }
+
+  private void insertBucket(int bucket, int nodeId, Lockable.Status status) {
+    template().update(sql.insertBucket(getPartitionDimension()), new Object[]{bucket, nodeId, status.getValue()});
+  }
+
+  private Buckets loadBuckets() {
+    final Buckets loaded = new Buckets(getBucketCount());
+    template().query(sql.selectBuckets(getPartitionDimension()), new RowCallbackHandler() {
+      public void processRow(ResultSet rs) throws SQLException {
+        int bucket = rs.getInt("bucket");
+        if (bucket < 0 || bucket >= loaded.nodes.length)
+          throw new HiveRuntimeException(String.format("The bucket table has bucket %s but the directory has %s buckets", bucket, loaded.nodes.length));
+        loaded.nodes[bucket] = rs.getInt("node");
+        loaded.statuses[bucket] = Lockable.Status.getByValue(rs.getInt("status"));
+      }
+    });
+    return loaded;
+  }
+
+  /**
+   * The node and status of each bucket, replaced as a whole on refresh.
+   */
+  private static class Buckets {
+    private final int[] nodes;
+    private final Lockable.Status[] statuses;
+
+    public Buckets(int bucketCount) {
+      nodes = new int[bucketCount];
+      statuses = new Lockable.Status[bucketCount];
+      Arrays.fill(nodes, UNASSIGNED);
+      Arrays.fill(statuses, Lockable.Status.writable);
+    }
+  }
+}
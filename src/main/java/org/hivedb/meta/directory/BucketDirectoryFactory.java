@@ -0,0 +1,40 @@
+package org.hivedb.meta.directory;
+
+import org.hivedb.BucketAssigner;
+import org.hivedb.meta.PartitionDimension;
+import org.hivedb.meta.persistence.DataSourceProvider;
+import org.hivedb.meta.persistence.PartitionDimensionDao;
+import org.hivedb.util.database.Schemas;
+
+import javax.sql.DataSource;
+
+/**
+ * Provides {@link BucketDirectory}s, creating the bucket table of the partition dimension if it is
+ * missing. A new directory, with freshly loaded buckets, is built for every hive revision. Buckets
+ * are assigned with {@link BucketDirectory#assign(java.util.Collection)} or by converting an existing
+ * directory with {@link org.hivedb.management.BucketDirectoryConverter}.
+ */
+public class BucketDirectoryFactory implements DirectoryProvider {
+  private DataSourceProvider provider;
+  private int bucketCount;
+
+  public BucketDirectoryFactory(DataSourceProvider provider) {
+    this(provider, new BucketAssigner().getBucketCount());
+  }
+
+  public BucketDirectoryFactory(DataSourceProvider provider, int bucketCount) {
+    this.provider = provider;
+    this.bucketCount = bucketCount;
+  }
+
+  public BucketDirectory getDirectory(String hiveConfigurationUri) {
+    DataSource dataSource = provider.getDataSource(hiveConfigurationUri);
+    PartitionDimension dimension = new PartitionDimensionDao(dataSource).get();
+    Schemas.installBucketIndex(dimension);
+    return new BucketDirectory(new DbDirectory(dimension, dataSource), hiveConfigurationUri, dataSource, bucketCount);
+  }
+
+  public int getBucketCount() {
+    return bucketCount;
+  }
+}
@@ -0,0 +1,426 @@
+package org.hivedb.meta.directory;
+
+import org.hivedb.HiveKeyNotFoundException;
+import org.hivedb.HiveLockableException;
+import org.hivedb.util.Lists;
+import org.hivedb.util.LruCache;
+import org.hivedb.util.Preconditions;
+import org.hivedb.util.functional.Transform;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A read-through routing cache in front of another DirectoryFacade. The KeySemaphores of
+ * primary index keys, the primary index key of each resource id and the resource ids of each
+ * secondary index key are cached in bounded LRU caches. Resource ids and secondary index keys are
+ * resolved to nodes through the primary index key cache, so a change to the status of a primary
+ * index key, or its deletion, evicts only that key. Empty results are never cached, so keys
+ * inserted elsewhere are picked up on the next lookup.
+ * <p/>
+ * Writes evict their keys after they reach the delegate, and a read only caches what it loaded if
+ * no key was evicted from the same cache segment while it was loading, so a concurrent read can not
+ * put back a value the write made stale.
+ * <p/>
+ * Only the single key reads fill the resource id and secondary index key caches; the multi-key
+ * reads use them but do not know the primary index keys of what they load. Writes made by other
+ * processes are not seen by the cache, so its entries expire after a maximum age; the
+ * {@link CachingDirectoryFacadeProvider} also clears it whenever the hive's revision changes.
+ */
+public class CachingDirectoryFacade implements DirectoryFacade {
+  private DirectoryFacade delegate;
+  private DirectoryCache cache;
+
+  public CachingDirectoryFacade(DirectoryFacade delegate, int maxSize) {
+    this(delegate, new DirectoryCache(maxSize, DirectoryCache.DEFAULT_MAX_AGE));
+  }
+
+  public CachingDirectoryFacade(DirectoryFacade delegate, DirectoryCache cache) {
+    this.delegate = delegate;
+    this.cache = cache;
+  }
+
+  public DirectoryCache getCache() {
+    return cache;
+  }
+
+  public boolean doesPrimaryIndexKeyExist(Object primaryIndexKey) {
+    if (cache.primaryIndexKeys.get(primaryIndexKey) != null)
+      return true;
+    return delegate.doesPrimaryIndexKeyExist(primaryIndexKey);
+  }
+
+  public Collection<Integer> getNodeIdsOfPrimaryIndexKey(Object primaryIndexKey) {
+    return Transform.map(DirectoryWrapper.semaphoreToId(), getKeySemamphoresOfPrimaryIndexKey(primaryIndexKey));
+  }
+
+  public Collection<KeySemaphore> getKeySemamphoresOfPrimaryIndexKey(Object primaryIndexKey) {
+    Collection<KeySemaphore> semaphores = cache.primaryIndexKeys.get(primaryIndexKey);
+    if (semaphores == null) {
+      long version = cache.primaryIndexKeys.getVersion(primaryIndexKey);
+      semaphores = delegate.getKeySemamphoresOfPrimaryIndexKey(primaryIndexKey);
+      if (semaphores.size() > 0)
+        cache.primaryIndexKeys.putIfVersion(primaryIndexKey, semaphores = immutable(semaphores), version);
+    }
+    return semaphores;
+  }
+
+  public Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfPrimaryIndexKeys(Collection<Object> primaryIndexKeys) {
+    Map<Object, Collection<KeySemaphore>> semaphores = new LinkedHashMap<Object, Collection<KeySemaphore>>();
+    Map<Object, Long> misses = new LinkedHashMap<Object, Long>();
+    for (Object key : primaryIndexKeys) {
+      Collection<KeySemaphore> cached = cache.primaryIndexKeys.get(key);
+      if (cached == null)
+        misses.put(key, cache.primaryIndexKeys.getVersion(key));
+      semaphores.put(key, cached);
+    }
+    if (misses.size() > 0)
+      for (Entry<Object, Collection<KeySemaphore>> entry : delegate.getKeySemaphoresOfPrimaryIndexKeys(new ArrayList<Object>(misses.keySet())).entrySet()) {
+        Collection<KeySemaphore> fetched = entry.getValue();
+        if (fetched.size() > 0 && misses.containsKey(entry.getKey()))
+          cache.primaryIndexKeys.putIfVersion(entry.getKey(), fetched = immutable(fetched), misses.get(entry.getKey()));
+        semaphores.put(entry.getKey(), fetched);
+      }
+    return semaphores;
+  }
+
+  public boolean getReadOnlyOfPrimaryIndexKey(Object primaryIndexKey) {
+    Collection<Boolean> locks =
+        Transform.map(DirectoryWrapper.semaphoreToReadOnly(), getKeySemamphoresOfPrimaryIndexKey(primaryIndexKey));
+    Preconditions.isNotEmpty(locks, String.format("Unable to find partitionKey %s ", primaryIndexKey));
+    return Lists.or(locks);
+  }
+
+  public void insertPrimaryIndexKey(Object primaryIndexKey) throws HiveLockableException {
+    try {
+      delegate.insertPrimaryIndexKey(primaryIndexKey);
+    } finally {
+      cache.primaryIndexKeys.remove(primaryIndexKey);
+    }
+  }
+
+  public void updatePrimaryIndexKeyReadOnly(Object primaryIndexKey, boolean isReadOnly) throws HiveLockableException {
+    try {
+      delegate.updatePrimaryIndexKeyReadOnly(primaryIndexKey, isReadOnly);
+    } finally {
+      cache.primaryIndexKeys.remove(primaryIndexKey);
+    }
+  }
+
+  public void deletePrimaryIndexKey(Object primaryIndexKey) throws HiveLockableException {
+    try {
+      delegate.deletePrimaryIndexKey(primaryIndexKey);
+    } finally {
+      cache.primaryIndexKeys.remove(primaryIndexKey);
+    }
+  }
+
+  public boolean doesSecondaryIndexKeyExist(String resource, String secondaryIndex, Object secondaryIndexKey, Object resourceId) {
+    return delegate.doesSecondaryIndexKeyExist(resource, secondaryIndex, secondaryIndexKey, resourceId);
+  }
+
+  public Collection<Integer> getNodeIdsOfSecondaryIndexKey(String resource, String secondaryIndex, Object secondaryIndexKey) {
+    return Transform.map(DirectoryWrapper.semaphoreToId(), getKeySemaphoresOfSecondaryIndexKey(resource, secondaryIndex, secondaryIndexKey));
+  }
+
+  /**
+   * Resolves the cached resource ids of the secondary index key through their primary index keys.
+   * If the primary index key of one of them is no longer cached, the key is read again, which
+   * caches the primary index key of each of its resource ids.
+   */
+  public Collection<KeySemaphore> getKeySemaphoresOfSecondaryIndexKey(String resource, String secondaryIndex, Object secondaryIndexKey) {
+    List<Object> key = secondaryIndexCacheKey(resource, secondaryIndex, secondaryIndexKey);
+    Collection<Object> resourceIds = cache.secondaryIndexKeys.get(key);
+    if (resourceIds != null) {
+      Collection<Object> primaryIndexKeys = new LinkedHashSet<Object>();
+      for (Object resourceId : resourceIds) {
+        Object primaryIndexKey = cache.resourceIds.get(resourceCacheKey(resource, resourceId));
+        if (primaryIndexKey == null)
+          return loadSecondaryIndexKey(resource, secondaryIndex, secondaryIndexKey);
+        primaryIndexKeys.add(primaryIndexKey);
+      }
+      Collection<KeySemaphore> semaphores = new LinkedHashSet<KeySemaphore>();
+      for (Collection<KeySemaphore> owners : getKeySemaphoresOfPrimaryIndexKeys(primaryIndexKeys).values())
+        semaphores.addAll(rekey(secondaryIndexKey, owners));
+      return semaphores;
+    }
+    return loadSecondaryIndexKey(resource, secondaryIndex, secondaryIndexKey);
+  }
+
+  private Collection<KeySemaphore> loadSecondaryIndexKey(String resource, String secondaryIndex, Object secondaryIndexKey) {
+    List<Object> key = secondaryIndexCacheKey(resource, secondaryIndex, secondaryIndexKey);
+    long version = cache.secondaryIndexKeys.getVersion(key);
+    Collection<SecondaryIndexKeySemaphore> rows = getSecondaryIndexKeySemaphoresOfSecondaryIndexKey(resource, secondaryIndex, secondaryIndexKey);
+    Collection<KeySemaphore> semaphores = new LinkedHashSet<KeySemaphore>();
+    Collection<Object> resourceIds = new LinkedHashSet<Object>();
+    for (SecondaryIndexKeySemaphore row : rows) {
+      semaphores.add(new KeySemaphoreImpl(secondaryIndexKey, row.getNodeId(), row.getStatus()));
+      resourceIds.add(row.getResourceId());
+    }
+    if (resourceIds.size() > 0)
+      cache.secondaryIndexKeys.putIfVersion(key, Collections.unmodifiableCollection(resourceIds), version);
+    return semaphores;
+  }
+
+  /**
+   * Caches the primary index key of each resource id owning the secondary index key.
+   */
+  public Collection<SecondaryIndexKeySemaphore> getSecondaryIndexKeySemaphoresOfSecondaryIndexKey(String resource, String secondaryIndex, Object secondaryIndexKey) {
+    long[] versions = cache.resourceIds.getVersions();
+    Collection<SecondaryIndexKeySemaphore> rows = delegate.getSecondaryIndexKeySemaphoresOfSecondaryIndexKey(resource, secondaryIndex, secondaryIndexKey);
+    for (SecondaryIndexKeySemaphore row : rows)
+      cache.resourceIds.putIfVersion(resourceCacheKey(resource, row.getResourceId()), row.getPrimaryIndexKey(), versions);
+    return rows;
+  }
+
+  /**
+   * Reads the keys not cached with the resource ids of their secondary index keys from the delegate,
+   * without caching them.
+   */
+  public Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfSecondaryIndexKeys(String resource, String secondaryIndex, Collection<Object> secondaryIndexKeys) {
+    Map<Object, Collection<KeySemaphore>> semaphores = new LinkedHashMap<Object, Collection<KeySemaphore>>();
+    Collection<Object> misses = new ArrayList<Object>();
+    for (Object key : secondaryIndexKeys) {
+      if (cache.secondaryIndexKeys.get(secondaryIndexCacheKey(resource, secondaryIndex, key)) == null) {
+        misses.add(key);
+        semaphores.put(key, null);
+      } else
+        semaphores.put(key, getKeySemaphoresOfSecondaryIndexKey(resource, secondaryIndex, key));
+    }
+    if (misses.size() > 0)
+      semaphores.putAll(delegate.getKeySemaphoresOfSecondaryIndexKeys(resource, secondaryIndex, misses));
+    return semaphores;
+  }
+
+  public void insertSecondaryIndexKey(String resource, String secondaryIndex, Object secondaryIndexKey, Object resourceId) throws HiveLockableException {
+    try {
+      delegate.insertSecondaryIndexKey(resource, secondaryIndex, secondaryIndexKey, resourceId);
+    } finally {
+      cache.secondaryIndexKeys.remove(secondaryIndexCacheKey(resource, secondaryIndex, secondaryIndexKey));
+    }
+  }
+
+  public void deleteSecondaryIndexKey(String resource, String secondaryIndex, Object secondaryIndexKey, Object resourceId) throws HiveLockableException {
+    try {
+      delegate.deleteSecondaryIndexKey(resource, secondaryIndex, secondaryIndexKey, resourceId);
+    } finally {
+      cache.secondaryIndexKeys.remove(secondaryIndexCacheKey(resource, secondaryIndex, secondaryIndexKey));
+    }
+  }
+
+  public boolean doesResourceIdExist(String resource, Object resourceId) {
+    Object primaryIndexKey = cache.resourceIds.get(resourceCacheKey(resource, resourceId));
+    if (primaryIndexKey != null && cache.primaryIndexKeys.get(primaryIndexKey) != null)
+      return true;
+    return delegate.doesResourceIdExist(resource, resourceId);
+  }
+
+  public Collection<Integer> getNodeIdsOfResourceId(String resource, Object id) {
+    return Transform.map(DirectoryWrapper.semaphoreToId(), getKeySemaphoresOfResourceId(resource, id));
+  }
+
+  /**
+   * Resolves the resource id through the KeySemaphores of its primary index key.
+   */
+  public Collection<KeySemaphore> getKeySemaphoresOfResourceId(String resource, Object resourceId) {
+    Object primaryIndexKey;
+    try {
+      primaryIndexKey = getPrimaryIndexKeyOfResourceId(resource, resourceId);
+    } catch (HiveKeyNotFoundException e) {
+      return new ArrayList<KeySemaphore>();
+    }
+    return rekey(resourceId, getKeySemamphoresOfPrimaryIndexKey(primaryIndexKey));
+  }
+
+  /**
+   * Reads the resource ids whose primary index key is not cached from the delegate, without
+   * caching them.
+   */
+  public Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfResourceIds(String resource, Collection<Object> resourceIds) {
+    Map<Object, Collection<KeySemaphore>> semaphores = new LinkedHashMap<Object, Collection<KeySemaphore>>();
+    Map<Object, Object> primaryIndexKeys = new LinkedHashMap<Object, Object>();
+    Collection<Object> misses = new ArrayList<Object>();
+    for (Object key : resourceIds) {
+      Object primaryIndexKey = cache.resourceIds.get(resourceCacheKey(resource, key));
+      if (primaryIndexKey == null)
+        misses.add(key);
+      else
+        primaryIndexKeys.put(key, primaryIndexKey);
+      semaphores.put(key, null);
+    }
+    if (primaryIndexKeys.size() > 0) {
+      Map<Object, Collection<KeySemaphore>> owners = getKeySemaphoresOfPrimaryIndexKeys(new ArrayList<Object>(primaryIndexKeys.values()));
+      for (Entry<Object, Object> entry : primaryIndexKeys.entrySet())
+        semaphores.put(entry.getKey(), rekey(entry.getKey(), owners.get(entry.getValue())));
+    }
+    if (misses.size() > 0)
+      semaphores.putAll(delegate.getKeySemaphoresOfResourceIds(resource, misses));
+    return semaphores;
+  }
+
+  public boolean getReadOnlyOfResourceId(String resource, Object id) {
+    Collection<Boolean> locks =
+        Transform.map(DirectoryWrapper.semaphoreToReadOnly(), getKeySemaphoresOfResourceId(resource, id));
+    Preconditions.isNotEmpty(locks, String.format("Unable to find resource %s with id = %s ", resource, id));
+    return Lists.or(locks);
+  }
+
+  public void insertResourceId(String resource, Object id, Object primaryIndexKey) throws HiveLockableException {
+    try {
+      delegate.insertResourceId(resource, id, primaryIndexKey);
+    } finally {
+      cache.resourceIds.remove(resourceCacheKey(resource, id));
+    }
+  }
+
+  public void updatePrimaryIndexKeyOfResourceId(String resource, Object resourceId, Object newPrimaryIndexKey) throws HiveLockableException {
+    try {
+      delegate.updatePrimaryIndexKeyOfResourceId(resource, resourceId, newPrimaryIndexKey);
+    } finally {
+      cache.resourceIds.remove(resourceCacheKey(resource, resourceId));
+    }
+  }
+
+  public void deleteResourceId(String resource, Object id) throws HiveLockableException {
+    try {
+      delegate.deleteResourceId(resource, id);
+    } finally {
+      cache.resourceIds.remove(resourceCacheKey(resource, id));
+    }
+  }
+
+  public Collection getSecondaryIndexKeysWithResourceId(String resource, String secondaryIndex, Object id) {
+    return delegate.getSecondaryIndexKeysWithResourceId(resource, secondaryIndex, id);
+  }
+
+  public Map<String, Collection<Object>> getAllSecondaryIndexKeysWithResourceId(String resource, Object id) {
+    return delegate.getAllSecondaryIndexKeysWithResourceId(resource, id);
+  }
+
+  public Object getPrimaryIndexKeyOfResourceId(String name, Object resourceId) {
+    List<Object> key = resourceCacheKey(name, resourceId);
+    Object primaryIndexKey = cache.resourceIds.get(key);
+    if (primaryIndexKey == null) {
+      long version = cache.resourceIds.getVersion(key);
+      primaryIndexKey = delegate.getPrimaryIndexKeyOfResourceId(name, resourceId);
+      if (primaryIndexKey != null)
+        cache.resourceIds.putIfVersion(key, primaryIndexKey, version);
+    }
+    return primaryIndexKey;
+  }
+
+  public void deleteSecondaryIndexKeys(String resource, Map<String, Collection<Object>> secondaryIndexValueMap, Object resourceId) throws HiveLockableException {
+    try {
+      delegate.deleteSecondaryIndexKeys(resource, secondaryIndexValueMap, resourceId);
+    } finally {
+      evictSecondaryIndexKeys(resource, secondaryIndexValueMap);
+    }
+  }
+
+  public void indexEntity(String resource, Object primaryIndexKey, Object resourceId, Map<String, Collection<Object>> secondaryIndexValueMap) throws HiveLockableException {
+    try {
+      delegate.indexEntity(resource, primaryIndexKey, resourceId, secondaryIndexValueMap);
+    } finally {
+      cache.primaryIndexKeys.remove(primaryIndexKey);
+      cache.resourceIds.remove(resourceCacheKey(resource, resourceId));
+      evictSecondaryIndexKeys(resource, secondaryIndexValueMap);
+    }
+  }
+
+  public void insertSecondaryIndexKeys(String resource, Map<String, Collection<Object>> secondaryIndexValueMap, Object resourceId) throws HiveLockableException {
+    try {
+      delegate.insertSecondaryIndexKeys(resource, secondaryIndexValueMap, resourceId);
+    } finally {
+      evictSecondaryIndexKeys(resource, secondaryIndexValueMap);
+    }
+  }
+
+  private void evictSecondaryIndexKeys(String resource, Map<String, Collection<Object>> secondaryIndexValueMap) {
+    for (Entry<String, Collection<Object>> entry : secondaryIndexValueMap.entrySet())
+      for (Object secondaryIndexKey : entry.getValue())
+        cache.secondaryIndexKeys.remove(secondaryIndexCacheKey(resource, entry.getKey(), secondaryIndexKey));
+  }
+
+  private static List<Object> resourceCacheKey(String resource, Object resourceId) {
+    return Arrays.asList(new Object[]{resource.toLowerCase(), resourceId});
+  }
+
+  private static List<Object> secondaryIndexCacheKey(String resource, String secondaryIndex, Object secondaryIndexKey) {
+    return Arrays.asList(new Object[]{resource.toLowerCase(), secondaryIndex.toLowerCase(), secondaryIndexKey});
+  }
+
+  private static Collection<KeySemaphore> immutable(Collection<KeySemaphore> semaphores) {
+    return Collections.unmodifiableCollection(semaphores);
+  }
+
+  /**
+   * The node and status of each KeySemaphore of a primary index key, as KeySemaphores of a resource
+   * id or secondary index key it owns.
+   */
+  private static Collection<KeySemaphore> rekey(Object key, Collection<KeySemaphore> semaphores) {
+    Collection<KeySemaphore> rekeyed = new ArrayList<KeySemaphore>();
+    for (KeySemaphore semaphore : semaphores)
+      rekeyed.add(new KeySemaphoreImpl(key, semaphore.getNodeId(), semaphore.getStatus()));
+    return rekeyed;
+  }
+
+  /**
+   * The three routing caches, kept apart from the facade so they can outlive it: the KeySemaphores
+   * of primary index keys, the primary index key of resource ids and the resource ids of secondary
+   * index keys.
+   */
+  public static class DirectoryCache {
+    public static final long DEFAULT_MAX_AGE = 10000;
+    private LruCache<Object, Collection<KeySemaphore>> primaryIndexKeys;
+    private LruCache<List<Object>, Object> resourceIds;
+    private LruCache<List<Object>, Collection<Object>> secondaryIndexKeys;
+
+    /**
+     * @param maxAge milliseconds an entry is used for, bounding how long a change made by another
+     * process goes unseen
+     */
+    public DirectoryCache(int maxSize, long maxAge) {
+      this.primaryIndexKeys = new LruCache<Object, Collection<KeySemaphore>>(maxSize, maxAge);
+      this.resourceIds = new LruCache<List<Object>, Object>(maxSize, maxAge);
+      this.secondaryIndexKeys = new LruCache<List<Object>, Collection<Object>>(maxSize, maxAge);
+    }
+
+    public void clear() {
+      primaryIndexKeys.clear();
+      resourceIds.clear();
+      secondaryIndexKeys.clear();
+    }
+
+    public long getHitCount() {
+      return primaryIndexKeys.getHitCount() + resourceIds.getHitCount() + secondaryIndexKeys.getHitCount();
+    }
+
+    public long getMissCount() {
+      return primaryIndexKeys.getMissCount() + resourceIds.getMissCount() + secondaryIndexKeys.getMissCount();
+    }
+
+    public LruCache<Object, Collection<KeySemaphore>> getPrimaryIndexKeyCache() {
+      return primaryIndexKeys;
+    }
+
+    public LruCache<List<Object>, Object> getResourceIdCache() {
+      return resourceIds;
+    }
+
+    public LruCache<List<Object>, Collection<Object>> getSecondaryIndexKeyCache() {
+      return secondaryIndexKeys;
+    }
+
+    public String toString() {
+      return String.format("DirectoryCache hits: %s misses: %s primary: %s resource: %s secondary: %s",
+          getHitCount(), getMissCount(), primaryIndexKeys.size(), resourceIds.size(), secondaryIndexKeys.size());
+    }
+  }
+}
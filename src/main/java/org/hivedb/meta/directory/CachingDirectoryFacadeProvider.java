@@ -0,0 +1,45 @@
+package org.hivedb.meta.directory;
+
+import org.hivedb.Lockable;
+import org.hivedb.meta.Assigner;
+import org.hivedb.meta.PartitionDimension;
+import org.hivedb.meta.directory.CachingDirectoryFacade.DirectoryCache;
+
+/**
+ * Wraps the DirectoryFacades of another provider in a {@link CachingDirectoryFacade}.
+ * The Hive asks for a new facade whenever its revision changes, e.g. when another process changed
+ * the nodes or moved keys, so the shared cache is cleared then. Changes to single keys made by other
+ * processes do not change the revision; they are seen once their entries reach the maximum age.
+ * Hit and miss counts survive the reload.
+ */
+public class CachingDirectoryFacadeProvider implements DirectoryFacadeProvider {
+  public static final int DEFAULT_CACHE_SIZE = 100000;
+  private DirectoryFacadeProvider delegate;
+  private DirectoryCache cache;
+
+  public CachingDirectoryFacadeProvider(DirectoryFacadeProvider delegate) {
+    this(delegate, DEFAULT_CACHE_SIZE);
+  }
+
+  public CachingDirectoryFacadeProvider(DirectoryFacadeProvider delegate, int maxSize) {
+    this(delegate, maxSize, DirectoryCache.DEFAULT_MAX_AGE);
+  }
+
+  /**
+   * @param maxAge milliseconds a cached entry is used for
+   */
+  public CachingDirectoryFacadeProvider(DirectoryFacadeProvider delegate, int maxSize, long maxAge) {
+    this.delegate = delegate;
+    this.cache = new DirectoryCache(maxSize, maxAge);
+  }
+
+  public synchronized DirectoryFacade getDirectoryFacade(String hiveConfigurationUri, Assigner assigner, Lockable semaphore, PartitionDimension partitionDimension) {
+    DirectoryFacade facade = delegate.getDirectoryFacade(hiveConfigurationUri, assigner, semaphore, partitionDimension);
+    cache.clear();
+    return new CachingDirectoryFacade(facade, cache);
+  }
+
+  public DirectoryCache getCache() {
+    return cache;
+  }
+}
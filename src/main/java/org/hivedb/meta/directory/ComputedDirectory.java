@@ -0,0 +1,299 @@
+package org.hivedb.meta.directory;
+
+import org.hivedb.HiveChangeBroadcast;
+import org.hivedb.HiveKeyNotFoundException;
+import org.hivedb.HiveRuntimeException;
+import org.hivedb.Lockable;
+import org.hivedb.meta.HiveChange;
+import org.hivedb.meta.Node;
+import org.hivedb.meta.PartitionDimension;
+import org.hivedb.meta.Resource;
+import org.hivedb.meta.SecondaryIndex;
+import org.hivedb.meta.persistence.HiveChangeLogDao;
+import org.hivedb.meta.persistence.HiveSemaphoreDao;
+import org.hivedb.util.database.JdbcTypeMapper;
+import org.hivedb.util.database.RowMappers;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+
+import javax.sql.DataSource;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.*;
+
+/**
+ * Base of the directories that compute the node of a primary index key from a small table held in
+ * memory, e.g. of key ranges or hash buckets, instead of storing a primary index row per key.
+ * Primary index keys resolve without a query.
+ * <p/>
+ * Resource ids and secondary index keys are still indexed per key, by the wrapped {@link DbDirectory},
+ * and resolve to their primary index key with a query that skips the primary index table.
+ * <p/>
+ * Changes to the in-memory table increment the hive revision and are published to the
+ * {@link HiveChangeBroadcast}, so every hive reloads it on its next sync, and the hives of this JVM
+ * right away.
+ */
+public abstract class ComputedDirectory implements Directory {
+  protected DbDirectory delegate;
+  protected IndexSqlFormatter sql = new IndexSqlFormatter();
+  private String hiveUri;
+  private DataSource hiveDataSource;
+
+  /**
+   * @param hiveUri the uri of the hive whose revision changes to the in-memory table increment
+   * @param hiveDataSource the data source of that hive
+   */
+  protected ComputedDirectory(DbDirectory delegate, String hiveUri, DataSource hiveDataSource) {
+    int type = delegate.getPartitionDimension().getColumnType();
+    if (type != Types.BIGINT && type != Types.INTEGER && type != Types.SMALLINT && type != Types.TINYINT)
+      throw new HiveRuntimeException(String.format("%s requires an integral partition dimension, %s is not",
+          getClass().getSimpleName(), delegate.getPartitionDimension().getName()));
+    this.delegate = delegate;
+    this.hiveUri = hiveUri;
+    this.hiveDataSource = hiveDataSource;
+  }
+
+  /**
+   * The semaphore of the node holding the primary index key, reported under the given key, or null
+   * if the key is not covered.
+   */
+  protected abstract KeySemaphore getSemaphore(Object key, long primaryIndexKey);
+
+  /**
+   * Reloads the in-memory table.
+   */
+  public abstract void refresh();
+
+  public PartitionDimension getPartitionDimension() {
+    return delegate.getPartitionDimension();
+  }
+
+  public boolean doesPrimaryIndexKeyExist(Object primaryIndexKey) {
+    return getSemaphore(primaryIndexKey, MemoryDirectory.toLong(primaryIndexKey)) != null;
+  }
+
+  public Collection<KeySemaphore> getKeySemamphoresOfPrimaryIndexKey(Object primaryIndexKey) {
+    return semaphoresOf(primaryIndexKey, Collections.singletonList(primaryIndexKey));
+  }
+
+  /**
+   * Keys are covered by the in-memory table, so there is no row to write. The node is decided by
+   * the table, not by the node passed in.
+   */
+  public Object insertPrimaryIndexKey(Node node, Object primaryIndexKey) {
+    if (!doesPrimaryIndexKeyExist(primaryIndexKey))
+      throw new HiveKeyNotFoundException(String.format("The primary index key %s is not covered by the directory", primaryIndexKey), primaryIndexKey);
+    return primaryIndexKey;
+  }
+
+  /**
+   * Deletes the resource ids and secondary index keys owned by the key.
+   */
+  public void deletePrimaryIndexKey(Object primaryIndexKey) {
+    delegate.deletePrimaryIndexKey(primaryIndexKey);
+  }
+
+  public Collection<KeySemaphore> getKeySemaphoresOfResourceId(Resource resource, Object id) {
+    if (resource.isPartitioningResource())
+      return getKeySemamphoresOfPrimaryIndexKey(id);
+    return semaphoresOf(id, owners(sql.selectPrimaryIndexKeyColumnOfResourceId(resource), id));
+  }
+
+  public Collection<KeySemaphore> getKeySemaphoresOfSecondaryIndexKey(SecondaryIndex secondaryIndex, Object secondaryIndexKey) {
+    return semaphoresOf(secondaryIndexKey, owners(sql.selectPrimaryIndexKeyColumnsOfSecondaryIndexKey(secondaryIndex), secondaryIndexKey));
+  }
+
+  public Collection<SecondaryIndexKeySemaphore> getSecondaryIndexKeySemaphoresOfSecondaryIndexKey(final SecondaryIndex secondaryIndex, final Object secondaryIndexKey) {
+    final Resource resource = secondaryIndex.getResource();
+    final Collection<SecondaryIndexKeySemaphore> semaphores = new ArrayList<SecondaryIndexKeySemaphore>();
+    template().query(sql.selectResourceIdColumnsOfSecondaryIndexKey(secondaryIndex), new Object[]{secondaryIndexKey}, new RowCallbackHandler() {
+      public void processRow(ResultSet rs) throws SQLException {
+        Object primaryIndexKey = JdbcTypeMapper.getJdbcTypeResult(rs, 2, getPartitionDimension().getColumnType());
+        KeySemaphore semaphore = getSemaphore(primaryIndexKey, MemoryDirectory.toLong(primaryIndexKey));
+        if (semaphore != null)
+          semaphores.add(new SecondaryIndexKeySemaphoreImpl(
+              new ResourceKeySemaphoreImpl(semaphore, JdbcTypeMapper.getJdbcTypeResult(rs, 1, resource.getColumnType())),
+              secondaryIndexKey));
+      }
+    });
+    return semaphores;
+  }
+
+  public Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfPrimaryIndexKeys(Collection<Object> primaryIndexKeys) {
+    Map<Object, Collection<KeySemaphore>> map = new LinkedHashMap<Object, Collection<KeySemaphore>>();
+    for (Object key : primaryIndexKeys)
+      map.put(key, getKeySemamphoresOfPrimaryIndexKey(key));
+    return map;
+  }
+
+  public Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfResourceIds(Resource resource, Collection<Object> resourceIds) {
+    Map<Object, Collection<KeySemaphore>> map = new LinkedHashMap<Object, Collection<KeySemaphore>>();
+    for (Object id : resourceIds)
+      map.put(id, getKeySemaphoresOfResourceId(resource, id));
+    return map;
+  }
+
+  public Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfSecondaryIndexKeys(SecondaryIndex secondaryIndex, Collection<Object> secondaryIndexKeys) {
+    Map<Object, Collection<KeySemaphore>> map = new LinkedHashMap<Object, Collection<KeySemaphore>>();
+    for (Object key : secondaryIndexKeys)
+      map.put(key, getKeySemaphoresOfSecondaryIndexKey(secondaryIndex, key));
+    return map;
+  }
+
+  public boolean doesResourceIdExist(Resource resource, Object resourceId) {
+    if (resource.isPartitioningResource())
+      return doesPrimaryIndexKeyExist(resourceId);
+    return delegate.doesResourceIdExist(resource, resourceId);
+  }
+
+  public Object getPrimaryIndexKeyOfResourceId(Resource resource, Object resourceId) {
+    List<Object> keys = owners(sql.selectPrimaryIndexKeyColumnOfResourceId(resource), resourceId);
+    if (keys.size() == 0)
+      throw new HiveKeyNotFoundException(String.format("Unable to find primary key for resource %s with id %s", resource.getName(), resourceId), resourceId);
+    return keys.get(0);
+  }
+
+  public void deleteResourceId(Resource resource, Object id) {
+    delegate.deleteResourceId(resource, id);
+  }
+
+  public Object insertResourceId(Resource resource, Object id, Object primaryIndexKey) {
+    return delegate.insertResourceId(resource, id, primaryIndexKey);
+  }
+
+  public Object updatePrimaryIndexKeyOfResourceId(Resource resource, Object resourceId, Object newPrimaryIndexKey) {
+    return delegate.updatePrimaryIndexKeyOfResourceId(resource, resourceId, newPrimaryIndexKey);
+  }
+
+  public boolean doesSecondaryIndexKeyExist(SecondaryIndex index, Object secondaryIndexKey, Object resourceId) {
+    return delegate.doesSecondaryIndexKeyExist(index, secondaryIndexKey, resourceId);
+  }
+
+  public Object insertSecondaryIndexKey(SecondaryIndex secondaryIndex, Object secondaryIndexKey, Object resourceId) {
+    return delegate.insertSecondaryIndexKey(secondaryIndex, secondaryIndexKey, resourceId);
+  }
+
+  public void deleteSecondaryIndexKey(SecondaryIndex index, Object secondaryIndexKey, Object resourceId) {
+    delegate.deleteSecondaryIndexKey(index, secondaryIndexKey, resourceId);
+  }
+
+  public Object insertSecondaryIndexKeys(Map<SecondaryIndex, Collection<Object>> secondaryIndexValueMap, Object resourceId) {
+    return delegate.insertSecondaryIndexKeys(secondaryIndexValueMap, resourceId);
+  }
+
+  public void deleteSecondaryIndexKeys(Map<SecondaryIndex, Collection<Object>> secondaryIndexValueMap, Object resourceId) {
+    delegate.deleteSecondaryIndexKeys(secondaryIndexValueMap, resourceId);
+  }
+
+  public long streamResourceIdsOfPrimaryIndexKey(Resource resource, Object primaryIndexKey, KeyHandler handler) {
+    return delegate.streamResourceIdsOfPrimaryIndexKey(resource, primaryIndexKey, handler);
+  }
+
+  public long streamSecondaryIndexKeysOfPrimaryIndexKey(SecondaryIndex secondaryIndex, Object primaryIndexKey, KeyHandler handler) {
+    return delegate.streamSecondaryIndexKeysOfPrimaryIndexKey(secondaryIndex, primaryIndexKey, handler);
+  }
+
+  /**
+   * Primary index keys are covered by the in-memory table rather than stored, so there are none to
+   * stream.
+   *
+   * @throws UnsupportedOperationException always
+   */
+  public long streamPrimaryIndexKeys(KeyHandler handler) {
+    throw new UnsupportedOperationException(String.format("%s does not store primary index keys", getClass().getSimpleName()));
+  }
+
+  /**
+   * Primary index keys are covered by the in-memory table rather than stored, so there are none to
+   * count.
+   *
+   * @throws UnsupportedOperationException always
+   */
+  public Map<Integer, Long> countPrimaryIndexKeysByNode() {
+    throw new UnsupportedOperationException(String.format("%s does not store primary index keys", getClass().getSimpleName()));
+  }
+
+  /**
+   * @throws UnsupportedOperationException for the partitioning resource, whose ids are the primary
+   * index keys
+   */
+  public long streamResourceIds(Resource resource, KeyHandler handler) {
+    if (resource.isPartitioningResource())
+      return streamPrimaryIndexKeys(handler);
+    return delegate.streamResourceIds(resource, handler);
+  }
+
+  /**
+   * The primary index key is resolved in memory, so only the resource id and secondary index keys
+   * are written, in one transaction.
+   */
+  public Collection<KeySemaphore> indexEntity(Node node, final Object primaryIndexKey, final Resource resource, final Object resourceId, final Map<SecondaryIndex, Collection<Object>> secondaryIndexValueMap) {
+    Collection<KeySemaphore> semaphores = getKeySemamphoresOfPrimaryIndexKey(primaryIndexKey);
+    if (semaphores.size() == 0)
+      throw new HiveKeyNotFoundException(String.format("The primary index key %s is not covered by the directory", primaryIndexKey), primaryIndexKey);
+    for (KeySemaphore semaphore : semaphores)
+      if (semaphore.getStatus() != Lockable.Status.writable)
+        return semaphores;
+    delegate.newTransaction().execute(new TransactionCallback() {
+      public Object doInTransaction(TransactionStatus status) {
+        delegate.insertEntityKeysNoTransaction(resource, resourceId, primaryIndexKey, secondaryIndexValueMap);
+        return null;
+      }
+    });
+    return semaphores;
+  }
+
+  public Collection getSecondaryIndexKeysOfResourceId(SecondaryIndex secondaryIndex, Object id) {
+    return delegate.getSecondaryIndexKeysOfResourceId(secondaryIndex, id);
+  }
+
+  public Map<SecondaryIndex, Collection<Object>> getAllSecondaryIndexKeysOfResourceId(Resource resource, Object id) {
+    return delegate.getAllSecondaryIndexKeysOfResourceId(resource, id);
+  }
+
+  /**
+   * Increments the hive revision and runs a change to the in-memory table's rows in one transaction,
+   * then reloads the table and publishes the new revision. The increment comes first, so when the hive and index share a data source,
+   * as they do for the directories of the factories, its semaphore row lock serializes the changes and
+   * each change sees the rows committed by the one before it.
+   */
+  protected Object changeAndIncrementRevision(final TransactionCallback change) {
+    final HiveChange[] published = new HiveChange[1];
+    Object result = delegate.newTransaction().execute(new TransactionCallback() {
+      public Object doInTransaction(TransactionStatus status) {
+        int revision = new HiveSemaphoreDao(hiveDataSource).incrementRevision();
+        Object result = change.doInTransaction(status);
+        published[0] = new HiveChange(new HiveChangeLogDao(hiveDataSource).append(revision), hiveUri, revision);
+        return result;
+      }
+    });
+    refresh();
+    HiveChangeBroadcast.publish(published[0]);
+    return result;
+  }
+
+  protected JdbcTemplate template() {
+    return delegate.getJdbcTemplate();
+  }
+
+  /**
+   * The semaphores of the owning keys, one per node.
+   */
+  private Collection<KeySemaphore> semaphoresOf(Object key, Collection<Object> primaryIndexKeys) {
+    Map<Integer, KeySemaphore> byNode = new LinkedHashMap<Integer, KeySemaphore>();
+    for (Object primaryIndexKey : primaryIndexKeys) {
+      KeySemaphore semaphore = getSemaphore(key, MemoryDirectory.toLong(primaryIndexKey));
+      if (semaphore != null && !byNode.containsKey(semaphore.getNodeId()))
+        byNode.put(semaphore.getNodeId(), semaphore);
+    }
+    return new ArrayList<KeySemaphore>(byNode.values());
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<Object> owners(String query, Object key) {
+    return template().query(query, new Object[]{key}, RowMappers.newObjectRowMapper(getPartitionDimension().getColumnType()));
+  }
+}
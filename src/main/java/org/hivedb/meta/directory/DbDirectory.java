@@ -2,21 +2,30 @@ package org.hivedb.meta.directory;
 
 import org.hivedb.DirectoryCorruptionException;
 import org.hivedb.HiveKeyNotFoundException;
+import org.hivedb.UnsupportedDialectException;
 import org.hivedb.Lockable.Status;
 import org.hivedb.meta.Node;
 import org.hivedb.meta.PartitionDimension;
 import org.hivedb.meta.Resource;
 import org.hivedb.meta.SecondaryIndex;
+import org.hivedb.meta.directory.DirectoryReplicas.Read;
 import org.hivedb.meta.persistence.CachingDataSourceProvider;
 import org.hivedb.util.QuickCache;
+import org.hivedb.util.database.DialectTools;
+import org.hivedb.util.database.DriverLoader;
+import org.hivedb.util.database.HiveDbDialect;
 import org.hivedb.util.database.JdbcTypeMapper;
 import org.hivedb.util.database.RowMappers;
 import org.hivedb.util.database.Schemas;
 import org.hivedb.util.database.Statements;
 import org.hivedb.util.functional.Atom;
 import org.hivedb.util.functional.Delay;
+import org.hivedb.util.functional.Pair;
 import org.hivedb.util.functional.Unary;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.simple.SimpleJdbcDaoSupport;
 import org.springframework.jdbc.core.support.JdbcDaoSupport;
@@ -26,24 +35,99 @@ import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.sql.DataSource;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 public class DbDirectory extends SimpleJdbcDaoSupport implements NodeResolver, Directory {
   private static QuickCache cache = new QuickCache();
   private PartitionDimension partitionDimension;
   private IndexSqlFormatter sql = new IndexSqlFormatter();
-
+  private BatchIndexWriter batchIndexWriter;
+  private int inListChunkSize = DEFAULT_IN_LIST_CHUNK_SIZE;
+  private HiveDbDialect dialect;
+  private WriteMode writeMode = WriteMode.LOCKING;
+  private DirectoryReplicas replicas;
+  public static final int DEFAULT_IN_LIST_CHUNK_SIZE = 100;
+
+  /**
+   * How index keys are inserted. LOCKING selects the key for update and inserts it only when absent,
+   * two round trips per key. UPSERT issues a single dialect-native idempotent insert (on duplicate key
+   * on MySQL, merge on H2) with the same outcome: existing keys are left as they are.
+   */
+  public enum WriteMode {
+    LOCKING, UPSERT
+  }
 
   public DbDirectory(PartitionDimension dimension, DataSource dataSource) {
+    this(dimension, dimension.getIndexUri(), dataSource, WriteMode.LOCKING);
+  }
+
+  public DbDirectory(PartitionDimension dimension, DataSource dataSource, WriteMode writeMode) {
+    this(dimension, dimension.getIndexUri(), dataSource, writeMode);
+  }
+
+  /**
+   * A directory of the dimension's index tables stored at indexUri, which may differ from
+   * the dimension's own index uri, e.g. for one shard of a {@link PartitionedDirectory}.
+   */
+  public DbDirectory(PartitionDimension dimension, String indexUri, DataSource dataSource, WriteMode writeMode) {
     this.partitionDimension = dimension;
     this.setDataSource(dataSource);
+    this.dialect = indexUri == null ? null : DriverLoader.discernDialect(indexUri);
+    this.inListChunkSize = dialect == null ? DEFAULT_IN_LIST_CHUNK_SIZE : DialectTools.getMaxInListSize(dialect);
+    setWriteMode(writeMode);
   }
 
   public DbDirectory(PartitionDimension dimension) {
-    this.partitionDimension = dimension;
-    this.setDataSource(CachingDataSourceProvider.getInstance().getDataSource(dimension.getIndexUri()));
+    this(dimension, CachingDataSourceProvider.getInstance().getDataSource(dimension.getIndexUri()));
+  }
+
+  public WriteMode getWriteMode() {
+    return writeMode;
+  }
+
+  public void setWriteMode(WriteMode writeMode) {
+    if (writeMode == WriteMode.UPSERT && !DialectTools.supportsIdempotentInsert(dialect))
+      throw new UnsupportedDialectException(String.format("Upsert writes are not supported for index dialect %s", dialect));
+    this.writeMode = writeMode;
+  }
+
+  public DirectoryReplicas getReplicas() {
+    return replicas;
+  }
+
+  /**
+   * Sends reads that do not lock to the given read replicas, see {@link DirectoryReplicas}.
+   */
+  public void setReplicas(DirectoryReplicas replicas) {
+    this.replicas = replicas;
+  }
+
+  boolean isUpsert() {
+    return writeMode == WriteMode.UPSERT;
+  }
+
+  HiveDbDialect getDialect() {
+    return dialect;
+  }
+
+  /**
+   * The maximum number of keys bound in a single in (...) list against the index database.
+   */
+  public int getInListChunkSize() {
+    return inListChunkSize;
   }
 
   public PartitionDimension getPartitionDimension() {
@@ -56,7 +140,9 @@ public class DbDirectory extends SimpleJdbcDaoSupport implements NodeResolver, D
         int[] types = new int[]{JdbcTypeMapper.primitiveTypeToJdbcType(primaryIndexKey.getClass()), Types.INTEGER};
         Object[] parameters = new Object[]{primaryIndexKey, node.getId()};
 
-        if (lockPrimaryKeyForInsert(primaryIndexKey, node))
+        if (isUpsert())
+          doUpdate(sql.upsertPrimaryIndexKey(partitionDimension, dialect), types, parameters);
+        else if (lockPrimaryKeyForInsert(primaryIndexKey, node))
           doUpdate(sql.insertPrimaryIndexKey(partitionDimension), types, parameters);
         return primaryIndexKey;
       }
@@ -75,7 +161,9 @@ public class DbDirectory extends SimpleJdbcDaoSupport implements NodeResolver, D
     Object[] parameters = new Object[]{secondaryIndexKey, resourceId};
     int[] types = new int[]{secondaryIndex.getColumnInfo().getColumnType(), secondaryIndex.getResource().getColumnType()};
 
-    if (lockSecondaryIndexKey(secondaryIndex, secondaryIndexKey, resourceId))
+    if (isUpsert())
+      doUpdate(sql.upsertSecondaryIndexKey(secondaryIndex, dialect), types, parameters);
+    else if (lockSecondaryIndexKey(secondaryIndex, secondaryIndexKey, resourceId))
       doUpdate(sql.insertSecondaryIndexKey(secondaryIndex), types, parameters);
     return secondaryIndexKey;
   }
@@ -107,23 +195,79 @@ public class DbDirectory extends SimpleJdbcDaoSupport implements NodeResolver, D
     });
   }
 
-  public void deletePrimaryIndexKey(final Object primaryIndexKey) {
-    for (Resource resource : getPartitionDimension().getResources()) {
-      if (!resource.isPartitioningResource())
-        for (Object resourceId : getResourceIdsOfPrimaryIndexKey(resource, primaryIndexKey)) {
-          deleteResourceId(resource, resourceId);
+  /**
+   * Indexes an entity in one transaction: inserts the primary index key on the node unless it
+   * already exists, then the resource id, unless the resource is the partitioning resource, and its
+   * secondary index keys. Each secondary index is written with one lock and one batch.
+   * <p/>
+   * Returns the semaphores of the primary index key. When one of them is not writable nothing is
+   * written, so the caller checks the semaphores instead of reading them first.
+   */
+  @SuppressWarnings("unchecked")
+  public Collection<KeySemaphore> indexEntity(final Node node, final Object primaryIndexKey, final Resource resource, final Object resourceId, final Map<SecondaryIndex, Collection<Object>> secondaryIndexValueMap) {
+    return (Collection<KeySemaphore>) newTransaction().execute(new TransactionCallback() {
+      public Object doInTransaction(TransactionStatus arg0) {
+        Collection<KeySemaphore> semaphores = doLockingRead(
+            sql.selectKeySemaphoreOfPrimaryIndexKeyForUpdate(partitionDimension),
+            new Object[]{primaryIndexKey},
+            new KeySemaphoreRowMapper());
+        if (semaphores.size() == 0) {
+          int[] types = new int[]{JdbcTypeMapper.primitiveTypeToJdbcType(primaryIndexKey.getClass()), Types.INTEGER};
+          Object[] parameters = new Object[]{primaryIndexKey, node.getId()};
+          doUpdate(isUpsert() ? sql.upsertPrimaryIndexKey(partitionDimension, dialect) : sql.insertPrimaryIndexKey(partitionDimension), types, parameters);
+          semaphores = new ArrayList<KeySemaphore>();
+          semaphores.add(new KeySemaphoreImpl(primaryIndexKey, node.getId(), Status.writable));
         }
-      else
-        batch().deleteAllSecondaryIndexKeysOfResourceId(resource, primaryIndexKey);
+        for (KeySemaphore semaphore : semaphores)
+          if (semaphore.getStatus() != Status.writable)
+            return semaphores;
+        insertEntityKeysNoTransaction(resource, resourceId, primaryIndexKey, secondaryIndexValueMap);
+        return semaphores;
+      }
+    });
+  }
+
+  /**
+   * Inserts the resource id, unless the resource is the partitioning resource, and its secondary
+   * index keys, in the caller's transaction.
+   */
+  void insertEntityKeysNoTransaction(Resource resource, Object resourceId, Object primaryIndexKey, Map<SecondaryIndex, Collection<Object>> secondaryIndexValueMap) {
+    if (!resource.isPartitioningResource()) {
+      if (isUpsert())
+        upsertResourceId(resource, resourceId, primaryIndexKey);
+      else if (lockResourceId(resource, resourceId))
+        doUpdate(sql.insertResourceId(resource),
+            new int[]{resource.getColumnType(), resource.getPartitionDimension().getColumnType()},
+            new Object[]{resourceId, primaryIndexKey});
     }
+    for (Map.Entry<SecondaryIndex, Collection<Object>> entry : secondaryIndexValueMap.entrySet())
+      for (List<Object> chunk : chunk(entry.getValue()))
+        batch().insertSecondaryIndexKeysNoTransaction(entry.getKey(), chunk, resourceId);
+  }
 
+  /**
+   * Deletes the primary index key along with the resource ids it owns and their secondary index keys.
+   * The owned rows are deleted by the database with one statement per index table, each selecting
+   * its rows by the primary index key, so none are read back to the client. The whole cascade is one
+   * transaction.
+   */
+  public void deletePrimaryIndexKey(final Object primaryIndexKey) {
     newTransaction().execute(new TransactionCallback() {
       public Object doInTransaction(TransactionStatus arg0) {
         lockPrimaryKeyForUpdate(primaryIndexKey);
-        doUpdate(
-            sql.deletePrimaryIndexKey(partitionDimension),
-            new int[]{JdbcTypeMapper.primitiveTypeToJdbcType(primaryIndexKey.getClass())},
-            new Object[]{primaryIndexKey});
+        int[] types = new int[]{JdbcTypeMapper.primitiveTypeToJdbcType(primaryIndexKey.getClass())};
+        Object[] parameters = new Object[]{primaryIndexKey};
+        for (Resource resource : getPartitionDimension().getResources()) {
+          if (resource.isPartitioningResource()) {
+            for (SecondaryIndex secondaryIndex : resource.getSecondaryIndexes())
+              doUpdate(sql.deleteAllSecondaryIndexKeysForResourceId(secondaryIndex), types, parameters);
+          } else {
+            for (SecondaryIndex secondaryIndex : resource.getSecondaryIndexes())
+              doUpdate(sql.deleteSecondaryIndexKeysOfPrimaryIndexKey(secondaryIndex), types, parameters);
+            doUpdate(sql.deleteResourceIdsOfPrimaryIndexKey(resource), types, parameters);
+          }
+        }
+        doUpdate(sql.deletePrimaryIndexKey(partitionDimension), types, parameters);
         return primaryIndexKey;
       }
     });
@@ -174,6 +318,35 @@ public class DbDirectory extends SimpleJdbcDaoSupport implements NodeResolver, D
     return count.size() > 0;
   }
 
+  /**
+   * The index of the {@link PartitionedDirectory} shard holding a resource id, as recorded in the
+   * route table of this shard, or null if the id has no route. Routes are read from the primary so
+   * a move is seen as soon as it is made.
+   */
+  public Integer getRouteOfResourceId(Resource resource, Object resourceId) {
+    Collection<Object> routes = doLockingRead(sql.selectShardOfResourceId(resource),
+        new Object[]{resourceId},
+        RowMappers.newObjectRowMapper(Types.INTEGER));
+    return routes.size() == 0 ? null : ((Number) Atom.getFirstOrThrow(routes)).intValue();
+  }
+
+  public void routeResourceId(Resource resource, Object resourceId, int shard) {
+    int[] types = new int[]{Types.INTEGER, resource.getColumnType()};
+    Object[] parameters = new Object[]{shard, resourceId};
+    if (doUpdate(sql.updateRoute(resource), types, parameters) > 0)
+      return;
+    try {
+      doUpdate(sql.insertRoute(resource), new int[]{resource.getColumnType(), Types.INTEGER}, new Object[]{resourceId, shard});
+    } catch (DataIntegrityViolationException e) {
+      if (!DialectTools.isDuplicateKey(e))
+        throw e;
+      doUpdate(sql.updateRoute(resource), types, parameters);
+    }
+  }
+
+  public void unrouteResourceId(Resource resource, Object resourceId) {
+    doUpdate(sql.deleteRoute(resource), new int[]{resource.getColumnType()}, new Object[]{resourceId});
+  }
 
   public boolean doesSecondaryIndexKeyExist(SecondaryIndex secondaryIndex, Object secondaryIndexKey, Object resourceId) {
     Collection<Object> count = doRead(
@@ -190,6 +363,13 @@ public class DbDirectory extends SimpleJdbcDaoSupport implements NodeResolver, D
         new KeySemaphoreRowMapper());
   }
 
+  public Collection<SecondaryIndexKeySemaphore> getSecondaryIndexKeySemaphoresOfSecondaryIndexKey(SecondaryIndex secondaryIndex, Object secondaryIndexKey) {
+    return doRead(
+        sql.selectSecondaryIndexKeySemaphoresOfSecondaryIndexKey(secondaryIndex),
+        new Object[]{secondaryIndexKey},
+        new SecondaryIndexKeySemaphoreRowMapper(secondaryIndex));
+  }
+
   @SuppressWarnings("unchecked")
   public Collection<KeySemaphore> getKeySemaphoresOfResourceId(Resource resource, Object resourceId) {
     return (Collection<KeySemaphore>) (resource.isPartitioningResource()
@@ -200,6 +380,44 @@ public class DbDirectory extends SimpleJdbcDaoSupport implements NodeResolver, D
         new KeySemaphoreRowMapper()));
   }
 
+  public Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfPrimaryIndexKeys(Collection<Object> primaryIndexKeys) {
+    KeySemaphoreMap semaphores = new KeySemaphoreMap(primaryIndexKeys, partitionDimension.getColumnType());
+    for (List<Object> chunk : chunk(primaryIndexKeys)) {
+      Collection<KeySemaphore> rows = doRead(
+          sql.selectKeySemaphoresOfPrimaryIndexKeys(partitionDimension, chunk.size()),
+          chunk.toArray(),
+          new KeySemaphoreRowMapper());
+      semaphores.addAll(rows);
+    }
+    return semaphores.getMap();
+  }
+
+  public Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfResourceIds(Resource resource, Collection<Object> resourceIds) {
+    if (resource.isPartitioningResource())
+      return getKeySemaphoresOfPrimaryIndexKeys(resourceIds);
+    KeySemaphoreMap semaphores = new KeySemaphoreMap(resourceIds, resource.getColumnType());
+    for (List<Object> chunk : chunk(resourceIds)) {
+      Collection<KeySemaphore> rows = doRead(
+          sql.selectKeySemaphoresOfResourceIds(resource, chunk.size()),
+          chunk.toArray(),
+          new KeySemaphoreRowMapper());
+      semaphores.addAll(rows);
+    }
+    return semaphores.getMap();
+  }
+
+  public Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfSecondaryIndexKeys(SecondaryIndex secondaryIndex, Collection<Object> secondaryIndexKeys) {
+    KeySemaphoreMap semaphores = new KeySemaphoreMap(secondaryIndexKeys, secondaryIndex.getColumnInfo().getColumnType());
+    for (List<Object> chunk : chunk(secondaryIndexKeys)) {
+      Collection<KeySemaphore> rows = doRead(
+          sql.selectKeySemaphoresOfSecondaryIndexKeys(secondaryIndex, chunk.size()),
+          chunk.toArray(),
+          new KeySemaphoreRowMapper());
+      semaphores.addAll(rows);
+    }
+    return semaphores.getMap();
+  }
+
   public Collection<Object> getPrimaryIndexKeysOfSecondaryIndexKey(SecondaryIndex secondaryIndex, Object secondaryIndexKey) {
     return doRead(
         sql.selectPrimaryIndexKeysOfSecondaryIndexKey(secondaryIndex),
@@ -242,6 +460,76 @@ public class DbDirectory extends SimpleJdbcDaoSupport implements NodeResolver, D
         RowMappers.newObjectRowMapper(resource.getColumnType()));
   }
 
+  /**
+   * Streams the rows with the dialect's streaming fetch size, so memory stays constant however many
+   * resource ids the key owns. On MySQL the connection is busy until the read ends, so the handler
+   * must not read through a transaction bound to it.
+   */
+  public long streamResourceIdsOfPrimaryIndexKey(Resource resource, Object primaryIndexKey, KeyHandler handler) {
+    return stream(
+        sql.selectResourceIdsOfPrimaryIndexKey(resource.getIdIndex()),
+        new int[]{resource.getPartitionDimension().getColumnType()},
+        new Object[]{primaryIndexKey},
+        resource.getColumnType(),
+        handler);
+  }
+
+  public long streamSecondaryIndexKeysOfPrimaryIndexKey(SecondaryIndex secondaryIndex, Object primaryIndexKey, KeyHandler handler) {
+    return stream(
+        sql.selectSecondaryIndexKeyColumnsOfPrimaryIndexKey(secondaryIndex),
+        new int[]{secondaryIndex.getResource().getPartitionDimension().getColumnType()},
+        new Object[]{primaryIndexKey},
+        secondaryIndex.getColumnInfo().getColumnType(),
+        handler);
+  }
+
+  public long streamPrimaryIndexKeys(KeyHandler handler) {
+    return stream(sql.selectPrimaryIndexKeys(partitionDimension), new int[0], new Object[0], partitionDimension.getColumnType(), handler);
+  }
+
+  public long streamResourceIds(Resource resource, KeyHandler handler) {
+    if (resource.isPartitioningResource())
+      return streamPrimaryIndexKeys(handler);
+    return stream(sql.selectResourceIds(resource), new int[0], new Object[0], resource.getColumnType(), handler);
+  }
+
+  public Map<Integer, Long> countPrimaryIndexKeysByNode() {
+    return read(new Read<Map<Integer, Long>>() {
+      public Map<Integer, Long> read(JdbcTemplate template) {
+        final Map<Integer, Long> counts = new HashMap<Integer, Long>();
+        template.query(sql.countPrimaryIndexKeysByNode(partitionDimension), new RowCallbackHandler() {
+          public void processRow(ResultSet rs) throws SQLException {
+            counts.put(rs.getInt("node"), rs.getLong("keycount"));
+          }
+        });
+        return counts;
+      }
+    });
+  }
+
+  /**
+   * Streams the values of the query's first column to the handler. A read that fails before handling
+   * a value may be retried on the primary.
+   */
+  private long stream(final String query, final int[] parameterTypes, final Object[] parameters, final int resultType, final KeyHandler handler) {
+    return read(new Read<Long>() {
+      private boolean handled = false;
+
+      public Long read(JdbcTemplate template) {
+        return Statements.stream(template, dialect, query, parameterTypes, parameters, new Statements.RowHandler() {
+          public boolean handle(ResultSet rs) throws SQLException {
+            handled = true;
+            return handler.handle(JdbcTypeMapper.getJdbcTypeResult(rs, 1, resultType));
+          }
+        });
+      }
+
+      public boolean isRetryable() {
+        return !handled;
+      }
+    });
+  }
+
   @SuppressWarnings("unchecked")
   public Collection getSecondaryIndexKeysOfResourceId(SecondaryIndex secondaryIndex, Object id) {
     return doRead(
@@ -250,23 +538,96 @@ public class DbDirectory extends SimpleJdbcDaoSupport implements NodeResolver, D
         RowMappers.newObjectRowMapper(secondaryIndex.getColumnInfo().getColumnType()));
   }
 
+  /**
+   * Reads the keys of all of the resource's secondary indexes in one union all query per key
+   * column type, so a resource whose indexes share a type costs a single round trip.
+   */
+  public Map<SecondaryIndex, Collection<Object>> getAllSecondaryIndexKeysOfResourceId(Resource resource, Object id) {
+    Map<SecondaryIndex, Collection<Object>> keys = new LinkedHashMap<SecondaryIndex, Collection<Object>>();
+    Map<Integer, List<SecondaryIndex>> indexesByType = new LinkedHashMap<Integer, List<SecondaryIndex>>();
+    for (SecondaryIndex secondaryIndex : resource.getSecondaryIndexes()) {
+      keys.put(secondaryIndex, new ArrayList<Object>());
+      int type = secondaryIndex.getColumnInfo().getColumnType();
+      if (!indexesByType.containsKey(type))
+        indexesByType.put(type, new ArrayList<SecondaryIndex>());
+      indexesByType.get(type).add(secondaryIndex);
+    }
+    for (Map.Entry<Integer, List<SecondaryIndex>> entry : indexesByType.entrySet()) {
+      final List<SecondaryIndex> indexes = entry.getValue();
+      final int type = entry.getKey();
+      Object[] parameters = new Object[indexes.size()];
+      Arrays.fill(parameters, id);
+      Collection<Pair<SecondaryIndex, Object>> rows = doRead(
+          sql.selectAllSecondaryIndexKeysOfResourceId(indexes),
+          parameters,
+          new RowMapper() {
+            public Object mapRow(ResultSet rs, int rowNumber) throws SQLException {
+              return new Pair<SecondaryIndex, Object>(indexes.get(rs.getInt(1)), JdbcTypeMapper.getJdbcTypeResult(rs, 2, type));
+            }
+          });
+      for (Pair<SecondaryIndex, Object> row : rows)
+        keys.get(row.getKey()).add(row.getValue());
+    }
+    return keys;
+  }
+
+  private <T> Collection<T> doRead(final String sql, final Object[] parameters, final RowMapper mapper) {
+    return read(new Read<Collection<T>>() {
+      public Collection<T> read(JdbcTemplate template) {
+        return doRead(template, sql, parameters, mapper);
+      }
+    });
+  }
+
+  private <T> T read(Read<T> read) {
+    return replicas == null ? read.read(getJdbcTemplate()) : replicas.read(read);
+  }
+
+  private <T> Collection<T> doLockingRead(String sql, Object[] parameters, RowMapper mapper) {
+    return doRead(getJdbcTemplate(), sql, parameters, mapper);
+  }
+
   @SuppressWarnings("unchecked")
-  private <T> Collection<T> doRead(String sql, Object[] parameters, RowMapper mapper) {
+  private <T> Collection<T> doRead(JdbcTemplate template, String sql, Object[] parameters, RowMapper mapper) {
     try {
-      return (Collection<T>) getJdbcTemplate().query(sql, parameters, mapper);
+      return (Collection<T>) template.query(sql, parameters, mapper);
     } catch (EmptyResultDataAccessException e) {
       throw new HiveKeyNotFoundException(String.format("Directory query returned no results. %s with parameters: %s", sql, parameters), e);
     }
   }
 
-  private void doUpdate(String sql, int[] types, Object[] parameters) {
-    getJdbcTemplate().update(Statements.newStmtCreatorFactory(sql, types).newPreparedStatementCreator(parameters));
+  /**
+   * Inserts the resource id unless it exists, keeping the primary index key that owns it. MySQL does
+   * so in one statement. H2's only idempotent insert, merge, would overwrite the owner, so on H2 the
+   * insert relies on the primary key of the id and a duplicate is ignored.
+   */
+  private void upsertResourceId(Resource resource, Object id, Object primaryIndexKey) {
+    if (dialect == HiveDbDialect.MySql) {
+      doUpdate(sql.upsertResourceId(resource, dialect),
+          new int[]{resource.getColumnType(), resource.getPartitionDimension().getColumnType(), resource.getColumnType()},
+          new Object[]{id, primaryIndexKey, id});
+      return;
+    }
+    try {
+      doUpdate(sql.insertResourceId(resource),
+          new int[]{resource.getColumnType(), resource.getPartitionDimension().getColumnType()},
+          new Object[]{id, primaryIndexKey});
+    } catch (DataIntegrityViolationException e) {
+      if (!DialectTools.isDuplicateKey(e))
+        throw e;
+    }
+  }
+
+  private int doUpdate(String sql, int[] types, Object[] parameters) {
+    return getJdbcTemplate().update(Statements.newStmtCreatorFactory(sql, types).newPreparedStatementCreator(parameters));
   }
 
   public Object insertResourceId(final Resource resource, final Object id, final Object primaryIndexKey) {
     return newTransaction().execute(new TransactionCallback() {
       public Object doInTransaction(TransactionStatus arg0) {
-        if (lockResourceId(resource, id))
+        if (isUpsert())
+          upsertResourceId(resource, id, primaryIndexKey);
+        else if (lockResourceId(resource, id))
           doUpdate(sql.insertResourceId(resource),
               new int[]{resource.getColumnType(), resource.getPartitionDimension().getColumnType()},
               new Object[]{id, primaryIndexKey});
@@ -289,12 +650,10 @@ public class DbDirectory extends SimpleJdbcDaoSupport implements NodeResolver, D
   }
 
   public Object insertSecondaryIndexKeys(Map<SecondaryIndex, Collection<Object>> secondaryIndexValueMap, Object resourceId) {
-    //todo: finish
     return batch().insertSecondaryIndexKeys(secondaryIndexValueMap, resourceId);
   }
 
   public void deleteSecondaryIndexKeys(Map<SecondaryIndex, Collection<Object>> secondaryIndexValueMap, Object resourceId) {
-    //todo: complete this
     batch().deleteSecondaryIndexKeys(secondaryIndexValueMap, resourceId);
   }
 
@@ -316,13 +675,10 @@ public class DbDirectory extends SimpleJdbcDaoSupport implements NodeResolver, D
     };
   }
 
-  public BatchIndexWriter batch() {
-    final DbDirectory d = this;
-    return cache.get(BatchIndexWriter.class, new Delay<BatchIndexWriter>() {
-      public BatchIndexWriter f() {
-        return new BatchIndexWriter(d);
-      }
-    });
+  public synchronized BatchIndexWriter batch() {
+    if (batchIndexWriter == null)
+      batchIndexWriter = new BatchIndexWriter(this);
+    return batchIndexWriter;
   }
 
   private void setTransactionManager(TransactionTemplate transactionTemplate, final JdbcDaoSupport jdbcDaoSupport) {
@@ -334,30 +690,129 @@ public class DbDirectory extends SimpleJdbcDaoSupport implements NodeResolver, D
   }
 
   private boolean lockPrimaryKeyForInsert(Object primaryIndexKey, Node node) {
-    return doRead(sql.selectCompositeKeyForUpdateLock(Schemas.getPrimaryIndexTableName(partitionDimension), "id", "node"),
+    return doLockingRead(sql.selectCompositeKeyForUpdateLock(Schemas.getPrimaryIndexTableName(partitionDimension), "id", "node"),
         new Object[]{primaryIndexKey, node.getId()},
         RowMappers.newTrueRowMapper()).size() == 0;
   }
 
   private boolean lockPrimaryKeyForUpdate(Object primaryIndexKey) {
-    return doRead(sql.selectForUpdateLock(Schemas.getPrimaryIndexTableName(partitionDimension), "id"),
+    return doLockingRead(sql.selectForUpdateLock(Schemas.getPrimaryIndexTableName(partitionDimension), "id"),
         new Object[]{primaryIndexKey},
         RowMappers.newTrueRowMapper()).size() == 0;
   }
 
   private boolean lockSecondaryIndexKey(SecondaryIndex secondaryIndex, Object secondaryIndexKey, Object resourceId) {
-    return doRead(sql.selectCompositeKeyForUpdateLock(Schemas.getSecondaryIndexTableName(secondaryIndex), "id", "pkey"),
+    return doLockingRead(sql.selectCompositeKeyForUpdateLock(Schemas.getSecondaryIndexTableName(secondaryIndex), "id", "pkey"),
         new Object[]{secondaryIndexKey, resourceId},
         RowMappers.newTrueRowMapper()).size() == 0;
   }
 
   private boolean lockResourceId(Resource resource, Object resourceId) {
-    return doRead(sql.selectForUpdateLock(Schemas.getResourceIndexTableName(resource), "id"),
+    return doLockingRead(sql.selectForUpdateLock(Schemas.getResourceIndexTableName(resource), "id"),
         new Object[]{resourceId},
         RowMappers.newTrueRowMapper()).size() == 0;
   }
 
+  /**
+   * De-duplicates the keys and splits them into lists no longer than the in-list chunk size.
+   */
+  List<List<Object>> chunk(Collection<Object> keys) {
+    List<Object> unique = new ArrayList<Object>(new LinkedHashSet<Object>(keys));
+    List<List<Object>> chunks = new ArrayList<List<Object>>();
+    for (int i = 0; i < unique.size(); i += inListChunkSize)
+      chunks.add(unique.subList(i, Math.min(i + inListChunkSize, unique.size())));
+    return chunks;
+  }
+
+  /**
+   * Normalizes a key to the value its index column compares it by, so keys read back from the
+   * directory match the keys that were requested: integers and floating point numbers by their
+   * value whatever they are boxed as, decimals ignoring trailing zeros, dates by their time, and
+   * strings as the dialect's default collation compares them.
+   */
+  Object normalizeKey(Object key, int columnType) {
+    return normalizeKey(key, columnType, dialect);
+  }
+
+  static Object normalizeKey(Object key, int columnType, HiveDbDialect dialect) {
+    if (key == null)
+      return null;
+    switch (columnType) {
+      case Types.TINYINT:
+      case Types.SMALLINT:
+      case Types.INTEGER:
+      case Types.BIGINT:
+        return key instanceof Number ? ((Number) key).longValue() : Long.valueOf(key.toString().trim());
+      case Types.FLOAT:
+      case Types.REAL:
+      case Types.DOUBLE:
+        return key instanceof Number ? ((Number) key).doubleValue() : Double.valueOf(key.toString().trim());
+      case Types.DECIMAL:
+      case Types.NUMERIC:
+        BigDecimal decimal = key instanceof BigDecimal ? (BigDecimal) key : new BigDecimal(key.toString().trim());
+        return decimal.signum() == 0 ? BigDecimal.ZERO : decimal.stripTrailingZeros();
+      case Types.DATE:
+      case Types.TIME:
+      case Types.TIMESTAMP:
+        return key instanceof Date ? ((Date) key).getTime() : key;
+      case Types.CHAR:
+      case Types.VARCHAR:
+      case Types.LONGVARCHAR:
+        String string = key.toString();
+        // MySQL's default collations ignore case and trailing spaces, and CHAR columns are padded
+        if (dialect == HiveDbDialect.MySql)
+          return trimTrailingSpaces(string).toLowerCase(Locale.ENGLISH);
+        return columnType == Types.CHAR ? trimTrailingSpaces(string) : string;
+      default:
+        return key;
+    }
+  }
+
+  private static String trimTrailingSpaces(String string) {
+    int end = string.length();
+    while (end > 0 && string.charAt(end - 1) == ' ')
+      end--;
+    return string.substring(0, end);
+  }
+
+  /**
+   * Collects the rows of a multi-key lookup under the keys that were requested, matching them as
+   * the key column compares them. Every requested key is present in the result, missing keys map
+   * to an empty collection.
+   */
+  private class KeySemaphoreMap {
+    private Map<Object, Collection<KeySemaphore>> map = new LinkedHashMap<Object, Collection<KeySemaphore>>();
+    private Map<Object, Collection<Object>> requestedKeys = new HashMap<Object, Collection<Object>>();
+    private int columnType;
+
+    public KeySemaphoreMap(Collection<Object> keys, int columnType) {
+      this.columnType = columnType;
+      for (Object key : keys) {
+        Object normalized = normalizeKey(key, columnType);
+        if (!requestedKeys.containsKey(normalized))
+          requestedKeys.put(normalized, new ArrayList<Object>());
+        requestedKeys.get(normalized).add(key);
+        map.put(key, new ArrayList<KeySemaphore>());
+      }
+    }
+
+    public void addAll(Collection<KeySemaphore> semaphores) {
+      for (KeySemaphore semaphore : semaphores) {
+        Collection<Object> keys = requestedKeys.get(normalizeKey(semaphore.getKey(), columnType));
+        if (keys != null)
+          for (Object key : keys)
+            map.get(key).add(semaphore);
+      }
+    }
+
+    public Map<Object, Collection<KeySemaphore>> getMap() {
+      return map;
+    }
+  }
+
   public TransactionTemplate newTransaction() {
+    if (replicas != null)
+      replicas.markWrite();
     TransactionTemplate t = new TransactionTemplate();
     setTransactionManager(t, this);
     return t;
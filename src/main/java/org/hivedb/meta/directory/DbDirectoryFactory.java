@@ -2,22 +2,70 @@ package org.hivedb.meta.directory;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hivedb.meta.directory.DbDirectory.WriteMode;
 import org.hivedb.meta.persistence.DataSourceProvider;
 import org.hivedb.meta.persistence.PartitionDimensionDao;
+import org.hivedb.util.database.DriverLoader;
+import org.hivedb.util.database.HiveDbDialect;
 
 import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Provides DbDirectories over the index tables of the hive database. When replica uris are given,
+ * reads that do not lock are spread over those read replicas, see {@link DirectoryReplicas}.
+ */
 public class DbDirectoryFactory implements DirectoryProvider {
   private final static Log log = LogFactory.getLog(DbDirectoryFactory.class);
   private DataSourceProvider provider;
+  private WriteMode writeMode;
+  private List<String> replicaUris;
+  private DirectoryReplicas replicas;
 
   public DbDirectoryFactory(DataSourceProvider provider) {
+    this(provider, WriteMode.LOCKING);
+  }
+
+  public DbDirectoryFactory(DataSourceProvider provider, WriteMode writeMode) {
+    this(provider, writeMode, new ArrayList<String>());
+  }
+
+  public DbDirectoryFactory(DataSourceProvider provider, WriteMode writeMode, List<String> replicaUris) {
     this.provider = provider;
+    this.writeMode = writeMode;
+    this.replicaUris = new ArrayList<String>(replicaUris);
   }
 
   public DbDirectory getDirectory(String hiveConfigurationUri) {
     DataSource dataSource = provider.getDataSource(hiveConfigurationUri);
-    return new DbDirectory(new PartitionDimensionDao(dataSource).get(), dataSource);
+    DbDirectory directory = new DbDirectory(new PartitionDimensionDao(dataSource).get(), dataSource, writeMode);
+    if (replicaUris.size() > 0)
+      directory.setReplicas(getReplicas(dataSource));
+    return directory;
   }
-}
 
+  /**
+   * The replicas are shared by the directories of successive hive revisions so that round robin
+   * position, measured lag and read-your-writes stickiness carry over.
+   */
+  private synchronized DirectoryReplicas getReplicas(DataSource primary) {
+    if (replicas == null) {
+      List<DataSource> dataSources = new ArrayList<DataSource>();
+      for (String uri : replicaUris)
+        dataSources.add(provider.getDataSource(uri));
+      HiveDbDialect dialect = DriverLoader.discernDialect(replicaUris.get(0));
+      replicas = new DirectoryReplicas(
+          primary,
+          dataSources,
+          dialect == HiveDbDialect.MySql ? DirectoryReplicas.MYSQL_SLAVE_STATUS : DirectoryReplicas.NO_LAG);
+      replicas.checkLag();
+      log.info(String.format("Routing directory reads to %s replicas", replicaUris.size()));
+    }
+    return replicas;
+  }
+
+  public DirectoryReplicas getReplicas() {
+    return replicas;
+  }
+}
@@ -26,6 +26,18 @@ public interface Directory {
 
   Collection<KeySemaphore> getKeySemaphoresOfSecondaryIndexKey(SecondaryIndex secondaryIndex, Object secondaryIndexKey);
 
+  /**
+   * The resource id, primary index key, node and status of every resource owning the secondary
+   * index key, in one read.
+   */
+  Collection<SecondaryIndexKeySemaphore> getSecondaryIndexKeySemaphoresOfSecondaryIndexKey(SecondaryIndex secondaryIndex, Object secondaryIndexKey);
+
+  Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfPrimaryIndexKeys(Collection<Object> primaryIndexKeys);
+
+  Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfResourceIds(Resource resource, Collection<Object> resourceIds);
+
+  Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfSecondaryIndexKeys(SecondaryIndex secondaryIndex, Collection<Object> secondaryIndexKeys);
+
   Object insertPrimaryIndexKey(Node node, Object primaryIndexKey);
 
   Object insertResourceId(Resource resource, Object id, Object primaryIndexKey);
@@ -42,5 +54,55 @@ public interface Directory {
 
   Object insertSecondaryIndexKeys(Map<SecondaryIndex, Collection<Object>> secondaryIndexValueMap, Object resourceId);
 
+  /**
+   * Inserts the primary index key on the node unless it exists, then the resource id and its
+   * secondary index keys, as one operation. Returns the semaphores of the primary index key; when
+   * one of them is not writable nothing is written.
+   */
+  Collection<KeySemaphore> indexEntity(Node node, Object primaryIndexKey, Resource resource, Object resourceId, Map<SecondaryIndex, Collection<Object>> secondaryIndexValueMap);
+
   Collection getSecondaryIndexKeysOfResourceId(SecondaryIndex secondaryIndex, Object id);
+
+  /**
+   * The keys of every secondary index of the resource that belong to the resource id. Every
+   * secondary index is present in the result, one without keys maps to an empty collection.
+   */
+  Map<SecondaryIndex, Collection<Object>> getAllSecondaryIndexKeysOfResourceId(Resource resource, Object id);
+
+  /**
+   * Passes the resource ids owned by the primary index key to the handler as they are read,
+   * without collecting them, until the handler returns false.
+   *
+   * @return the number of keys handled
+   */
+  long streamResourceIdsOfPrimaryIndexKey(Resource resource, Object primaryIndexKey, KeyHandler handler);
+
+  /**
+   * Passes the secondary index keys owned by the primary index key to the handler as they are read,
+   * without collecting them, until the handler returns false.
+   *
+   * @return the number of keys handled
+   */
+  long streamSecondaryIndexKeysOfPrimaryIndexKey(SecondaryIndex secondaryIndex, Object primaryIndexKey, KeyHandler handler);
+
+  /**
+   * Passes every primary index key stored by the directory to the handler as it is read, until the
+   * handler returns false.
+   *
+   * @return the number of keys handled
+   */
+  long streamPrimaryIndexKeys(KeyHandler handler);
+
+  /**
+   * Passes every id of the resource to the handler as it is read, until the handler returns false.
+   * The ids of the partitioning resource are its primary index keys.
+   *
+   * @return the number of keys handled
+   */
+  long streamResourceIds(Resource resource, KeyHandler handler);
+
+  /**
+   * The number of primary index keys on each node, by node id.
+   */
+  Map<Integer, Long> countPrimaryIndexKeysByNode();
 }
@@ -13,6 +13,12 @@ public interface DirectoryFacade {
 
   public Collection<KeySemaphore> getKeySemamphoresOfPrimaryIndexKey(Object primaryIndexKey);
 
+  /**
+   * Resolves many primary index keys at once. Every requested key is present in the result;
+   * keys that are not in the directory map to an empty collection.
+   */
+  public Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfPrimaryIndexKeys(Collection<Object> primaryIndexKeys);
+
   //public Collection getResourceIdsOfPrimaryIndexKey(String resource,Object primaryIndexKey);
   public boolean getReadOnlyOfPrimaryIndexKey(Object primaryIndexKey);
 
@@ -29,6 +35,14 @@ public interface DirectoryFacade {
 
   public Collection<KeySemaphore> getKeySemaphoresOfSecondaryIndexKey(String resource, String secondaryIndex, Object secondaryIndexKey);
 
+  /**
+   * The resource id, primary index key and node of every resource owning the secondary index key,
+   * so the resources can be fetched by id from their nodes.
+   */
+  public Collection<SecondaryIndexKeySemaphore> getSecondaryIndexKeySemaphoresOfSecondaryIndexKey(String resource, String secondaryIndex, Object secondaryIndexKey);
+
+  public Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfSecondaryIndexKeys(String resource, String secondaryIndex, Collection<Object> secondaryIndexKeys);
+
   public void insertSecondaryIndexKey(String resource, String secondaryIndex, Object secondaryIndexKey, Object resourceId) throws HiveLockableException;
 
   public void deleteSecondaryIndexKey(String resource, String secondaryIndex, Object secondaryIndexKey, Object resourceId) throws HiveLockableException;
@@ -39,6 +53,8 @@ public interface DirectoryFacade {
 
   public Collection<KeySemaphore> getKeySemaphoresOfResourceId(String resource, Object resourceId);
 
+  public Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfResourceIds(String resource, Collection<Object> resourceIds);
+
   public boolean getReadOnlyOfResourceId(String resource, Object id);
 
   public void insertResourceId(String resource, Object id, Object primaryIndexKey) throws HiveLockableException;
@@ -49,6 +65,11 @@ public interface DirectoryFacade {
 
   public Collection getSecondaryIndexKeysWithResourceId(String resource, String secondaryIndex, Object id);
 
+  /**
+   * The keys of every secondary index of the resource that belong to the resource id, by index name.
+   */
+  public Map<String, Collection<Object>> getAllSecondaryIndexKeysWithResourceId(String resource, Object id);
+
   /*
     public Collection getPrimaryIndexKeysOfSecondaryIndexKey(String resource, String secondaryIndex, Object secondaryIndexKey);
     public Collection getResourceIdsOfSecondaryIndexKey(String resource, String secondaryIndex, Object secondaryIndexKey);
@@ -60,4 +81,10 @@ public interface DirectoryFacade {
 
   public void insertSecondaryIndexKeys(String resource, Map<String, Collection<Object>> secondaryIndexValueMap, final Object resourceId) throws HiveLockableException;
 
+  /**
+   * Indexes a new entity in one directory operation: the primary index key, unless it exists, the
+   * resource id and its secondary index keys.
+   */
+  public void indexEntity(String resource, Object primaryIndexKey, Object resourceId, Map<String, Collection<Object>> secondaryIndexValueMap) throws HiveLockableException;
+
 }
\ No newline at end of file
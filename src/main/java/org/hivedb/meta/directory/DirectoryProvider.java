@@ -1,5 +1,5 @@
 package org.hivedb.meta.directory;
 
 public interface DirectoryProvider {
-  DbDirectory getDirectory(String hiveConfigurationUri);
+  Directory getDirectory(String hiveConfigurationUri);
 }
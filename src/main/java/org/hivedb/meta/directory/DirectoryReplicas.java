@@ -0,0 +1,246 @@
+package org.hivedb.meta.directory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hivedb.util.HiveExecutors;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Routes the plain reads of a {@link DbDirectory} to read replicas of its index database. Writes and
+ * locking reads always use the primary. Reads also stay on the primary:
+ * <ul>
+ * <li>inside a transaction,</li>
+ * <li>for the sticky period after the current thread last wrote, so a thread reads its own writes,</li>
+ * <li>when every replica lags the primary by more than the allowed lag.</li>
+ * </ul>
+ * Replicas are chosen round robin. Lag is probed in the background at most once per check interval
+ * per replica, so reads never wait on a probe. A replica whose lag is not yet known is not read from;
+ * call {@link #checkLag} to probe the replicas before the first read. A read that fails on a replica is
+ * retried on the primary and the replica is not used again until its next probe.
+ */
+public class DirectoryReplicas {
+  private final static Log log = LogFactory.getLog(DirectoryReplicas.class);
+  public static final long DEFAULT_MAX_LAG_MILLIS = 1000;
+  public static final long DEFAULT_LAG_CHECK_INTERVAL_MILLIS = 1000;
+
+  private JdbcTemplate primary;
+  private List<Replica> replicas = new ArrayList<Replica>();
+  private LagProbe probe;
+  private long maxLagMillis = DEFAULT_MAX_LAG_MILLIS;
+  private long stickyMillis = DEFAULT_MAX_LAG_MILLIS;
+  private long lagCheckIntervalMillis = DEFAULT_LAG_CHECK_INTERVAL_MILLIS;
+  private AtomicInteger next = new AtomicInteger();
+  private ThreadLocal<Long> lastWrite = new ThreadLocal<Long>();
+  private ExecutorService executor = HiveExecutors.getSharedExecutor("hive-replica-lag", 2);
+
+  public DirectoryReplicas(DataSource primary, List<DataSource> replicas, LagProbe probe) {
+    this.primary = new JdbcTemplate(primary);
+    for (DataSource replica : replicas)
+      this.replicas.add(new Replica(new JdbcTemplate(replica)));
+    this.probe = probe;
+  }
+
+  /**
+   * The template to use for a read that does not lock.
+   */
+  public JdbcTemplate forRead() {
+    Replica replica = chooseReplica();
+    return replica == null ? primary : replica.template;
+  }
+
+  /**
+   * Runs a read that does not lock. If it fails on a replica it is run again on the primary, unless
+   * the read says it cannot be retried.
+   */
+  public <T> T read(Read<T> read) {
+    Replica replica = chooseReplica();
+    if (replica == null)
+      return read.read(primary);
+    try {
+      return read.read(replica.template);
+    } catch (DataAccessException e) {
+      replica.markFailed();
+      if (!read.isRetryable())
+        throw e;
+      log.warn("Directory read failed on a replica, retrying on the primary: " + e.getMessage());
+      return read.read(primary);
+    }
+  }
+
+  /**
+   * Probes the lag of each replica on the calling thread.
+   */
+  public void checkLag() {
+    for (Replica replica : replicas)
+      replica.checkLag();
+  }
+
+  private Replica chooseReplica() {
+    if (replicas.size() == 0 || TransactionSynchronizationManager.isActualTransactionActive() || isSticky())
+      return null;
+    int start = next.getAndIncrement() & 0x7fffffff;
+    for (int i = 0; i < replicas.size(); i++) {
+      Replica replica = replicas.get((start + i) % replicas.size());
+      if (replica.getLagMillis() <= maxLagMillis)
+        return replica;
+    }
+    return null;
+  }
+
+  /**
+   * Records that the current thread wrote to the primary.
+   */
+  public void markWrite() {
+    lastWrite.set(System.currentTimeMillis());
+  }
+
+  private boolean isSticky() {
+    Long written = lastWrite.get();
+    if (written == null)
+      return false;
+    if (System.currentTimeMillis() - written < stickyMillis)
+      return true;
+    lastWrite.remove();
+    return false;
+  }
+
+  public int getReplicaCount() {
+    return replicas.size();
+  }
+
+  public long getMaxLagMillis() {
+    return maxLagMillis;
+  }
+
+  public void setMaxLagMillis(long maxLagMillis) {
+    this.maxLagMillis = maxLagMillis;
+  }
+
+  public long getStickyMillis() {
+    return stickyMillis;
+  }
+
+  /**
+   * How long after a write the writing thread keeps reading from the primary. Should be at
+   * least the maximum allowed replica lag.
+   */
+  public void setStickyMillis(long stickyMillis) {
+    this.stickyMillis = stickyMillis;
+  }
+
+  public long getLagCheckIntervalMillis() {
+    return lagCheckIntervalMillis;
+  }
+
+  public void setLagCheckIntervalMillis(long lagCheckIntervalMillis) {
+    this.lagCheckIntervalMillis = lagCheckIntervalMillis;
+  }
+
+  private class Replica {
+    private final JdbcTemplate template;
+    private volatile long lagMillis = Long.MAX_VALUE;
+    private volatile long checked = 0;
+    private final AtomicBoolean probing = new AtomicBoolean();
+
+    public Replica(JdbcTemplate template) {
+      this.template = template;
+    }
+
+    /**
+     * The lag last probed, starting a probe in the background when the check interval has passed.
+     */
+    public long getLagMillis() {
+      if (System.currentTimeMillis() - checked >= lagCheckIntervalMillis && probing.compareAndSet(false, true)) {
+        try {
+          executor.execute(new Runnable() {
+            public void run() {
+              try {
+                checkLag();
+              } finally {
+                probing.set(false);
+              }
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          probing.set(false);
+        }
+      }
+      return lagMillis;
+    }
+
+    public void checkLag() {
+      try {
+        lagMillis = probe.getLagMillis(template);
+      } catch (RuntimeException e) {
+        log.warn("Unable to probe the lag of a directory replica: " + e.getMessage());
+        lagMillis = Long.MAX_VALUE;
+      }
+      checked = System.currentTimeMillis();
+    }
+
+    public void markFailed() {
+      lagMillis = Long.MAX_VALUE;
+      checked = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * A read that does not lock.
+   */
+  public static abstract class Read<T> {
+    public abstract T read(JdbcTemplate template);
+
+    /**
+     * Whether the read may run again after failing part way, false once it has handed results on.
+     */
+    public boolean isRetryable() {
+      return true;
+    }
+  }
+
+  /**
+   * Measures how far a replica is behind the primary. Return Long.MAX_VALUE if the replica
+   * is not replicating.
+   */
+  public interface LagProbe {
+    long getLagMillis(JdbcTemplate replica);
+  }
+
+  /**
+   * For replicas whose lag is not measured.
+   */
+  public static final LagProbe NO_LAG = new LagProbe() {
+    public long getLagMillis(JdbcTemplate replica) {
+      return 0;
+    }
+  };
+
+  /**
+   * Reads Seconds_Behind_Master from SHOW SLAVE STATUS, which is null when replication is stopped.
+   */
+  public static final LagProbe MYSQL_SLAVE_STATUS = new LagProbe() {
+    public long getLagMillis(JdbcTemplate replica) {
+      return (Long) replica.query("show slave status", new ResultSetExtractor() {
+        public Object extractData(ResultSet rs) throws SQLException {
+          if (!rs.next())
+            return Long.MAX_VALUE;
+          long seconds = rs.getLong("Seconds_Behind_Master");
+          return rs.wasNull() ? Long.MAX_VALUE : seconds * 1000;
+        }
+      });
+    }
+  };
+}
@@ -6,32 +6,45 @@ import org.hivedb.HiveRuntimeException;
 import org.hivedb.Lockable;
 import org.hivedb.Lockable.Status;
 import org.hivedb.meta.Assigner;
+import org.hivedb.meta.HiveMetadataSnapshot;
 import org.hivedb.meta.Node;
+import org.hivedb.meta.PartitionDimension;
 import org.hivedb.meta.Resource;
 import org.hivedb.meta.SecondaryIndex;
 import org.hivedb.util.Lists;
 import org.hivedb.util.Preconditions;
 import org.hivedb.util.functional.*;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 
 public class DirectoryWrapper implements DirectoryFacade {
   private Directory directory;
   private Assigner assigner;
-  private Collection<Node> nodes;
-  private Collection<Resource> resources;
+  private HiveMetadataSnapshot metadata;
   private Lockable semaphore;
+  private PartitionDimension partitionDimension;
+  private MissingKeyCache missingKeys;
 
   public DirectoryWrapper(Directory directory, Assigner assigner, Collection<Node> nodes, Collection<Resource> resources, Lockable semaphore) {
     this.assigner = assigner;
     this.directory = directory;
-    this.nodes = nodes;
-    this.resources = resources;
+    this.metadata = new HiveMetadataSnapshot(nodes, resources);
     this.semaphore = semaphore;
   }
 
+  /**
+   * @param missingKeys remembers keys the directory reported missing, or null to always ask the directory
+   */
+  public DirectoryWrapper(Directory directory, Assigner assigner, Collection<Node> nodes, PartitionDimension partitionDimension, Lockable semaphore, MissingKeyCache missingKeys) {
+    this(directory, assigner, nodes, partitionDimension.getResources(), semaphore);
+    this.partitionDimension = partitionDimension;
+    this.missingKeys = missingKeys;
+  }
+
   public void deletePrimaryIndexKey(Object primaryIndexKey) throws HiveLockableException {
     if (!directory.doesPrimaryIndexKeyExist(primaryIndexKey))
       throw new HiveKeyNotFoundException("The primary index key " + primaryIndexKey
@@ -47,16 +60,12 @@ public class DirectoryWrapper implements DirectoryFacade {
     directory.deleteResourceId(getResource(resource), id);
   }
 
-  private Resource getResource(final String resourceName) {
-    return Filter.grepSingle(new Predicate<Resource>() {
-      public boolean f(Resource item) {
-        return item.getName().equalsIgnoreCase(resourceName);
-      }
-    }, resources);
+  private Resource getResource(String resourceName) {
+    return metadata.getResource(resourceName);
   }
 
   private SecondaryIndex getSecondaryIndex(String resourceName, String secondaryIndexName) {
-    return getResource(resourceName).getSecondaryIndex(secondaryIndexName);
+    return metadata.getSecondaryIndex(resourceName, secondaryIndexName);
   }
 
   public void deleteSecondaryIndexKey(String resource, String secondaryIndex, Object secondaryIndexKey, Object resourceId) throws HiveLockableException {
@@ -72,39 +81,111 @@ public class DirectoryWrapper implements DirectoryFacade {
   }
 
   public boolean doesPrimaryIndexKeyExist(Object primaryIndexKey) {
-    return directory.doesPrimaryIndexKeyExist(primaryIndexKey);
+    if (missingKeys == null)
+      return directory.doesPrimaryIndexKeyExist(primaryIndexKey);
+    if (missingKeys.isPrimaryIndexKeyMissing(partitionDimension, primaryIndexKey))
+      return false;
+    long version = missingKeys.getPrimaryIndexKeyVersion(partitionDimension, primaryIndexKey);
+    boolean exists = directory.doesPrimaryIndexKeyExist(primaryIndexKey);
+    if (!exists)
+      missingKeys.primaryIndexKeyMissing(partitionDimension, primaryIndexKey, version);
+    return exists;
   }
 
+  /**
+   * The resource ids of the partitioning resource are primary index keys, so they share its missing keys.
+   */
   public boolean doesResourceIdExist(String resource, Object resourceId) {
-    return directory.doesResourceIdExist(getResource(resource), resourceId);
+    if (missingKeys == null)
+      return directory.doesResourceIdExist(getResource(resource), resourceId);
+    if (getResource(resource).isPartitioningResource())
+      return doesPrimaryIndexKeyExist(resourceId);
+    if (missingKeys.isResourceIdMissing(getResource(resource), resourceId))
+      return false;
+    long version = missingKeys.getResourceIdVersion(getResource(resource), resourceId);
+    boolean exists = directory.doesResourceIdExist(getResource(resource), resourceId);
+    if (!exists)
+      missingKeys.resourceIdMissing(getResource(resource), resourceId, version);
+    return exists;
   }
 
   public boolean doesSecondaryIndexKeyExist(String resource, String secondaryIndex, Object secondaryIndexKey, Object resourceId) {
+    if (missingKeys != null && missingKeys.isSecondaryIndexKeyMissing(getSecondaryIndex(resource, secondaryIndex), secondaryIndexKey))
+      return false;
     return directory.doesSecondaryIndexKeyExist(getSecondaryIndex(resource, secondaryIndex), secondaryIndexKey, resourceId);
   }
 
   public Collection<KeySemaphore> getKeySemamphoresOfPrimaryIndexKey(Object primaryIndexKey) {
-    return directory.getKeySemamphoresOfPrimaryIndexKey(primaryIndexKey);
+    if (missingKeys == null)
+      return directory.getKeySemamphoresOfPrimaryIndexKey(primaryIndexKey);
+    if (missingKeys.isPrimaryIndexKeyMissing(partitionDimension, primaryIndexKey))
+      return new ArrayList<KeySemaphore>();
+    long version = missingKeys.getPrimaryIndexKeyVersion(partitionDimension, primaryIndexKey);
+    Collection<KeySemaphore> semaphores = directory.getKeySemamphoresOfPrimaryIndexKey(primaryIndexKey);
+    if (semaphores.size() == 0)
+      missingKeys.primaryIndexKeyMissing(partitionDimension, primaryIndexKey, version);
+    return semaphores;
   }
 
   public Collection<KeySemaphore> getKeySemaphoresOfResourceId(String resource, Object resourceId) {
-    return directory.getKeySemaphoresOfResourceId(getResource(resource), resourceId);
+    if (missingKeys == null || getResource(resource).isPartitioningResource())
+      return directory.getKeySemaphoresOfResourceId(getResource(resource), resourceId);
+    if (missingKeys.isResourceIdMissing(getResource(resource), resourceId))
+      return new ArrayList<KeySemaphore>();
+    long version = missingKeys.getResourceIdVersion(getResource(resource), resourceId);
+    Collection<KeySemaphore> semaphores = directory.getKeySemaphoresOfResourceId(getResource(resource), resourceId);
+    if (semaphores.size() == 0)
+      missingKeys.resourceIdMissing(getResource(resource), resourceId, version);
+    return semaphores;
   }
 
   public Collection<KeySemaphore> getKeySemaphoresOfSecondaryIndexKey(String resource, String secondaryIndex, Object secondaryIndexKey) {
-    return directory.getKeySemaphoresOfSecondaryIndexKey(getSecondaryIndex(resource, secondaryIndex), secondaryIndexKey);
+    if (missingKeys == null)
+      return directory.getKeySemaphoresOfSecondaryIndexKey(getSecondaryIndex(resource, secondaryIndex), secondaryIndexKey);
+    if (missingKeys.isSecondaryIndexKeyMissing(getSecondaryIndex(resource, secondaryIndex), secondaryIndexKey))
+      return new ArrayList<KeySemaphore>();
+    long version = missingKeys.getSecondaryIndexKeyVersion(getSecondaryIndex(resource, secondaryIndex), secondaryIndexKey);
+    Collection<KeySemaphore> semaphores = directory.getKeySemaphoresOfSecondaryIndexKey(getSecondaryIndex(resource, secondaryIndex), secondaryIndexKey);
+    if (semaphores.size() == 0)
+      missingKeys.secondaryIndexKeyMissing(getSecondaryIndex(resource, secondaryIndex), secondaryIndexKey, version);
+    return semaphores;
+  }
+
+  public Collection<SecondaryIndexKeySemaphore> getSecondaryIndexKeySemaphoresOfSecondaryIndexKey(String resource, String secondaryIndex, Object secondaryIndexKey) {
+    if (missingKeys == null)
+      return directory.getSecondaryIndexKeySemaphoresOfSecondaryIndexKey(getSecondaryIndex(resource, secondaryIndex), secondaryIndexKey);
+    if (missingKeys.isSecondaryIndexKeyMissing(getSecondaryIndex(resource, secondaryIndex), secondaryIndexKey))
+      return new ArrayList<SecondaryIndexKeySemaphore>();
+    long version = missingKeys.getSecondaryIndexKeyVersion(getSecondaryIndex(resource, secondaryIndex), secondaryIndexKey);
+    Collection<SecondaryIndexKeySemaphore> semaphores =
+        directory.getSecondaryIndexKeySemaphoresOfSecondaryIndexKey(getSecondaryIndex(resource, secondaryIndex), secondaryIndexKey);
+    if (semaphores.size() == 0)
+      missingKeys.secondaryIndexKeyMissing(getSecondaryIndex(resource, secondaryIndex), secondaryIndexKey, version);
+    return semaphores;
+  }
+
+  public Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfPrimaryIndexKeys(Collection<Object> primaryIndexKeys) {
+    return directory.getKeySemaphoresOfPrimaryIndexKeys(primaryIndexKeys);
+  }
+
+  public Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfResourceIds(String resource, Collection<Object> resourceIds) {
+    return directory.getKeySemaphoresOfResourceIds(getResource(resource), resourceIds);
+  }
+
+  public Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfSecondaryIndexKeys(String resource, String secondaryIndex, Collection<Object> secondaryIndexKeys) {
+    return directory.getKeySemaphoresOfSecondaryIndexKeys(getSecondaryIndex(resource, secondaryIndex), secondaryIndexKeys);
   }
 
   public Collection<Integer> getNodeIdsOfPrimaryIndexKey(Object primaryIndexKey) {
-    return Transform.map(semaphoreToId(), directory.getKeySemamphoresOfPrimaryIndexKey(primaryIndexKey));
+    return Transform.map(semaphoreToId(), getKeySemamphoresOfPrimaryIndexKey(primaryIndexKey));
   }
 
   public Collection<Integer> getNodeIdsOfResourceId(String resource, Object id) {
-    return Transform.map(semaphoreToId(), directory.getKeySemaphoresOfResourceId(getResource(resource), id));
+    return Transform.map(semaphoreToId(), getKeySemaphoresOfResourceId(resource, id));
   }
 
   public Collection<Integer> getNodeIdsOfSecondaryIndexKey(String resource, String secondaryIndex, Object secondaryIndexKey) {
-    return Transform.map(semaphoreToId(), directory.getKeySemaphoresOfSecondaryIndexKey(getSecondaryIndex(resource, secondaryIndex), secondaryIndexKey));
+    return Transform.map(semaphoreToId(), getKeySemaphoresOfSecondaryIndexKey(resource, secondaryIndex, secondaryIndexKey));
   }
 
   public boolean getReadOnlyOfPrimaryIndexKey(Object primaryIndexKey) {
@@ -122,14 +203,62 @@ public class DirectoryWrapper implements DirectoryFacade {
   }
 
   public void insertPrimaryIndexKey(Object primaryIndexKey) throws HiveLockableException {
-    Collection<Node> writableNodes = Filter.grep(new Predicate<Node>() {
-      public boolean f(Node item) {
-        return item.getStatus() == Lockable.Status.writable;
+    try {
+      directory.insertPrimaryIndexKey(chooseWritableNode(primaryIndexKey), primaryIndexKey);
+    } finally {
+      if (missingKeys != null)
+        missingKeys.primaryIndexKeyInserted(partitionDimension, primaryIndexKey);
+    }
+  }
+
+  /**
+   * Passes the node a new primary index key would be assigned to, and checks the semaphores of the
+   * key the directory returns, so an existing key is looked up only once. The key is looked up first
+   * only when no writable node would take it, so an existing key is not refused because of where a
+   * new one would go.
+   */
+  public void indexEntity(String resource, Object primaryIndexKey, Object resourceId, Map<String, Collection<Object>> secondaryIndexValueMap) throws HiveLockableException {
+    try {
+      Collection<KeySemaphore> semaphores = directory.indexEntity(
+          chooseNodeOfEntity(primaryIndexKey),
+          primaryIndexKey,
+          getResource(resource),
+          resourceId,
+          stringMapToIndexValueMap(resource, secondaryIndexValueMap));
+      Preconditions.isWritable(semaphores, semaphore);
+    } finally {
+      if (missingKeys != null) {
+        missingKeys.primaryIndexKeyInserted(partitionDimension, primaryIndexKey);
+        missingKeys.resourceIdInserted(getResource(resource), resourceId);
+        secondaryIndexKeysInserted(resource, secondaryIndexValueMap);
       }
-    }, nodes);
-    Node node = assigner.chooseNode(writableNodes, primaryIndexKey);
-    Preconditions.isWritable(semaphore, node);
-    directory.insertPrimaryIndexKey(node, primaryIndexKey);
+    }
+  }
+
+  private Node chooseWritableNode(Object primaryIndexKey) throws HiveLockableException {
+    Preconditions.isWritable(semaphore);
+    if (metadata.getWritableNodes().isEmpty())
+      throw new HiveLockableException(String.format("No writable node can take the partition key %s", primaryIndexKey));
+    Node node = assigner.chooseNode(metadata.getWritableNodes(), primaryIndexKey);
+    Preconditions.isWritable(node);
+    return node;
+  }
+
+  /**
+   * The node to assign the primary index key to if it is new. When no writable node would take it the
+   * key is looked up, and if it exists and is writable the node it lives on is returned.
+   */
+  private Node chooseNodeOfEntity(Object primaryIndexKey) throws HiveLockableException {
+    try {
+      return chooseWritableNode(primaryIndexKey);
+    } catch (HiveLockableException e) {
+      Preconditions.isWritable(semaphore);
+      Collection<KeySemaphore> semaphores = directory.getKeySemamphoresOfPrimaryIndexKey(primaryIndexKey);
+      if (semaphores.isEmpty())
+        throw e;
+      Preconditions.isWritable(semaphores);
+      return metadata.getNode(Atom.getFirstOrThrow(semaphores).getNodeId());
+    }
   }
 
   public void insertResourceId(String resource, Object id, Object primaryIndexKey) throws HiveLockableException {
@@ -138,7 +267,12 @@ public class DirectoryWrapper implements DirectoryFacade {
     } else {
       Collection<KeySemaphore> semaphores = directory.getKeySemamphoresOfPrimaryIndexKey(primaryIndexKey);
       Preconditions.isWritable(semaphores, semaphore);
-      directory.insertResourceId(getResource(resource), id, primaryIndexKey);
+      try {
+        directory.insertResourceId(getResource(resource), id, primaryIndexKey);
+      } finally {
+        if (missingKeys != null)
+          missingKeys.resourceIdInserted(getResource(resource), id);
+      }
     }
   }
 
@@ -146,7 +280,12 @@ public class DirectoryWrapper implements DirectoryFacade {
     Collection<KeySemaphore> semaphores =
         directory.getKeySemaphoresOfResourceId(getResource(resource), resourceId);
     Preconditions.isWritable(semaphores, semaphore);
-    directory.insertSecondaryIndexKey(getSecondaryIndex(resource, secondaryIndex), secondaryIndexKey, resourceId);
+    try {
+      directory.insertSecondaryIndexKey(getSecondaryIndex(resource, secondaryIndex), secondaryIndexKey, resourceId);
+    } finally {
+      if (missingKeys != null)
+        missingKeys.secondaryIndexKeyInserted(getSecondaryIndex(resource, secondaryIndex), secondaryIndexKey);
+    }
   }
 
   public void updatePrimaryIndexKeyOfResourceId(String resource, Object resourceId, Object newPrimaryIndexKey) throws HiveLockableException {
@@ -166,12 +305,8 @@ public class DirectoryWrapper implements DirectoryFacade {
 
   private Collection<Node> getNodesForSemaphores(Collection<KeySemaphore> sempahores) {
     return Transform.map(new Unary<KeySemaphore, Node>() {
-      public Node f(final KeySemaphore semaphore) {
-        return Filter.grepSingle(new Predicate<Node>() {
-          public boolean f(Node node) {
-            return semaphore.getNodeId() == node.getId();
-          }
-        }, nodes);
+      public Node f(KeySemaphore semaphore) {
+        return metadata.getNode(semaphore.getNodeId());
       }
     }, sempahores);
   }
@@ -214,6 +349,13 @@ public class DirectoryWrapper implements DirectoryFacade {
     return directory.getSecondaryIndexKeysOfResourceId(getSecondaryIndex(resource, secondaryIndex), id);
   }
 
+  public Map<String, Collection<Object>> getAllSecondaryIndexKeysWithResourceId(String resource, Object id) {
+    Map<String, Collection<Object>> keys = new HashMap<String, Collection<Object>>();
+    for (Entry<SecondaryIndex, Collection<Object>> entry : directory.getAllSecondaryIndexKeysOfResourceId(getResource(resource), id).entrySet())
+      keys.put(entry.getKey().getName(), entry.getValue());
+    return keys;
+  }
+
 /*
 	public void deleteAllSecondaryIndexKeysOfResourceId(String resource,Object id) throws HiveLockableException{
 		Preconditions.isWritable(directory.getKeySemaphoresOfResourceId(getResource(resource), id), hive);
@@ -228,7 +370,18 @@ public class DirectoryWrapper implements DirectoryFacade {
 
   public void insertSecondaryIndexKeys(String resource, Map<String, Collection<Object>> secondaryIndexValueMap, Object resourceId) throws HiveLockableException {
     Preconditions.isWritable(directory.getKeySemaphoresOfResourceId(getResource(resource), resourceId), semaphore);
-    directory.insertSecondaryIndexKeys(stringMapToIndexValueMap(resource, secondaryIndexValueMap), resourceId);
+    try {
+      directory.insertSecondaryIndexKeys(stringMapToIndexValueMap(resource, secondaryIndexValueMap), resourceId);
+    } finally {
+      if (missingKeys != null)
+        secondaryIndexKeysInserted(resource, secondaryIndexValueMap);
+    }
+  }
+
+  private void secondaryIndexKeysInserted(String resource, Map<String, Collection<Object>> secondaryIndexValueMap) {
+    for (Entry<String, Collection<Object>> entry : secondaryIndexValueMap.entrySet())
+      for (Object secondaryIndexKey : entry.getValue())
+        missingKeys.secondaryIndexKeyInserted(getSecondaryIndex(resource, entry.getKey()), secondaryIndexKey);
   }
 
   private Map<SecondaryIndex, Collection<Object>> stringMapToIndexValueMap(final String resource, final Map<String, Collection<Object>> map) {
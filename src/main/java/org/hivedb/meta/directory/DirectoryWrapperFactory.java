@@ -16,10 +16,23 @@ public class DirectoryWrapperFactory implements DirectoryFacadeProvider {
   private final static Log log = LogFactory.getLog(DirectoryWrapperFactory.class);
   private DirectoryProvider directoryProvider;
   private DataSourceProvider dataSourceProvider;
+  private MissingKeyCache missingKeys;
 
   public DirectoryWrapperFactory(DirectoryProvider directoryProvider, DataSourceProvider dataSourceProvider) {
+    this(directoryProvider, dataSourceProvider, null);
+  }
+
+  /**
+   * @param missingKeys shared by the DirectoryWrappers of every hive revision, or null to disable it
+   */
+  public DirectoryWrapperFactory(DirectoryProvider directoryProvider, DataSourceProvider dataSourceProvider, MissingKeyCache missingKeys) {
     this.dataSourceProvider = dataSourceProvider;
     this.directoryProvider = directoryProvider;
+    this.missingKeys = missingKeys;
+  }
+
+  public MissingKeyCache getMissingKeyCache() {
+    return missingKeys;
   }
 
   public DirectoryFacade getDirectoryFacade(String hiveConfigurationUri, Assigner assigner, Lockable semaphore, PartitionDimension partitionDimension) {
@@ -29,8 +42,9 @@ public class DirectoryWrapperFactory implements DirectoryFacadeProvider {
         directoryProvider.getDirectory(hiveConfigurationUri),
         assigner,
         nodes,
-        partitionDimension.getResources(),
-        semaphore);
+        partitionDimension,
+        semaphore,
+        missingKeys);
   }
 }
 
@@ -0,0 +1,139 @@
+package org.hivedb.meta.directory;
+
+import org.hivedb.HiveRuntimeException;
+import org.hivedb.meta.persistence.TableInfo;
+import org.hivedb.util.database.DialectTools;
+import org.hivedb.util.database.DriverLoader;
+import org.hivedb.util.database.HiveDbDialect;
+import org.hivedb.util.database.Schemas;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.JdbcUtils;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * The exclusive right to write a directory, held in the index database on a connection of its own
+ * for as long as the lock is acquired. The database releases it when that connection closes, so a
+ * writer that dies does not keep it. MySQL takes a named lock; other dialects lock the directory's
+ * row of the hive_directory_writer table in a transaction left open.
+ */
+public class DirectoryWriterLock {
+  public static final String TABLE = "hive_directory_writer";
+  private DataSource dataSource;
+  private String uri;
+  private HiveDbDialect dialect;
+  private String name;
+  private Connection connection;
+
+  /**
+   * @param name identifies the directory, e.g. by its partition dimension
+   */
+  public DirectoryWriterLock(DataSource dataSource, String uri, String name) {
+    this.dataSource = dataSource;
+    this.uri = uri;
+    this.dialect = DriverLoader.discernDialect(uri);
+    this.name = name.toLowerCase();
+  }
+
+  /**
+   * @throws HiveRuntimeException if another process holds the lock
+   */
+  public synchronized void acquire() {
+    if (connection != null)
+      return;
+    Connection c = null;
+    try {
+      if (dialect != HiveDbDialect.MySql)
+        installLockRow();
+      c = dataSource.getConnection();
+      if (!(dialect == HiveDbDialect.MySql ? getNamedLock(c) : lockRow(c)))
+        throw new HiveRuntimeException(String.format("Another process is writing the directory %s.", name));
+      connection = c;
+      c = null;
+    } catch (SQLException e) {
+      throw newLockFailure(e);
+    } catch (DataAccessException e) {
+      // the lock row is locked by its holder, so installing it may fail too
+      throw newLockFailure(e);
+    } finally {
+      if (c != null)
+        release(c);
+    }
+  }
+
+  private HiveRuntimeException newLockFailure(Exception e) {
+    return new HiveRuntimeException(String.format("Unable to lock the directory %s for writing, another process may be writing it: %s", name, e.getMessage()), e);
+  }
+
+  public synchronized boolean isHeld() {
+    return connection != null;
+  }
+
+  public synchronized void release() {
+    if (connection == null)
+      return;
+    release(connection);
+    connection = null;
+  }
+
+  private void release(Connection c) {
+    try {
+      if (dialect == HiveDbDialect.MySql)
+        query(c, "select release_lock(?)", getLockName());
+      else if (!c.getAutoCommit()) {
+        c.rollback();
+        c.setAutoCommit(true);
+      }
+    } catch (SQLException e) {
+      // closing the connection releases the lock
+    } finally {
+      JdbcUtils.closeConnection(c);
+    }
+  }
+
+  private boolean getNamedLock(Connection c) throws SQLException {
+    PreparedStatement statement = c.prepareStatement("select get_lock(?, 0)");
+    try {
+      statement.setString(1, getLockName());
+      ResultSet rs = statement.executeQuery();
+      return rs.next() && rs.getInt(1) == 1;
+    } finally {
+      JdbcUtils.closeStatement(statement);
+    }
+  }
+
+  private boolean lockRow(Connection c) throws SQLException {
+    c.setAutoCommit(false);
+    return query(c, String.format("select name from %s where name = ? for update", TABLE), name);
+  }
+
+  private String getLockName() {
+    return TABLE + "_" + name;
+  }
+
+  private boolean query(Connection c, String sql, String parameter) throws SQLException {
+    PreparedStatement statement = c.prepareStatement(sql);
+    try {
+      statement.setString(1, parameter);
+      return statement.executeQuery().next();
+    } finally {
+      JdbcUtils.closeStatement(statement);
+    }
+  }
+
+  private void installLockRow() {
+    Schemas.createTable(new TableInfo(TABLE, String.format("CREATE TABLE %s (name varchar(64) not null, PRIMARY KEY (name))", TABLE)), uri);
+    try {
+      new JdbcTemplate(dataSource).update(String.format("insert into %s (name) values (?)", TABLE), new Object[]{name});
+    } catch (DataIntegrityViolationException e) {
+      if (!DialectTools.isDuplicateKey(e))
+        throw e;
+    }
+  }
+}
@@ -1,11 +1,17 @@
 package org.hivedb.meta.directory;
 
+import org.hivedb.UnsupportedDialectException;
 import org.hivedb.meta.PartitionDimension;
 import org.hivedb.meta.Resource;
 import org.hivedb.meta.ResourceIndex;
 import org.hivedb.meta.SecondaryIndex;
+import org.hivedb.util.Strings;
+import org.hivedb.util.database.HiveDbDialect;
 import org.hivedb.util.database.Schemas;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /***
  * Methods for generating SQL strings used to read and write from the HiveDB directory.
  * @author bcrawford
@@ -23,10 +29,31 @@ public class IndexSqlFormatter {
 				Schemas.getPrimaryIndexTableName(partitionDimension));
 	}
 	
+	/**
+	 * An insert that leaves an existing (id, node) row, and its status, untouched.
+	 * Parameters: id, node
+	 */
+	public String upsertPrimaryIndexKey(PartitionDimension partitionDimension, HiveDbDialect dialect) {
+		String table = Schemas.getPrimaryIndexTableName(partitionDimension);
+		switch (dialect) {
+			case MySql: return String.format("insert into %s (id, node, status) values(?, ?, 0) on duplicate key update id = id", table);
+			case H2: return String.format("merge into %s (id, node) key(id, node) values(?, ?)", table);
+			default: throw new UnsupportedDialectException("No idempotent insert configured for " + dialect);
+		}
+	}
+	
 	public String selectKeySemaphoreOfPrimaryIndexKey(PartitionDimension partitionDimension) {
 		return String.format("select id,node,status from %s where id = ?", Schemas.getPrimaryIndexTableName(partitionDimension));
 	}
 	
+	public String selectKeySemaphoreOfPrimaryIndexKeyForUpdate(PartitionDimension partitionDimension) {
+		return String.format("select id,node,status from %s where id = ? for update", Schemas.getPrimaryIndexTableName(partitionDimension));
+	}
+	
+	public String selectKeySemaphoresOfPrimaryIndexKeys(PartitionDimension partitionDimension, int keyCount) {
+		return String.format("select id,node,status from %s where id in (%s)", Schemas.getPrimaryIndexTableName(partitionDimension), inList(keyCount));
+	}
+	
 	public String selectResourceIdsOfPrimaryIndexKey(ResourceIndex resourceIndex) {
 		return String.format("select id from %s where pkey = ?", Schemas.getResourceIndexTableName(resourceIndex.getResource()));
 	}
@@ -43,6 +70,10 @@ public class IndexSqlFormatter {
 		return String.format("delete from %s where id = ?", Schemas.getPrimaryIndexTableName(partitionDimension));
 	}
 	
+	public String countPrimaryIndexKeysByNode(PartitionDimension partitionDimension) {
+		return String.format("select node, count(*) as keycount from %s group by node", Schemas.getPrimaryIndexTableName(partitionDimension));
+	}
+	
 	/**
 	 * 
 	 * Secondary index methods
@@ -52,6 +83,19 @@ public class IndexSqlFormatter {
 		return String.format("insert into %s (id, pkey) values(?, ?)", Schemas.getSecondaryIndexTableName(secondaryIndex));
 	}
 	
+	/**
+	 * An insert that is a no-op when the (id, pkey) row already exists.
+	 * Parameters: id, pkey
+	 */
+	public String upsertSecondaryIndexKey(SecondaryIndex secondaryIndex, HiveDbDialect dialect) {
+		String table = Schemas.getSecondaryIndexTableName(secondaryIndex);
+		switch (dialect) {
+			case MySql: return String.format("insert into %s (id, pkey) values(?, ?) on duplicate key update id = id", table);
+			case H2: return String.format("merge into %s (id, pkey) key(id, pkey) values(?, ?)", table);
+			default: throw new UnsupportedDialectException("No idempotent insert configured for " + dialect);
+		}
+	}
+	
 	public String selectSecondaryIndexKeysOfPrimaryKey(SecondaryIndex secondaryIndex) {
 		if (ResourceIndex.class.isInstance(secondaryIndex))
 			// index of a resource
@@ -71,22 +115,59 @@ public class IndexSqlFormatter {
 	}
 	
 	public String selectKeySemaphoresOfSecondaryIndexKey(SecondaryIndex secondaryIndex) {
+		return selectKeySemaphoresOfSecondaryIndexKeysWhere(secondaryIndex, "= ?");
+	}
+	
+	public String selectKeySemaphoresOfSecondaryIndexKeys(SecondaryIndex secondaryIndex, int keyCount) {
+		return selectKeySemaphoresOfSecondaryIndexKeysWhere(secondaryIndex, String.format("in (%s)", inList(keyCount)));
+	}
+	
+	private String selectKeySemaphoresOfSecondaryIndexKeysWhere(SecondaryIndex secondaryIndex, String keyPredicate) {
 		if (ResourceIndex.class.isInstance(secondaryIndex))		
 			// index of a resource
 			return String.format(
-				"select distinct r.id as id,p.node,p.status from %s p join %s r on r.pkey = p.id where r.id = ?",
+				"select distinct r.id as id,p.node,p.status from %s p join %s r on r.pkey = p.id where r.id %s",
 				Schemas.getPrimaryIndexTableName(secondaryIndex.getResource().getPartitionDimension()),
-				Schemas.getSecondaryIndexTableName(secondaryIndex.getResource().getIdIndex()));
+				Schemas.getSecondaryIndexTableName(secondaryIndex.getResource().getIdIndex()),
+				keyPredicate);
 		else if (secondaryIndex.getResource().isPartitioningResource())
 			 // secondary index of a resource that is also the partition dimension
 			 return String.format(
-				"select distinct s.id as id,p.node,p.status from %s p join %s s on s.pkey = p.id where s.id = ?",
+				"select distinct s.id as id,p.node,p.status from %s p join %s s on s.pkey = p.id where s.id %s",
 				Schemas.getPrimaryIndexTableName(secondaryIndex.getResource().getPartitionDimension()),
-				Schemas.getSecondaryIndexTableName(secondaryIndex));
+				Schemas.getSecondaryIndexTableName(secondaryIndex),
+				keyPredicate);
 		else 
 			// secondary index of a resource that is not also the partition dimension
 			return String.format(
-				"select distinct s.id as id,p.node,p.status from %s p join %s r on r.pkey = p.id join %s s on s.pkey = r.id where s.id = ?", 
+				"select distinct s.id as id,p.node,p.status from %s p join %s r on r.pkey = p.id join %s s on s.pkey = r.id where s.id %s", 
+				Schemas.getPrimaryIndexTableName(secondaryIndex.getResource().getPartitionDimension()),
+				Schemas.getResourceIndexTableName(secondaryIndex.getResource()),
+				Schemas.getSecondaryIndexTableName(secondaryIndex),
+				keyPredicate);
+	}
+	
+	/**
+	 * For each row owning a secondary index key: the key, its resource id, primary index key, node
+	 * and status, in that column order, so a read can go straight to the resource by id.
+	 */
+	public String selectSecondaryIndexKeySemaphoresOfSecondaryIndexKey(SecondaryIndex secondaryIndex) {
+		if (ResourceIndex.class.isInstance(secondaryIndex))
+			// index of a resource
+			return String.format(
+				"select r.id as id,r.id as resourceId,p.id as primaryIndexKey,p.node,p.status from %s p join %s r on r.pkey = p.id where r.id = ?",
+				Schemas.getPrimaryIndexTableName(secondaryIndex.getResource().getPartitionDimension()),
+				Schemas.getResourceIndexTableName(secondaryIndex.getResource()));
+		else if (secondaryIndex.getResource().isPartitioningResource())
+			// secondary index of a resource that is also the partition dimension
+			return String.format(
+				"select s.id as id,s.pkey as resourceId,p.id as primaryIndexKey,p.node,p.status from %s p join %s s on s.pkey = p.id where s.id = ?",
+				Schemas.getPrimaryIndexTableName(secondaryIndex.getResource().getPartitionDimension()),
+				Schemas.getSecondaryIndexTableName(secondaryIndex));
+		else
+			// secondary index of a resource that is not also the partition dimension
+			return String.format(
+				"select s.id as id,r.id as resourceId,p.id as primaryIndexKey,p.node,p.status from %s p join %s r on r.pkey = p.id join %s s on s.pkey = r.id where s.id = ?",
 				Schemas.getPrimaryIndexTableName(secondaryIndex.getResource().getPartitionDimension()),
 				Schemas.getResourceIndexTableName(secondaryIndex.getResource()),
 				Schemas.getSecondaryIndexTableName(secondaryIndex));
@@ -134,6 +215,20 @@ public class IndexSqlFormatter {
 		return String.format("delete from %s where id =? and pkey = ?", Schemas.getSecondaryIndexTableName(secondaryIndex));
 	}
 	
+	public String deleteSecondaryIndexKeys(SecondaryIndex secondaryIndex, int keyCount) {
+		return String.format("delete from %s where pkey = ? and id in (%s)", Schemas.getSecondaryIndexTableName(secondaryIndex), inList(keyCount));
+	}
+	
+	public String deleteSecondaryIndexKeysOfPrimaryIndexKey(SecondaryIndex secondaryIndex) {
+		return String.format("delete from %s where pkey in (select id from %s where pkey = ?)",
+				Schemas.getSecondaryIndexTableName(secondaryIndex),
+				Schemas.getResourceIndexTableName(secondaryIndex.getResource()));
+	}
+	
+	public String selectSecondaryIndexKeysForUpdateLock(SecondaryIndex secondaryIndex, int keyCount) {
+		return String.format("select id from %s where pkey = ? and id in (%s) for update", Schemas.getSecondaryIndexTableName(secondaryIndex), inList(keyCount));
+	}
+	
 	/***
 	 * Resource methods
 	 */
@@ -141,6 +236,19 @@ public class IndexSqlFormatter {
 		return String.format("insert into %s (id, pkey) values(?, ?)", Schemas.getResourceIndexTableName(resource));
 	}
 	
+	/**
+	 * An insert that is a no-op when the id already exists, keeping the primary index key that owns it.
+	 * H2's merge would overwrite pkey, so on H2 DbDirectory inserts and ignores the duplicate key instead.
+	 * Parameters: id, pkey, id
+	 */
+	public String upsertResourceId(Resource resource, HiveDbDialect dialect) {
+		String table = Schemas.getResourceIndexTableName(resource);
+		switch (dialect) {
+			case MySql: return String.format("insert into %s (id, pkey) values(?, ?) on duplicate key update id = ?", table);
+			default: throw new UnsupportedDialectException("No idempotent insert configured for " + dialect);
+		}
+	}
+	
 	public String selectResourceIdsOfSecondaryIndexKey(SecondaryIndex secondaryIndex) {
 		final Resource resource = secondaryIndex.getResource();
 		if (resource.isPartitioningResource())
@@ -158,6 +266,14 @@ public class IndexSqlFormatter {
 				Schemas.getResourceIndexTableName(resource));
 	}
 	
+	public String selectKeySemaphoresOfResourceIds(Resource resource, int keyCount) {
+		return String.format(
+				"select r.id as id,p.node,p.status from %s p join %s r on r.pkey = p.id where r.id in (%s)",
+				Schemas.getPrimaryIndexTableName(resource.getPartitionDimension()),
+				Schemas.getResourceIndexTableName(resource),
+				inList(keyCount));
+	}
+	
 	public String selectPrimaryIndexKeysOfResourceId(Resource resource) {
 		return String.format(
 				"select p.id from %s p join %s r on r.pkey = p.id where r.id = ?", 
@@ -165,6 +281,61 @@ public class IndexSqlFormatter {
 				Schemas.getResourceIndexTableName(resource));
 	}
 	
+	public String selectPrimaryIndexKeys(PartitionDimension partitionDimension) {
+		return String.format("select id from %s", Schemas.getPrimaryIndexTableName(partitionDimension));
+	}
+	
+	public String selectResourceIds(Resource resource) {
+		return String.format("select id from %s", Schemas.getResourceIndexTableName(resource));
+	}
+	
+	/***
+	 * The primary index key column of a resource id, without the join to the primary index,
+	 * for directories that do not keep a row per primary index key.
+	 */
+	public String selectPrimaryIndexKeyColumnOfResourceId(Resource resource) {
+		return String.format("select pkey from %s where id = ?", Schemas.getResourceIndexTableName(resource));
+	}
+	
+	/***
+	 * The primary index keys that own a secondary index key, without the join to the primary index.
+	 */
+	public String selectPrimaryIndexKeyColumnsOfSecondaryIndexKey(SecondaryIndex secondaryIndex) {
+		if (secondaryIndex.getResource().isPartitioningResource())
+			return String.format("select pkey from %s where id = ?", Schemas.getSecondaryIndexTableName(secondaryIndex));
+		return String.format(
+				"select r.pkey from %s r join %s s on s.pkey = r.id where s.id = ?",
+				Schemas.getResourceIndexTableName(secondaryIndex.getResource()),
+				Schemas.getSecondaryIndexTableName(secondaryIndex));
+	}
+	
+	/***
+	 * The secondary index keys owned by a primary index key, without the join to the primary index.
+	 */
+	public String selectSecondaryIndexKeyColumnsOfPrimaryIndexKey(SecondaryIndex secondaryIndex) {
+		if (ResourceIndex.class.isInstance(secondaryIndex) || secondaryIndex.getResource().isPartitioningResource())
+			return selectSecondaryIndexKeyOfResourceId(secondaryIndex);
+		return String.format(
+				"select s.id from %s r join %s s on s.pkey = r.id where r.pkey = ?",
+				Schemas.getResourceIndexTableName(secondaryIndex.getResource()),
+				Schemas.getSecondaryIndexTableName(secondaryIndex));
+	}
+	
+	/***
+	 * The resource ids and primary index keys that own a secondary index key, without the join to
+	 * the primary index. Columns: resourceId, primaryIndexKey
+	 */
+	public String selectResourceIdColumnsOfSecondaryIndexKey(SecondaryIndex secondaryIndex) {
+		if (ResourceIndex.class.isInstance(secondaryIndex))
+			return String.format("select id as resourceId,pkey as primaryIndexKey from %s where id = ?", Schemas.getResourceIndexTableName(secondaryIndex.getResource()));
+		else if (secondaryIndex.getResource().isPartitioningResource())
+			return String.format("select pkey as resourceId,pkey as primaryIndexKey from %s where id = ?", Schemas.getSecondaryIndexTableName(secondaryIndex));
+		return String.format(
+				"select r.id as resourceId,r.pkey as primaryIndexKey from %s r join %s s on s.pkey = r.id where s.id = ?",
+				Schemas.getResourceIndexTableName(secondaryIndex.getResource()),
+				Schemas.getSecondaryIndexTableName(secondaryIndex));
+	}
+	
 	public String selectSecondaryIndexKeyOfResourceId(SecondaryIndex secondaryIndex) {
 		return String.format(
 				"select s.id from %s s where s.pkey = ?", 
@@ -172,6 +343,21 @@ public class IndexSqlFormatter {
 				Schemas.getResourceIndexTableName(secondaryIndex.getResource()));
 	}
 	
+	/**
+	 * The keys of several secondary indexes of one resource id in a single union all query. Each row
+	 * holds the position of its index in the list and the key. The indexes must share a column type.
+	 * Parameters: the resource id, once per index
+	 */
+	public String selectAllSecondaryIndexKeysOfResourceId(List<SecondaryIndex> secondaryIndexes) {
+		List<String> selects = new ArrayList<String>();
+		for (int i = 0; i < secondaryIndexes.size(); i++)
+			selects.add(String.format(
+					"select %s as idx, s.id from %s s where s.pkey = ?", 
+					i,
+					Schemas.getSecondaryIndexTableName(secondaryIndexes.get(i))));
+		return Strings.join(" union all ", selects.toArray(new String[selects.size()]));
+	}
+	
 	public String updateResourceId( Resource resource) {
 		return String.format("update %s set pkey = ? where id = ?", Schemas.getResourceIndexTableName(resource));
 	}
@@ -180,6 +366,77 @@ public class IndexSqlFormatter {
 		return String.format("delete from %s where id = ?", Schemas.getResourceIndexTableName(resource));
 	}
 	
+	public String deleteResourceIdsOfPrimaryIndexKey(Resource resource) {
+		return String.format("delete from %s where pkey = ?", Schemas.getResourceIndexTableName(resource));
+	}
+	
+	/**
+	 * 
+	 * Key range methods
+	 * 
+	 */
+	public String selectKeyRanges(PartitionDimension partitionDimension) {
+		return String.format("select range_start, range_end, node, status from %s order by range_start", Schemas.getRangeIndexTableName(partitionDimension));
+	}
+	
+	public String insertKeyRange(PartitionDimension partitionDimension) {
+		return String.format("insert into %s (range_start, range_end, node, status) values (?, ?, ?, ?)", Schemas.getRangeIndexTableName(partitionDimension));
+	}
+	
+	public String updateKeyRangeEnd(PartitionDimension partitionDimension) {
+		return String.format("update %s set range_end = ? where range_start = ?", Schemas.getRangeIndexTableName(partitionDimension));
+	}
+	
+	public String updateKeyRangeStatus(PartitionDimension partitionDimension) {
+		return String.format("update %s set status = ? where range_start = ?", Schemas.getRangeIndexTableName(partitionDimension));
+	}
+	
+	public String deleteKeyRange(PartitionDimension partitionDimension) {
+		return String.format("delete from %s where range_start = ?", Schemas.getRangeIndexTableName(partitionDimension));
+	}
+	
+	/**
+	 * 
+	 * Hash bucket methods
+	 * 
+	 */
+	public String selectBuckets(PartitionDimension partitionDimension) {
+		return String.format("select bucket, node, status from %s", Schemas.getBucketIndexTableName(partitionDimension));
+	}
+	
+	public String insertBucket(PartitionDimension partitionDimension) {
+		return String.format("insert into %s (bucket, node, status) values (?, ?, ?)", Schemas.getBucketIndexTableName(partitionDimension));
+	}
+	
+	public String updateNodeOfBucket(PartitionDimension partitionDimension) {
+		return String.format("update %s set node = ? where bucket = ?", Schemas.getBucketIndexTableName(partitionDimension));
+	}
+	
+	public String updateStatusOfBucket(PartitionDimension partitionDimension) {
+		return String.format("update %s set status = ? where bucket = ?", Schemas.getBucketIndexTableName(partitionDimension));
+	}
+	
+	/**
+	 * 
+	 * Resource id route methods
+	 * 
+	 */
+	public String selectShardOfResourceId(Resource resource) {
+		return String.format("select shard from %s where id = ?", Schemas.getRouteIndexTableName(resource));
+	}
+	
+	public String insertRoute(Resource resource) {
+		return String.format("insert into %s (id, shard) values (?, ?)", Schemas.getRouteIndexTableName(resource));
+	}
+	
+	public String updateRoute(Resource resource) {
+		return String.format("update %s set shard = ? where id = ?", Schemas.getRouteIndexTableName(resource));
+	}
+	
+	public String deleteRoute(Resource resource) {
+		return String.format("delete from %s where id = ?", Schemas.getRouteIndexTableName(resource));
+	}
+	
 	public String selectForUpdateLock(String table, String column) {
 		return String.format("select * from %s where %s = ? for update", table, column);
 	}
@@ -187,4 +444,14 @@ public class IndexSqlFormatter {
 	public String selectCompositeKeyForUpdateLock(String table, String column1, String column2) {
 		return String.format("select * from %s where %s = ? and %s = ? for update", table, column1, column2);
 	}
+	
+	/***
+	 * A list of parameter placeholders for an in (...) clause, e.g. "?,?,?"
+	 */
+	public String inList(int parameterCount) {
+		StringBuilder builder = new StringBuilder(parameterCount * 2);
+		for (int i = 0; i < parameterCount; i++)
+			builder.append(i == 0 ? "?" : ",?");
+		return builder.toString();
+	}
 }
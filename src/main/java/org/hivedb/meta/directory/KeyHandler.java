@@ -0,0 +1,12 @@
+package org.hivedb.meta.directory;
+
+/**
+ * Receives the keys of a streaming directory read one at a time, see
+ * {@link Directory#streamResourceIdsOfPrimaryIndexKey}.
+ */
+public interface KeyHandler {
+  /**
+   * @return false to stop the read, the remaining keys are not fetched
+   */
+  boolean handle(Object key);
+}
@@ -0,0 +1,884 @@
+package org.hivedb.meta.directory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hivedb.HiveKeyNotFoundException;
+import org.hivedb.HiveRuntimeException;
+import org.hivedb.Lockable;
+import org.hivedb.meta.Node;
+import org.hivedb.meta.PartitionDimension;
+import org.hivedb.meta.Resource;
+import org.hivedb.meta.SecondaryIndex;
+import org.hivedb.util.LongMultiMap;
+import org.hivedb.util.database.HiveDbDialect;
+import org.hivedb.util.database.Schemas;
+import org.hivedb.util.database.Statements;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A directory held in process memory, for services whose key lookups cannot afford a round trip to
+ * the index database. Each directory table is a {@link LongMultiMap} outside the Java heap, paired
+ * with a reverse table for the lookups and cascades that go from owner to owned keys. The partition
+ * dimension, resource ids and secondary index keys must all be integral columns.
+ * <p/>
+ * On its own the directory is the system of record for its keys. Wrap it in a
+ * {@link WriteThroughDirectory} to keep the index tables the system of record, as
+ * {@link MemoryDirectoryFactory} does. When given a data directory it persists itself there and locks
+ * it, so two processes cannot share one: every change is appended to a log, and
+ * {@link #snapshot()} writes all tables to a snapshot file and starts a new log. Opening reads the
+ * snapshot through a memory-mapped buffer and replays the log, so a restart costs a sequential read
+ * instead of a scan of the index database. Replaying is idempotent, a crash between writing the
+ * snapshot and truncating the log loses nothing.
+ */
+public class MemoryDirectory implements Directory {
+  private final static Log log = LogFactory.getLog(MemoryDirectory.class);
+  public static final String SNAPSHOT_FILE = "directory.snapshot";
+  public static final String LOG_FILE = "directory.log";
+  public static final String LOCK_FILE = "directory.lock";
+  public static final int DEFAULT_EXPECTED_SIZE = 1024;
+  private static final int SNAPSHOT_MAGIC = 0x48444d31;
+  private static final byte PUT = 1, REMOVE = 2;
+  private static final String REVERSE = "#reverse";
+  private static final LongMultiMap EMPTY = new LongMultiMap(0);
+
+  private PartitionDimension partitionDimension;
+  private final Map<String, LongMultiMap> tables = new HashMap<String, LongMultiMap>();
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final File dataDirectory;
+  private FileOutputStream logFile;
+  private DataOutputStream logStream;
+  private FileChannel lockChannel;
+  private boolean syncOnWrite = false;
+  private int expectedSize = DEFAULT_EXPECTED_SIZE;
+
+  /**
+   * A directory that lives only as long as the process.
+   */
+  public MemoryDirectory(PartitionDimension partitionDimension) {
+    this(partitionDimension, null);
+  }
+
+  /**
+   * A directory persisted to the data directory, restored from what is already there.
+   */
+  public MemoryDirectory(PartitionDimension partitionDimension, File dataDirectory) {
+    setPartitionDimension(partitionDimension);
+    this.dataDirectory = dataDirectory;
+    if (dataDirectory != null) {
+      if (!dataDirectory.isDirectory() && !dataDirectory.mkdirs())
+        throw new HiveRuntimeException(String.format("Unable to create directory data directory %s", dataDirectory));
+      try {
+        lockDataDirectory();
+        readSnapshot();
+        replayLog();
+        openLog(true);
+      } catch (IOException e) {
+        throw new HiveRuntimeException(String.format("Unable to restore the directory from %s", dataDirectory), e);
+      }
+    }
+  }
+
+  public PartitionDimension getPartitionDimension() {
+    return partitionDimension;
+  }
+
+  /**
+   * Adopts a new revision of the partition dimension, e.g. one with an added resource. Tables of
+   * new resources and secondary indexes are created when first written.
+   */
+  public void setPartitionDimension(PartitionDimension partitionDimension) {
+    List<String> unsupported = new ArrayList<String>();
+    if (!isIntegral(partitionDimension.getColumnType()))
+      unsupported.add(partitionDimension.getName());
+    for (Resource resource : partitionDimension.getResources()) {
+      if (!isIntegral(resource.getColumnType()))
+        unsupported.add(resource.getName());
+      for (SecondaryIndex secondaryIndex : resource.getSecondaryIndexes())
+        if (!isIntegral(secondaryIndex.getColumnInfo().getColumnType()))
+          unsupported.add(secondaryIndex.getTableName());
+    }
+    if (unsupported.size() > 0)
+      throw new HiveRuntimeException(String.format("MemoryDirectory only indexes integral keys, these are not: %s", unsupported));
+    this.partitionDimension = partitionDimension;
+  }
+
+  public boolean isSyncOnWrite() {
+    return syncOnWrite;
+  }
+
+  /**
+   * Forces every change to disk before the call making it returns. Off by default, in which case a
+   * change is handed to the operating system but may be lost if the machine fails.
+   */
+  public void setSyncOnWrite(boolean syncOnWrite) {
+    this.syncOnWrite = syncOnWrite;
+  }
+
+  /**
+   * The number of keys each new table is sized for before it first grows.
+   */
+  public void setExpectedSize(int expectedSize) {
+    this.expectedSize = expectedSize;
+  }
+
+  public boolean doesPrimaryIndexKeyExist(Object primaryIndexKey) {
+    lock.readLock().lock();
+    try {
+      return read(primaryTable()).containsKey(toLong(primaryIndexKey));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public Collection<KeySemaphore> getKeySemamphoresOfPrimaryIndexKey(Object primaryIndexKey) {
+    lock.readLock().lock();
+    try {
+      return semaphoresOf(primaryIndexKey, toLong(primaryIndexKey));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public boolean doesResourceIdExist(Resource resource, Object resourceId) {
+    if (resource.isPartitioningResource())
+      return doesPrimaryIndexKeyExist(resourceId);
+    lock.readLock().lock();
+    try {
+      return read(resourceTable(resource)).containsKey(toLong(resourceId));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public Collection<KeySemaphore> getKeySemaphoresOfResourceId(Resource resource, Object id) {
+    lock.readLock().lock();
+    try {
+      return semaphoresOfResourceId(resource, id, toLong(id));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public boolean doesSecondaryIndexKeyExist(SecondaryIndex index, Object secondaryIndexKey, Object resourceId) {
+    lock.readLock().lock();
+    try {
+      return read(secondaryTable(index)).contains(toLong(secondaryIndexKey), toLong(resourceId));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Like the select distinct of {@link DbDirectory}, a node appears once however many resource
+   * ids the key is indexed for.
+   */
+  public Collection<KeySemaphore> getKeySemaphoresOfSecondaryIndexKey(SecondaryIndex secondaryIndex, Object secondaryIndexKey) {
+    lock.readLock().lock();
+    try {
+      return semaphoresOfSecondaryIndexKey(secondaryIndex, secondaryIndexKey, toLong(secondaryIndexKey));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public Collection<SecondaryIndexKeySemaphore> getSecondaryIndexKeySemaphoresOfSecondaryIndexKey(SecondaryIndex secondaryIndex, Object secondaryIndexKey) {
+    Resource resource = secondaryIndex.getResource();
+    Collection<SecondaryIndexKeySemaphore> semaphores = new ArrayList<SecondaryIndexKeySemaphore>();
+    lock.readLock().lock();
+    try {
+      for (long id : read(secondaryTable(secondaryIndex)).get(toLong(secondaryIndexKey))) {
+        long[] primaryIndexKeys = resource.isPartitioningResource() ? new long[]{id} : read(resourceTable(resource)).get(id);
+        for (long primaryIndexKey : primaryIndexKeys)
+          for (KeySemaphore semaphore : semaphoresOf(toKey(partitionDimension.getColumnType(), primaryIndexKey), primaryIndexKey))
+            semaphores.add(new SecondaryIndexKeySemaphoreImpl(
+                new ResourceKeySemaphoreImpl(semaphore, toKey(resource.getColumnType(), id)),
+                secondaryIndexKey));
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return semaphores;
+  }
+
+  public Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfPrimaryIndexKeys(Collection<Object> primaryIndexKeys) {
+    Map<Object, Collection<KeySemaphore>> map = new LinkedHashMap<Object, Collection<KeySemaphore>>();
+    lock.readLock().lock();
+    try {
+      for (Object key : primaryIndexKeys)
+        map.put(key, semaphoresOf(key, toLong(key)));
+    } finally {
+      lock.readLock().unlock();
+    }
+    return map;
+  }
+
+  public Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfResourceIds(Resource resource, Collection<Object> resourceIds) {
+    Map<Object, Collection<KeySemaphore>> map = new LinkedHashMap<Object, Collection<KeySemaphore>>();
+    lock.readLock().lock();
+    try {
+      for (Object id : resourceIds)
+        map.put(id, semaphoresOfResourceId(resource, id, toLong(id)));
+    } finally {
+      lock.readLock().unlock();
+    }
+    return map;
+  }
+
+  public Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfSecondaryIndexKeys(SecondaryIndex secondaryIndex, Collection<Object> secondaryIndexKeys) {
+    Map<Object, Collection<KeySemaphore>> map = new LinkedHashMap<Object, Collection<KeySemaphore>>();
+    lock.readLock().lock();
+    try {
+      for (Object key : secondaryIndexKeys)
+        map.put(key, semaphoresOfSecondaryIndexKey(secondaryIndex, key, toLong(key)));
+    } finally {
+      lock.readLock().unlock();
+    }
+    return map;
+  }
+
+  public Object getPrimaryIndexKeyOfResourceId(Resource resource, Object resourceId) {
+    lock.readLock().lock();
+    try {
+      long[] keys = read(resourceTable(resource)).get(toLong(resourceId));
+      if (keys.length == 0)
+        throw new HiveKeyNotFoundException(String.format("Unable to find primary key for resource %s with id %s", resource.getName(), resourceId), resourceId);
+      return toKey(partitionDimension.getColumnType(), keys[0]);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public Collection getSecondaryIndexKeysOfResourceId(SecondaryIndex secondaryIndex, Object id) {
+    List<Object> keys = new ArrayList<Object>();
+    lock.readLock().lock();
+    try {
+      for (long key : read(reverse(secondaryTable(secondaryIndex))).get(toLong(id)))
+        keys.add(toKey(secondaryIndex.getColumnInfo().getColumnType(), key));
+    } finally {
+      lock.readLock().unlock();
+    }
+    return keys;
+  }
+
+  @SuppressWarnings("unchecked")
+  public Map<SecondaryIndex, Collection<Object>> getAllSecondaryIndexKeysOfResourceId(Resource resource, Object id) {
+    Map<SecondaryIndex, Collection<Object>> keys = new LinkedHashMap<SecondaryIndex, Collection<Object>>();
+    for (SecondaryIndex secondaryIndex : resource.getSecondaryIndexes())
+      keys.put(secondaryIndex, getSecondaryIndexKeysOfResourceId(secondaryIndex, id));
+    return keys;
+  }
+
+  public Object insertPrimaryIndexKey(Node node, Object primaryIndexKey) {
+    long key = toLong(primaryIndexKey);
+    lock.writeLock().lock();
+    try {
+      for (long semaphore : read(primaryTable()).get(key))
+        if (nodeOf(semaphore) == node.getId())
+          return primaryIndexKey;
+      put(primaryTable(), key, semaphore(node.getId(), Lockable.Status.writable.getValue()));
+      flush();
+    } finally {
+      lock.writeLock().unlock();
+    }
+    return primaryIndexKey;
+  }
+
+  public Object updatePrimaryIndexKeyReadOnly(Object primaryIndexKey, boolean readOnly) {
+    long key = toLong(primaryIndexKey);
+    int status = (readOnly ? Lockable.Status.readOnly : Lockable.Status.writable).getValue();
+    lock.writeLock().lock();
+    try {
+      for (long semaphore : read(primaryTable()).get(key)) {
+        remove(primaryTable(), key, semaphore);
+        put(primaryTable(), key, semaphore(nodeOf(semaphore), status));
+      }
+      flush();
+    } finally {
+      lock.writeLock().unlock();
+    }
+    return primaryIndexKey;
+  }
+
+  /**
+   * Deletes the primary index key along with the resource ids it owns and their secondary index keys.
+   */
+  public void deletePrimaryIndexKey(Object primaryIndexKey) {
+    long key = toLong(primaryIndexKey);
+    lock.writeLock().lock();
+    try {
+      for (Resource resource : partitionDimension.getResources()) {
+        if (resource.isPartitioningResource())
+          removeSecondaryIndexKeysOfResourceId(resource, key);
+        else
+          for (long id : read(reverse(resourceTable(resource))).get(key)) {
+            removeSecondaryIndexKeysOfResourceId(resource, id);
+            removeResourceId(resource, id, key);
+          }
+      }
+      for (long semaphore : read(primaryTable()).get(key))
+        remove(primaryTable(), key, semaphore);
+      flush();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public Object insertResourceId(Resource resource, Object id, Object primaryIndexKey) {
+    long resourceId = toLong(id);
+    lock.writeLock().lock();
+    try {
+      if (!read(resourceTable(resource)).containsKey(resourceId)) {
+        put(resourceTable(resource), resourceId, toLong(primaryIndexKey));
+        put(reverse(resourceTable(resource)), toLong(primaryIndexKey), resourceId);
+        flush();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    return id;
+  }
+
+  public Object updatePrimaryIndexKeyOfResourceId(Resource resource, Object resourceId, Object newPrimaryIndexKey) {
+    long id = toLong(resourceId);
+    lock.writeLock().lock();
+    try {
+      for (long oldKey : read(resourceTable(resource)).get(id)) {
+        removeResourceId(resource, id, oldKey);
+        put(resourceTable(resource), id, toLong(newPrimaryIndexKey));
+        put(reverse(resourceTable(resource)), toLong(newPrimaryIndexKey), id);
+      }
+      flush();
+    } finally {
+      lock.writeLock().unlock();
+    }
+    return resourceId;
+  }
+
+  /**
+   * Like {@link DbDirectory#deleteResourceId(Resource, Object)} this leaves the secondary index keys
+   * of the resource id in place.
+   */
+  public void deleteResourceId(Resource resource, Object id) {
+    long resourceId = toLong(id);
+    lock.writeLock().lock();
+    try {
+      for (long key : read(resourceTable(resource)).get(resourceId))
+        removeResourceId(resource, resourceId, key);
+      flush();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public Object insertSecondaryIndexKey(SecondaryIndex secondaryIndex, Object secondaryIndexKey, Object resourceId) {
+    lock.writeLock().lock();
+    try {
+      putSecondaryIndexKey(secondaryIndex, toLong(secondaryIndexKey), toLong(resourceId));
+      flush();
+    } finally {
+      lock.writeLock().unlock();
+    }
+    return secondaryIndexKey;
+  }
+
+  public void deleteSecondaryIndexKey(SecondaryIndex index, Object secondaryIndexKey, Object resourceId) {
+    lock.writeLock().lock();
+    try {
+      removeSecondaryIndexKey(index, toLong(secondaryIndexKey), toLong(resourceId));
+      flush();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public Object insertSecondaryIndexKeys(Map<SecondaryIndex, Collection<Object>> secondaryIndexValueMap, Object resourceId) {
+    long id = toLong(resourceId);
+    lock.writeLock().lock();
+    try {
+      for (Map.Entry<SecondaryIndex, Collection<Object>> entry : secondaryIndexValueMap.entrySet())
+        for (Object key : entry.getValue())
+          putSecondaryIndexKey(entry.getKey(), toLong(key), id);
+      flush();
+    } finally {
+      lock.writeLock().unlock();
+    }
+    return resourceId;
+  }
+
+  /**
+   * The ids are copied out under the read lock and handed over after it is released, so the
+   * handler may write to the directory.
+   */
+  public long streamResourceIdsOfPrimaryIndexKey(Resource resource, Object primaryIndexKey, KeyHandler handler) {
+    long[] ids;
+    lock.readLock().lock();
+    try {
+      ids = read(reverse(resourceTable(resource))).get(toLong(primaryIndexKey));
+    } finally {
+      lock.readLock().unlock();
+    }
+    return handle(resource.getColumnType(), ids, handler);
+  }
+
+  public long streamPrimaryIndexKeys(KeyHandler handler) {
+    return streamKeys(primaryTable(), partitionDimension.getColumnType(), handler);
+  }
+
+  public long streamResourceIds(Resource resource, KeyHandler handler) {
+    if (resource.isPartitioningResource())
+      return streamPrimaryIndexKeys(handler);
+    return streamKeys(resourceTable(resource), resource.getColumnType(), handler);
+  }
+
+  public Map<Integer, Long> countPrimaryIndexKeysByNode() {
+    Map<Integer, Long> counts = new HashMap<Integer, Long>();
+    lock.readLock().lock();
+    try {
+      LongMultiMap primary = read(primaryTable());
+      for (long key : primary.keys())
+        for (long semaphore : primary.get(key)) {
+          Long count = counts.get(nodeOf(semaphore));
+          counts.put(nodeOf(semaphore), count == null ? 1 : count + 1);
+        }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return counts;
+  }
+
+  private long streamKeys(String table, int columnType, KeyHandler handler) {
+    long[] keys;
+    lock.readLock().lock();
+    try {
+      keys = read(table).keys();
+    } finally {
+      lock.readLock().unlock();
+    }
+    return handle(columnType, keys, handler);
+  }
+
+  public long streamSecondaryIndexKeysOfPrimaryIndexKey(SecondaryIndex secondaryIndex, Object primaryIndexKey, KeyHandler handler) {
+    Resource resource = secondaryIndex.getResource();
+    long key = toLong(primaryIndexKey);
+    long[] ids;
+    lock.readLock().lock();
+    try {
+      ids = resource.isPartitioningResource() ? new long[]{key} : read(reverse(resourceTable(resource))).get(key);
+    } finally {
+      lock.readLock().unlock();
+    }
+    long count = 0;
+    for (long id : ids) {
+      long[] keys;
+      lock.readLock().lock();
+      try {
+        keys = read(reverse(secondaryTable(secondaryIndex))).get(id);
+      } finally {
+        lock.readLock().unlock();
+      }
+      for (long secondaryIndexKey : keys) {
+        count++;
+        if (!handler.handle(toKey(secondaryIndex.getColumnInfo().getColumnType(), secondaryIndexKey)))
+          return count;
+      }
+    }
+    return count;
+  }
+
+  private static long handle(int columnType, long[] keys, KeyHandler handler) {
+    long count = 0;
+    for (long key : keys) {
+      count++;
+      if (!handler.handle(toKey(columnType, key)))
+        break;
+    }
+    return count;
+  }
+
+  public Collection<KeySemaphore> indexEntity(Node node, Object primaryIndexKey, Resource resource, Object resourceId, Map<SecondaryIndex, Collection<Object>> secondaryIndexValueMap) {
+    lock.writeLock().lock();
+    try {
+      Collection<KeySemaphore> semaphores = getKeySemamphoresOfPrimaryIndexKey(primaryIndexKey);
+      if (semaphores.size() == 0) {
+        insertPrimaryIndexKey(node, primaryIndexKey);
+        semaphores = getKeySemamphoresOfPrimaryIndexKey(primaryIndexKey);
+      }
+      for (KeySemaphore semaphore : semaphores)
+        if (semaphore.getStatus() != Lockable.Status.writable)
+          return semaphores;
+      if (!resource.isPartitioningResource())
+        insertResourceId(resource, resourceId, primaryIndexKey);
+      insertSecondaryIndexKeys(secondaryIndexValueMap, resourceId);
+      return semaphores;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public void deleteSecondaryIndexKeys(Map<SecondaryIndex, Collection<Object>> secondaryIndexValueMap, Object resourceId) {
+    long id = toLong(resourceId);
+    lock.writeLock().lock();
+    try {
+      for (Map.Entry<SecondaryIndex, Collection<Object>> entry : secondaryIndexValueMap.entrySet())
+        for (Object key : entry.getValue())
+          removeSecondaryIndexKey(entry.getKey(), toLong(key), id);
+      flush();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Copies the rows of the index tables into the directory, streaming them. Used to seed a new
+   * directory from an existing hive.
+   */
+  public void importFrom(JdbcTemplate template, HiveDbDialect dialect) {
+    lock.writeLock().lock();
+    try {
+      Statements.stream(template, dialect, String.format("select id, node, status from %s", primaryTable()), new RowCallbackHandler() {
+        public void processRow(ResultSet rs) throws SQLException {
+          put(primaryTable(), rs.getLong("id"), semaphore(rs.getInt("node"), rs.getInt("status")));
+        }
+      });
+      for (final Resource resource : partitionDimension.getResources()) {
+        if (!resource.isPartitioningResource())
+          Statements.stream(template, dialect, String.format("select id, pkey from %s", resourceTable(resource)), new RowCallbackHandler() {
+            public void processRow(ResultSet rs) throws SQLException {
+              put(resourceTable(resource), rs.getLong("id"), rs.getLong("pkey"));
+              put(reverse(resourceTable(resource)), rs.getLong("pkey"), rs.getLong("id"));
+            }
+          });
+        for (final SecondaryIndex secondaryIndex : resource.getSecondaryIndexes())
+          Statements.stream(template, dialect, String.format("select id, pkey from %s", secondaryTable(secondaryIndex)), new RowCallbackHandler() {
+            public void processRow(ResultSet rs) throws SQLException {
+              putSecondaryIndexKey(secondaryIndex, rs.getLong("id"), rs.getLong("pkey"));
+            }
+          });
+      }
+      flush();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Writes every table to a new snapshot, replaces the old one with it and starts an empty log.
+   * Writes wait while the snapshot is taken.
+   */
+  public void snapshot() {
+    if (dataDirectory == null)
+      throw new HiveRuntimeException("MemoryDirectory has no data directory to snapshot to");
+    lock.writeLock().lock();
+    try {
+      File temporary = new File(dataDirectory, SNAPSHOT_FILE + ".tmp");
+      File snapshot = new File(dataDirectory, SNAPSHOT_FILE);
+      FileOutputStream out = new FileOutputStream(temporary);
+      try {
+        FileChannel channel = out.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(SNAPSHOT_MAGIC).putInt(tables.size()).flip();
+        channel.write(header);
+        for (Map.Entry<String, LongMultiMap> table : tables.entrySet()) {
+          byte[] name = table.getKey().getBytes("UTF-8");
+          ByteBuffer nameBuffer = ByteBuffer.allocate(4 + name.length);
+          nameBuffer.putInt(name.length).put(name).flip();
+          while (nameBuffer.hasRemaining())
+            channel.write(nameBuffer);
+          table.getValue().writeTo(channel);
+        }
+        channel.force(true);
+      } finally {
+        out.close();
+      }
+      if (!temporary.renameTo(snapshot) && !(snapshot.delete() && temporary.renameTo(snapshot)))
+        throw new IOException(String.format("Unable to replace snapshot %s", snapshot));
+      closeLog();
+      openLog(false);
+      log.info(String.format("Wrote directory snapshot of %s tables to %s", tables.size(), snapshot));
+    } catch (IOException e) {
+      throw new HiveRuntimeException(String.format("Unable to snapshot the directory to %s", dataDirectory), e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Flushes and closes the log and releases the data directory. The directory must not be written to
+   * afterwards.
+   */
+  public void close() {
+    lock.writeLock().lock();
+    try {
+      closeLog();
+      if (lockChannel != null) {
+        lockChannel.close();
+        lockChannel = null;
+      }
+    } catch (IOException e) {
+      throw new HiveRuntimeException("Unable to close the directory log", e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * The number of keys in a directory table, by its index table name.
+   */
+  public int size(String table) {
+    lock.readLock().lock();
+    try {
+      return read(table).size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private Collection<KeySemaphore> semaphoresOf(Object key, long primaryIndexKey) {
+    Collection<KeySemaphore> semaphores = new ArrayList<KeySemaphore>();
+    for (long semaphore : read(primaryTable()).get(primaryIndexKey))
+      semaphores.add(new KeySemaphoreImpl(key, nodeOf(semaphore), Lockable.Status.getByValue(statusOf(semaphore))));
+    return semaphores;
+  }
+
+  private Collection<KeySemaphore> semaphoresOfResourceId(Resource resource, Object key, long id) {
+    if (resource.isPartitioningResource())
+      return semaphoresOf(key, id);
+    Collection<KeySemaphore> semaphores = new ArrayList<KeySemaphore>();
+    for (long primaryIndexKey : read(resourceTable(resource)).get(id))
+      semaphores.addAll(semaphoresOf(key, primaryIndexKey));
+    return semaphores;
+  }
+
+  private Collection<KeySemaphore> semaphoresOfSecondaryIndexKey(SecondaryIndex secondaryIndex, Object key, long secondaryIndexKey) {
+    Map<Integer, KeySemaphore> byNode = new LinkedHashMap<Integer, KeySemaphore>();
+    for (long id : read(secondaryTable(secondaryIndex)).get(secondaryIndexKey))
+      for (KeySemaphore semaphore : semaphoresOfResourceId(secondaryIndex.getResource(), key, id))
+        if (!byNode.containsKey(semaphore.getNodeId()))
+          byNode.put(semaphore.getNodeId(), semaphore);
+    return new ArrayList<KeySemaphore>(byNode.values());
+  }
+
+  private void putSecondaryIndexKey(SecondaryIndex secondaryIndex, long key, long id) {
+    put(secondaryTable(secondaryIndex), key, id);
+    put(reverse(secondaryTable(secondaryIndex)), id, key);
+  }
+
+  private void removeSecondaryIndexKey(SecondaryIndex secondaryIndex, long key, long id) {
+    remove(secondaryTable(secondaryIndex), key, id);
+    remove(reverse(secondaryTable(secondaryIndex)), id, key);
+  }
+
+  private void removeSecondaryIndexKeysOfResourceId(Resource resource, long id) {
+    for (SecondaryIndex secondaryIndex : resource.getSecondaryIndexes())
+      for (long key : read(reverse(secondaryTable(secondaryIndex))).get(id))
+        removeSecondaryIndexKey(secondaryIndex, key, id);
+  }
+
+  private void removeResourceId(Resource resource, long id, long primaryIndexKey) {
+    remove(resourceTable(resource), id, primaryIndexKey);
+    remove(reverse(resourceTable(resource)), primaryIndexKey, id);
+  }
+
+  private LongMultiMap read(String table) {
+    LongMultiMap map = tables.get(table);
+    return map == null ? EMPTY : map;
+  }
+
+  private LongMultiMap write(String table) {
+    LongMultiMap map = tables.get(table);
+    if (map == null) {
+      map = new LongMultiMap(expectedSize);
+      tables.put(table, map);
+    }
+    return map;
+  }
+
+  private void put(String table, long key, long value) {
+    if (write(table).put(key, value))
+      append(PUT, table, key, value);
+  }
+
+  private void remove(String table, long key, long value) {
+    if (read(table).remove(key, value))
+      append(REMOVE, table, key, value);
+  }
+
+  private void append(byte operation, String table, long key, long value) {
+    if (logStream == null)
+      return;
+    try {
+      logStream.writeByte(operation);
+      logStream.writeUTF(table);
+      logStream.writeLong(key);
+      logStream.writeLong(value);
+    } catch (IOException e) {
+      throw new HiveRuntimeException(String.format("Unable to append to the directory log in %s", dataDirectory), e);
+    }
+  }
+
+  private void flush() {
+    if (logStream == null)
+      return;
+    try {
+      logStream.flush();
+      if (syncOnWrite)
+        logFile.getFD().sync();
+    } catch (IOException e) {
+      throw new HiveRuntimeException(String.format("Unable to write the directory log in %s", dataDirectory), e);
+    }
+  }
+
+  private void readSnapshot() throws IOException {
+    File snapshot = new File(dataDirectory, SNAPSHOT_FILE);
+    if (!snapshot.exists())
+      return;
+    FileInputStream in = new FileInputStream(snapshot);
+    try {
+      FileChannel channel = in.getChannel();
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.getInt() != SNAPSHOT_MAGIC)
+        throw new IOException(String.format("%s is not a directory snapshot", snapshot));
+      int count = buffer.getInt();
+      for (int i = 0; i < count; i++) {
+        byte[] name = new byte[buffer.getInt()];
+        buffer.get(name);
+        tables.put(new String(name, "UTF-8"), LongMultiMap.readFrom(buffer));
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Applies the changes logged since the snapshot. A record cut short by a crash is dropped and
+   * the log truncated before it, so later records are appended to a well formed log.
+   */
+  private void replayLog() throws IOException {
+    File file = new File(dataDirectory, LOG_FILE);
+    if (!file.exists())
+      return;
+    long valid = 0;
+    int records = 0;
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      while (true) {
+        byte operation = in.readByte();
+        String table = in.readUTF();
+        long key = in.readLong(), value = in.readLong();
+        if (operation == PUT)
+          write(table).put(key, value);
+        else if (operation == REMOVE)
+          read(table).remove(key, value);
+        else
+          throw new IOException(String.format("Unknown operation %s in the directory log %s", operation, file));
+        valid += 1 + 2 + table.getBytes("UTF-8").length + 16;
+        records++;
+      }
+    } catch (EOFException e) {
+      // the end of the log, possibly inside a record that was never completely written
+    } finally {
+      in.close();
+    }
+    if (valid < file.length()) {
+      log.warn(String.format("Dropping %s bytes of an incomplete record at the end of %s", file.length() - valid, file));
+      RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+      try {
+        truncated.setLength(valid);
+      } finally {
+        truncated.close();
+      }
+    }
+    log.info(String.format("Replayed %s directory log records from %s", records, file));
+  }
+
+  private void lockDataDirectory() throws IOException {
+    FileChannel channel = new RandomAccessFile(new File(dataDirectory, LOCK_FILE), "rw").getChannel();
+    FileLock fileLock;
+    try {
+      fileLock = channel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      fileLock = null;
+    }
+    if (fileLock == null) {
+      channel.close();
+      throw new HiveRuntimeException(String.format("The directory data directory %s is in use by another MemoryDirectory", dataDirectory));
+    }
+    lockChannel = channel;
+  }
+
+  private void openLog(boolean append) throws IOException {
+    logFile = new FileOutputStream(new File(dataDirectory, LOG_FILE), append);
+    logStream = new DataOutputStream(new BufferedOutputStream(logFile));
+  }
+
+  private void closeLog() throws IOException {
+    if (logStream != null) {
+      logStream.close();
+      logStream = null;
+      logFile = null;
+    }
+  }
+
+  private String primaryTable() {
+    return Schemas.getPrimaryIndexTableName(partitionDimension);
+  }
+
+  private String resourceTable(Resource resource) {
+    return Schemas.getResourceIndexTableName(resource);
+  }
+
+  private String secondaryTable(SecondaryIndex secondaryIndex) {
+    return Schemas.getSecondaryIndexTableName(secondaryIndex);
+  }
+
+  private static String reverse(String table) {
+    return table + REVERSE;
+  }
+
+  private static long semaphore(int node, int status) {
+    return ((long) node << 32) | (status & 0xffffffffL);
+  }
+
+  private static int nodeOf(long semaphore) {
+    return (int) (semaphore >>> 32);
+  }
+
+  private static int statusOf(long semaphore) {
+    return (int) semaphore;
+  }
+
+  private static boolean isIntegral(int columnType) {
+    return columnType == Types.BIGINT || columnType == Types.INTEGER
+        || columnType == Types.SMALLINT || columnType == Types.TINYINT;
+  }
+
+  static long toLong(Object key) {
+    if (key instanceof Number)
+      return ((Number) key).longValue();
+    if (key instanceof String)
+      try {
+        return Long.parseLong((String) key);
+      } catch (NumberFormatException e) {
+        // fall through
+      }
+    throw new HiveRuntimeException(String.format("%s is not an integral key", key));
+  }
+
+  private static Object toKey(int columnType, long value) {
+    return columnType == Types.BIGINT ? (Object) value : (Object) (int) value;
+  }
+}
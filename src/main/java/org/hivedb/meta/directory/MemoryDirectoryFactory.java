@@ -0,0 +1,91 @@
+package org.hivedb.meta.directory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hivedb.meta.PartitionDimension;
+import org.hivedb.meta.persistence.DataSourceProvider;
+import org.hivedb.meta.persistence.PartitionDimensionDao;
+import org.hivedb.util.database.DriverLoader;
+import org.hivedb.util.database.Schemas;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.File;
+
+/**
+ * Provides a single {@link MemoryDirectory} persisted to a data directory, handing it the partition
+ * dimension of each new hive revision. The first time the data directory is used the memory directory
+ * is seeded from the index tables of the hive and snapshotted, later starts restore it from the
+ * snapshot and log alone.
+ * <p/>
+ * The memory directory is wrapped in a {@link WriteThroughDirectory}, so writes reach the index
+ * tables, which remain the system of record, through the directories of the given store provider.
+ * The memory directory only sees writes made through it, so the factory takes the
+ * {@link DirectoryWriterLock} of the partition dimension in the index database before opening it and
+ * fails if another process holds it. The lock is held until {@link #close()}.
+ */
+public class MemoryDirectoryFactory implements DirectoryProvider {
+  private final static Log log = LogFactory.getLog(MemoryDirectoryFactory.class);
+  private DataSourceProvider provider;
+  private DirectoryProvider store;
+  private File dataDirectory;
+  private MemoryDirectory directory;
+  private DirectoryWriterLock writerLock;
+
+  public MemoryDirectoryFactory(DataSourceProvider provider, File dataDirectory) {
+    this(provider, new DbDirectoryFactory(provider), dataDirectory);
+  }
+
+  /**
+   * @param store provides the directories written through to
+   */
+  public MemoryDirectoryFactory(DataSourceProvider provider, DirectoryProvider store, File dataDirectory) {
+    this.provider = provider;
+    this.store = store;
+    this.dataDirectory = dataDirectory;
+  }
+
+  public synchronized WriteThroughDirectory getDirectory(String hiveConfigurationUri) {
+    PartitionDimension dimension = new PartitionDimensionDao(provider.getDataSource(hiveConfigurationUri)).get();
+    Directory storeDirectory = store.getDirectory(hiveConfigurationUri);
+    if (directory != null) {
+      directory.setPartitionDimension(dimension);
+      return new WriteThroughDirectory(storeDirectory, directory);
+    }
+    writerLock = new DirectoryWriterLock(provider.getDataSource(dimension.getIndexUri()), dimension.getIndexUri(), dimension.getName());
+    writerLock.acquire();
+    boolean seed = !new File(dataDirectory, MemoryDirectory.SNAPSHOT_FILE).exists();
+    try {
+      directory = new MemoryDirectory(dimension, dataDirectory);
+    } catch (RuntimeException e) {
+      writerLock.release();
+      throw e;
+    }
+    if (seed && directory.size(Schemas.getPrimaryIndexTableName(dimension)) == 0) {
+      directory.importFrom(
+          new JdbcTemplate(provider.getDataSource(dimension.getIndexUri())),
+          DriverLoader.discernDialect(dimension.getIndexUri()));
+      directory.snapshot();
+      log.info(String.format("Seeded the memory directory in %s from %s", dataDirectory, dimension.getIndexUri()));
+    }
+    return new WriteThroughDirectory(storeDirectory, directory);
+  }
+
+  public MemoryDirectory getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Closes the memory directory and releases the writer lock, after which another process may write
+   * the directory.
+   */
+  public synchronized void close() {
+    try {
+      if (directory != null)
+        directory.close();
+    } finally {
+      directory = null;
+      if (writerLock != null)
+        writerLock.release();
+    }
+  }
+}
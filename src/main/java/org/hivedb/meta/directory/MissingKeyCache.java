@@ -0,0 +1,201 @@
+package org.hivedb.meta.directory;
+
+import org.hivedb.meta.PartitionDimension;
+import org.hivedb.meta.Resource;
+import org.hivedb.meta.SecondaryIndex;
+import org.hivedb.util.LruCache;
+import org.hivedb.util.database.DriverLoader;
+import org.hivedb.util.database.HiveDbDialect;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers, for a short time, primary index keys, resource ids and secondary index keys the
+ * directory reported missing, so clients probing for ids that do not exist are answered without a
+ * query. Each entry expires after the time to live; {@link DirectoryWrapper} removes an entry as soon
+ * as it inserts the key, so only keys inserted by other processes can be reported missing, and only
+ * until the entry expires.
+ * <p/>
+ * A reader takes the version of a key before asking the directory and passes it when it records the
+ * key missing. The key is then not recorded if it was inserted through this cache in the meantime, so
+ * a reader that queried the directory before a local insert committed cannot hide the new key.
+ * <p/>
+ * Keys are normalized as their index column compares them, with
+ * {@link DbDirectory#normalizeKey(Object, int, HiveDbDialect)}, so an Integer and a Long of the same
+ * value, or strings the column's collation finds equal, are one entry. Otherwise inserting one form
+ * of a key would leave another form reported missing.
+ * <p/>
+ * The caches are bounded LRU caches holding the expiry time of each missing key. Hit counts are of
+ * unexpired entries only, so they count the directory queries saved.
+ */
+public class MissingKeyCache {
+  public static final int DEFAULT_CACHE_SIZE = 10000;
+  public static final long DEFAULT_TIME_TO_LIVE = 5000;
+  private LruCache<Object, Long> primaryIndexKeys;
+  private LruCache<List<Object>, Long> resourceIds;
+  private LruCache<List<Object>, Long> secondaryIndexKeys;
+  private long timeToLive;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong expirations = new AtomicLong();
+
+  public MissingKeyCache() {
+    this(DEFAULT_CACHE_SIZE, DEFAULT_TIME_TO_LIVE);
+  }
+
+  /**
+   * @param maxSize    the number of missing keys kept of each kind
+   * @param timeToLive milliseconds a key is reported missing for without asking the directory
+   */
+  public MissingKeyCache(int maxSize, long timeToLive) {
+    if (timeToLive < 1)
+      throw new IllegalArgumentException("The time to live of missing keys must be positive.");
+    this.primaryIndexKeys = new LruCache<Object, Long>(maxSize);
+    this.resourceIds = new LruCache<List<Object>, Long>(maxSize);
+    this.secondaryIndexKeys = new LruCache<List<Object>, Long>(maxSize);
+    this.timeToLive = timeToLive;
+  }
+
+  public boolean isPrimaryIndexKeyMissing(PartitionDimension dimension, Object primaryIndexKey) {
+    return isMissing(primaryIndexKeys, primaryIndexCacheKey(dimension, primaryIndexKey));
+  }
+
+  public long getPrimaryIndexKeyVersion(PartitionDimension dimension, Object primaryIndexKey) {
+    return primaryIndexKeys.getVersion(primaryIndexCacheKey(dimension, primaryIndexKey));
+  }
+
+  /**
+   * @param version the {@link #getPrimaryIndexKeyVersion version} taken before the directory was asked
+   */
+  public void primaryIndexKeyMissing(PartitionDimension dimension, Object primaryIndexKey, long version) {
+    primaryIndexKeys.putIfVersion(primaryIndexCacheKey(dimension, primaryIndexKey), expiry(), version);
+  }
+
+  public void primaryIndexKeyInserted(PartitionDimension dimension, Object primaryIndexKey) {
+    primaryIndexKeys.remove(primaryIndexCacheKey(dimension, primaryIndexKey));
+  }
+
+  public boolean isResourceIdMissing(Resource resource, Object resourceId) {
+    return isMissing(resourceIds, resourceCacheKey(resource, resourceId));
+  }
+
+  public long getResourceIdVersion(Resource resource, Object resourceId) {
+    return resourceIds.getVersion(resourceCacheKey(resource, resourceId));
+  }
+
+  public void resourceIdMissing(Resource resource, Object resourceId, long version) {
+    resourceIds.putIfVersion(resourceCacheKey(resource, resourceId), expiry(), version);
+  }
+
+  public void resourceIdInserted(Resource resource, Object resourceId) {
+    resourceIds.remove(resourceCacheKey(resource, resourceId));
+  }
+
+  /**
+   * A secondary index key is missing if no resource id has it.
+   */
+  public boolean isSecondaryIndexKeyMissing(SecondaryIndex secondaryIndex, Object secondaryIndexKey) {
+    return isMissing(secondaryIndexKeys, secondaryIndexCacheKey(secondaryIndex, secondaryIndexKey));
+  }
+
+  public long getSecondaryIndexKeyVersion(SecondaryIndex secondaryIndex, Object secondaryIndexKey) {
+    return secondaryIndexKeys.getVersion(secondaryIndexCacheKey(secondaryIndex, secondaryIndexKey));
+  }
+
+  public void secondaryIndexKeyMissing(SecondaryIndex secondaryIndex, Object secondaryIndexKey, long version) {
+    secondaryIndexKeys.putIfVersion(secondaryIndexCacheKey(secondaryIndex, secondaryIndexKey), expiry(), version);
+  }
+
+  public void secondaryIndexKeyInserted(SecondaryIndex secondaryIndex, Object secondaryIndexKey) {
+    secondaryIndexKeys.remove(secondaryIndexCacheKey(secondaryIndex, secondaryIndexKey));
+  }
+
+  public void clear() {
+    primaryIndexKeys.clear();
+    resourceIds.clear();
+    secondaryIndexKeys.clear();
+  }
+
+  public long getTimeToLive() {
+    return timeToLive;
+  }
+
+  public int getMaxSize() {
+    return primaryIndexKeys.getMaxSize();
+  }
+
+  /**
+   * The number of lookups answered as missing without a directory query.
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * The number of lookups that went to the directory, including those of expired keys.
+   */
+  public long getMissCount() {
+    return primaryIndexKeys.getMissCount() + resourceIds.getMissCount() + secondaryIndexKeys.getMissCount() + expirations.get();
+  }
+
+  public long getExpirationCount() {
+    return expirations.get();
+  }
+
+  public void resetStatistics() {
+    hits.set(0);
+    expirations.set(0);
+    primaryIndexKeys.resetStatistics();
+    resourceIds.resetStatistics();
+    secondaryIndexKeys.resetStatistics();
+  }
+
+  private <K> boolean isMissing(LruCache<K, Long> cache, K key) {
+    Long expiry = cache.get(key);
+    if (expiry == null)
+      return false;
+    if (expiry < System.currentTimeMillis()) {
+      cache.remove(key);
+      expirations.incrementAndGet();
+      return false;
+    }
+    hits.incrementAndGet();
+    return true;
+  }
+
+  private long expiry() {
+    return System.currentTimeMillis() + timeToLive;
+  }
+
+  private static Object primaryIndexCacheKey(PartitionDimension dimension, Object primaryIndexKey) {
+    return DbDirectory.normalizeKey(primaryIndexKey, dimension.getColumnType(), getDialect(dimension));
+  }
+
+  private static List<Object> resourceCacheKey(Resource resource, Object resourceId) {
+    return Arrays.asList(new Object[]{
+        resource.getName().toLowerCase(),
+        DbDirectory.normalizeKey(resourceId, resource.getColumnType(), getDialect(resource.getPartitionDimension()))});
+  }
+
+  private static List<Object> secondaryIndexCacheKey(SecondaryIndex secondaryIndex, Object secondaryIndexKey) {
+    Resource resource = secondaryIndex.getResource();
+    return Arrays.asList(new Object[]{
+        resource.getName().toLowerCase(),
+        secondaryIndex.getName().toLowerCase(),
+        DbDirectory.normalizeKey(secondaryIndexKey, secondaryIndex.getColumnInfo().getColumnType(), getDialect(resource.getPartitionDimension()))});
+  }
+
+  /**
+   * The dialect of the index database, or null if the dimension does not name one, in which case
+   * keys are compared without the MySQL collation rules.
+   */
+  private static HiveDbDialect getDialect(PartitionDimension dimension) {
+    return dimension == null || dimension.getIndexUri() == null ? null : DriverLoader.discernDialect(dimension.getIndexUri());
+  }
+
+  public String toString() {
+    return String.format("MissingKeyCache hits: %s misses: %s expired: %s primary: %s resource: %s secondary: %s",
+        getHitCount(), getMissCount(), getExpirationCount(), primaryIndexKeys.size(), resourceIds.size(), secondaryIndexKeys.size());
+  }
+}
@@ -0,0 +1,493 @@
+package org.hivedb.meta.directory;
+
+import org.hivedb.HiveKeyNotFoundException;
+import org.hivedb.HiveRuntimeException;
+import org.hivedb.Lockable.Status;
+import org.hivedb.meta.Node;
+import org.hivedb.meta.Resource;
+import org.hivedb.meta.SecondaryIndex;
+import org.hivedb.util.LruCache;
+import org.hivedb.util.database.HiveDbDialect;
+import org.hivedb.util.functional.Atom;
+import org.hivedb.util.functional.Unary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A Directory spread over several index databases. Each primary index key is hashed to one shard and
+ * the resource ids and secondary index keys it owns are stored on the same shard, so every query that
+ * joins the index tables stays local to a shard.
+ * <p/>
+ * Lookups by primary index key go to a single shard. Lookups by secondary index key cannot be routed
+ * by key, so they are fanned out to all shards in parallel and the results merged. The shard of each
+ * resource id, other than those of the partitioning resource, is recorded in a route table on the
+ * shard the id hashes to and cached, so a lookup by resource id reads at most the route and the
+ * shard it names. An id without a route is not in the directory.
+ * <p/>
+ * Moving a resource id to a primary index key on another shard copies its rows to the new shard and
+ * routes the id there before deleting them from the old one. The two shards do not share a
+ * transaction; if the move fails midway the id is found on both shards and retrying the move
+ * completes it. Moves and deletes therefore search all shards for the id.
+ * <p/>
+ * Keys are hashed as their index columns compare them, so the shards are expected to share a dialect.
+ */
+public class PartitionedDirectory implements Directory {
+  public static final int DEFAULT_ROUTE_CACHE_SIZE = 100000;
+  public static final long DEFAULT_ROUTE_MAX_AGE = 10000;
+  private List<DbDirectory> shards;
+  private ExecutorService executor;
+  private LruCache<List<Object>, Integer> routes;
+  private HiveDbDialect dialect;
+
+  public PartitionedDirectory(List<DbDirectory> shards, ExecutorService executor) {
+    this(shards, executor, new LruCache<List<Object>, Integer>(DEFAULT_ROUTE_CACHE_SIZE, DEFAULT_ROUTE_MAX_AGE));
+  }
+
+  /**
+   * @param routes caches the shard index of resource ids read from the route tables. It may be shared
+   * by the directories of successive revisions over the same shards. Other directories may move ids,
+   * so its entries should expire.
+   */
+  public PartitionedDirectory(List<DbDirectory> shards, ExecutorService executor, LruCache<List<Object>, Integer> routes) {
+    if (shards.size() == 0)
+      throw new HiveRuntimeException("A partitioned directory needs at least one index shard.");
+    this.shards = shards;
+    this.executor = executor;
+    this.routes = routes;
+    this.dialect = shards.get(0).getDialect();
+  }
+
+  public List<DbDirectory> getShards() {
+    return Collections.unmodifiableList(shards);
+  }
+
+  /**
+   * The shard that stores a primary index key and everything it owns. Keys are hashed as the
+   * primary index compares them, so an Integer key and its Long or String form land on the same
+   * shard.
+   */
+  public DbDirectory getShard(Object primaryIndexKey) {
+    return getShard(primaryIndexKey, shards.get(0).getPartitionDimension().getColumnType());
+  }
+
+  private DbDirectory getShard(Object key, int columnType) {
+    Object normalized = DbDirectory.normalizeKey(key, columnType, dialect);
+    return shards.get((normalized.toString().hashCode() & 0x7fffffff) % shards.size());
+  }
+
+  public boolean doesPrimaryIndexKeyExist(Object primaryIndexKey) {
+    return getShard(primaryIndexKey).doesPrimaryIndexKeyExist(primaryIndexKey);
+  }
+
+  public Collection<KeySemaphore> getKeySemamphoresOfPrimaryIndexKey(Object primaryIndexKey) {
+    return getShard(primaryIndexKey).getKeySemamphoresOfPrimaryIndexKey(primaryIndexKey);
+  }
+
+  /**
+   * Deletes the key and everything it owns from its shard, then the routes of the resource ids it
+   * owned, which may be on other shards.
+   */
+  @SuppressWarnings("unchecked")
+  public void deletePrimaryIndexKey(Object primaryIndexKey) {
+    DbDirectory shard = getShard(primaryIndexKey);
+    Map<Resource, Collection<Object>> owned = new LinkedHashMap<Resource, Collection<Object>>();
+    for (Resource resource : shard.getPartitionDimension().getResources())
+      if (!resource.isPartitioningResource())
+        owned.put(resource, new ArrayList<Object>(shard.getResourceIdsOfPrimaryIndexKey(resource, primaryIndexKey)));
+    shard.deletePrimaryIndexKey(primaryIndexKey);
+    for (Entry<Resource, Collection<Object>> entry : owned.entrySet())
+      for (Object resourceId : entry.getValue()) {
+        getShard(resourceId, entry.getKey().getColumnType()).unrouteResourceId(entry.getKey(), resourceId);
+        routes.remove(getRouteKey(entry.getKey(), resourceId));
+      }
+  }
+
+  public Collection<KeySemaphore> getKeySemaphoresOfResourceId(final Resource resource, final Object id) {
+    if (resource.isPartitioningResource())
+      return getShard(id).getKeySemaphoresOfResourceId(resource, id);
+    List<Object> key = getRouteKey(resource, id);
+    Integer cached = routes.get(key);
+    DbDirectory routed = cached == null ? readRoute(resource, id) : shards.get(cached);
+    if (routed == null)
+      return Collections.emptyList();
+    Collection<KeySemaphore> semaphores = routed.getKeySemaphoresOfResourceId(resource, id);
+    if (semaphores.size() == 0 && cached != null) {
+      // the cached route is stale if another directory has since moved the id
+      routes.remove(key);
+      DbDirectory current = readRoute(resource, id);
+      if (current != null && current != routed)
+        semaphores = current.getKeySemaphoresOfResourceId(resource, id);
+    }
+    return semaphores;
+  }
+
+  public void deleteResourceId(Resource resource, Object id) {
+    for (DbDirectory shard : searchShardsOfResourceId(resource, id))
+      shard.deleteResourceId(resource, id);
+    if (!resource.isPartitioningResource()) {
+      getShard(id, resource.getColumnType()).unrouteResourceId(resource, id);
+      routes.remove(getRouteKey(resource, id));
+    }
+  }
+
+  public boolean doesSecondaryIndexKeyExist(SecondaryIndex index, Object secondaryIndexKey, Object resourceId) {
+    for (DbDirectory shard : getShardsOfResourceId(index.getResource(), resourceId))
+      if (shard.doesSecondaryIndexKeyExist(index, secondaryIndexKey, resourceId))
+        return true;
+    return false;
+  }
+
+  public void deleteSecondaryIndexKey(SecondaryIndex index, Object secondaryIndexKey, Object resourceId) {
+    for (DbDirectory shard : getShardsOfResourceId(index.getResource(), resourceId))
+      shard.deleteSecondaryIndexKey(index, secondaryIndexKey, resourceId);
+  }
+
+  public boolean doesResourceIdExist(Resource resource, Object resourceId) {
+    if (resource.isPartitioningResource())
+      return getShard(resourceId).doesResourceIdExist(resource, resourceId);
+    return getKeySemaphoresOfResourceId(resource, resourceId).size() > 0;
+  }
+
+  public Collection<KeySemaphore> getKeySemaphoresOfSecondaryIndexKey(final SecondaryIndex secondaryIndex, final Object secondaryIndexKey) {
+    return concat(fanOut(shards, new Unary<DbDirectory, Collection<KeySemaphore>>() {
+      public Collection<KeySemaphore> f(DbDirectory shard) {
+        return shard.getKeySemaphoresOfSecondaryIndexKey(secondaryIndex, secondaryIndexKey);
+      }
+    }));
+  }
+
+  public Collection<SecondaryIndexKeySemaphore> getSecondaryIndexKeySemaphoresOfSecondaryIndexKey(final SecondaryIndex secondaryIndex, final Object secondaryIndexKey) {
+    return concat(fanOut(shards, new Unary<DbDirectory, Collection<SecondaryIndexKeySemaphore>>() {
+      public Collection<SecondaryIndexKeySemaphore> f(DbDirectory shard) {
+        return shard.getSecondaryIndexKeySemaphoresOfSecondaryIndexKey(secondaryIndex, secondaryIndexKey);
+      }
+    }));
+  }
+
+  public Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfPrimaryIndexKeys(Collection<Object> primaryIndexKeys) {
+    final Map<DbDirectory, Collection<Object>> keysByShard = new LinkedHashMap<DbDirectory, Collection<Object>>();
+    for (Object key : primaryIndexKeys) {
+      DbDirectory shard = getShard(key);
+      if (!keysByShard.containsKey(shard))
+        keysByShard.put(shard, new ArrayList<Object>());
+      keysByShard.get(shard).add(key);
+    }
+    return merge(primaryIndexKeys, fanOut(keysByShard.keySet(), new Unary<DbDirectory, Map<Object, Collection<KeySemaphore>>>() {
+      public Map<Object, Collection<KeySemaphore>> f(DbDirectory shard) {
+        return shard.getKeySemaphoresOfPrimaryIndexKeys(keysByShard.get(shard));
+      }
+    }));
+  }
+
+  public Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfResourceIds(final Resource resource, final Collection<Object> resourceIds) {
+    if (resource.isPartitioningResource())
+      return getKeySemaphoresOfPrimaryIndexKeys(resourceIds);
+    return merge(resourceIds, fanOut(shards, new Unary<DbDirectory, Map<Object, Collection<KeySemaphore>>>() {
+      public Map<Object, Collection<KeySemaphore>> f(DbDirectory shard) {
+        return shard.getKeySemaphoresOfResourceIds(resource, resourceIds);
+      }
+    }));
+  }
+
+  public Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfSecondaryIndexKeys(final SecondaryIndex secondaryIndex, final Collection<Object> secondaryIndexKeys) {
+    return merge(secondaryIndexKeys, fanOut(shards, new Unary<DbDirectory, Map<Object, Collection<KeySemaphore>>>() {
+      public Map<Object, Collection<KeySemaphore>> f(DbDirectory shard) {
+        return shard.getKeySemaphoresOfSecondaryIndexKeys(secondaryIndex, secondaryIndexKeys);
+      }
+    }));
+  }
+
+  public Object insertPrimaryIndexKey(Node node, Object primaryIndexKey) {
+    return getShard(primaryIndexKey).insertPrimaryIndexKey(node, primaryIndexKey);
+  }
+
+  public Object insertResourceId(Resource resource, Object id, Object primaryIndexKey) {
+    DbDirectory shard = getShard(primaryIndexKey);
+    Object result = shard.insertResourceId(resource, id, primaryIndexKey);
+    route(resource, id, shard);
+    return result;
+  }
+
+  /**
+   * The resource id and its secondary index keys live with the primary index key, so the whole
+   * entity is indexed in one transaction against its shard.
+   */
+  public Collection<KeySemaphore> indexEntity(Node node, Object primaryIndexKey, Resource resource, Object resourceId, Map<SecondaryIndex, Collection<Object>> secondaryIndexValueMap) {
+    DbDirectory shard = getShard(primaryIndexKey);
+    Collection<KeySemaphore> semaphores = shard.indexEntity(node, primaryIndexKey, resource, resourceId, secondaryIndexValueMap);
+    for (KeySemaphore semaphore : semaphores)
+      if (semaphore.getStatus() != Status.writable)
+        return semaphores;
+    route(resource, resourceId, shard);
+    return semaphores;
+  }
+
+  public Object insertSecondaryIndexKey(SecondaryIndex secondaryIndex, Object secondaryIndexKey, Object resourceId) {
+    return getOwningShard(secondaryIndex.getResource(), resourceId).insertSecondaryIndexKey(secondaryIndex, secondaryIndexKey, resourceId);
+  }
+
+  public Object updatePrimaryIndexKeyOfResourceId(Resource resource, Object resourceId, Object newPrimaryIndexKey) {
+    DbDirectory target = getShard(newPrimaryIndexKey);
+    Collection<DbDirectory> sources = searchShardsOfResourceId(resource, resourceId);
+
+    for (DbDirectory source : sources) {
+      if (source == target)
+        continue;
+      Map<SecondaryIndex, Collection<Object>> secondaryIndexKeys = new LinkedHashMap<SecondaryIndex, Collection<Object>>();
+      for (SecondaryIndex secondaryIndex : resource.getSecondaryIndexes())
+        secondaryIndexKeys.put(secondaryIndex, new ArrayList<Object>(source.getSecondaryIndexKeysOfResourceId(secondaryIndex, resourceId)));
+      target.insertResourceId(resource, resourceId, newPrimaryIndexKey);
+      target.insertSecondaryIndexKeys(secondaryIndexKeys, resourceId);
+      route(resource, resourceId, target);
+      source.deleteSecondaryIndexKeys(secondaryIndexKeys, resourceId);
+      source.deleteResourceId(resource, resourceId);
+    }
+    Object result = target.updatePrimaryIndexKeyOfResourceId(resource, resourceId, newPrimaryIndexKey);
+    route(resource, resourceId, target);
+    return result;
+  }
+
+  public Object updatePrimaryIndexKeyReadOnly(Object primaryIndexKey, boolean readOnly) {
+    return getShard(primaryIndexKey).updatePrimaryIndexKeyReadOnly(primaryIndexKey, readOnly);
+  }
+
+  public Object getPrimaryIndexKeyOfResourceId(Resource resource, Object resourceId) {
+    return getOwningShard(resource, resourceId).getPrimaryIndexKeyOfResourceId(resource, resourceId);
+  }
+
+  public void deleteSecondaryIndexKeys(Map<SecondaryIndex, Collection<Object>> secondaryIndexValueMap, Object resourceId) {
+    if (secondaryIndexValueMap.size() == 0)
+      return;
+    Resource resource = Atom.getFirstOrThrow(secondaryIndexValueMap.keySet()).getResource();
+    for (DbDirectory shard : getShardsOfResourceId(resource, resourceId))
+      shard.deleteSecondaryIndexKeys(secondaryIndexValueMap, resourceId);
+  }
+
+  public Object insertSecondaryIndexKeys(Map<SecondaryIndex, Collection<Object>> secondaryIndexValueMap, Object resourceId) {
+    if (secondaryIndexValueMap.size() == 0)
+      return 0;
+    Resource resource = Atom.getFirstOrThrow(secondaryIndexValueMap.keySet()).getResource();
+    return getOwningShard(resource, resourceId).insertSecondaryIndexKeys(secondaryIndexValueMap, resourceId);
+  }
+
+  @SuppressWarnings("unchecked")
+  public Collection getSecondaryIndexKeysOfResourceId(SecondaryIndex secondaryIndex, Object id) {
+    Collection<Object> keys = new ArrayList<Object>();
+    for (DbDirectory shard : getShardsOfResourceId(secondaryIndex.getResource(), id))
+      keys.addAll(shard.getSecondaryIndexKeysOfResourceId(secondaryIndex, id));
+    return keys;
+  }
+
+  public Map<SecondaryIndex, Collection<Object>> getAllSecondaryIndexKeysOfResourceId(Resource resource, Object id) {
+    Map<SecondaryIndex, Collection<Object>> keys = new LinkedHashMap<SecondaryIndex, Collection<Object>>();
+    for (SecondaryIndex secondaryIndex : resource.getSecondaryIndexes())
+      keys.put(secondaryIndex, new ArrayList<Object>());
+    for (DbDirectory shard : getShardsOfResourceId(resource, id))
+      for (Map.Entry<SecondaryIndex, Collection<Object>> entry : shard.getAllSecondaryIndexKeysOfResourceId(resource, id).entrySet())
+        keys.get(entry.getKey()).addAll(entry.getValue());
+    return keys;
+  }
+
+  public long streamResourceIdsOfPrimaryIndexKey(Resource resource, Object primaryIndexKey, KeyHandler handler) {
+    return getShard(primaryIndexKey).streamResourceIdsOfPrimaryIndexKey(resource, primaryIndexKey, handler);
+  }
+
+  public long streamSecondaryIndexKeysOfPrimaryIndexKey(SecondaryIndex secondaryIndex, Object primaryIndexKey, KeyHandler handler) {
+    return getShard(primaryIndexKey).streamSecondaryIndexKeysOfPrimaryIndexKey(secondaryIndex, primaryIndexKey, handler);
+  }
+
+  /**
+   * Streams the shards one after another.
+   */
+  public long streamPrimaryIndexKeys(KeyHandler handler) {
+    StoppableHandler stoppable = new StoppableHandler(handler);
+    long count = 0;
+    for (Iterator<DbDirectory> i = shards.iterator(); i.hasNext() && !stoppable.stopped; )
+      count += i.next().streamPrimaryIndexKeys(stoppable);
+    return count;
+  }
+
+  public long streamResourceIds(Resource resource, KeyHandler handler) {
+    StoppableHandler stoppable = new StoppableHandler(handler);
+    long count = 0;
+    for (Iterator<DbDirectory> i = shards.iterator(); i.hasNext() && !stoppable.stopped; )
+      count += i.next().streamResourceIds(resource, stoppable);
+    return count;
+  }
+
+  public Map<Integer, Long> countPrimaryIndexKeysByNode() {
+    Map<Integer, Long> counts = new HashMap<Integer, Long>();
+    for (Map<Integer, Long> shardCounts : fanOut(shards, new Unary<DbDirectory, Map<Integer, Long>>() {
+      public Map<Integer, Long> f(DbDirectory shard) {
+        return shard.countPrimaryIndexKeysByNode();
+      }
+    }))
+      for (Entry<Integer, Long> count : shardCounts.entrySet())
+        counts.put(count.getKey(), counts.containsKey(count.getKey()) ? counts.get(count.getKey()) + count.getValue() : count.getValue());
+    return counts;
+  }
+
+  /**
+   * The shard holding a resource id, if any. A resource id lives with its primary index key, which
+   * is the id itself for the partitioning resource. Otherwise it is on its routed shard.
+   */
+  private Collection<DbDirectory> getShardsOfResourceId(Resource resource, Object resourceId) {
+    DbDirectory shard = resource.isPartitioningResource() ? getShard(resourceId) : getRoutedShard(resource, resourceId);
+    return shard == null ? Collections.<DbDirectory>emptyList() : Collections.singletonList(shard);
+  }
+
+  /**
+   * Every shard holding a resource id, which is more than one only after a failed move. Moves and
+   * deletes use this rather than the routed shard so they also clean up after a failed move.
+   */
+  private Collection<DbDirectory> searchShardsOfResourceId(final Resource resource, final Object resourceId) {
+    if (resource.isPartitioningResource()) {
+      DbDirectory shard = getShard(resourceId);
+      return shard.doesPrimaryIndexKeyExist(resourceId)
+          ? Collections.singletonList(shard)
+          : Collections.<DbDirectory>emptyList();
+    }
+    List<Boolean> found = fanOut(shards, new Unary<DbDirectory, Boolean>() {
+      public Boolean f(DbDirectory shard) {
+        return shard.doesResourceIdExist(resource, resourceId);
+      }
+    });
+    Collection<DbDirectory> owners = new ArrayList<DbDirectory>();
+    for (int i = 0; i < shards.size(); i++)
+      if (found.get(i))
+        owners.add(shards.get(i));
+    return owners;
+  }
+
+  /**
+   * Records the route of every id of the resource on the shards, for a route table created after
+   * the ids were written.
+   */
+  public void routeResourceIds(final Resource resource) {
+    for (final DbDirectory shard : shards)
+      shard.streamResourceIds(resource, new KeyHandler() {
+        public boolean handle(Object resourceId) {
+          getShard(resourceId, resource.getColumnType()).routeResourceId(resource, resourceId, shards.indexOf(shard));
+          return true;
+        }
+      });
+  }
+
+  private DbDirectory getRoutedShard(Resource resource, Object resourceId) {
+    Integer index = routes.get(getRouteKey(resource, resourceId));
+    return index == null ? readRoute(resource, resourceId) : shards.get(index);
+  }
+
+  private DbDirectory readRoute(Resource resource, Object resourceId) {
+    List<Object> key = getRouteKey(resource, resourceId);
+    long version = routes.getVersion(key);
+    Integer index = getShard(resourceId, resource.getColumnType()).getRouteOfResourceId(resource, resourceId);
+    if (index == null)
+      return null;
+    if (index >= shards.size())
+      throw new HiveRuntimeException(String.format("Resource %s id %s is routed to shard %s of %s.", resource.getName(), resourceId, index, shards.size()));
+    routes.putIfVersion(key, index, version);
+    return shards.get(index);
+  }
+
+  private void route(Resource resource, Object resourceId, DbDirectory shard) {
+    if (resource.isPartitioningResource())
+      return;
+    int index = shards.indexOf(shard);
+    getShard(resourceId, resource.getColumnType()).routeResourceId(resource, resourceId, index);
+    routes.put(getRouteKey(resource, resourceId), index);
+  }
+
+  private List<Object> getRouteKey(Resource resource, Object resourceId) {
+    return Arrays.<Object>asList(resource.getName().toLowerCase(), DbDirectory.normalizeKey(resourceId, resource.getColumnType(), dialect));
+  }
+
+  private DbDirectory getOwningShard(Resource resource, Object resourceId) {
+    Collection<DbDirectory> owners = getShardsOfResourceId(resource, resourceId);
+    if (owners.size() == 0)
+      throw new HiveKeyNotFoundException(String.format("Unable to find resource %s with id %s", resource.getName(), resourceId), resourceId);
+    return Atom.getFirstOrThrow(owners);
+  }
+
+  /**
+   * Applies the query to each of the shards in parallel, returning the results in shard order.
+   * A single shard is queried on the calling thread.
+   */
+  private <T> List<T> fanOut(Collection<DbDirectory> targets, final Unary<DbDirectory, T> query) {
+    List<T> results = new ArrayList<T>();
+    if (targets.size() == 1) {
+      results.add(query.f(Atom.getFirstOrThrow(targets)));
+      return results;
+    }
+    List<Future<T>> futures = new ArrayList<Future<T>>();
+    for (final DbDirectory shard : targets)
+      futures.add(executor.submit(new Callable<T>() {
+        public T call() throws Exception {
+          return query.f(shard);
+        }
+      }));
+    try {
+      for (Future<T> future : futures)
+        results.add(future.get());
+    } catch (InterruptedException e) {
+      for (Future<T> future : futures)
+        future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new HiveRuntimeException("Interrupted while querying the directory shards.", e);
+    } catch (ExecutionException e) {
+      for (Future<T> future : futures)
+        future.cancel(true);
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new HiveRuntimeException("Directory shard query failed: " + e.getCause().getMessage(), e);
+    }
+    return results;
+  }
+
+  /**
+   * Remembers that the handler stopped the read, so the remaining shards are not read.
+   */
+  private static class StoppableHandler implements KeyHandler {
+    private KeyHandler handler;
+    private boolean stopped = false;
+
+    public StoppableHandler(KeyHandler handler) {
+      this.handler = handler;
+    }
+
+    public boolean handle(Object key) {
+      stopped = !handler.handle(key);
+      return !stopped;
+    }
+  }
+
+  private static <T> Collection<T> concat(Collection<Collection<T>> results) {
+    Collection<T> semaphores = new ArrayList<T>();
+    for (Collection<T> result : results)
+      semaphores.addAll(result);
+    return semaphores;
+  }
+
+  private static Map<Object, Collection<KeySemaphore>> merge(Collection<Object> keys, Collection<Map<Object, Collection<KeySemaphore>>> results) {
+    Map<Object, Collection<KeySemaphore>> semaphores = new LinkedHashMap<Object, Collection<KeySemaphore>>();
+    for (Object key : keys)
+      semaphores.put(key, new ArrayList<KeySemaphore>());
+    for (Map<Object, Collection<KeySemaphore>> result : results)
+      for (Entry<Object, Collection<KeySemaphore>> entry : result.entrySet())
+        semaphores.get(entry.getKey()).addAll(entry.getValue());
+    return semaphores;
+  }
+}
@@ -0,0 +1,83 @@
+package org.hivedb.meta.directory;
+
+import org.hivedb.meta.PartitionDimension;
+import org.hivedb.meta.Resource;
+import org.hivedb.meta.directory.DbDirectory.WriteMode;
+import org.hivedb.meta.persistence.DataSourceProvider;
+import org.hivedb.meta.persistence.PartitionDimensionDao;
+import org.hivedb.util.HiveExecutors;
+import org.hivedb.util.LruCache;
+import org.hivedb.util.database.Schemas;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Provides {@link PartitionedDirectory}s over a fixed list of index shard uris. The index tables of
+ * the partition dimension are created on each shard when the first directory is built and again
+ * whenever the dimension changes, so resources and secondary indexes added to the hive appear on the
+ * shards with the next revision. A route table created for a resource that already has ids on the
+ * shards is filled from them. The directories of successive revisions share one cache of the shards
+ * of resource ids.
+ * <p/>
+ * The order of the shard uris determines where keys live and must not change once keys are written.
+ */
+public class PartitionedDirectoryFactory implements DirectoryProvider {
+  private DataSourceProvider provider;
+  private List<String> indexUris;
+  private WriteMode writeMode;
+  private ExecutorService executor;
+  private LruCache<List<Object>, Integer> routes = new LruCache<List<Object>, Integer>(PartitionedDirectory.DEFAULT_ROUTE_CACHE_SIZE, PartitionedDirectory.DEFAULT_ROUTE_MAX_AGE);
+  private PartitionDimension installedDimension;
+
+  public PartitionedDirectoryFactory(DataSourceProvider provider, List<String> indexUris) {
+    this(provider, indexUris, WriteMode.LOCKING);
+  }
+
+  public PartitionedDirectoryFactory(DataSourceProvider provider, List<String> indexUris, WriteMode writeMode) {
+    this(provider, indexUris, writeMode, HiveExecutors.getSharedExecutor("hive-directory-shard", 16));
+  }
+
+  /**
+   * @param executor runs the queries fanned out to the shards. It is owned by the caller, who shuts
+   * it down once the directories are no longer used.
+   */
+  public PartitionedDirectoryFactory(DataSourceProvider provider, List<String> indexUris, WriteMode writeMode, ExecutorService executor) {
+    this.provider = provider;
+    this.indexUris = new ArrayList<String>(indexUris);
+    this.writeMode = writeMode;
+    this.executor = executor;
+  }
+
+  public PartitionedDirectory getDirectory(String hiveConfigurationUri) {
+    PartitionDimension dimension = new PartitionDimensionDao(provider.getDataSource(hiveConfigurationUri)).get();
+    List<DbDirectory> shards = new ArrayList<DbDirectory>();
+    for (String uri : indexUris)
+      shards.add(new DbDirectory(dimension, uri, provider.getDataSource(uri), writeMode));
+    PartitionedDirectory directory = new PartitionedDirectory(shards, executor, routes);
+    install(dimension, directory);
+    return directory;
+  }
+
+  private synchronized void install(PartitionDimension dimension, PartitionedDirectory directory) {
+    if (installedDimension != null && installedDimension.equals(dimension))
+      return;
+    Collection<Resource> unrouted = new LinkedHashSet<Resource>();
+    for (String uri : indexUris) {
+      Schemas.install(dimension, uri);
+      for (Resource resource : dimension.getResources())
+        if (!resource.isPartitioningResource() && Schemas.installRouteIndex(resource, uri))
+          unrouted.add(resource);
+    }
+    for (Resource resource : unrouted)
+      directory.routeResourceIds(resource);
+    installedDimension = dimension;
+  }
+
+  public List<String> getIndexUris() {
+    return indexUris;
+  }
+}
@@ -0,0 +1,225 @@
+package org.hivedb.meta.directory;
+
+import org.hivedb.HiveKeyNotFoundException;
+import org.hivedb.HiveRuntimeException;
+import org.hivedb.Lockable;
+import org.hivedb.meta.Node;
+import org.hivedb.util.HiveUtils;
+import org.hivedb.util.database.Schemas;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+
+import javax.sql.DataSource;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * A directory for ordered, integral partition keys, e.g. monotonically increasing ids, that maps
+ * ranges of keys to nodes instead of storing a primary index row per key. The ranges are kept in a
+ * range table (range_start inclusive, range_end exclusive, node, status) and held in memory as a
+ * sorted map, so the primary index grows with the number of ranges rather than the number of keys.
+ * <p/>
+ * Status is kept per range, so making a key read-only makes its whole range read-only.
+ */
+public class RangeDirectory extends ComputedDirectory {
+  private volatile SortedMap<Long, KeyRange> ranges;
+
+  public RangeDirectory(DbDirectory delegate, String hiveUri, DataSource hiveDataSource) {
+    super(delegate, hiveUri, hiveDataSource);
+    refresh();
+  }
+
+  /**
+   * Reloads the ranges from the range table.
+   */
+  public void refresh() {
+    ranges = Collections.unmodifiableSortedMap(loadRanges());
+  }
+
+  public Collection<KeyRange> getRanges() {
+    return ranges.values();
+  }
+
+  /**
+   * The range covering the key, or null if none does.
+   */
+  public KeyRange getRange(Object primaryIndexKey) {
+    return getRange(ranges, MemoryDirectory.toLong(primaryIndexKey));
+  }
+
+  /**
+   * Adds a range of keys, from start inclusive to end exclusive, assigned to the node. It may not
+   * overlap an existing range, which is checked under the semaphore lock taken by
+   * {@link #changeAndIncrementRevision}.
+   */
+  public KeyRange addRange(final long start, final long end, final Node node) {
+    if (start >= end)
+      throw new IllegalArgumentException(String.format("The range start %s must be less than its end %s", start, end));
+    return (KeyRange) changeAndIncrementRevision(new TransactionCallback() {
+      public Object doInTransaction(TransactionStatus status) {
+        SortedMap<Long, KeyRange> current = loadRanges();
+        KeyRange before = getRange(current, start);
+        if (before != null || current.subMap(start, end).size() > 0)
+          throw new HiveRuntimeException(String.format("The range [%s, %s) overlaps an existing range", start, end));
+        KeyRange range = new KeyRange(start, end, node.getId(), Lockable.Status.writable);
+        insert(range);
+        return range;
+      }
+    });
+  }
+
+  /**
+   * Splits the range covering the key in two, the second starting at the key. Both halves keep
+   * the node and status of the original range.
+   */
+  public void split(final long at) {
+    changeAndIncrementRevision(new TransactionCallback() {
+      public Object doInTransaction(TransactionStatus status) {
+        KeyRange range = lockRange(at);
+        if (range.getStart() == at)
+          throw new HiveRuntimeException(String.format("A range already starts at %s", at));
+        template().update(sql.updateKeyRangeEnd(getPartitionDimension()), new Object[]{at, range.getStart()});
+        insert(new KeyRange(at, range.getEnd(), range.getNodeId(), range.getStatus()));
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Merges the range ending at the key with the range starting at it. The two must be on the same
+   * node with the same status.
+   */
+  public void merge(final long at) {
+    changeAndIncrementRevision(new TransactionCallback() {
+      public Object doInTransaction(TransactionStatus status) {
+        KeyRange first = lockRange(at - 1);
+        KeyRange second = lockRange(at);
+        if (first.getEnd() != at || second.getStart() != at)
+          throw new HiveRuntimeException(String.format("No two ranges meet at %s", at));
+        if (first.getNodeId() != second.getNodeId() || first.getStatus() != second.getStatus())
+          throw new HiveRuntimeException(String.format("Ranges %s and %s differ in node or status and cannot be merged", first, second));
+        template().update(sql.deleteKeyRange(getPartitionDimension()), new Object[]{second.getStart()});
+        template().update(sql.updateKeyRangeEnd(getPartitionDimension()), new Object[]{second.getEnd(), first.getStart()});
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Sets the status of the range covering the key.
+   */
+  public Object updatePrimaryIndexKeyReadOnly(final Object primaryIndexKey, final boolean readOnly) {
+    changeAndIncrementRevision(new TransactionCallback() {
+      public Object doInTransaction(TransactionStatus status) {
+        KeyRange range = lockRange(MemoryDirectory.toLong(primaryIndexKey));
+        template().update(sql.updateKeyRangeStatus(getPartitionDimension()), new Object[]{
+            (readOnly ? Lockable.Status.readOnly : Lockable.Status.writable).getValue(),
+            range.getStart()});
+        return null;
+      }
+    });
+    return primaryIndexKey;
+  }
+
+  protected KeySemaphore getSemaphore(Object key, long primaryIndexKey) {
+    KeyRange range = getRange(ranges, primaryIndexKey);
+    return range == null ? null : new KeySemaphoreImpl(key, range.getNodeId(), range.getStatus());
+  }
+
+  /**
+   * Locks the row of the range covering the key and returns the range as locked. A range split or
+   * merged between finding and locking it is looked up again.
+   */
+  @SuppressWarnings("unchecked")
+  private KeyRange lockRange(long key) {
+    while (true) {
+      KeyRange range = getRange(loadRanges(), key);
+      if (range == null)
+        throw new HiveKeyNotFoundException(String.format("No key range covers %s", key), key);
+      List<KeyRange> locked = template().query(sql.selectForUpdateLock(Schemas.getRangeIndexTableName(getPartitionDimension()), "range_start"),
+          new Object[]{range.getStart()}, new KeyRangeRowMapper());
+      if (locked.size() == 1 && locked.get(0).contains(key))
+        return locked.get(0);
+    }
+  }
+
+  private void insert(KeyRange range) {
+    template().update(sql.insertKeyRange(getPartitionDimension()), new Object[]{
+        range.getStart(), range.getEnd(), range.getNodeId(), range.getStatus().getValue()});
+  }
+
+  @SuppressWarnings("unchecked")
+  private SortedMap<Long, KeyRange> loadRanges() {
+    SortedMap<Long, KeyRange> map = new TreeMap<Long, KeyRange>();
+    List<KeyRange> rows = template().query(sql.selectKeyRanges(getPartitionDimension()), new KeyRangeRowMapper());
+    for (KeyRange range : rows)
+      map.put(range.getStart(), range);
+    return map;
+  }
+
+  private static class KeyRangeRowMapper implements RowMapper {
+    public Object mapRow(ResultSet rs, int rowNumber) throws SQLException {
+      return new KeyRange(rs.getLong("range_start"), rs.getLong("range_end"), rs.getInt("node"), Lockable.Status.getByValue(rs.getInt("status")));
+    }
+  }
+
+  private static KeyRange getRange(SortedMap<Long, KeyRange> ranges, long key) {
+    KeyRange range = ranges.get(key);
+    if (range == null) {
+      SortedMap<Long, KeyRange> before = ranges.headMap(key);
+      range = before.isEmpty() ? null : before.get(before.lastKey());
+    }
+    return range != null && range.contains(key) ? range : null;
+  }
+
+  /**
+   * A range of primary index keys, from start inclusive to end exclusive, and the node that owns it.
+   */
+  public static class KeyRange {
+    private final long start;
+    private final long end;
+    private final int nodeId;
+    private final Lockable.Status status;
+
+    public KeyRange(long start, long end, int nodeId, Lockable.Status status) {
+      this.start = start;
+      this.end = end;
+      this.nodeId = nodeId;
+      this.status = status;
+    }
+
+    public boolean contains(long key) {
+      return key >= start && key < end;
+    }
+
+    public long getStart() {
+      return start;
+    }
+
+    public long getEnd() {
+      return end;
+    }
+
+    public int getNodeId() {
+      return nodeId;
+    }
+
+    public Lockable.Status getStatus() {
+      return status;
+    }
+
+    public boolean equals(Object obj) {
+      return obj instanceof KeyRange && obj.hashCode() == hashCode();
+    }
+
+    public int hashCode() {
+      return HiveUtils.makeHashCode(new Object[]{start, end, nodeId, status});
+    }
+
+    public String toString() {
+      return String.format("[%s, %s) on node %s (%s)", start, end, nodeId, status);
+    }
+  }
+}
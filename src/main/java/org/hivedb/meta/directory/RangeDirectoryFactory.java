@@ -0,0 +1,27 @@
+package org.hivedb.meta.directory;
+
+import org.hivedb.meta.PartitionDimension;
+import org.hivedb.meta.persistence.DataSourceProvider;
+import org.hivedb.meta.persistence.PartitionDimensionDao;
+import org.hivedb.util.database.Schemas;
+
+import javax.sql.DataSource;
+
+/**
+ * Provides {@link RangeDirectory}s, creating the range table of the partition dimension if it is
+ * missing. A new directory, with freshly loaded ranges, is built for every hive revision.
+ */
+public class RangeDirectoryFactory implements DirectoryProvider {
+  private DataSourceProvider provider;
+
+  public RangeDirectoryFactory(DataSourceProvider provider) {
+    this.provider = provider;
+  }
+
+  public RangeDirectory getDirectory(String hiveConfigurationUri) {
+    DataSource dataSource = provider.getDataSource(hiveConfigurationUri);
+    PartitionDimension dimension = new PartitionDimensionDao(dataSource).get();
+    Schemas.installRangeIndex(dimension);
+    return new RangeDirectory(new DbDirectory(dimension, dataSource), hiveConfigurationUri, dataSource);
+  }
+}
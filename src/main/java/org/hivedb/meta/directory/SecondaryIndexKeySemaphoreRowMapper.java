@@ -1,17 +1,30 @@
 package org.hivedb.meta.directory;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
+import org.hivedb.Lockable;
+import org.hivedb.meta.SecondaryIndex;
+import org.hivedb.util.database.JdbcTypeMapper;
+import org.springframework.jdbc.core.simple.ParameterizedRowMapper;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
-public class SecondaryIndexKeySemaphoreRowMapper extends ResourceKeySemaphoreRowMapper {
-  private final static Log log = LogFactory.getLog(SecondaryIndexKeySemaphoreRowMapper.class);
+/**
+ * Maps the rows of {@link IndexSqlFormatter#selectSecondaryIndexKeySemaphoresOfSecondaryIndexKey},
+ * reading each key as the column type of its index.
+ */
+@SuppressWarnings("unchecked")
+public class SecondaryIndexKeySemaphoreRowMapper implements ParameterizedRowMapper {
+  private SecondaryIndex secondaryIndex;
 
-  @Override
-  public Object mapRow(ResultSet rs, int arg1) throws SQLException {
-    return new SecondaryIndexKeySemaphoreImpl((ResourceKeySemaphore) super.mapRow(rs, arg1), rs.getObject("resourceId"));
+  public SecondaryIndexKeySemaphoreRowMapper(SecondaryIndex secondaryIndex) {
+    this.secondaryIndex = secondaryIndex;
   }
-}
 
+  public Object mapRow(ResultSet rs, int rowNumber) throws SQLException {
+    Object primaryIndexKey = JdbcTypeMapper.getJdbcTypeResult(rs, 3, secondaryIndex.getResource().getPartitionDimension().getColumnType());
+    KeySemaphore semaphore = new KeySemaphoreImpl(primaryIndexKey, rs.getInt("node"), Lockable.Status.getByValue(rs.getInt("status")));
+    return new SecondaryIndexKeySemaphoreImpl(
+        new ResourceKeySemaphoreImpl(semaphore, JdbcTypeMapper.getJdbcTypeResult(rs, 2, secondaryIndex.getResource().getColumnType())),
+        JdbcTypeMapper.getJdbcTypeResult(rs, 1, secondaryIndex.getColumnInfo().getColumnType()));
+  }
+}
@@ -0,0 +1,203 @@
+package org.hivedb.meta.directory;
+
+import org.hivedb.Lockable;
+import org.hivedb.meta.Node;
+import org.hivedb.meta.Resource;
+import org.hivedb.meta.SecondaryIndex;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Serves reads from a {@link MemoryDirectory} and writes each change to the directory that is the
+ * system of record, usually a DbDirectory over the index tables, before applying it in memory. The
+ * index tables stay complete, so other hives and a memory directory seeded from them later see every
+ * key.
+ * <p/>
+ * The memory directory only sees the writes made through this directory, so it must be the hive's
+ * only directory writer. {@link MemoryDirectoryFactory} enforces this between memory directories with
+ * a {@link DirectoryWriterLock} in the index database; hives writing the index tables directly must
+ * not share them. Writes are serialized on the memory directory, also across the
+ * WriteThroughDirectories of successive hive revisions, so both directories apply them in the same
+ * order.
+ */
+public class WriteThroughDirectory implements Directory {
+  private Directory store;
+  private MemoryDirectory memory;
+
+  public WriteThroughDirectory(Directory store, MemoryDirectory memory) {
+    this.store = store;
+    this.memory = memory;
+  }
+
+  public Directory getStore() {
+    return store;
+  }
+
+  public MemoryDirectory getMemoryDirectory() {
+    return memory;
+  }
+
+  public boolean doesPrimaryIndexKeyExist(Object primaryIndexKey) {
+    return memory.doesPrimaryIndexKeyExist(primaryIndexKey);
+  }
+
+  public Collection<KeySemaphore> getKeySemamphoresOfPrimaryIndexKey(Object primaryIndexKey) {
+    return memory.getKeySemamphoresOfPrimaryIndexKey(primaryIndexKey);
+  }
+
+  public Collection<KeySemaphore> getKeySemaphoresOfResourceId(Resource resource, Object id) {
+    return memory.getKeySemaphoresOfResourceId(resource, id);
+  }
+
+  public boolean doesSecondaryIndexKeyExist(SecondaryIndex index, Object secondaryIndexKey, Object resourceId) {
+    return memory.doesSecondaryIndexKeyExist(index, secondaryIndexKey, resourceId);
+  }
+
+  public boolean doesResourceIdExist(Resource resource, Object resourceId) {
+    return memory.doesResourceIdExist(resource, resourceId);
+  }
+
+  public Collection<KeySemaphore> getKeySemaphoresOfSecondaryIndexKey(SecondaryIndex secondaryIndex, Object secondaryIndexKey) {
+    return memory.getKeySemaphoresOfSecondaryIndexKey(secondaryIndex, secondaryIndexKey);
+  }
+
+  public Collection<SecondaryIndexKeySemaphore> getSecondaryIndexKeySemaphoresOfSecondaryIndexKey(SecondaryIndex secondaryIndex, Object secondaryIndexKey) {
+    return memory.getSecondaryIndexKeySemaphoresOfSecondaryIndexKey(secondaryIndex, secondaryIndexKey);
+  }
+
+  public Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfPrimaryIndexKeys(Collection<Object> primaryIndexKeys) {
+    return memory.getKeySemaphoresOfPrimaryIndexKeys(primaryIndexKeys);
+  }
+
+  public Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfResourceIds(Resource resource, Collection<Object> resourceIds) {
+    return memory.getKeySemaphoresOfResourceIds(resource, resourceIds);
+  }
+
+  public Map<Object, Collection<KeySemaphore>> getKeySemaphoresOfSecondaryIndexKeys(SecondaryIndex secondaryIndex, Collection<Object> secondaryIndexKeys) {
+    return memory.getKeySemaphoresOfSecondaryIndexKeys(secondaryIndex, secondaryIndexKeys);
+  }
+
+  public Object getPrimaryIndexKeyOfResourceId(Resource resource, Object resourceId) {
+    return memory.getPrimaryIndexKeyOfResourceId(resource, resourceId);
+  }
+
+  public Collection getSecondaryIndexKeysOfResourceId(SecondaryIndex secondaryIndex, Object id) {
+    return memory.getSecondaryIndexKeysOfResourceId(secondaryIndex, id);
+  }
+
+  public Map<SecondaryIndex, Collection<Object>> getAllSecondaryIndexKeysOfResourceId(Resource resource, Object id) {
+    return memory.getAllSecondaryIndexKeysOfResourceId(resource, id);
+  }
+
+  public long streamResourceIdsOfPrimaryIndexKey(Resource resource, Object primaryIndexKey, KeyHandler handler) {
+    return memory.streamResourceIdsOfPrimaryIndexKey(resource, primaryIndexKey, handler);
+  }
+
+  public long streamSecondaryIndexKeysOfPrimaryIndexKey(SecondaryIndex secondaryIndex, Object primaryIndexKey, KeyHandler handler) {
+    return memory.streamSecondaryIndexKeysOfPrimaryIndexKey(secondaryIndex, primaryIndexKey, handler);
+  }
+
+  public long streamPrimaryIndexKeys(KeyHandler handler) {
+    return memory.streamPrimaryIndexKeys(handler);
+  }
+
+  public long streamResourceIds(Resource resource, KeyHandler handler) {
+    return memory.streamResourceIds(resource, handler);
+  }
+
+  public Map<Integer, Long> countPrimaryIndexKeysByNode() {
+    return memory.countPrimaryIndexKeysByNode();
+  }
+
+  public void deletePrimaryIndexKey(Object primaryIndexKey) {
+    synchronized (memory) {
+      store.deletePrimaryIndexKey(primaryIndexKey);
+      memory.deletePrimaryIndexKey(primaryIndexKey);
+    }
+  }
+
+  public void deleteResourceId(Resource resource, Object id) {
+    synchronized (memory) {
+      store.deleteResourceId(resource, id);
+      memory.deleteResourceId(resource, id);
+    }
+  }
+
+  public void deleteSecondaryIndexKey(SecondaryIndex index, Object secondaryIndexKey, Object resourceId) {
+    synchronized (memory) {
+      store.deleteSecondaryIndexKey(index, secondaryIndexKey, resourceId);
+      memory.deleteSecondaryIndexKey(index, secondaryIndexKey, resourceId);
+    }
+  }
+
+  public Object insertPrimaryIndexKey(Node node, Object primaryIndexKey) {
+    synchronized (memory) {
+      Object result = store.insertPrimaryIndexKey(node, primaryIndexKey);
+      memory.insertPrimaryIndexKey(node, primaryIndexKey);
+      return result;
+    }
+  }
+
+  public Object insertResourceId(Resource resource, Object id, Object primaryIndexKey) {
+    synchronized (memory) {
+      Object result = store.insertResourceId(resource, id, primaryIndexKey);
+      memory.insertResourceId(resource, id, primaryIndexKey);
+      return result;
+    }
+  }
+
+  public Object insertSecondaryIndexKey(SecondaryIndex secondaryIndex, Object secondaryIndexKey, Object resourceId) {
+    synchronized (memory) {
+      Object result = store.insertSecondaryIndexKey(secondaryIndex, secondaryIndexKey, resourceId);
+      memory.insertSecondaryIndexKey(secondaryIndex, secondaryIndexKey, resourceId);
+      return result;
+    }
+  }
+
+  public Object updatePrimaryIndexKeyOfResourceId(Resource resource, Object resourceId, Object newPrimaryIndexKey) {
+    synchronized (memory) {
+      Object result = store.updatePrimaryIndexKeyOfResourceId(resource, resourceId, newPrimaryIndexKey);
+      memory.updatePrimaryIndexKeyOfResourceId(resource, resourceId, newPrimaryIndexKey);
+      return result;
+    }
+  }
+
+  public Object updatePrimaryIndexKeyReadOnly(Object primaryIndexKey, boolean readOnly) {
+    synchronized (memory) {
+      Object result = store.updatePrimaryIndexKeyReadOnly(primaryIndexKey, readOnly);
+      memory.updatePrimaryIndexKeyReadOnly(primaryIndexKey, readOnly);
+      return result;
+    }
+  }
+
+  public void deleteSecondaryIndexKeys(Map<SecondaryIndex, Collection<Object>> secondaryIndexValueMap, Object resourceId) {
+    synchronized (memory) {
+      store.deleteSecondaryIndexKeys(secondaryIndexValueMap, resourceId);
+      memory.deleteSecondaryIndexKeys(secondaryIndexValueMap, resourceId);
+    }
+  }
+
+  public Object insertSecondaryIndexKeys(Map<SecondaryIndex, Collection<Object>> secondaryIndexValueMap, Object resourceId) {
+    synchronized (memory) {
+      Object result = store.insertSecondaryIndexKeys(secondaryIndexValueMap, resourceId);
+      memory.insertSecondaryIndexKeys(secondaryIndexValueMap, resourceId);
+      return result;
+    }
+  }
+
+  /**
+   * The entity is indexed in memory only if the system of record indexed it, i.e. if its primary
+   * index key is writable there.
+   */
+  public Collection<KeySemaphore> indexEntity(Node node, Object primaryIndexKey, Resource resource, Object resourceId, Map<SecondaryIndex, Collection<Object>> secondaryIndexValueMap) {
+    synchronized (memory) {
+      Collection<KeySemaphore> semaphores = store.indexEntity(node, primaryIndexKey, resource, resourceId, secondaryIndexValueMap);
+      for (KeySemaphore semaphore : semaphores)
+        if (semaphore.getStatus() != Lockable.Status.writable)
+          return semaphores;
+      memory.indexEntity(node, primaryIndexKey, resource, resourceId, secondaryIndexValueMap);
+      return semaphores;
+    }
+  }
+}
@@ -99,6 +99,13 @@ public class HiveBasicDataSource implements DataSource, Cloneable {
     return comboPooledDataSource.getNumBusyConnections();
   }
 
+  /**
+   * The fraction of the pool's connections in use, between 0 and 1.
+   */
+  public double getUtilization() throws SQLException {
+    return getMaxActive() == 0 ? 0 : Math.min(1.0, (double) getNumActive() / getMaxActive());
+  }
+
   public String getUsername() {
     return comboPooledDataSource.getUser();
   }
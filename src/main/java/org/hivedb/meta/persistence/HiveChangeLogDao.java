@@ -0,0 +1,83 @@
+/**
+ * HiveDB is an Open Source (LGPL) system for creating large, high-transaction-volume
+ * data storage systems.
+ */
+package org.hivedb.meta.persistence;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hivedb.HiveRuntimeException;
+import org.springframework.jdbc.BadSqlGrammarException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreatorFactory;
+import org.springframework.jdbc.core.support.JdbcDaoSupport;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
+
+import javax.sql.DataSource;
+import java.sql.Types;
+
+/**
+ * The hive_change_log table, one row per published hive revision. Its ids only grow, so a reader
+ * that remembers the last id it saw detects a change with a single max(id) lookup on the primary key
+ * instead of reading the semaphore.
+ * <p/>
+ * Readers only compare the latest id, so each append deletes the entries more than
+ * {@link #RETAINED_CHANGES} before it and the table stays small.
+ * <p/>
+ * Hives installed before the table existed have no change log. Appending to one is then skipped with a
+ * warning, and {@link #getLatestId()} returns -1 so readers fall back to reading the semaphore. The
+ * failed insert leaves the caller's transaction usable on the supported databases.
+ */
+public class HiveChangeLogDao extends JdbcDaoSupport {
+  private final static Log log = LogFactory.getLog(HiveChangeLogDao.class);
+  public static final long NO_CHANGE_LOG = -1;
+  public static final long RETAINED_CHANGES = 100;
+
+  public HiveChangeLogDao(DataSource ds) {
+    this.setDataSource(ds);
+  }
+
+  /**
+   * Records the revision, prunes the old entries and returns the id of the new entry, or 0 if the
+   * hive has no change log.
+   */
+  public long append(int revision) {
+    KeyHolder generatedKey = new GeneratedKeyHolder();
+    PreparedStatementCreatorFactory creatorFactory =
+      new PreparedStatementCreatorFactory("INSERT INTO hive_change_log (revision) VALUES (?)", new int[]{Types.INTEGER});
+    creatorFactory.setReturnGeneratedKeys(true);
+    try {
+      int rows = getJdbcTemplate().update(creatorFactory.newPreparedStatementCreator(new Object[]{revision}), generatedKey);
+      if (rows != 1)
+        throw new HiveRuntimeException("Unable to log hive revision " + revision);
+    } catch (BadSqlGrammarException e) {
+      log.warn(String.format("The hive has no hive_change_log table, not logging revision %s. Other JVMs detect it by reading the semaphore.", revision));
+      return 0;
+    }
+    if (generatedKey.getKeyList().size() == 0)
+      return 0;
+    long id = generatedKey.getKey().longValue();
+    deleteBefore(id - RETAINED_CHANGES);
+    return id;
+  }
+
+  /**
+   * The id of the latest change, 0 if nothing has been logged, or {@link #NO_CHANGE_LOG}.
+   */
+  public long getLatestId() {
+    JdbcTemplate t = getJdbcTemplate();
+    try {
+      return t.queryForLong("SELECT coalesce(max(id), 0) FROM hive_change_log");
+    } catch (BadSqlGrammarException e) {
+      return NO_CHANGE_LOG;
+    }
+  }
+
+  /**
+   * Deletes the entries before the given id, which readers that have seen it no longer need.
+   */
+  public int deleteBefore(long id) {
+    return getJdbcTemplate().update("DELETE FROM hive_change_log WHERE id < ?", new Object[]{id});
+  }
+}
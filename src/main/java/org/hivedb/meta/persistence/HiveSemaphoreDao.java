@@ -111,10 +111,25 @@ public class HiveSemaphoreDao extends JdbcDaoSupport {
     }
   }
 
-  public void incrementAndPersist() {
+  public HiveSemaphore incrementAndPersist() {
     HiveSemaphore hs = get();
     hs.incrementRevision();
-    update(hs);
+    return update(hs);
+  }
+
+  /**
+   * Increments the revision with a single update, which holds the semaphore row lock for the rest of
+   * the caller's transaction, and returns the new revision.
+   */
+  public int incrementRevision() {
+    try {
+      int rows = getJdbcTemplate().update("UPDATE semaphore_metadata SET revision = revision + 1");
+      if (rows != 1)
+        throw new IllegalStateException("Hive semaphore contians more than one row and has been corrupted.");
+    } catch (BadSqlGrammarException e) {
+      throw new HiveSemaphoreNotFound(e.getMessage());
+    }
+    return get().getRevision();
   }
 
   public class HiveSemaphoreNotFound extends HiveRuntimeException {
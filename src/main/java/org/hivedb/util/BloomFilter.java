@@ -0,0 +1,93 @@
+package org.hivedb.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe Bloom filter of strings. mightContain never returns false for an added
+ * value; it returns true for an absent value with roughly the configured probability as
+ * long as no more than the expected number of values are added.
+ */
+public class BloomFilter {
+  private final AtomicLongArray bits;
+  private final int bitCount;
+  private final int hashCount;
+  private final int expectedInsertions;
+  private final AtomicLong insertions = new AtomicLong();
+
+  public BloomFilter(int expectedInsertions, double falsePositiveProbability) {
+    if (expectedInsertions < 1 || falsePositiveProbability <= 0 || falsePositiveProbability >= 1)
+      throw new IllegalArgumentException("Expected insertions must be positive and the false positive probability between 0 and 1.");
+    this.expectedInsertions = expectedInsertions;
+    long optimalBits = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2)));
+    this.bitCount = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, optimalBits));
+    this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedInsertions * Math.log(2)));
+    this.bits = new AtomicLongArray((bitCount + 63) / 64);
+  }
+
+  public void add(String value) {
+    int h1 = value.hashCode(), h2 = fnv(value);
+    for (int i = 0; i < hashCount; i++)
+      set(index(h1, h2, i));
+    insertions.incrementAndGet();
+  }
+
+  public boolean mightContain(String value) {
+    int h1 = value.hashCode(), h2 = fnv(value);
+    for (int i = 0; i < hashCount; i++)
+      if (!isSet(index(h1, h2, i)))
+        return false;
+    return true;
+  }
+
+  /**
+   * The false positive probability expected with the current number of insertions.
+   */
+  public double getExpectedFalsePositiveProbability() {
+    return Math.pow(1 - Math.exp(-(double) hashCount * insertions.get() / bitCount), hashCount);
+  }
+
+  public long getInsertionCount() {
+    return insertions.get();
+  }
+
+  public int getExpectedInsertions() {
+    return expectedInsertions;
+  }
+
+  public int getBitCount() {
+    return bitCount;
+  }
+
+  public int getHashCount() {
+    return hashCount;
+  }
+
+  private int index(int h1, int h2, int i) {
+    return ((h1 + i * h2) & 0x7fffffff) % bitCount;
+  }
+
+  private void set(int index) {
+    int word = index >>> 6;
+    long mask = 1L << (index & 63);
+    long current;
+    do {
+      current = bits.get(word);
+      if ((current & mask) != 0)
+        return;
+    } while (!bits.compareAndSet(word, current, current | mask));
+  }
+
+  private boolean isSet(int index) {
+    return (bits.get(index >>> 6) & (1L << (index & 63))) != 0;
+  }
+
+  private static int fnv(String value) {
+    int hash = 0x811c9dc5;
+    for (int i = 0; i < value.length(); i++) {
+      hash ^= value.charAt(i);
+      hash *= 0x01000193;
+    }
+    return hash | 1;
+  }
+}
@@ -0,0 +1,112 @@
+package org.hivedb.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the thread pools of the hive's fan-out paths: the node scatter-gather of the
+ * ConnectionManager, the shards of a PartitionedDirectory and migration copies. Their threads spend
+ * nearly all their time blocked in JDBC calls.
+ * <p/>
+ * By default these are fixed pools of daemon threads. In virtual thread mode, turned on with
+ * {@link #setVirtualThreads} or the <code>hivedb.virtualThreads</code> system property, each task
+ * runs on its own virtual thread instead, so the number of blocked calls is limited by the
+ * connection pools rather than the thread count. The mode needs a Java 21 runtime. It is looked up
+ * reflectively so the hive still builds and runs on older JVMs, which keep using fixed pools.
+ */
+public class HiveExecutors {
+  private final static Log log = LogFactory.getLog(HiveExecutors.class);
+  public static final String VIRTUAL_THREADS_PROPERTY = "hivedb.virtualThreads";
+  private static final Method newVirtualThreadPerTaskExecutor = findVirtualThreadPerTaskExecutor();
+  private static volatile boolean virtualThreads = Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY);
+  private static final Map<String, ExecutorService> shared = new HashMap<String, ExecutorService>();
+
+  /**
+   * The executor for tasks of the named kind shared by the whole JVM, created by
+   * {@link #newExecutor} on first use and never shut down. Hives, directories and migrators that
+   * come and go share it, so they do not each leave a pool behind.
+   */
+  public static ExecutorService getSharedExecutor(String name, int threadCount) {
+    synchronized (shared) {
+      ExecutorService executor = shared.get(name);
+      if (executor == null || executor.isShutdown()) {
+        executor = newExecutor(name, threadCount);
+        shared.put(name, executor);
+      }
+      return executor;
+    }
+  }
+
+  /**
+   * An executor for tasks of the named kind. It is a fixed pool of daemon threads, or one virtual
+   * thread per task in virtual thread mode.
+   *
+   * @param threadCount the size of the fixed pool, not a limit on virtual threads
+   */
+  public static ExecutorService newExecutor(String name, int threadCount) {
+    if (virtualThreads) {
+      if (isVirtualThreadsAvailable())
+        try {
+          return (ExecutorService) newVirtualThreadPerTaskExecutor.invoke(null);
+        } catch (Exception e) {
+          log.warn("Unable to create a virtual thread executor, using a thread pool for " + name, e);
+        }
+      else
+        log.warn("Virtual threads need a Java 21 runtime, using a thread pool for " + name);
+    }
+    return newThreadPool(name, threadCount);
+  }
+
+  public static ExecutorService newThreadPool(String name, int threadCount) {
+    return Executors.newFixedThreadPool(threadCount, new DaemonThreadFactory(name));
+  }
+
+  public static boolean isVirtualThreadsAvailable() {
+    return newVirtualThreadPerTaskExecutor != null;
+  }
+
+  public static boolean isVirtualThreads() {
+    return virtualThreads;
+  }
+
+  /**
+   * Switches the mode of executors created from now on. Existing executors are kept as they are.
+   */
+  public static void setVirtualThreads(boolean virtualThreads) {
+    HiveExecutors.virtualThreads = virtualThreads;
+  }
+
+  private static Method findVirtualThreadPerTaskExecutor() {
+    try {
+      return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Names the threads of a pool &lt;name&gt;-1, &lt;name&gt;-2, ... so they do not keep the JVM alive.
+   */
+  public static class DaemonThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+    private final String name;
+
+    public DaemonThreadFactory(String name) {
+      this.name = name;
+    }
+
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,228 @@
+package org.hivedb.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash table of long key/long value pairs held in direct (off-heap) buffers, so
+ * millions of entries cost neither object headers nor garbage collection time. A key may map to
+ * several values; each pair is stored at most once.
+ * <p/>
+ * Reads may run concurrently with each other but not with writes, callers must guard writes.
+ */
+public class LongMultiMap {
+  private static final byte EMPTY = 0, FULL = 1, REMOVED = 2;
+  private static final int ENTRY_BYTES = 16;
+  private static final int MINIMUM_CAPACITY = 16;
+  private static final int MAXIMUM_CAPACITY = 1 << 26;
+  private static final long[] NO_VALUES = new long[0];
+
+  private ByteBuffer states;
+  private ByteBuffer entries;
+  private int capacity;
+  private int size;
+  private int used;
+
+  public LongMultiMap(int expectedSize) {
+    allocate(capacityFor(expectedSize));
+  }
+
+  private LongMultiMap(int capacity, int size, int used, ByteBuffer states, ByteBuffer entries) {
+    this.capacity = capacity;
+    this.size = size;
+    this.used = used;
+    this.states = states;
+    this.entries = entries;
+  }
+
+  /**
+   * Adds the pair unless it is already present.
+   *
+   * @return true if the pair was added
+   */
+  public boolean put(long key, long value) {
+    if (contains(key, value))
+      return false;
+    if (used + 1 > capacity / 2)
+      rehash(size + 1 > capacity / 4 ? capacity << 1 : capacity);
+    int i = slot(key);
+    while (states.get(i) == FULL)
+      i = next(i);
+    if (states.get(i) == EMPTY)
+      used++;
+    states.put(i, FULL);
+    entries.putLong(i * ENTRY_BYTES, key);
+    entries.putLong(i * ENTRY_BYTES + 8, value);
+    size++;
+    return true;
+  }
+
+  /**
+   * @return true if the pair was present
+   */
+  public boolean remove(long key, long value) {
+    int i = find(key, value);
+    if (i < 0)
+      return false;
+    states.put(i, REMOVED);
+    size--;
+    return true;
+  }
+
+  public boolean contains(long key, long value) {
+    return find(key, value) >= 0;
+  }
+
+  public boolean containsKey(long key) {
+    for (int i = slot(key); states.get(i) != EMPTY; i = next(i))
+      if (states.get(i) == FULL && entries.getLong(i * ENTRY_BYTES) == key)
+        return true;
+    return false;
+  }
+
+  /**
+   * The values of the key, empty if it is absent.
+   */
+  public long[] get(long key) {
+    long[] values = NO_VALUES;
+    int count = 0;
+    for (int i = slot(key); states.get(i) != EMPTY; i = next(i))
+      if (states.get(i) == FULL && entries.getLong(i * ENTRY_BYTES) == key) {
+        if (count == values.length) {
+          long[] grown = new long[Math.max(2, count * 2)];
+          System.arraycopy(values, 0, grown, 0, count);
+          values = grown;
+        }
+        values[count++] = entries.getLong(i * ENTRY_BYTES + 8);
+      }
+    if (count == values.length)
+      return values;
+    long[] trimmed = new long[count];
+    System.arraycopy(values, 0, trimmed, 0, count);
+    return trimmed;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * The distinct keys of the table, in ascending order.
+   */
+  public long[] keys() {
+    long[] keys = new long[size];
+    int count = 0;
+    for (int i = 0; i < capacity; i++)
+      if (states.get(i) == FULL)
+        keys[count++] = entries.getLong(i * ENTRY_BYTES);
+    Arrays.sort(keys, 0, count);
+    int distinct = 0;
+    for (int i = 0; i < count; i++)
+      if (distinct == 0 || keys[i] != keys[distinct - 1])
+        keys[distinct++] = keys[i];
+    long[] trimmed = new long[distinct];
+    System.arraycopy(keys, 0, trimmed, 0, distinct);
+    return trimmed;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Writes the table, header and raw buffers, at the channel's position.
+   */
+  public void writeTo(FileChannel channel) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(12);
+    header.putInt(capacity).putInt(size).putInt(used).flip();
+    write(channel, header);
+    write(channel, (ByteBuffer) states.duplicate().clear());
+    write(channel, (ByteBuffer) entries.duplicate().clear());
+  }
+
+  /**
+   * Reads a table written by {@link #writeTo(FileChannel)} from the source's position, e.g. of a
+   * memory-mapped snapshot, copying it into new direct buffers. Leaves the source positioned
+   * after the table.
+   */
+  public static LongMultiMap readFrom(ByteBuffer source) {
+    int capacity = source.getInt(), size = source.getInt(), used = source.getInt();
+    if (Integer.bitCount(capacity) != 1 || capacity > MAXIMUM_CAPACITY || size > used || used > capacity)
+      throw new IllegalArgumentException(String.format("Corrupt table header: capacity %s size %s used %s", capacity, size, used));
+    ByteBuffer states = copy(source, capacity);
+    ByteBuffer entries = copy(source, capacity * ENTRY_BYTES);
+    return new LongMultiMap(capacity, size, used, states, entries);
+  }
+
+  private static ByteBuffer copy(ByteBuffer source, int length) {
+    ByteBuffer slice = source.slice();
+    slice.limit(length);
+    ByteBuffer copy = ByteBuffer.allocateDirect(length);
+    copy.put(slice).clear();
+    source.position(source.position() + length);
+    return copy;
+  }
+
+  private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining())
+      channel.write(buffer);
+  }
+
+  private int find(long key, long value) {
+    for (int i = slot(key); states.get(i) != EMPTY; i = next(i))
+      if (states.get(i) == FULL
+          && entries.getLong(i * ENTRY_BYTES) == key
+          && entries.getLong(i * ENTRY_BYTES + 8) == value)
+        return i;
+    return -1;
+  }
+
+  /**
+   * Rebuilds the table at the given capacity, dropping the slots of removed pairs.
+   */
+  private void rehash(int newCapacity) {
+    if (newCapacity > MAXIMUM_CAPACITY)
+      throw new IllegalStateException(String.format("LongMultiMap cannot grow beyond %s slots", MAXIMUM_CAPACITY));
+    ByteBuffer oldStates = states, oldEntries = entries;
+    int oldCapacity = capacity;
+    allocate(newCapacity);
+    for (int i = 0; i < oldCapacity; i++)
+      if (oldStates.get(i) == FULL) {
+        long key = oldEntries.getLong(i * ENTRY_BYTES);
+        int j = slot(key);
+        while (states.get(j) != EMPTY)
+          j = next(j);
+        states.put(j, FULL);
+        entries.putLong(j * ENTRY_BYTES, key);
+        entries.putLong(j * ENTRY_BYTES + 8, oldEntries.getLong(i * ENTRY_BYTES + 8));
+        size++;
+        used++;
+      }
+  }
+
+  private void allocate(int capacity) {
+    this.capacity = capacity;
+    this.states = ByteBuffer.allocateDirect(capacity);
+    this.entries = ByteBuffer.allocateDirect(capacity * ENTRY_BYTES);
+    this.size = 0;
+    this.used = 0;
+  }
+
+  private int slot(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & (capacity - 1);
+  }
+
+  private int next(int i) {
+    return (i + 1) & (capacity - 1);
+  }
+
+  private static int capacityFor(int expectedSize) {
+    int capacity = MINIMUM_CAPACITY;
+    while (capacity / 2 < expectedSize && capacity < MAXIMUM_CAPACITY)
+      capacity <<= 1;
+    return capacity;
+  }
+}
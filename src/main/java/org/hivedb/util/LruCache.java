@@ -0,0 +1,217 @@
+package org.hivedb.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe least-recently-used cache. Entries are spread over a fixed
+ * number of independently locked segments so concurrent readers of different keys
+ * rarely contend. Hit and miss counts are kept so the cache can be sized.
+ * <p/>
+ * A reader that loads a value from elsewhere takes the {@link #getVersion version} of its key
+ * first and stores the value with {@link #putIfVersion}, which drops it if the key was removed in
+ * the meantime. A writer that removes the key after its write can then never be undone by a
+ * reader that loaded the value before it.
+ * <p/>
+ * Entries can be given a maximum age, after which they are treated as missing, for values that may
+ * be changed elsewhere without the cache being told.
+ */
+public class LruCache<K, V> {
+  public static final long NO_MAX_AGE = 0;
+  private static final int DEFAULT_SEGMENTS = 16;
+  private final Segment<K, V>[] segments;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final int maxSize;
+  private final long maxAge;
+
+  public LruCache(int maxSize) {
+    this(maxSize, DEFAULT_SEGMENTS);
+  }
+
+  public LruCache(int maxSize, int segmentCount) {
+    this(maxSize, segmentCount, NO_MAX_AGE);
+  }
+
+  /**
+   * @param maxAge milliseconds an entry is returned for after it was put, or {@link #NO_MAX_AGE}
+   */
+  public LruCache(int maxSize, long maxAge) {
+    this(maxSize, DEFAULT_SEGMENTS, maxAge);
+  }
+
+  @SuppressWarnings("unchecked")
+  public LruCache(int maxSize, int segmentCount, long maxAge) {
+    if (maxSize < 1 || segmentCount < 1)
+      throw new IllegalArgumentException("Cache size and segment count must be positive.");
+    if (maxAge < 0)
+      throw new IllegalArgumentException("The maximum age must not be negative.");
+    this.maxSize = maxSize;
+    this.maxAge = maxAge;
+    int count = Math.min(segmentCount, maxSize);
+    this.segments = new Segment[count];
+    for (int i = 0; i < count; i++)
+      segments[i] = new Segment<K, V>(Math.max(1, maxSize / count));
+  }
+
+  /**
+   * Returns the cached value or null if there is none or it is too old, counting a hit or a miss.
+   */
+  public V get(K key) {
+    Segment<K, V> segment = segmentFor(key);
+    V value = null;
+    synchronized (segment) {
+      Entry<V> entry = segment.get(key);
+      if (entry != null && entry.expiry < System.currentTimeMillis())
+        segment.remove(key);
+      else if (entry != null)
+        value = entry.value;
+    }
+    if (value == null)
+      misses.incrementAndGet();
+    else
+      hits.incrementAndGet();
+    return value;
+  }
+
+  public void put(K key, V value) {
+    Segment<K, V> segment = segmentFor(key);
+    synchronized (segment) {
+      segment.put(key, entry(value));
+    }
+  }
+
+  /**
+   * The removal count of the key's segment, to be passed to {@link #putIfVersion}.
+   */
+  public long getVersion(K key) {
+    Segment<K, V> segment = segmentFor(key);
+    synchronized (segment) {
+      return segment.version;
+    }
+  }
+
+  /**
+   * Puts the value unless a key of its segment was removed, or the cache cleared, since the version
+   * was taken.
+   *
+   * @return whether the value was put
+   */
+  public boolean putIfVersion(K key, V value, long version) {
+    Segment<K, V> segment = segmentFor(key);
+    synchronized (segment) {
+      if (segment.version != version)
+        return false;
+      segment.put(key, entry(value));
+      return true;
+    }
+  }
+
+  /**
+   * The removal counts of every segment, for a reader that learns the keys it loaded only from
+   * the load itself.
+   */
+  public long[] getVersions() {
+    long[] versions = new long[segments.length];
+    for (int i = 0; i < segments.length; i++)
+      synchronized (segments[i]) {
+        versions[i] = segments[i].version;
+      }
+    return versions;
+  }
+
+  /**
+   * Puts the value unless a key of its segment was removed since the versions were taken.
+   */
+  public boolean putIfVersion(K key, V value, long[] versions) {
+    return putIfVersion(key, value, versions[segmentIndex(key)]);
+  }
+
+  public V remove(K key) {
+    Segment<K, V> segment = segmentFor(key);
+    synchronized (segment) {
+      segment.version++;
+      Entry<V> entry = segment.remove(key);
+      return entry == null ? null : entry.value;
+    }
+  }
+
+  public void clear() {
+    for (Segment<K, V> segment : segments)
+      synchronized (segment) {
+        segment.version++;
+        segment.clear();
+      }
+  }
+
+  public int size() {
+    int size = 0;
+    for (Segment<K, V> segment : segments)
+      synchronized (segment) {
+        size += segment.size();
+      }
+    return size;
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public long getMaxAge() {
+    return maxAge;
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public void resetStatistics() {
+    hits.set(0);
+    misses.set(0);
+  }
+
+  private Entry<V> entry(V value) {
+    return new Entry<V>(value, maxAge == NO_MAX_AGE ? Long.MAX_VALUE : System.currentTimeMillis() + maxAge);
+  }
+
+  private Segment<K, V> segmentFor(Object key) {
+    return segments[segmentIndex(key)];
+  }
+
+  private int segmentIndex(Object key) {
+    int hash = key == null ? 0 : key.hashCode();
+    hash ^= (hash >>> 20) ^ (hash >>> 12);
+    hash ^= (hash >>> 7) ^ (hash >>> 4);
+    return (hash & 0x7fffffff) % segments.length;
+  }
+
+  private static class Entry<V> {
+    private final V value;
+    private final long expiry;
+
+    public Entry(V value, long expiry) {
+      this.value = value;
+      this.expiry = expiry;
+    }
+  }
+
+  @SuppressWarnings("serial")
+  private static class Segment<K, V> extends LinkedHashMap<K, Entry<V>> {
+    private final int capacity;
+    private long version = 0;
+
+    public Segment(int capacity) {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+    }
+
+    protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+      return size() > capacity;
+    }
+  }
+}
@@ -3,6 +3,9 @@ package org.hivedb.util.database;
 import org.hibernate.dialect.H2Dialect;
 import org.hibernate.dialect.MySQLInnoDBDialect;
 import org.hivedb.UnsupportedDialectException;
+import org.springframework.dao.DataAccessException;
+
+import java.sql.SQLException;
 
 public class DialectTools {
 	
@@ -90,6 +93,55 @@ public class DialectTools {
 		}
 	}
 
+  /**
+   * The number of parameters to bind in a single in (...) list. MySQL is bounded only by
+   * max_allowed_packet, H2 and Derby parse very long lists slowly.
+   * @param dialect
+   * @return
+   */
+  public static int getMaxInListSize(HiveDbDialect dialect) {
+    switch (dialect) {
+      case MySql: return 1000;
+      case H2: return 500;
+      default: return 100;
+    }
+  }
+
+  /**
+   * The JDBC fetch size that streams a large result set instead of buffering it. MySQL's driver
+   * only streams with a fetch size of Integer.MIN_VALUE.
+   * @param dialect
+   * @return
+   */
+  public static int getStreamingFetchSize(HiveDbDialect dialect) {
+    return dialect == HiveDbDialect.MySql ? Integer.MIN_VALUE : 1000;
+  }
+
+  /**
+   * Whether the dialect has a native insert that tolerates an existing key,
+   * see {@link org.hivedb.meta.directory.IndexSqlFormatter#upsertPrimaryIndexKey}.
+   * @param dialect
+   * @return
+   */
+  public static boolean supportsIdempotentInsert(HiveDbDialect dialect) {
+    return dialect == HiveDbDialect.MySql || dialect == HiveDbDialect.H2;
+  }
+
+  /**
+   * Whether the failure is the violation of a primary or unique key, i.e. SQL state 23505 or
+   * MySQL's error 1062, rather than e.g. a null or foreign key violation.
+   * @param e
+   * @return
+   */
+  public static boolean isDuplicateKey(DataAccessException e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause())
+      if (cause instanceof SQLException) {
+        SQLException sqlException = (SQLException) cause;
+        return "23505".equals(sqlException.getSQLState()) || sqlException.getErrorCode() == 1062;
+      }
+    return false;
+  }
+
   public static Class getHibernateDialect(HiveDbDialect dialect) {
     return dialect == HiveDbDialect.H2 ? H2Dialect.class : MySQLInnoDBDialect.class;
   }
@@ -43,14 +43,60 @@ public class Schemas {
 	}
 	
 	public static String getCreatePrimaryIndex(PartitionDimension partitionDimension) {
-		Context context = getContext(partitionDimension.getIndexUri());
+		return getCreatePrimaryIndex(partitionDimension, partitionDimension.getIndexUri());
+	}
+	
+	public static String getCreatePrimaryIndex(PartitionDimension partitionDimension, String uri) {
+		Context context = getContext(uri);
 		context.put("tableName", getPrimaryIndexTableName(partitionDimension));
 		context.put("indexType", addLengthForVarchar(JdbcTypeMapper.jdbcTypeToString(partitionDimension.getColumnType())));
 		return Templater.render("sql/primary_index.vsql", context);
 	}
 	
-	public static String getCreateSecondaryIndex(SecondaryIndex secondaryIndex, PartitionDimension partitionDimension) {
+	/**
+	 * The table of key ranges of a partition dimension whose primary index maps ranges of keys,
+	 * rather than single keys, to nodes.
+	 * @param partitionDimension
+	 * @return
+	 */
+	public static String getCreateRangeIndex(PartitionDimension partitionDimension) {
+		Context context = getContext(partitionDimension.getIndexUri());
+		context.put("tableName", getRangeIndexTableName(partitionDimension));
+		context.put("indexType", addLengthForVarchar(JdbcTypeMapper.jdbcTypeToString(partitionDimension.getColumnType())));
+		return Templater.render("sql/range_index.vsql", context);
+	}
+	
+	/**
+	 * The table of hash buckets of a partition dimension whose primary index maps buckets of keys,
+	 * rather than single keys, to nodes.
+	 * @param partitionDimension
+	 * @return
+	 */
+	public static String getCreateBucketIndex(PartitionDimension partitionDimension) {
 		Context context = getContext(partitionDimension.getIndexUri());
+		context.put("tableName", getBucketIndexTableName(partitionDimension));
+		return Templater.render("sql/bucket_index.vsql", context);
+	}
+	
+	/**
+	 * The table recording which index shard of a partitioned directory holds each id of a resource.
+	 * @param resource
+	 * @param uri
+	 * @return
+	 */
+	public static String getCreateRouteIndex(Resource resource, String uri) {
+		Context context = getContext(uri);
+		context.put("tableName", getRouteIndexTableName(resource));
+		context.put("indexType", addLengthForVarchar(JdbcTypeMapper.jdbcTypeToString(resource.getIdIndex().getColumnInfo().getColumnType())));
+		return Templater.render("sql/route_index.vsql", context);
+	}
+	
+	public static String getCreateSecondaryIndex(SecondaryIndex secondaryIndex, PartitionDimension partitionDimension) {
+		return getCreateSecondaryIndex(secondaryIndex, partitionDimension, partitionDimension.getIndexUri());
+	}
+	
+	public static String getCreateSecondaryIndex(SecondaryIndex secondaryIndex, PartitionDimension partitionDimension, String uri) {
+		Context context = getContext(uri);
 		context.put("tableName", getSecondaryIndexTableName(secondaryIndex));
 		context.put("indexType", addLengthForVarchar(JdbcTypeMapper.jdbcTypeToString(secondaryIndex.getColumnInfo().getColumnType())));
 		context.put("resourceType", addLengthForVarchar(JdbcTypeMapper.jdbcTypeToString(secondaryIndex.getResource().getColumnType())));
@@ -58,7 +104,11 @@ public class Schemas {
 	}
 	
 	public static String getCreateResourceIndex(Resource resource, PartitionDimension partitionDimension) {
-		Context context = getContext(partitionDimension.getIndexUri());
+		return getCreateResourceIndex(resource, partitionDimension, partitionDimension.getIndexUri());
+	}
+	
+	public static String getCreateResourceIndex(Resource resource, PartitionDimension partitionDimension, String uri) {
+		Context context = getContext(uri);
 		context.put("tableName", getResourceIndexTableName(resource));
 		context.put("indexType", addLengthForVarchar(JdbcTypeMapper.jdbcTypeToString(resource.getIdIndex().getColumnInfo().getColumnType())));
 		context.put("primaryIndexType", addLengthForVarchar(JdbcTypeMapper.jdbcTypeToString(resource.getPartitionDimension().getColumnType())));
@@ -72,6 +122,20 @@ public class Schemas {
 	public static String getPrimaryIndexTableName(PartitionDimension partitionDimension) {
 		return "hive_primary_" + partitionDimension.getName().toLowerCase();
 	}
+	/**
+	 * Constructs the name of the table for the key ranges of the primary index.
+	 * @return
+	 */
+	public static String getRangeIndexTableName(PartitionDimension partitionDimension) {
+		return "hive_range_" + partitionDimension.getName().toLowerCase();
+	}
+	/**
+	 * Constructs the name of the table for the hash buckets of the primary index.
+	 * @return
+	 */
+	public static String getBucketIndexTableName(PartitionDimension partitionDimension) {
+		return "hive_bucket_" + partitionDimension.getName().toLowerCase();
+	}
 	/**
 	 * Constructs the name of the table for the secondary index.
 	 * @return
@@ -86,17 +150,35 @@ public class Schemas {
 	public static String getResourceIndexTableName(Resource resource) {
 		return "hive_resource_" + resource.getName().toLowerCase();	
 	}
+	/**
+	 * Constructs the name of the table for the index shards of a resource's ids.
+	 * @return
+	 */
+	public static String getRouteIndexTableName(Resource resource) {
+		return "hive_route_" + resource.getName().toLowerCase();
+	}
 	
 	public static Collection<TableInfo> getTables(PartitionDimension partitionDimension) {
+		return getTables(partitionDimension, partitionDimension.getIndexUri());
+	}
+	
+	/**
+	 * The index tables of the partition dimension rendered for the dialect of the given uri,
+	 * which need not be the dimension's own index uri.
+	 * @param partitionDimension
+	 * @param uri
+	 * @return
+	 */
+	public static Collection<TableInfo> getTables(PartitionDimension partitionDimension, String uri) {
 		Collection<TableInfo> TableInfos = new ArrayList<TableInfo>();
-		TableInfos.add(new TableInfo(getPrimaryIndexTableName(partitionDimension), getCreatePrimaryIndex(partitionDimension)));
+		TableInfos.add(new TableInfo(getPrimaryIndexTableName(partitionDimension), getCreatePrimaryIndex(partitionDimension, uri)));
 		for (Resource resource : partitionDimension.getResources()) {
 			if (!resource.isPartitioningResource())
-				TableInfos.add(new TableInfo(getResourceIndexTableName(resource), getCreateResourceIndex(resource, partitionDimension)));
+				TableInfos.add(new TableInfo(getResourceIndexTableName(resource), getCreateResourceIndex(resource, partitionDimension, uri)));
 			for (SecondaryIndex secondaryIndex : resource.getSecondaryIndexes())
 				TableInfos.add(new TableInfo(
 						getSecondaryIndexTableName(secondaryIndex), 
-						getCreateSecondaryIndex(secondaryIndex, partitionDimension)));
+						getCreateSecondaryIndex(secondaryIndex, partitionDimension, uri)));
 		}
 		return TableInfos;
 	}
@@ -141,6 +223,51 @@ public class Schemas {
 		}
 	}
 	
+	/**
+	 * Creates any missing index tables of the partition dimension at a uri other than its index uri,
+	 * e.g. an index shard.
+	 * @param partitionDimension
+	 * @param uri
+	 */
+	public static void install(PartitionDimension partitionDimension, String uri) {
+		for (TableInfo table : getTables(partitionDimension, uri)) {
+			createTable(table, uri);
+		}
+	}
+	
+	/**
+	 * Creates the key range table of the partition dimension if it is missing.
+	 * @param partitionDimension
+	 */
+	public static void installRangeIndex(PartitionDimension partitionDimension) {
+		createTable(
+				new TableInfo(getRangeIndexTableName(partitionDimension), getCreateRangeIndex(partitionDimension)),
+				partitionDimension.getIndexUri());
+	}
+	
+	/**
+	 * Creates the hash bucket table of the partition dimension if it is missing.
+	 * @param partitionDimension
+	 */
+	public static void installBucketIndex(PartitionDimension partitionDimension) {
+		createTable(
+				new TableInfo(getBucketIndexTableName(partitionDimension), getCreateBucketIndex(partitionDimension)),
+				partitionDimension.getIndexUri());
+	}
+	
+	/**
+	 * Creates the route table of the resource at the uri if it is missing.
+	 * @param resource
+	 * @param uri
+	 * @return whether the table was created
+	 */
+	public static boolean installRouteIndex(Resource resource, String uri) {
+		if (tableExists(getRouteIndexTableName(resource), uri))
+			return false;
+		createTable(new TableInfo(getRouteIndexTableName(resource), getCreateRouteIndex(resource, uri)), uri);
+		return true;
+	}
+	
 	public static void uninstall(PartitionDimension partitionDimension) {
 		for (TableInfo table : getTables(partitionDimension)) {
 			emptyTable(table, partitionDimension.getIndexUri());
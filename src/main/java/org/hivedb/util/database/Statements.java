@@ -1,6 +1,17 @@
 package org.hivedb.util.database;
 
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCallback;
+import org.springframework.jdbc.core.PreparedStatementCreator;
 import org.springframework.jdbc.core.PreparedStatementCreatorFactory;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.StatementCreatorUtils;
+import org.springframework.jdbc.support.JdbcUtils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 
 public class Statements {
 	/***
@@ -12,4 +23,71 @@ public class Statements {
 	public static PreparedStatementCreatorFactory newStmtCreatorFactory(String sql, int... types) {
 		return new PreparedStatementCreatorFactory(sql, types);
 	}
+	
+	/***
+	 * Runs a query with a forward only cursor and the dialect's streaming fetch size, passing each
+	 * row to the handler as it is read. The fetch size is set on the statement because JdbcTemplate
+	 * ignores the negative fetch size MySQL streams with.
+	 * @param template
+	 * @param dialect
+	 * @param sql
+	 * @param handler
+	 */
+	public static void stream(JdbcTemplate template, HiveDbDialect dialect, String sql, final RowCallbackHandler handler) {
+		stream(template, dialect, sql, new int[0], new Object[0], new RowHandler() {
+			public boolean handle(ResultSet rs) throws SQLException {
+				handler.processRow(rs);
+				return true;
+			}
+		});
+	}
+	
+	/***
+	 * Streams a parameterized query, stopping when the handler returns false. A MySQL streaming
+	 * result set reads its remaining rows when closed, so a read the handler stops early is
+	 * cancelled first.
+	 * @return the number of rows handled
+	 */
+	public static long stream(JdbcTemplate template, final HiveDbDialect dialect, final String sql, final int[] types, final Object[] parameters, final RowHandler handler) {
+		final int fetchSize = DialectTools.getStreamingFetchSize(dialect);
+		return (Long) template.execute(
+				new PreparedStatementCreator() {
+					public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
+						PreparedStatement statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+						statement.setFetchSize(fetchSize);
+						for (int i = 0; i < parameters.length; i++)
+							StatementCreatorUtils.setParameterValue(statement, i + 1, types[i], parameters[i]);
+						return statement;
+					}
+				},
+				new PreparedStatementCallback() {
+					public Object doInPreparedStatement(PreparedStatement statement) throws SQLException {
+						long count = 0;
+						ResultSet rs = statement.executeQuery();
+						try {
+							while (rs.next()) {
+								count++;
+								if (!handler.handle(rs)) {
+									if (dialect == HiveDbDialect.MySql)
+										statement.cancel();
+									break;
+								}
+							}
+						} finally {
+							JdbcUtils.closeResultSet(rs);
+						}
+						return count;
+					}
+				});
+	}
+	
+	/***
+	 * Handles the rows of a streamed query.
+	 */
+	public interface RowHandler {
+		/***
+		 * @return false to stop the read
+		 */
+		boolean handle(ResultSet rs) throws SQLException;
+	}
 }
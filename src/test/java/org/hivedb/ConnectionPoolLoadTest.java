@@ -0,0 +1,43 @@
+package org.hivedb;
+
+import org.hivedb.meta.Node;
+import org.hivedb.meta.persistence.HiveBasicDataSource;
+import org.hivedb.util.database.test.HiveTest;
+import org.hivedb.util.database.test.HiveTest.Config;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.springframework.jdbc.support.JdbcUtils;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+
+@Config("hive_default")
+public class ConnectionPoolLoadTest extends HiveTest {
+
+  @Test
+  public void shouldSendFewerKeysToANodeWithABusyPool() throws Exception {
+    Hive hive = getHive();
+    List<Node> nodes = new ArrayList<Node>(hive.getNodes());
+    ConnectionPoolLoad load = new ConnectionPoolLoad(hive);
+    HiveBasicDataSource pool = ConnectionPoolLoad.getPool(hive.connection().getNodeDataSource(nodes.get(0).getId()));
+    assertNotNull(pool);
+
+    int maxActive = pool.getMaxActive();
+    pool.setMaxActive(4);
+    List<Connection> connections = new ArrayList<Connection>();
+    try {
+      for (int i = 0; i < 3; i++)
+        connections.add(pool.getConnection());
+      assertEquals(0.75, load.getLoad(nodes.get(0)), 0.0001);
+      assertEquals(0, load.getLoad(nodes.get(1)), 0.0001);
+
+      double[] shares = new WeightedAssigner(0, load).getShares(nodes);
+      assertTrue(shares[0] < shares[1]);
+    } finally {
+      for (Connection connection : connections)
+        JdbcUtils.closeConnection(connection);
+      pool.setMaxActive(maxActive);
+    }
+  }
+}
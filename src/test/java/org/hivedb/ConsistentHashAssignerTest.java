@@ -0,0 +1,79 @@
+package org.hivedb;
+
+import org.hivedb.meta.Node;
+import org.hivedb.util.database.HiveDbDialect;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ConsistentHashAssignerTest {
+  private ConsistentHashAssigner assigner = new ConsistentHashAssigner();
+
+  @Test
+  public void shouldNotDependOnNodeOrder() throws Exception {
+    List<Node> nodes = nodes(5);
+    List<Node> reversed = new ArrayList<Node>(nodes);
+    Collections.reverse(reversed);
+    for (int key = 0; key < 1000; key++)
+      assertEquals(assigner.chooseNode(nodes, key).getId(), assigner.chooseNode(reversed, key).getId());
+  }
+
+  @Test
+  public void shouldSpreadKeysOverAllNodes() throws Exception {
+    List<Node> nodes = nodes(4);
+    Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+    for (int key = 0; key < 10000; key++) {
+      int id = assigner.chooseNode(nodes, key).getId();
+      counts.put(id, counts.containsKey(id) ? counts.get(id) + 1 : 1);
+    }
+    assertEquals(4, counts.size());
+    for (int count : counts.values())
+      assertTrue(String.format("Uneven spread %s", counts), count > 1500 && count < 3500);
+  }
+
+  @Test
+  public void shouldOnlyMoveKeysOfTheAddedNode() throws Exception {
+    List<Node> before = nodes(4);
+    List<Node> after = nodes(5);
+    int moved = 0;
+    for (int key = 0; key < 10000; key++) {
+      Node origin = assigner.chooseNode(before, key);
+      Node destination = assigner.chooseNode(after, key);
+      if (origin.getId() != destination.getId()) {
+        assertEquals(5, destination.getId());
+        moved++;
+      }
+    }
+    assertTrue(String.format("%s of 10000 keys moved", moved), moved > 1000 && moved < 3000);
+  }
+
+  @Test
+  public void shouldReportTheMovedBuckets() throws Exception {
+    List<Node> before = nodes(4);
+    List<Node> after = nodes(3);
+    int[] assignments = assigner.getBucketAssignments(before, 1024);
+    List<ConsistentHashAssigner.BucketMove> moves = assigner.getRebalancing(before, after, 1024);
+    assertTrue(moves.size() > 0);
+    for (ConsistentHashAssigner.BucketMove move : moves) {
+      assertEquals(4, move.getOrigin().getId());
+      assertEquals(4, assignments[move.getBucket()]);
+    }
+    int onRemovedNode = 0;
+    for (int nodeId : assignments)
+      if (nodeId == 4)
+        onRemovedNode++;
+    assertEquals(onRemovedNode, moves.size());
+  }
+
+  private static List<Node> nodes(int count) {
+    List<Node> nodes = new ArrayList<Node>();
+    for (int id = 1; id <= count; id++)
+      nodes.add(new Node(id, "node" + id, "db", "localhost", HiveDbDialect.H2));
+    return nodes;
+  }
+}
@@ -0,0 +1,150 @@
+package org.hivedb;
+
+import org.hivedb.meta.Node;
+import org.hivedb.util.HiveExecutors;
+import org.hivedb.util.database.HiveDbDialect;
+import org.hivedb.util.functional.Unary;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class ScatterGatherTest {
+  private ScatterGather scatterGather;
+  private Collection<Node> nodes;
+
+  @Before
+  public void setup() {
+    scatterGather = new ScatterGather(Executors.newFixedThreadPool(3), 500, ScatterGather.FailurePolicy.FAIL);
+    nodes = Arrays.asList(node(1), node(2), node(3));
+  }
+
+  @After
+  public void teardown() {
+    scatterGather.shutdown();
+  }
+
+  /**
+   * Each node task waits until every task has started, so the nodes are answered only if they are
+   * queried at once.
+   */
+  @Test
+  public void shouldQueryNodesConcurrentlyInNodeOrder() throws Exception {
+    ScatterGather concurrent = new ScatterGather(Executors.newFixedThreadPool(3), 10000, ScatterGather.FailurePolicy.FAIL);
+    final CountDownLatch started = new CountDownLatch(nodes.size());
+    try {
+      List<Integer> results = concurrent.execute(nodes, new Unary<Node, Integer>() {
+        public Integer f(Node node) {
+          started.countDown();
+          if (!await(started, 5000))
+            throw new HiveRuntimeException("Node " + node.getId() + " was queried alone");
+          return node.getId();
+        }
+      });
+      assertEquals(Arrays.asList(1, 2, 3), results);
+    } finally {
+      concurrent.shutdown();
+    }
+  }
+
+  @Test(expected = HiveRuntimeException.class)
+  public void shouldFailOnAFailedNode() throws Exception {
+    scatterGather.execute(nodes, failing(2));
+  }
+
+  @Test
+  public void shouldSkipFailedNodes() throws Exception {
+    assertEquals(Arrays.asList(1, 3), scatterGather.execute(nodes, failing(2), ScatterGather.FailurePolicy.SKIP_FAILED_NODES));
+  }
+
+  @Test
+  public void shouldSkipSlowNodes() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    try {
+      List<Integer> results = scatterGather.execute(nodes, new Unary<Node, Integer>() {
+        public Integer f(Node node) {
+          if (node.getId() == 3)
+            await(release, 10000);
+          return node.getId();
+        }
+      }, ScatterGather.FailurePolicy.SKIP_FAILED_NODES);
+      assertEquals(Arrays.asList(1, 2), results);
+    } finally {
+      release.countDown();
+    }
+  }
+
+  @Test
+  public void shouldShareTheDefaultExecutor() throws Exception {
+    new ScatterGather().shutdown();
+    assertEquals(Arrays.asList(1, 2, 3), new ScatterGather().execute(nodes, failing(4)));
+  }
+
+  /**
+   * More tasks than the pool has threads, each blocked until all of them have started, finish only if
+   * every task gets a thread of its own, as it does in virtual thread mode.
+   */
+  @Test
+  public void shouldRunEveryBlockedTaskAtOnceOnVirtualThreads() throws Exception {
+    if (!HiveExecutors.isVirtualThreadsAvailable())
+      return;
+    boolean virtualThreads = HiveExecutors.isVirtualThreads();
+    HiveExecutors.setVirtualThreads(true);
+    ExecutorService executor;
+    try {
+      executor = HiveExecutors.newExecutor("test", 2);
+    } finally {
+      HiveExecutors.setVirtualThreads(virtualThreads);
+    }
+    int tasks = ScatterGather.DEFAULT_THREAD_COUNT * 4;
+    final CountDownLatch started = new CountDownLatch(tasks);
+    final CountDownLatch done = new CountDownLatch(tasks);
+    try {
+      for (int i = 0; i < tasks; i++)
+        executor.execute(new Runnable() {
+          public void run() {
+            started.countDown();
+            try {
+              if (started.await(5, TimeUnit.SECONDS))
+                done.countDown();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        });
+      assertTrue(done.await(10, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private Unary<Node, Integer> failing(final int nodeId) {
+    return new Unary<Node, Integer>() {
+      public Integer f(Node node) {
+        if (node.getId() == nodeId)
+          throw new HiveRuntimeException("Node " + nodeId + " is down");
+        return node.getId();
+      }
+    };
+  }
+
+  private static Node node(int id) {
+    return new Node(id, "node" + id, "db", "localhost", HiveDbDialect.H2);
+  }
+
+  private static boolean await(CountDownLatch latch, long millis) {
+    try {
+      return latch.await(millis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      throw new HiveRuntimeException(e);
+    }
+  }
+}
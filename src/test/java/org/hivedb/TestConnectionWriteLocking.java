@@ -2,6 +2,7 @@ package org.hivedb;
 
 import org.hivedb.Lockable.Status;
 import org.hivedb.meta.AccessType;
+import org.hivedb.meta.Node;
 import org.hivedb.meta.PartitionDimension;
 import org.hivedb.meta.directory.DbDirectory;
 import org.hivedb.meta.directory.DirectoryWrapper;
@@ -93,6 +94,19 @@ public class TestConnectionWriteLocking extends HiveTest {
 
   }
 
+  @Test
+  public void testNewKeyWithoutWritableNodes() throws Exception {
+    final Hive hive = getHive();
+    for (Node node : hive.getNodes())
+      hive.updateNodeStatus(node, Status.readOnly);
+
+    AssertUtils.assertThrows(new Toss() {
+      public void f() throws Exception {
+        hive.directory().insertPrimaryIndexKey(new String("Lemuria"));
+      }
+    }, HiveLockableException.class);
+  }
+
   //	@Test
   public void testRecordLockingInMemory() throws Exception {
     final Hive hive = Hive.load(getConnectString(getHiveDatabaseName()), CachingDataSourceProvider.getInstance());
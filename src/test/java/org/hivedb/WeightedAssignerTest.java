@@ -0,0 +1,68 @@
+package org.hivedb;
+
+import org.hivedb.meta.Node;
+import org.hivedb.util.database.HiveDbDialect;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class WeightedAssignerTest {
+
+  @Test
+  public void shouldAssignKeysInProportionToCapacity() throws Exception {
+    List<Node> nodes = Arrays.asList(node(1, 100), node(2, 300));
+    Map<Integer, Integer> counts = assign(new WeightedAssigner(), nodes, 10000);
+    assertEquals(0.25, counts.get(1) / 10000.0, 0.03);
+    assertEquals(0.75, counts.get(2) / 10000.0, 0.03);
+  }
+
+  @Test
+  public void shouldWeightNodesWithoutCapacityEqually() throws Exception {
+    List<Node> nodes = Arrays.asList(node(1, 0), node(2, 0));
+    double[] shares = new WeightedAssigner().getShares(nodes);
+    assertEquals(0.5, shares[0], 0.0001);
+    assertEquals(0.5, shares[1], 0.0001);
+  }
+
+  @Test
+  public void shouldSendFewerKeysToLoadedNodes() throws Exception {
+    List<Node> nodes = Arrays.asList(node(1, 100), node(2, 100));
+    WeightedAssigner assigner = new WeightedAssigner(60000, new NodeLoad() {
+      public double getLoad(Node node) {
+        return node.getId() == 1 ? 0.75 : 0;
+      }
+    });
+    double[] shares = assigner.getShares(nodes);
+    assertEquals(0.2, shares[0], 0.0001);
+    assertEquals(0.8, shares[1], 0.0001);
+  }
+
+  @Test
+  public void shouldNotDependOnNodeOrder() throws Exception {
+    List<Node> nodes = Arrays.asList(node(1, 100), node(2, 200), node(3, 300));
+    List<Node> reversed = Arrays.asList(nodes.get(2), nodes.get(1), nodes.get(0));
+    WeightedAssigner assigner = new WeightedAssigner();
+    for (int key = 0; key < 1000; key++)
+      assertEquals(assigner.chooseNode(nodes, key).getId(), assigner.chooseNode(reversed, key).getId());
+  }
+
+  private static Map<Integer, Integer> assign(WeightedAssigner assigner, List<Node> nodes, int keys) {
+    Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+    for (int key = 0; key < keys; key++) {
+      int id = assigner.chooseNode(new ArrayList<Node>(nodes), key).getId();
+      counts.put(id, counts.containsKey(id) ? counts.get(id) + 1 : 1);
+    }
+    return counts;
+  }
+
+  private static Node node(int id, double capacity) {
+    Node node = new Node(id, "node" + id, "db", "localhost", HiveDbDialect.H2);
+    node.setCapacity(capacity);
+    return node;
+  }
+}
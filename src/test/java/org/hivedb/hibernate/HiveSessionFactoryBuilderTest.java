@@ -1,6 +1,7 @@
 package org.hivedb.hibernate;
 
 import org.hibernate.Session;
+import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
 import org.hibernate.cfg.Configuration;
 import org.hibernate.dialect.H2Dialect;
@@ -68,6 +69,46 @@ public class HiveSessionFactoryBuilderTest extends HiveTest {
 		factoryBuilder.openSession("WeatherReport", config.getEntityConfig(getGeneratedClass(WeatherReport.class)).getId(report));
 	}
 
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testLazySessionFactories() throws Exception {
+		HiveSessionFactoryBuilderImpl factoryBuilder = 
+			new HiveSessionFactoryBuilderImpl(
+					config,
+					Lists.newList(Continent.class, WeatherReport.class, WeatherEvent.class),
+					getHive(),
+					new SequentialShardAccessStrategy(),
+					true);
+		assertTrue(factoryBuilder.isLazy());
+		Node node = Atom.getFirstOrThrow(getHive().getNodes());
+		assertSame(factoryBuilder.getSessionFactory(node.getId()), factoryBuilder.getSessionFactory(node.getId()));
+		
+		final WeatherReport report = newInstance();
+		save(factoryBuilder, report);
+		assertNotNull(factoryBuilder.openSession(config.getEntityConfig(getGeneratedClass(WeatherReport.class)).getPrimaryIndexKey(report)));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testSyncClosesReplacedFactories() throws Exception {
+		HiveSessionFactoryBuilderImpl factoryBuilder = 
+			new HiveSessionFactoryBuilderImpl(
+					config,
+					Lists.newList(Continent.class, WeatherReport.class, WeatherEvent.class),
+					getHive(),
+					new SequentialShardAccessStrategy(),
+					false);
+		SessionFactory allNodes = factoryBuilder.getSessionFactory();
+		Node node = getHive().addNode(new Node("added", getHiveDatabaseName(), "", HiveDbDialect.H2));
+		assertNotSame(allNodes, factoryBuilder.getSessionFactory());
+		assertTrue(allNodes.isClosed());
+		
+		SessionFactory added = factoryBuilder.getSessionFactory(node.getId());
+		getHive().deleteNode(node);
+		assertTrue(added.isClosed());
+		assertFalse(factoryBuilder.getSessionFactory().isClosed());
+	}
+
 	@SuppressWarnings("unchecked")
 	private HiveSessionFactoryBuilderImpl getHiveSessionFactoryBuilder() {
 		HiveSessionFactoryBuilderImpl factoryBuilder = 
@@ -0,0 +1,229 @@
+package org.hivedb.hibernate;
+
+import org.hibernate.shards.Shard;
+import org.hibernate.shards.ShardId;
+import org.hibernate.shards.ShardOperation;
+import org.hibernate.shards.strategy.exit.ExitOperationsCollector;
+import org.hibernate.shards.strategy.exit.ExitStrategy;
+import org.hivedb.HiveRuntimeException;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class HiveShardAccessStrategyTest {
+  private HiveShardAccessStrategy strategy;
+  private List<Shard> shards;
+
+  @Before
+  public void setup() {
+    strategy = new HiveShardAccessStrategy(Executors.newFixedThreadPool(3), 1000, 1500);
+    shards = Arrays.asList(shard(1), shard(2), shard(3));
+  }
+
+  @After
+  public void teardown() {
+    strategy.shutdown();
+  }
+
+  /**
+   * Each shard waits until every shard has started, so the operation finishes only if the shards run
+   * at once.
+   */
+  @Test
+  public void shouldRunShardsConcurrently() throws Exception {
+    HiveShardAccessStrategy unbounded = new HiveShardAccessStrategy(Executors.newFixedThreadPool(3), HiveShardAccessStrategy.NO_TIMEOUT, HiveShardAccessStrategy.NO_TIMEOUT);
+    final CountDownLatch started = new CountDownLatch(shards.size());
+    try {
+      List<Integer> results = unbounded.apply(shards, new ShardOperation<List<Integer>>() {
+        public List<Integer> execute(Shard shard) {
+          started.countDown();
+          if (!await(started))
+            throw new HiveRuntimeException("Shard " + getId(shard) + " ran alone");
+          return Arrays.asList(getId(shard));
+        }
+
+        public String getOperationName() {
+          return "concurrent";
+        }
+      }, new Concatenate(), null);
+      Collections.sort(results);
+      assertEquals(Arrays.asList(1, 2, 3), results);
+      assertEquals(1, unbounded.getStatistics(2).getCallCount());
+    } finally {
+      unbounded.shutdown();
+    }
+  }
+
+  @Test
+  public void shouldCancelOutstandingShardsOnceSatisfied() throws Exception {
+    Blocking operation = new Blocking(true);
+    try {
+      assertEquals(Arrays.asList(1), strategy.apply(shards, operation, new Concatenate(1), null));
+      assertTrue(await(operation.interrupted));
+      assertEquals(2, strategy.getStatistics(2).getCancellationCount() + strategy.getStatistics(3).getCancellationCount());
+      assertEquals(0, strategy.getStatistics(2).getCallCount() + strategy.getStatistics(3).getCallCount());
+    } finally {
+      operation.release.countDown();
+    }
+  }
+
+  @Test
+  public void shouldTimeOutASlowShard() throws Exception {
+    Blocking operation = new Blocking(false);
+    try {
+      strategy.apply(shards, operation, new Concatenate(), null);
+      fail();
+    } catch (HiveRuntimeException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("within 1000 ms"));
+      assertEquals(1, strategy.getStatistics(2).getTimeoutCount() + strategy.getStatistics(3).getTimeoutCount());
+      assertTrue(await(operation.interrupted));
+    } finally {
+      operation.release.countDown();
+    }
+  }
+
+  /**
+   * With one thread shard 2 starts only once shard 1 is done, so it times out one shard timeout after
+   * it started, well before the overall timeout.
+   */
+  @Test
+  public void shouldTimeOutAShardStartedDuringTheWait() throws Exception {
+    HiveShardAccessStrategy queued = new HiveShardAccessStrategy(Executors.newFixedThreadPool(1), 1000, 60000);
+    Blocking operation = new Blocking(false);
+    try {
+      queued.apply(shards, operation, new Concatenate(), null);
+      fail();
+    } catch (HiveRuntimeException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("within 1000 ms"));
+      assertEquals(1, queued.getStatistics(2).getTimeoutCount());
+      assertEquals(1, queued.getStatistics(3).getCancellationCount());
+    } finally {
+      operation.release.countDown();
+      queued.shutdown();
+    }
+  }
+
+  @Test
+  public void shouldWaitForSlowShardsWithoutTimeouts() throws Exception {
+    HiveShardAccessStrategy unbounded = new HiveShardAccessStrategy(Executors.newFixedThreadPool(3), HiveShardAccessStrategy.NO_TIMEOUT, HiveShardAccessStrategy.NO_TIMEOUT);
+    try {
+      assertEquals(3, unbounded.apply(shards, sleeping(0, 300), new Concatenate(), null).size());
+    } finally {
+      unbounded.shutdown();
+    }
+  }
+
+  /**
+   * Shard 1 answers after the first delay, the others after the second.
+   */
+  private static ShardOperation<List<Integer>> sleeping(final long first, final long others) {
+    return new ShardOperation<List<Integer>>() {
+      public List<Integer> execute(Shard shard) {
+        int id = getId(shard);
+        try {
+          Thread.sleep(id == 1 ? first : others);
+        } catch (InterruptedException e) {
+          throw new HiveRuntimeException("Cancelled", e);
+        }
+        return Arrays.asList(id);
+      }
+
+      public String getOperationName() {
+        return "sleeping";
+      }
+    };
+  }
+
+  /**
+   * Shard 1 answers at once, after the other shards have started if it waits for them. The other
+   * shards block until released and count down interrupted when they are cancelled.
+   */
+  private static class Blocking implements ShardOperation<List<Integer>> {
+    private final CountDownLatch othersStarted = new CountDownLatch(2);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final CountDownLatch interrupted = new CountDownLatch(2);
+    private final boolean firstWaitsForOthers;
+
+    public Blocking(boolean firstWaitsForOthers) {
+      this.firstWaitsForOthers = firstWaitsForOthers;
+    }
+
+    public List<Integer> execute(Shard shard) {
+      int id = getId(shard);
+      if (id == 1) {
+        if (firstWaitsForOthers && !await(othersStarted))
+          throw new HiveRuntimeException("The other shards did not start");
+        return Arrays.asList(id);
+      }
+      othersStarted.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        interrupted.countDown();
+        throw new HiveRuntimeException("Cancelled", e);
+      }
+      return Arrays.asList(id);
+    }
+
+    public String getOperationName() {
+      return "blocking";
+    }
+  }
+
+  private static class Concatenate implements ExitStrategy<List<Integer>> {
+    private final List<Integer> results = new ArrayList<Integer>();
+    private final int limit;
+
+    public Concatenate() {
+      this(Integer.MAX_VALUE);
+    }
+
+    public Concatenate(int limit) {
+      this.limit = limit;
+    }
+
+    public boolean addResult(List<Integer> result, Shard shard) {
+      results.addAll(result);
+      return results.size() >= limit;
+    }
+
+    public List<Integer> compileResults(ExitOperationsCollector exitOperationsCollector) {
+      return results;
+    }
+  }
+
+  private static boolean await(CountDownLatch latch) {
+    try {
+      return latch.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      throw new HiveRuntimeException(e);
+    }
+  }
+
+  private static int getId(Shard shard) {
+    return shard.getShardIds().iterator().next().getId();
+  }
+
+  private static Shard shard(int id) {
+    final ShardId shardId = new ShardId(id);
+    return (Shard) Proxy.newProxyInstance(Shard.class.getClassLoader(), new Class[]{Shard.class}, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getName().equals("getShardIds"))
+          return Collections.singleton(shardId);
+        throw new UnsupportedOperationException(method.getName());
+      }
+    });
+  }
+}
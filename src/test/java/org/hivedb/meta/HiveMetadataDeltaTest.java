@@ -0,0 +1,67 @@
+package org.hivedb.meta;
+
+import org.hivedb.Lockable;
+import org.hivedb.util.database.HiveDbDialect;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Collection;
+
+public class HiveMetadataDeltaTest {
+
+  @Test
+  public void shouldFindNothingBetweenEqualRevisions() throws Exception {
+    HiveMetadataDelta delta = new HiveMetadataDelta(snapshot(node(1), node(2)), snapshot(node(1), node(2)));
+    assertTrue(delta.isEmpty());
+    assertFalse(delta.isNodeConnectionsChanged());
+  }
+
+  @Test
+  public void shouldNotReconnectANodeWhoseStatusChanged() throws Exception {
+    Node readOnly = node(2);
+    readOnly.setStatus(Lockable.Status.readOnly);
+    HiveMetadataDelta delta = new HiveMetadataDelta(snapshot(node(1), node(2)), snapshot(node(1), readOnly));
+    assertEquals(Arrays.asList(readOnly), delta.getChangedNodes());
+    assertEquals(0, delta.getReconnectedNodes().size());
+    assertFalse(delta.isNodeConnectionsChanged());
+    assertFalse(delta.isEmpty());
+  }
+
+  @Test
+  public void shouldFindAddedRemovedAndReconnectedNodes() throws Exception {
+    Node moved = node(2);
+    moved.setHost("elsewhere");
+    Node added = node(3);
+    HiveMetadataDelta delta = new HiveMetadataDelta(snapshot(node(1), node(2)), snapshot(moved, added));
+    assertEquals(Arrays.asList(added), delta.getAddedNodes());
+    assertEquals(1, delta.getRemovedNodes().size());
+    assertEquals(1, (int) delta.getRemovedNodes().iterator().next().getId());
+    assertEquals(Arrays.asList(moved), delta.getReconnectedNodes());
+    assertTrue(delta.isNodeConnectionsChanged());
+  }
+
+  @Test
+  public void shouldFindANewSecondaryIndex() throws Exception {
+    Collection<Node> nodes = Arrays.asList(node(1));
+    HiveMetadataDelta delta = new HiveMetadataDelta(
+        new HiveMetadataSnapshot(nodes, dimension()),
+        new HiveMetadataSnapshot(nodes, dimension(new SecondaryIndex("name", Types.VARCHAR))));
+    assertTrue(delta.isPartitionDimensionChanged());
+    assertFalse(delta.isNodeConnectionsChanged());
+  }
+
+  private static HiveMetadataSnapshot snapshot(Node... nodes) {
+    return new HiveMetadataSnapshot(Arrays.asList(nodes), dimension());
+  }
+
+  private static PartitionDimension dimension(SecondaryIndex... secondaryIndexes) {
+    Resource resource = new Resource("Person", Types.INTEGER, false, Arrays.asList(secondaryIndexes));
+    return new PartitionDimension("dimension", Types.INTEGER, Arrays.asList(resource));
+  }
+
+  private static Node node(int id) {
+    return new Node(id, "node" + id, "db", "localhost", HiveDbDialect.H2);
+  }
+}
@@ -0,0 +1,59 @@
+package org.hivedb.meta;
+
+import org.hivedb.HiveKeyNotFoundException;
+import org.hivedb.Lockable;
+import org.hivedb.util.database.HiveDbDialect;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+public class HiveMetadataSnapshotTest {
+  private Node writable;
+  private Node readOnly;
+  private Resource resource;
+  private SecondaryIndex secondaryIndex;
+  private HiveMetadataSnapshot snapshot;
+
+  @Before
+  public void setup() {
+    writable = new Node(1, "Alpha", "db", "localhost", HiveDbDialect.H2);
+    readOnly = new Node(2, "Beta", "db", "localhost", HiveDbDialect.H2);
+    readOnly.setStatus(Lockable.Status.readOnly);
+    secondaryIndex = new SecondaryIndex("Name", Types.VARCHAR);
+    resource = new Resource("Person", Types.INTEGER, false, Arrays.asList(secondaryIndex));
+    snapshot = new HiveMetadataSnapshot(Arrays.asList(writable, readOnly),
+        new PartitionDimension("dimension", Types.INTEGER, Arrays.asList(resource)));
+  }
+
+  @Test
+  public void shouldFindNodesByIdAndName() throws Exception {
+    assertSame(readOnly, snapshot.getNode(2));
+    assertSame(writable, snapshot.getNode("ALPHA"));
+    assertEquals(Arrays.asList(writable), snapshot.getWritableNodes());
+  }
+
+  @Test
+  public void shouldFindResourcesAndIndexesIgnoringCase() throws Exception {
+    assertSame(resource, snapshot.getResource("person"));
+    assertSame(secondaryIndex, snapshot.getSecondaryIndex("PERSON", "name"));
+  }
+
+  @Test(expected = NoSuchElementException.class)
+  public void shouldNotFindMissingNodes() throws Exception {
+    snapshot.getNode(3);
+  }
+
+  @Test(expected = HiveKeyNotFoundException.class)
+  public void shouldNotFindMissingResources() throws Exception {
+    snapshot.getResource("pet");
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void shouldNotBeModifiable() throws Exception {
+    snapshot.getNodes().clear();
+  }
+}
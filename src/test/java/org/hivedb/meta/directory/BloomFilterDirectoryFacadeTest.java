@@ -0,0 +1,100 @@
+package org.hivedb.meta.directory;
+
+import org.hivedb.meta.PartitionDimension;
+import org.hivedb.meta.Resource;
+import org.hivedb.meta.directory.BloomFilterDirectoryFacade.KeyFilters;
+import org.hivedb.util.BloomFilter;
+import org.hivedb.util.database.HiveDbDialect;
+import org.hivedb.util.database.Schemas;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+@RunWith(JMock.class)
+public class BloomFilterDirectoryFacadeTest {
+  private Mockery context = new JUnit4Mockery();
+  private DirectoryFacade delegate;
+  private BloomFilterDirectoryFacade facade;
+  private PartitionDimension dimension;
+
+  @Before
+  public void setup() {
+    delegate = context.mock(DirectoryFacade.class);
+    dimension = new PartitionDimension("member", Types.INTEGER,
+      new ArrayList<Resource>(Arrays.asList(new Resource("foo", Types.INTEGER, false))));
+    KeyFilters filters = new KeyFilters(0.01);
+    filters.setFilter(Schemas.getPrimaryIndexTableName(dimension), new BloomFilter(1000, 0.01), Types.INTEGER, HiveDbDialect.H2);
+    filters.setFilter(Schemas.getResourceIndexTableName(dimension.getResource("foo")), new BloomFilter(1000, 0.01), Types.INTEGER, HiveDbDialect.H2);
+    facade = new BloomFilterDirectoryFacade(delegate, filters, dimension);
+  }
+
+  @Test
+  public void shouldAnswerNewKeysWithoutTheDelegate() throws Exception {
+    assertFalse(facade.doesPrimaryIndexKeyExist(7));
+    assertFalse(facade.doesResourceIdExist("foo", 7));
+    assertTrue(facade.getKeySemamphoresOfPrimaryIndexKey(7).isEmpty());
+    assertEquals(3, facade.getFilters().getNegativeCount());
+  }
+
+  @Test
+  public void shouldAskTheDelegateOnceAKeyIsInserted() throws Exception {
+    context.checking(new Expectations() {
+      {
+        one(delegate).insertPrimaryIndexKey(7);
+        one(delegate).doesPrimaryIndexKeyExist(7);
+        will(returnValue(true));
+        one(delegate).insertResourceId("foo", 3, 7);
+        one(delegate).doesResourceIdExist("foo", 3);
+        will(returnValue(false));
+      }
+    });
+    facade.insertPrimaryIndexKey(7);
+    assertTrue(facade.doesPrimaryIndexKeyExist(7));
+    facade.insertResourceId("foo", 3, 7);
+    assertFalse(facade.doesResourceIdExist("foo", 3));
+    assertEquals(1, facade.getFilters().getTruePositiveCount());
+    assertEquals(1, facade.getFilters().getFalsePositiveCount());
+    assertEquals(1.0, facade.getFilters().getFalsePositiveRate(), 0.0);
+  }
+
+  @Test
+  public void shouldMatchKeysTheKeyColumnComparesAsEqual() throws Exception {
+    context.checking(new Expectations() {
+      {
+        one(delegate).insertPrimaryIndexKey(7);
+        one(delegate).doesPrimaryIndexKeyExist(7L);
+        will(returnValue(true));
+      }
+    });
+    facade.insertPrimaryIndexKey(7);
+    assertTrue(facade.doesPrimaryIndexKeyExist(7L));
+
+    KeyFilters filters = new KeyFilters(0.01);
+    filters.setFilter("names", new BloomFilter(1000, 0.01), Types.VARCHAR, HiveDbDialect.MySql);
+    filters.add("names", "Key ");
+    assertTrue(filters.mightContain("names", "key"));
+  }
+
+  @Test
+  public void shouldKeepTheFalsePositiveRateNearTheConfiguredProbability() throws Exception {
+    BloomFilter filter = new BloomFilter(10000, 0.01);
+    for (int i = 0; i < 10000; i++)
+      filter.add(Integer.toString(i));
+    int falsePositives = 0;
+    for (int i = 0; i < 10000; i++) {
+      assertTrue(filter.mightContain(Integer.toString(i)));
+      if (filter.mightContain(Integer.toString(i + 10000)))
+        falsePositives++;
+    }
+    assertTrue(String.format("%s false positives", falsePositives), falsePositives < 300);
+  }
+}
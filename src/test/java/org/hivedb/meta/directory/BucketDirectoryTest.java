@@ -0,0 +1,143 @@
+package org.hivedb.meta.directory;
+
+import org.hivedb.Hive;
+import org.hivedb.HiveRuntimeException;
+import org.hivedb.Lockable;
+import org.hivedb.Schema;
+import org.hivedb.configuration.HiveConfigurationSchema;
+import org.hivedb.management.BucketDirectoryConverter;
+import org.hivedb.management.HiveConfigurationSchemaInstaller;
+import org.hivedb.meta.Node;
+import org.hivedb.meta.PartitionDimension;
+import org.hivedb.meta.Resource;
+import org.hivedb.meta.SecondaryIndex;
+import org.hivedb.meta.persistence.CachingDataSourceProvider;
+import org.hivedb.meta.persistence.IndexSchema;
+import org.hivedb.util.database.HiveDbDialect;
+import org.hivedb.util.database.test.H2TestCase;
+import org.hivedb.util.functional.Atom;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+public class BucketDirectoryTest extends H2TestCase {
+  private Resource resource;
+  private SecondaryIndex codeIndex;
+  private Node node, other;
+
+  public Collection<Schema> getSchemas() {
+    return Arrays.asList(new Schema[]{
+      new HiveConfigurationSchema(getConnectString(H2TestCase.TEST_DB)),
+      new IndexSchema(createPartitionDimension())});
+  }
+
+  @Before
+  @Override
+  public void beforeMethod() {
+    deleteDatabasesAfterEachTest = true;
+    super.afterMethod();
+    super.beforeMethod();
+    try {
+      new HiveConfigurationSchemaInstaller(getConnectString(H2TestCase.TEST_DB)).run();
+      Hive hive = Hive.create(getConnectString(H2TestCase.TEST_DB), "member", Types.INTEGER, CachingDataSourceProvider.getInstance(), null);
+      PartitionDimension dimension = createPartitionDimension();
+      dimension.setId(hive.getPartitionDimension().getId());
+      hive.setPartitionDimension(dimension);
+      resource = Atom.getFirstOrThrow(dimension.getResources());
+      hive.addResource(resource);
+      codeIndex = resource.getSecondaryIndex("code");
+      hive.addSecondaryIndex(resource, codeIndex);
+      node = hive.addNode(new Node("node", H2TestCase.TEST_DB, "", HiveDbDialect.H2));
+      other = hive.addNode(new Node("other", H2TestCase.TEST_DB, "", HiveDbDialect.H2));
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Test
+  public void shouldConvertAPerKeyDirectoryIntoBuckets() throws Exception {
+    DbDirectory keys = new DbDirectoryFactory(CachingDataSourceProvider.getInstance()).getDirectory(getConnectString(H2TestCase.TEST_DB));
+    for (int i = 0; i < 8; i++)
+      keys.insertPrimaryIndexKey(i % 2 == 0 ? node : other, i);
+    keys.updatePrimaryIndexKeyReadOnly(3, true);
+    keys.insertResourceId(resource, 70, 5);
+    keys.insertSecondaryIndexKey(codeIndex, 700, 70);
+
+    BucketDirectoryConverter converter = new BucketDirectoryConverter(getConnectString(H2TestCase.TEST_DB), 4);
+    converter.run();
+    assertEquals(8, converter.getKeyCount());
+
+    BucketDirectory d = getDirectory();
+    for (int i = 0; i < 8; i++)
+      assertEquals((i % 2 == 0 ? node : other).getId().intValue(), Atom.getFirstOrThrow(d.getKeySemamphoresOfPrimaryIndexKey(i)).getNodeId());
+    assertEquals(Lockable.Status.readOnly, Atom.getFirstOrThrow(d.getKeySemamphoresOfPrimaryIndexKey(7)).getStatus());
+    assertEquals(other.getId().intValue(), Atom.getFirstOrThrow(d.getKeySemaphoresOfResourceId(resource, 70)).getNodeId());
+    assertEquals(other.getId().intValue(), Atom.getFirstOrThrow(d.getKeySemaphoresOfSecondaryIndexKey(codeIndex, 700)).getNodeId());
+
+    d.insertPrimaryIndexKey(node, 9);
+    assertEquals(other.getId().intValue(), Atom.getFirstOrThrow(d.getKeySemamphoresOfPrimaryIndexKey(9)).getNodeId());
+  }
+
+  @Test
+  public void shouldRefuseToConvertBucketsSpreadOverNodes() throws Exception {
+    DbDirectory keys = new DbDirectoryFactory(CachingDataSourceProvider.getInstance()).getDirectory(getConnectString(H2TestCase.TEST_DB));
+    keys.insertPrimaryIndexKey(node, 1);
+    keys.insertPrimaryIndexKey(other, 5);
+    try {
+      new BucketDirectoryConverter(getConnectString(H2TestCase.TEST_DB), 4).run();
+      fail();
+    } catch (HiveRuntimeException e) {
+    }
+    assertFalse(getDirectory().doesPrimaryIndexKeyExist(1));
+  }
+
+  @Test
+  public void shouldAssignAndMoveBuckets() throws Exception {
+    BucketDirectory d = getDirectory();
+    assertFalse(d.doesPrimaryIndexKeyExist(1));
+    assertEquals(4, d.assign(Arrays.asList(node, other)));
+    assertEquals(other.getId().intValue(), d.getNodeIdOfBucket(d.getBucket(1)));
+    d.moveBucket(d.getBucket(1), node);
+    assertEquals(node.getId().intValue(), Atom.getFirstOrThrow(getDirectory().getKeySemamphoresOfPrimaryIndexKey(1)).getNodeId());
+  }
+
+  @Test
+  public void shouldAssignBucketsByNodeIdWhateverTheNodeOrder() throws Exception {
+    BucketDirectory d = getDirectory();
+    d.assign(Arrays.asList(other, node));
+    assertEquals(node.getId().intValue(), d.getNodeIdOfBucket(0));
+    assertEquals(other.getId().intValue(), d.getNodeIdOfBucket(1));
+  }
+
+  @Test
+  public void shouldOnlyMakeWholeBucketsReadOnly() throws Exception {
+    BucketDirectory d = getDirectory();
+    d.assign(Arrays.asList(node, other));
+    try {
+      d.updatePrimaryIndexKeyReadOnly(1, true);
+      fail();
+    } catch (UnsupportedOperationException e) {
+    }
+    d.updateBucketReadOnly(d.getBucket(1), true);
+    assertEquals(Lockable.Status.readOnly, Atom.getFirstOrThrow(getDirectory().getKeySemamphoresOfPrimaryIndexKey(1)).getStatus());
+  }
+
+  private BucketDirectory getDirectory() {
+    return new BucketDirectoryFactory(CachingDataSourceProvider.getInstance(), 4).getDirectory(getConnectString(H2TestCase.TEST_DB));
+  }
+
+  private PartitionDimension createPartitionDimension() {
+    Resource resource = new Resource("FOO", Types.INTEGER, false, Arrays.asList(new SecondaryIndex("code", Types.INTEGER)));
+    return new PartitionDimension(
+      Hive.NEW_OBJECT_ID,
+      "member",
+      Types.INTEGER,
+      getConnectString(H2TestCase.TEST_DB),
+      new ArrayList<Resource>(Arrays.asList(resource)));
+  }
+}
@@ -0,0 +1,169 @@
+package org.hivedb.meta.directory;
+
+import org.hivedb.HiveKeyNotFoundException;
+import org.hivedb.Lockable;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import org.jmock.lib.action.CustomAction;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+@RunWith(JMock.class)
+public class CachingDirectoryFacadeTest {
+  private Mockery context = new JUnit4Mockery();
+  private DirectoryFacade delegate;
+  private CachingDirectoryFacade facade;
+
+  @Before
+  public void setup() {
+    delegate = context.mock(DirectoryFacade.class);
+    facade = new CachingDirectoryFacade(delegate, 100);
+  }
+
+  @Test
+  public void shouldOnlyQueryTheDelegateOncePerPrimaryIndexKey() throws Exception {
+    context.checking(new Expectations() {
+      {
+        one(delegate).getKeySemamphoresOfPrimaryIndexKey(7);
+        will(returnValue(semaphores(7, 1)));
+      }
+    });
+    assertEquals(1, facade.getKeySemamphoresOfPrimaryIndexKey(7).size());
+    assertEquals(Arrays.asList(1), new ArrayList<Integer>(facade.getNodeIdsOfPrimaryIndexKey(7)));
+    assertEquals(1, facade.getCache().getHitCount());
+    assertEquals(1, facade.getCache().getMissCount());
+  }
+
+  @Test
+  public void shouldNotCacheMissingKeys() throws Exception {
+    context.checking(new Expectations() {
+      {
+        exactly(2).of(delegate).getPrimaryIndexKeyOfResourceId("foo", 3);
+        will(throwException(new HiveKeyNotFoundException("missing", 3)));
+      }
+    });
+    assertTrue(facade.getKeySemaphoresOfResourceId("foo", 3).isEmpty());
+    assertTrue(facade.getKeySemaphoresOfResourceId("FOO", 3).isEmpty());
+  }
+
+  @Test
+  public void shouldNotPutBackAKeyEvictedWhileItWasRead() throws Exception {
+    context.checking(new Expectations() {
+      {
+        one(delegate).getKeySemamphoresOfPrimaryIndexKey(7);
+        will(new CustomAction("read while a write evicts") {
+          public Object invoke(Invocation invocation) throws Throwable {
+            facade.updatePrimaryIndexKeyReadOnly(7, true);
+            return semaphores(7, 1);
+          }
+        });
+        one(delegate).updatePrimaryIndexKeyReadOnly(7, true);
+        one(delegate).getKeySemamphoresOfPrimaryIndexKey(7);
+        will(returnValue(semaphores(7, 1, Lockable.Status.readOnly)));
+      }
+    });
+    assertEquals(Lockable.Status.writable, facade.getKeySemamphoresOfPrimaryIndexKey(7).iterator().next().getStatus());
+    assertEquals(Lockable.Status.readOnly, facade.getKeySemamphoresOfPrimaryIndexKey(7).iterator().next().getStatus());
+  }
+
+  @Test
+  public void shouldResolveTheStatusOfAResourceIdThroughItsPrimaryIndexKey() throws Exception {
+    context.checking(new Expectations() {
+      {
+        one(delegate).getPrimaryIndexKeyOfResourceId("foo", 3);
+        will(returnValue(7));
+        one(delegate).getKeySemamphoresOfPrimaryIndexKey(7);
+        will(returnValue(semaphores(7, 1)));
+        one(delegate).updatePrimaryIndexKeyReadOnly(7, true);
+        one(delegate).getKeySemamphoresOfPrimaryIndexKey(7);
+        will(returnValue(semaphores(7, 1, Lockable.Status.readOnly)));
+      }
+    });
+    assertFalse(facade.getReadOnlyOfResourceId("foo", 3));
+    facade.updatePrimaryIndexKeyReadOnly(7, true);
+    assertTrue(facade.getReadOnlyOfResourceId("foo", 3));
+  }
+
+  @Test
+  public void shouldEvictOnReadOnlyUpdate() throws Exception {
+    context.checking(new Expectations() {
+      {
+        exactly(2).of(delegate).getKeySemamphoresOfPrimaryIndexKey(7);
+        will(returnValue(semaphores(7, 1)));
+        one(delegate).updatePrimaryIndexKeyReadOnly(7, true);
+      }
+    });
+    facade.getKeySemamphoresOfPrimaryIndexKey(7);
+    facade.updatePrimaryIndexKeyReadOnly(7, true);
+    facade.getKeySemamphoresOfPrimaryIndexKey(7);
+  }
+
+  @Test
+  public void shouldEvictOnResourceIdMove() throws Exception {
+    context.checking(new Expectations() {
+      {
+        one(delegate).getPrimaryIndexKeyOfResourceId("foo", 3);
+        will(returnValue(7));
+        one(delegate).getKeySemamphoresOfPrimaryIndexKey(7);
+        will(returnValue(semaphores(7, 1)));
+        one(delegate).updatePrimaryIndexKeyOfResourceId("foo", 3, 8);
+        one(delegate).getPrimaryIndexKeyOfResourceId("foo", 3);
+        will(returnValue(8));
+        one(delegate).getKeySemamphoresOfPrimaryIndexKey(8);
+        will(returnValue(semaphores(8, 2)));
+      }
+    });
+    assertEquals(Arrays.asList(1), new ArrayList<Integer>(facade.getNodeIdsOfResourceId("foo", 3)));
+    facade.updatePrimaryIndexKeyOfResourceId("foo", 3, 8);
+    assertEquals(Arrays.asList(2), new ArrayList<Integer>(facade.getNodeIdsOfResourceId("foo", 3)));
+  }
+
+  @Test
+  public void shouldClearTheCacheOnEveryRevision() throws Exception {
+    final DirectoryFacadeProvider delegateProvider = context.mock(DirectoryFacadeProvider.class);
+    context.checking(new Expectations() {
+      {
+        exactly(2).of(delegateProvider).getDirectoryFacade("uri", null, null, null);
+        will(returnValue(delegate));
+        exactly(2).of(delegate).getKeySemamphoresOfPrimaryIndexKey(7);
+        will(returnValue(semaphores(7, 1)));
+      }
+    });
+    CachingDirectoryFacadeProvider provider = new CachingDirectoryFacadeProvider(delegateProvider);
+    provider.getDirectoryFacade("uri", null, null, null).getKeySemamphoresOfPrimaryIndexKey(7);
+    provider.getDirectoryFacade("uri", null, null, null).getKeySemamphoresOfPrimaryIndexKey(7);
+  }
+
+  @Test
+  public void shouldReloadEntriesOlderThanTheMaxAge() throws Exception {
+    context.checking(new Expectations() {
+      {
+        exactly(2).of(delegate).getKeySemamphoresOfPrimaryIndexKey(7);
+        will(returnValue(semaphores(7, 1)));
+      }
+    });
+    CachingDirectoryFacade expiring = new CachingDirectoryFacade(delegate, new CachingDirectoryFacade.DirectoryCache(100, 1));
+    expiring.getKeySemamphoresOfPrimaryIndexKey(7);
+    Thread.sleep(10);
+    expiring.getKeySemamphoresOfPrimaryIndexKey(7);
+  }
+
+  private Collection<KeySemaphore> semaphores(Object key, int nodeId) {
+    return semaphores(key, nodeId, Lockable.Status.writable);
+  }
+
+  private Collection<KeySemaphore> semaphores(Object key, int nodeId, Lockable.Status status) {
+    Collection<KeySemaphore> semaphores = new ArrayList<KeySemaphore>();
+    semaphores.add(new KeySemaphoreImpl(key, nodeId, status));
+    return semaphores;
+  }
+}
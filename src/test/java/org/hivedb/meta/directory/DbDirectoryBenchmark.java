@@ -0,0 +1,141 @@
+package org.hivedb.meta.directory;
+
+import org.hivedb.Hive;
+import org.hivedb.Schema;
+import org.hivedb.configuration.HiveConfigurationSchema;
+import org.hivedb.management.HiveConfigurationSchemaInstaller;
+import org.hivedb.meta.Node;
+import org.hivedb.meta.PartitionDimension;
+import org.hivedb.meta.Resource;
+import org.hivedb.meta.SecondaryIndex;
+import org.hivedb.meta.persistence.CachingDataSourceProvider;
+import org.hivedb.meta.persistence.IndexSchema;
+import org.hivedb.util.database.HiveDbDialect;
+import org.hivedb.util.database.test.H2TestCase;
+import org.hivedb.util.functional.Atom;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Times directory writes on H2: the index writes of each {@link DbDirectory.WriteMode} on a few hot
+ * keys, and indexing entities stepwise against indexEntity. It is not a unit test and is not run by
+ * the test suite; run its main method. DbDirectoryTest asserts the behaviour of the same writes.
+ */
+public class DbDirectoryBenchmark extends H2TestCase {
+  private static final int WRITERS = 8;
+  private static final int WRITES_PER_WRITER = 500;
+  private static final int ENTITIES = 2000;
+  private PartitionDimension dimension;
+  private Resource resource;
+
+  public static void main(String[] args) throws Exception {
+    DbDirectoryBenchmark benchmark = new DbDirectoryBenchmark();
+    for (DbDirectory.WriteMode mode : DbDirectory.WriteMode.values()) {
+      benchmark.setup();
+      benchmark.hotKeyWrites(mode);
+    }
+    benchmark.setup();
+    benchmark.indexEntity();
+    benchmark.afterMethod();
+  }
+
+  public Collection<Schema> getSchemas() {
+    return Arrays.asList(new Schema[]{
+      new HiveConfigurationSchema(getConnectString(H2TestCase.TEST_DB)),
+      new IndexSchema(createPartitionDimension())});
+  }
+
+  @Override
+  public Collection<String> getDatabaseNames() {
+    return Arrays.asList(new String[]{H2TestCase.TEST_DB});
+  }
+
+  private void setup() throws Exception {
+    deleteDatabasesAfterEachTest = true;
+    afterMethod();
+    beforeMethod();
+    new HiveConfigurationSchemaInstaller(getConnectString(H2TestCase.TEST_DB)).run();
+    Hive hive = Hive.create(getConnectString(H2TestCase.TEST_DB), "member", Types.INTEGER, CachingDataSourceProvider.getInstance(), null);
+    dimension = createPartitionDimension();
+    dimension.setId(hive.getPartitionDimension().getId());
+    hive.setPartitionDimension(dimension);
+    resource = Atom.getFirstOrThrow(dimension.getResources());
+    hive.addResource(resource);
+    for (SecondaryIndex secondaryIndex : resource.getSecondaryIndexes())
+      hive.addSecondaryIndex(resource, secondaryIndex);
+    hive.addNode(new Node("node", H2TestCase.TEST_DB, "", HiveDbDialect.H2));
+  }
+
+  private void hotKeyWrites(DbDirectory.WriteMode mode) throws Exception {
+    final Node node = Atom.getFirst(getHive().getNodes());
+    final SecondaryIndex numIndex = resource.getSecondaryIndex("num");
+    final DbDirectory d = new DbDirectory(dimension, CachingDataSourceProvider.getInstance().getDataSource(dimension.getIndexUri()), mode);
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < WRITERS; i++)
+      threads.add(new Thread() {
+        public void run() {
+          for (int j = 0; j < WRITES_PER_WRITER; j++) {
+            String key = Integer.toString(j % 4);
+            d.insertPrimaryIndexKey(node, key);
+            d.insertResourceId(resource, key, key);
+            d.insertSecondaryIndexKey(numIndex, j % 8, key);
+          }
+        }
+      });
+    long start = System.currentTimeMillis();
+    for (Thread thread : threads)
+      thread.start();
+    for (Thread thread : threads)
+      thread.join();
+    long elapsed = Math.max(1, System.currentTimeMillis() - start);
+    int writes = WRITERS * WRITES_PER_WRITER * 3;
+    System.out.println(String.format("%s: %s index writes in %sms (%s writes/s)", mode, writes, elapsed, writes * 1000L / elapsed));
+  }
+
+  private void indexEntity() throws Exception {
+    Hive hive = getHive();
+    Map<String, Collection<Object>> secondaryIndexKeys = new HashMap<String, Collection<Object>>();
+    secondaryIndexKeys.put("name", Arrays.asList(new Object[]{"secondary key", "other key"}));
+    secondaryIndexKeys.put("num", Arrays.asList(new Object[]{1, 2, 3}));
+
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < ENTITIES; i++) {
+      String key = Integer.toString(i);
+      if (!hive.directory().doesPrimaryIndexKeyExist(key))
+        hive.directory().insertPrimaryIndexKey(key);
+      hive.directory().insertResourceId(resource.getName(), key, key);
+      hive.directory().insertSecondaryIndexKeys(resource.getName(), secondaryIndexKeys, key);
+    }
+    long stepwise = Math.max(1, System.currentTimeMillis() - start);
+
+    start = System.currentTimeMillis();
+    for (int i = ENTITIES; i < 2 * ENTITIES; i++) {
+      String key = Integer.toString(i);
+      hive.directory().indexEntity(resource.getName(), key, key, secondaryIndexKeys);
+    }
+    long composite = Math.max(1, System.currentTimeMillis() - start);
+    System.out.println(String.format("Indexed %s entities stepwise in %sms, with indexEntity in %sms", ENTITIES, stepwise, composite));
+  }
+
+  private Hive getHive() {
+    return Hive.load(getConnectString(H2TestCase.TEST_DB), CachingDataSourceProvider.getInstance());
+  }
+
+  private PartitionDimension createPartitionDimension() {
+    Resource resource = new Resource("FOO", Types.INTEGER, false, Arrays.asList(
+      new SecondaryIndex("name", Types.VARCHAR),
+      new SecondaryIndex("num", Types.INTEGER)));
+    return new PartitionDimension(
+      Hive.NEW_OBJECT_ID,
+      "member",
+      Types.INTEGER,
+      getConnectString(H2TestCase.TEST_DB),
+      Arrays.asList(resource));
+  }
+}
@@ -149,6 +149,27 @@ public class DbDirectoryTest extends H2TestCase {
     }
   }
 
+  @Test
+  public void testDeletePrimaryIndexKeyCascades() throws Exception {
+    Hive hive = getHive();
+    DbDirectory d = getDirectory();
+    Node node = Atom.getFirst(hive.getNodes());
+    d.insertPrimaryIndexKey(node, 1);
+    d.insertPrimaryIndexKey(node, 2);
+    int resourceCount = d.getInListChunkSize() + 10;
+    for (int id = 0; id < resourceCount; id++) {
+      d.insertResourceId(resource, id, id % 2 == 0 ? 1 : 2);
+      d.insertSecondaryIndexKey(numIndex, id, id);
+    }
+
+    d.deletePrimaryIndexKey(1);
+    assertFalse(d.doesPrimaryIndexKeyExist(1));
+    assertEquals(0, d.getResourceIdsOfPrimaryIndexKey(resource, 1).size());
+    assertEquals(0, d.getSecondaryIndexKeysOfResourceId(numIndex, 0).size());
+    assertEquals(resourceCount / 2, d.getResourceIdsOfPrimaryIndexKey(resource, 2).size());
+    assertEquals(1, d.getSecondaryIndexKeysOfResourceId(numIndex, 1).size());
+  }
+
   @Test
   public void testDeletePrimaryIndexKeyMultipleNodes() throws Exception {
     DbDirectory d = getDirectory();
@@ -215,6 +236,22 @@ public class DbDirectoryTest extends H2TestCase {
       assertEquals(1, d.getKeySemaphoresOfResourceId(resource, key).size());
   }
 
+  @Test
+  public void testGetSecondaryIndexKeySemaphoresOfSecondaryIndexKey() throws Exception {
+    insertKeys(getHive());
+    Node node = Atom.getFirst(getHive().getNodes());
+    Collection<SecondaryIndexKeySemaphore> semaphores = getDirectory().getSecondaryIndexKeySemaphoresOfSecondaryIndexKey(nameIndex, secondaryKeyString);
+    assertEquals(getPrimaryIndexOrResourceKeys().size(), semaphores.size());
+    for (SecondaryIndexKeySemaphore semaphore : semaphores) {
+      assertEquals(secondaryKeyString, semaphore.getKey());
+      assertTrue(getPrimaryIndexOrResourceKeys().contains(semaphore.getResourceId().toString()));
+      assertEquals(semaphore.getResourceId(), semaphore.getPrimaryIndexKey());
+      assertEquals(node.getId().intValue(), semaphore.getNodeId());
+      assertEquals(Status.writable, semaphore.getStatus());
+    }
+    assertEquals(0, getDirectory().getSecondaryIndexKeySemaphoresOfSecondaryIndexKey(nameIndex, "no such key").size());
+  }
+
   @Test
   public void testGetPrimaryIndexKeysOfSecondaryIndexKey() throws Exception {
     insertKeys(getHive());
@@ -271,6 +308,226 @@ public class DbDirectoryTest extends H2TestCase {
     }
   }
 
+  @Test
+  public void testBatchInsertAndDeleteSecondaryIndexKeys() throws Exception {
+    Hive hive = getHive();
+    DbDirectory d = getDirectory();
+    String primaryIndexKey = Atom.getFirst(getPrimaryIndexOrResourceKeys());
+    hive.directory().insertPrimaryIndexKey(primaryIndexKey);
+    d.insertResourceId(resource, primaryIndexKey, primaryIndexKey);
+
+    Collection<Object> names = new ArrayList<Object>();
+    for (int i = 0; i < d.getInListChunkSize() + 10; i++)
+      names.add("name" + i);
+    Map<SecondaryIndex, Collection<Object>> secondaryIndexKeyMap = new Hashtable<SecondaryIndex, Collection<Object>>();
+    secondaryIndexKeyMap.put(nameIndex, names);
+    secondaryIndexKeyMap.put(numIndex, Arrays.asList(new Object[]{1, 2, 2}));
+
+    d.insertSecondaryIndexKeys(secondaryIndexKeyMap, primaryIndexKey);
+    // Re-inserting existing keys is a no-op
+    d.insertSecondaryIndexKeys(secondaryIndexKeyMap, primaryIndexKey);
+    assertEquals(names.size(), d.getSecondaryIndexKeysOfResourceId(nameIndex, primaryIndexKey).size());
+    assertEquals(2, d.getSecondaryIndexKeysOfResourceId(numIndex, primaryIndexKey).size());
+
+    d.deleteSecondaryIndexKeys(secondaryIndexKeyMap, primaryIndexKey);
+    assertEquals(0, d.getSecondaryIndexKeysOfResourceId(nameIndex, primaryIndexKey).size());
+    assertEquals(0, d.getSecondaryIndexKeysOfResourceId(numIndex, primaryIndexKey).size());
+  }
+
+  @Test
+  public void testGetKeySemaphoresOfManyKeys() throws Exception {
+    insertKeys(getHive());
+    DbDirectory d = getDirectory();
+    Collection<Object> keys = new ArrayList<Object>(getPrimaryIndexOrResourceKeys());
+    keys.add("12345");
+
+    Map<Object, Collection<KeySemaphore>> primary = d.getKeySemaphoresOfPrimaryIndexKeys(keys);
+    Map<Object, Collection<KeySemaphore>> resources = d.getKeySemaphoresOfResourceIds(resource, keys);
+    assertEquals(keys.size(), primary.size());
+    assertEquals(keys.size(), resources.size());
+    for (String key : getPrimaryIndexOrResourceKeys()) {
+      assertEquals(1, primary.get(key).size());
+      assertEquals(1, resources.get(key).size());
+    }
+    assertEquals(0, primary.get("12345").size());
+    assertEquals(0, resources.get("12345").size());
+
+    Map<Object, Collection<KeySemaphore>> secondary =
+      d.getKeySemaphoresOfSecondaryIndexKeys(nameIndex, Arrays.asList(new Object[]{secondaryKeyString, "missing"}));
+    assertEquals(1, secondary.get(secondaryKeyString).size());
+    assertEquals(0, secondary.get("missing").size());
+  }
+
+  @Test
+  public void testGetKeySemaphoresOfKeysBoxedDifferently() throws Exception {
+    insertKeys(getHive());
+    Collection<Object> keys = Arrays.asList(new Object[]{1, 1L, "1"});
+    Map<Object, Collection<KeySemaphore>> primary = getDirectory().getKeySemaphoresOfPrimaryIndexKeys(keys);
+    assertEquals(3, primary.size());
+    for (Object key : keys)
+      assertEquals(1, primary.get(key).size());
+  }
+
+  @Test
+  public void testUpsertWritesLeaveExistingKeysUntouched() throws Exception {
+    Hive hive = getHive();
+    Node node = Atom.getFirst(hive.getNodes());
+    DbDirectory d = getDirectory(DbDirectory.WriteMode.UPSERT);
+
+    d.insertPrimaryIndexKey(node, "1");
+    d.updatePrimaryIndexKeyReadOnly("1", true);
+    d.insertPrimaryIndexKey(node, "1");
+    assertEquals(1, d.getKeySemamphoresOfPrimaryIndexKey("1").size());
+    assertTrue(Lists.or(Transform.map(d.semaphoreToReadOnly(), d.getKeySemamphoresOfPrimaryIndexKey("1"))));
+
+    d.insertPrimaryIndexKey(node, "2");
+    d.insertResourceId(resource, "1", "1");
+    d.insertResourceId(resource, "1", "2");
+    assertEquals("1", d.getPrimaryIndexKeyOfResourceId(resource, "1").toString());
+
+    d.insertSecondaryIndexKey(nameIndex, secondaryKeyString, "1");
+    d.insertSecondaryIndexKey(nameIndex, secondaryKeyString, "1");
+    Map<SecondaryIndex, Collection<Object>> secondaryIndexKeyMap = new Hashtable<SecondaryIndex, Collection<Object>>();
+    secondaryIndexKeyMap.put(nameIndex, Arrays.asList(new Object[]{secondaryKeyString, "another key"}));
+    d.insertSecondaryIndexKeys(secondaryIndexKeyMap, "1");
+    assertEquals(2, d.getSecondaryIndexKeysOfResourceId(nameIndex, "1").size());
+  }
+
+  @Test
+  public void testHotKeyWritesUnderContention() throws Exception {
+    final Node node = Atom.getFirst(getHive().getNodes());
+    final int writers = 8, writesPerWriter = 50;
+    for (DbDirectory.WriteMode mode : DbDirectory.WriteMode.values()) {
+      final DbDirectory d = getDirectory(mode);
+      final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int i = 0; i < writers; i++)
+        threads.add(new Thread() {
+          public void run() {
+            try {
+              for (int j = 0; j < writesPerWriter; j++) {
+                String key = Integer.toString(j % 4);
+                d.insertPrimaryIndexKey(node, key);
+                d.insertResourceId(resource, key, key);
+                d.insertSecondaryIndexKey(numIndex, j % 8, key);
+              }
+            } catch (Throwable t) {
+              failures.add(t);
+            }
+          }
+        });
+      for (Thread thread : threads)
+        thread.start();
+      for (Thread thread : threads)
+        thread.join();
+
+      assertEquals(failures.toString(), 0, failures.size());
+      for (String key : Arrays.asList("0", "1", "2", "3")) {
+        assertEquals(1, d.getKeySemamphoresOfPrimaryIndexKey(key).size());
+        assertEquals(2, d.getSecondaryIndexKeysOfResourceId(numIndex, key).size());
+        d.deletePrimaryIndexKey(key);
+      }
+    }
+  }
+
+  @Test
+  public void testIndexEntityMatchesStepwiseIndexing() throws Exception {
+    Hive hive = getHive();
+    final int entities = 20;
+    Map<String, Collection<Object>> secondaryIndexKeys = new HashMap<String, Collection<Object>>();
+    secondaryIndexKeys.put(nameIndex.getName(), Arrays.asList(new Object[]{secondaryKeyString, "other key"}));
+    secondaryIndexKeys.put(numIndex.getName(), Arrays.asList(new Object[]{secondaryKeyNum, 2, 3}));
+
+    for (int i = 0; i < entities; i++) {
+      String key = Integer.toString(i);
+      if (!hive.directory().doesPrimaryIndexKeyExist(key))
+        hive.directory().insertPrimaryIndexKey(key);
+      hive.directory().insertResourceId(resource.getName(), key, key);
+      hive.directory().insertSecondaryIndexKeys(resource.getName(), secondaryIndexKeys, key);
+    }
+
+    for (int i = entities; i < 2 * entities; i++) {
+      String key = Integer.toString(i);
+      hive.directory().indexEntity(resource.getName(), key, key, secondaryIndexKeys);
+    }
+
+    DbDirectory d = getDirectory();
+    for (String key : Arrays.asList("0", Integer.toString(entities))) {
+      assertEquals(1, d.getKeySemamphoresOfPrimaryIndexKey(key).size());
+      assertEquals(key, d.getPrimaryIndexKeyOfResourceId(resource, key).toString());
+      assertEquals(2, d.getSecondaryIndexKeysOfResourceId(nameIndex, key).size());
+      assertEquals(3, d.getSecondaryIndexKeysOfResourceId(numIndex, key).size());
+    }
+
+    hive.directory().updatePrimaryIndexKeyReadOnly("0", true);
+    try {
+      hive.directory().indexEntity(resource.getName(), "0", "-1", secondaryIndexKeys);
+      fail("Indexed an entity of a read-only primary index key");
+    } catch (HiveLockableException e) {
+    }
+    assertFalse(d.doesResourceIdExist(resource, "-1"));
+  }
+
+  @Test
+  public void testStreamKeysOfPrimaryIndexKey() throws Exception {
+    Node node = Atom.getFirst(getHive().getNodes());
+    DbDirectory d = getDirectory();
+    d.insertPrimaryIndexKey(node, "1");
+    for (int id = 100; id < 110; id++) {
+      d.insertResourceId(resource, id, "1");
+      d.insertSecondaryIndexKey(numIndex, id * 10, id);
+    }
+
+    final List<Object> ids = new ArrayList<Object>();
+    assertEquals(10, d.streamResourceIdsOfPrimaryIndexKey(resource, "1", new KeyHandler() {
+      public boolean handle(Object key) {
+        return ids.add(key);
+      }
+    }));
+    assertEquals(10, new HashSet<Object>(ids).size());
+    assertTrue(ids.contains(105));
+
+    final List<Object> keys = new ArrayList<Object>();
+    assertEquals(3, d.streamSecondaryIndexKeysOfPrimaryIndexKey(numIndex, "1", new KeyHandler() {
+      public boolean handle(Object key) {
+        keys.add(key);
+        return keys.size() < 3;
+      }
+    }));
+    assertEquals(3, keys.size());
+    assertEquals(0, d.streamResourceIdsOfPrimaryIndexKey(resource, "2", new KeyHandler() {
+      public boolean handle(Object key) {
+        fail();
+        return false;
+      }
+    }));
+  }
+
+  @Test
+  public void testStreamAllKeys() throws Exception {
+    Node node = Atom.getFirst(getHive().getNodes());
+    DbDirectory d = getDirectory();
+    d.insertPrimaryIndexKey(node, "1");
+    d.insertPrimaryIndexKey(node, "2");
+    for (int id = 100; id < 105; id++)
+      d.insertResourceId(resource, id, id % 2 == 0 ? "1" : "2");
+
+    final List<Object> keys = new ArrayList<Object>();
+    assertEquals(2, d.streamPrimaryIndexKeys(new KeyHandler() {
+      public boolean handle(Object key) {
+        return keys.add(key);
+      }
+    }));
+    final List<Object> ids = new ArrayList<Object>();
+    assertEquals(5, d.streamResourceIds(resource, new KeyHandler() {
+      public boolean handle(Object key) {
+        return ids.add(key);
+      }
+    }));
+    assertEquals(5, new HashSet<Object>(ids).size());
+    assertTrue(ids.contains(103));
+  }
+
   @Test
   public void testUpdatePrimaryIndexKeyReadOnly() throws Exception {
     insertKeys(getHive());
@@ -413,6 +670,21 @@ public class DbDirectoryTest extends H2TestCase {
       assertEquals(1, d.getSecondaryIndexKeysOfResourceId(nameIndex, key).size());
   }
 
+  @Test
+  public void testGetAllSecondaryIndexKeysOfResourceId() throws Exception {
+    insertKeys(getHive());
+    DbDirectory d = getDirectory();
+    for (String key : getPrimaryIndexOrResourceKeys()) {
+      Map<SecondaryIndex, Collection<Object>> keys = d.getAllSecondaryIndexKeysOfResourceId(resource, key);
+      assertEquals(2, keys.size());
+      assertEquals(Arrays.asList(new Object[]{secondaryKeyString}), new ArrayList<Object>(keys.get(nameIndex)));
+      assertEquals(Arrays.asList(new Object[]{secondaryKeyNum}), new ArrayList<Object>(keys.get(numIndex)));
+    }
+    Map<SecondaryIndex, Collection<Object>> none = d.getAllSecondaryIndexKeysOfResourceId(resource, "0");
+    assertEquals(0, none.get(nameIndex).size());
+    assertEquals(0, none.get(numIndex).size());
+  }
+
   @SuppressWarnings("unchecked")
   @Test
   public void testGetResourceIdForSecondaryKey() throws Exception {
@@ -468,8 +740,23 @@ public class DbDirectoryTest extends H2TestCase {
     }
   }
 
+  @Test
+  public void testNormalizeKeyByColumnType() throws Exception {
+    assertEquals(DbDirectory.normalizeKey(1, Types.INTEGER, HiveDbDialect.H2), DbDirectory.normalizeKey(1L, Types.INTEGER, HiveDbDialect.H2));
+    assertEquals(DbDirectory.normalizeKey("1", Types.BIGINT, HiveDbDialect.H2), DbDirectory.normalizeKey(1, Types.BIGINT, HiveDbDialect.H2));
+    assertEquals(
+      DbDirectory.normalizeKey(new java.math.BigDecimal("1.50"), Types.DECIMAL, HiveDbDialect.H2),
+      DbDirectory.normalizeKey(new java.math.BigDecimal("1.5"), Types.DECIMAL, HiveDbDialect.H2));
+    assertEquals(DbDirectory.normalizeKey("Key ", Types.VARCHAR, HiveDbDialect.MySql), DbDirectory.normalizeKey("key", Types.VARCHAR, HiveDbDialect.MySql));
+    assertFalse(DbDirectory.normalizeKey("Key", Types.VARCHAR, HiveDbDialect.H2).equals(DbDirectory.normalizeKey("key", Types.VARCHAR, HiveDbDialect.H2)));
+  }
+
   private DbDirectory getDirectory() {
-    return new DbDirectory(dimension, CachingDataSourceProvider.getInstance().getDataSource(dimension.getIndexUri()));
+    return getDirectory(DbDirectory.WriteMode.LOCKING);
+  }
+
+  private DbDirectory getDirectory(DbDirectory.WriteMode writeMode) {
+    return new DbDirectory(dimension, CachingDataSourceProvider.getInstance().getDataSource(dimension.getIndexUri()), writeMode);
   }
 
   @Override
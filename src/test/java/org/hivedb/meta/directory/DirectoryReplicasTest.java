@@ -0,0 +1,83 @@
+package org.hivedb.meta.directory;
+
+import org.hivedb.util.database.test.H2TestCase;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.util.Arrays;
+import java.util.Collection;
+
+public class DirectoryReplicasTest extends H2TestCase {
+  private DataSource primary, replica;
+
+  @Override
+  public Collection<String> getDatabaseNames() {
+    return Arrays.asList(new String[]{"primary", "replica"});
+  }
+
+  @Before
+  public void setup() {
+    primary = getDataSource("primary");
+    replica = getDataSource("replica");
+  }
+
+  @Test
+  public void shouldReadFromReplicasUntilTheThreadWrites() throws Exception {
+    DirectoryReplicas replicas = new DirectoryReplicas(primary, Arrays.asList(replica), DirectoryReplicas.NO_LAG);
+    replicas.checkLag();
+    assertSame(replica, replicas.forRead().getDataSource());
+
+    replicas.markWrite();
+    assertSame(primary, replicas.forRead().getDataSource());
+
+    replicas.setStickyMillis(0);
+    assertSame(replica, replicas.forRead().getDataSource());
+  }
+
+  @Test
+  public void shouldReadFromThePrimaryWhenReplicasLag() throws Exception {
+    DirectoryReplicas replicas = new DirectoryReplicas(primary, Arrays.asList(replica), new DirectoryReplicas.LagProbe() {
+      public long getLagMillis(JdbcTemplate replica) {
+        return 5000;
+      }
+    });
+    assertSame(primary, replicas.forRead().getDataSource());
+    replicas.checkLag();
+    assertSame(primary, replicas.forRead().getDataSource());
+    replicas.setMaxLagMillis(10000);
+    assertSame(replica, replicas.forRead().getDataSource());
+  }
+
+  @Test
+  public void shouldReadFromThePrimaryWithinATransaction() throws Exception {
+    final DirectoryReplicas replicas = new DirectoryReplicas(primary, Arrays.asList(replica), DirectoryReplicas.NO_LAG);
+    replicas.checkLag();
+    Object dataSource = new TransactionTemplate(new DataSourceTransactionManager(primary)).execute(new TransactionCallback() {
+      public Object doInTransaction(TransactionStatus status) {
+        return replicas.forRead().getDataSource();
+      }
+    });
+    assertSame(primary, dataSource);
+  }
+
+  @Test
+  public void shouldRetryOnThePrimaryWhenAReplicaReadFails() throws Exception {
+    new JdbcTemplate(primary).execute("create table only_on_primary (id int)");
+    DirectoryReplicas replicas = new DirectoryReplicas(primary, Arrays.asList(replica), DirectoryReplicas.NO_LAG);
+    replicas.checkLag();
+    int count = replicas.read(new DirectoryReplicas.Read<Integer>() {
+      public Integer read(JdbcTemplate template) {
+        return template.queryForInt("select count(*) from only_on_primary");
+      }
+    });
+    assertEquals(0, count);
+    assertSame(primary, replicas.forRead().getDataSource());
+  }
+}
@@ -0,0 +1,40 @@
+package org.hivedb.meta.directory;
+
+import org.hivedb.HiveRuntimeException;
+import org.hivedb.meta.persistence.CachingDataSourceProvider;
+import org.hivedb.util.database.test.H2TestCase;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+public class DirectoryWriterLockTest extends H2TestCase {
+
+  @Override
+  public Collection<String> getDatabaseNames() {
+    return Arrays.asList(new String[]{H2TestCase.TEST_DB});
+  }
+
+  @Test
+  public void shouldAdmitOneWriterAtATime() throws Exception {
+    DirectoryWriterLock first = newLock();
+    DirectoryWriterLock second = newLock();
+    first.acquire();
+    try {
+      second.acquire();
+      fail("Acquired a writer lock that is held");
+    } catch (HiveRuntimeException e) {
+      assertFalse(second.isHeld());
+    }
+    first.release();
+    second.acquire();
+    assertTrue(second.isHeld());
+    second.release();
+  }
+
+  private DirectoryWriterLock newLock() {
+    String uri = getConnectString(H2TestCase.TEST_DB);
+    return new DirectoryWriterLock(CachingDataSourceProvider.getInstance().getDataSource(uri), uri, "member");
+  }
+}
@@ -0,0 +1,148 @@
+package org.hivedb.meta.directory;
+
+import org.hivedb.HiveKeyNotFoundException;
+import org.hivedb.HiveRuntimeException;
+import org.hivedb.Lockable;
+import org.hivedb.meta.Node;
+import org.hivedb.meta.PartitionDimension;
+import org.hivedb.meta.Resource;
+import org.hivedb.meta.SecondaryIndex;
+import org.hivedb.util.database.HiveDbDialect;
+import org.hivedb.util.functional.Atom;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+
+public class MemoryDirectoryTest {
+  private PartitionDimension dimension;
+  private Resource resource;
+  private SecondaryIndex index;
+  private Node node;
+  private File dataDirectory;
+
+  @Before
+  public void setup() throws Exception {
+    resource = new Resource("FOO", Types.INTEGER, false, Arrays.asList(new SecondaryIndex("code", Types.INTEGER)));
+    index = resource.getSecondaryIndex("code");
+    dimension = new PartitionDimension("member", Types.INTEGER, new ArrayList<Resource>(Arrays.asList(resource)));
+    node = new Node(1, "node", "db", "", HiveDbDialect.H2);
+    dataDirectory = File.createTempFile("memorydirectory", "");
+    dataDirectory.delete();
+  }
+
+  @After
+  public void cleanup() {
+    File[] files = dataDirectory.listFiles();
+    if (files != null)
+      for (File file : files)
+        file.delete();
+    dataDirectory.delete();
+  }
+
+  @Test
+  public void shouldIndexKeysLikeTheDbDirectory() throws Exception {
+    MemoryDirectory d = new MemoryDirectory(dimension);
+    d.insertPrimaryIndexKey(node, 7);
+    d.insertResourceId(resource, 70, 7);
+    d.insertSecondaryIndexKey(index, 700, 70);
+
+    assertTrue(d.doesPrimaryIndexKeyExist("7"));
+    assertTrue(d.doesResourceIdExist(resource, 70));
+    assertEquals(7, d.getPrimaryIndexKeyOfResourceId(resource, 70));
+    assertEquals(Arrays.asList(700), new ArrayList<Object>(d.getSecondaryIndexKeysOfResourceId(index, 70)));
+    KeySemaphore semaphore = Atom.getFirstOrThrow(d.getKeySemaphoresOfSecondaryIndexKey(index, 700));
+    assertEquals(1, semaphore.getNodeId());
+    assertEquals(Lockable.Status.writable, semaphore.getStatus());
+
+    d.updatePrimaryIndexKeyReadOnly(7, true);
+    assertEquals(Lockable.Status.readOnly, Atom.getFirstOrThrow(d.getKeySemaphoresOfResourceId(resource, 70)).getStatus());
+
+    d.deletePrimaryIndexKey(7);
+    assertFalse(d.doesPrimaryIndexKeyExist(7));
+    assertFalse(d.doesResourceIdExist(resource, 70));
+    assertFalse(d.doesSecondaryIndexKeyExist(index, 700, 70));
+    try {
+      d.getPrimaryIndexKeyOfResourceId(resource, 70);
+      fail();
+    } catch (HiveKeyNotFoundException e) {
+    }
+  }
+
+  @Test
+  public void shouldRestoreFromTheSnapshotAndLog() throws Exception {
+    MemoryDirectory d = new MemoryDirectory(dimension, dataDirectory);
+    for (int i = 0; i < 1000; i++) {
+      d.insertPrimaryIndexKey(node, i);
+      d.insertResourceId(resource, i + 10000, i);
+    }
+    d.snapshot();
+    d.deletePrimaryIndexKey(0);
+    d.insertSecondaryIndexKey(index, 5, 10001);
+    d.close();
+
+    MemoryDirectory restored = new MemoryDirectory(dimension, dataDirectory);
+    assertFalse(restored.doesPrimaryIndexKeyExist(0));
+    assertTrue(restored.doesPrimaryIndexKeyExist(999));
+    assertEquals(1, restored.getPrimaryIndexKeyOfResourceId(resource, 10001));
+    assertTrue(restored.doesSecondaryIndexKeyExist(index, 5, 10001));
+    restored.close();
+  }
+
+  @Test
+  public void shouldDropAnIncompleteLogRecord() throws Exception {
+    MemoryDirectory d = new MemoryDirectory(dimension, dataDirectory);
+    d.insertPrimaryIndexKey(node, 1);
+    d.close();
+    FileOutputStream log = new FileOutputStream(new File(dataDirectory, MemoryDirectory.LOG_FILE), true);
+    log.write(new byte[]{1, 0});
+    log.close();
+
+    MemoryDirectory restored = new MemoryDirectory(dimension, dataDirectory);
+    restored.insertPrimaryIndexKey(node, 2);
+    restored.close();
+    restored = new MemoryDirectory(dimension, dataDirectory);
+    assertTrue(restored.doesPrimaryIndexKeyExist(1));
+    assertTrue(restored.doesPrimaryIndexKeyExist(2));
+    restored.close();
+  }
+
+  @Test
+  public void shouldWriteThroughToTheSystemOfRecord() throws Exception {
+    MemoryDirectory store = new MemoryDirectory(dimension);
+    WriteThroughDirectory d = new WriteThroughDirectory(store, new MemoryDirectory(dimension));
+    d.insertPrimaryIndexKey(node, 7);
+    d.insertResourceId(resource, 70, 7);
+    d.insertSecondaryIndexKey(index, 700, 70);
+    assertTrue(store.doesSecondaryIndexKeyExist(index, 700, 70));
+    assertTrue(d.getMemoryDirectory().doesSecondaryIndexKeyExist(index, 700, 70));
+
+    store.insertPrimaryIndexKey(node, 8);
+    store.updatePrimaryIndexKeyReadOnly(8, true);
+    d.indexEntity(node, 8, resource, 80, new HashMap<SecondaryIndex, Collection<Object>>());
+    assertFalse(d.doesResourceIdExist(resource, 80));
+  }
+
+  @Test(expected = HiveRuntimeException.class)
+  public void shouldLockTheDataDirectory() throws Exception {
+    MemoryDirectory d = new MemoryDirectory(dimension, dataDirectory);
+    try {
+      new MemoryDirectory(dimension, dataDirectory);
+    } finally {
+      d.close();
+    }
+  }
+
+  @Test(expected = HiveRuntimeException.class)
+  public void shouldRejectNonIntegralColumns() throws Exception {
+    new MemoryDirectory(new PartitionDimension("member", Types.VARCHAR));
+  }
+}
@@ -0,0 +1,169 @@
+package org.hivedb.meta.directory;
+
+import org.hivedb.meta.Assigner;
+import org.hivedb.Hive;
+import org.hivedb.meta.Node;
+import org.hivedb.meta.PartitionDimension;
+import org.hivedb.meta.Resource;
+import org.hivedb.meta.SecondaryIndex;
+import org.hivedb.util.database.HiveDbDialect;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.integration.junit4.JMock;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import org.jmock.lib.action.CustomAction;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+@RunWith(JMock.class)
+public class MissingKeyCacheTest {
+  private Mockery context = new JUnit4Mockery();
+  private Directory directory;
+  private Assigner assigner;
+  private Node node;
+  private PartitionDimension dimension;
+  private MissingKeyCache missingKeys;
+  private DirectoryWrapper wrapper;
+
+  @Before
+  public void setup() {
+    directory = context.mock(Directory.class);
+    assigner = context.mock(Assigner.class);
+    node = new Node(1, "node", "db", "localhost", HiveDbDialect.H2);
+    dimension = createPartitionDimension("jdbc:h2:mem:test");
+    missingKeys = new MissingKeyCache(100, 60000);
+    wrapper = new DirectoryWrapper(directory, assigner, Arrays.asList(node), dimension, node, missingKeys);
+  }
+
+  @Test
+  public void shouldOnlyQueryTheDirectoryOncePerMissingKey() throws Exception {
+    context.checking(new Expectations() {
+      {
+        one(directory).doesPrimaryIndexKeyExist(7);
+        will(returnValue(false));
+      }
+    });
+    assertFalse(wrapper.doesPrimaryIndexKeyExist(7));
+    assertFalse(wrapper.doesPrimaryIndexKeyExist(7));
+    assertTrue(wrapper.getNodeIdsOfPrimaryIndexKey(7).isEmpty());
+    assertEquals(2, missingKeys.getHitCount());
+    assertEquals(1, missingKeys.getMissCount());
+  }
+
+  @Test
+  public void shouldNotCacheExistingKeys() throws Exception {
+    context.checking(new Expectations() {
+      {
+        exactly(2).of(directory).doesPrimaryIndexKeyExist(7);
+        will(returnValue(true));
+      }
+    });
+    assertTrue(wrapper.doesPrimaryIndexKeyExist(7));
+    assertTrue(wrapper.doesPrimaryIndexKeyExist(7));
+    assertEquals(0, missingKeys.getHitCount());
+  }
+
+  @Test
+  public void shouldForgetMissingKeysOnInsert() throws Exception {
+    context.checking(new Expectations() {
+      {
+        one(directory).doesPrimaryIndexKeyExist(7);
+        will(returnValue(false));
+        one(assigner).chooseNode(with(any(Collection.class)), with(equal(7)));
+        will(returnValue(node));
+        one(directory).insertPrimaryIndexKey(node, 7);
+        one(directory).doesPrimaryIndexKeyExist(7);
+        will(returnValue(true));
+      }
+    });
+    assertFalse(wrapper.doesPrimaryIndexKeyExist(7));
+    wrapper.insertPrimaryIndexKey(7);
+    assertTrue(wrapper.doesPrimaryIndexKeyExist(7));
+  }
+
+  @Test
+  public void shouldNotRecordAKeyInsertedDuringTheLookupMissing() throws Exception {
+    context.checking(new Expectations() {
+      {
+        one(directory).doesPrimaryIndexKeyExist(7);
+        will(new CustomAction("read while an insert commits") {
+          public Object invoke(Invocation invocation) throws Throwable {
+            wrapper.insertPrimaryIndexKey(7);
+            return false;
+          }
+        });
+        one(assigner).chooseNode(with(any(Collection.class)), with(equal(7)));
+        will(returnValue(node));
+        one(directory).insertPrimaryIndexKey(node, 7);
+        one(directory).doesPrimaryIndexKeyExist(7);
+        will(returnValue(true));
+      }
+    });
+    assertFalse(wrapper.doesPrimaryIndexKeyExist(7));
+    assertTrue(wrapper.doesPrimaryIndexKeyExist(7));
+    assertEquals(0, missingKeys.getHitCount());
+  }
+
+  @Test
+  public void shouldExpireMissingKeys() throws Exception {
+    missingKeys = new MissingKeyCache(100, 1);
+    wrapper = new DirectoryWrapper(directory, assigner, Arrays.asList(node), dimension, node, missingKeys);
+    context.checking(new Expectations() {
+      {
+        exactly(2).of(directory).doesPrimaryIndexKeyExist(7);
+        will(returnValue(false));
+      }
+    });
+    assertFalse(wrapper.doesPrimaryIndexKeyExist(7));
+    Thread.sleep(10);
+    assertFalse(wrapper.doesPrimaryIndexKeyExist(7));
+    assertEquals(1, missingKeys.getExpirationCount());
+  }
+
+  @Test
+  public void shouldForgetMissingKeysInsertedAsAnotherType() throws Exception {
+    context.checking(new Expectations() {
+      {
+        one(directory).doesPrimaryIndexKeyExist(7);
+        will(returnValue(false));
+        one(assigner).chooseNode(with(any(Collection.class)), with(equal(7L)));
+        will(returnValue(node));
+        one(directory).insertPrimaryIndexKey(node, 7L);
+        one(directory).doesPrimaryIndexKeyExist(7);
+        will(returnValue(true));
+      }
+    });
+    assertFalse(wrapper.doesPrimaryIndexKeyExist(7));
+    wrapper.insertPrimaryIndexKey(7L);
+    assertTrue(wrapper.doesPrimaryIndexKeyExist(7));
+  }
+
+  @Test
+  public void shouldTreatKeysTheCollationFindsEqualAsOneKey() throws Exception {
+    dimension = createPartitionDimension("jdbc:mysql://localhost/test");
+    wrapper = new DirectoryWrapper(directory, assigner, Arrays.asList(node), dimension, node, missingKeys);
+    final SecondaryIndex name = dimension.getResource("foo").getSecondaryIndex("name");
+    context.checking(new Expectations() {
+      {
+        one(directory).getKeySemaphoresOfSecondaryIndexKey(name, "Bob");
+        will(returnValue(new ArrayList<KeySemaphore>()));
+      }
+    });
+    assertTrue(wrapper.getNodeIdsOfSecondaryIndexKey("foo", "name", "Bob").isEmpty());
+    assertTrue(wrapper.getNodeIdsOfSecondaryIndexKey("foo", "name", "bob ").isEmpty());
+    assertEquals(1, missingKeys.getHitCount());
+  }
+
+  private PartitionDimension createPartitionDimension(String indexUri) {
+    Resource resource = new Resource("foo", Types.INTEGER, false, Arrays.asList(new SecondaryIndex("name", Types.VARCHAR)));
+    return new PartitionDimension(Hive.NEW_OBJECT_ID, "member", Types.INTEGER, indexUri, Arrays.asList(resource));
+  }
+}
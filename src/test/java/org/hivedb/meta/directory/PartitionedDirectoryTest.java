@@ -0,0 +1,196 @@
+package org.hivedb.meta.directory;
+
+import org.hivedb.Hive;
+import org.hivedb.Schema;
+import org.hivedb.configuration.HiveConfigurationSchema;
+import org.hivedb.management.HiveConfigurationSchemaInstaller;
+import org.hivedb.meta.Node;
+import org.hivedb.meta.PartitionDimension;
+import org.hivedb.meta.Resource;
+import org.hivedb.meta.SecondaryIndex;
+import org.hivedb.meta.persistence.CachingDataSourceProvider;
+import org.hivedb.meta.persistence.IndexSchema;
+import org.hivedb.util.database.HiveDbDialect;
+import org.hivedb.util.database.test.H2TestCase;
+import org.hivedb.util.functional.Atom;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Types;
+import java.util.*;
+
+public class PartitionedDirectoryTest extends H2TestCase {
+  private PartitionDimension dimension;
+  private Resource resource;
+  private SecondaryIndex nameIndex;
+  private Node node;
+
+  public Collection<Schema> getSchemas() {
+    return Arrays.asList(new Schema[]{
+      new HiveConfigurationSchema(getConnectString(H2TestCase.TEST_DB)),
+      new IndexSchema(createPartitionDimension())});
+  }
+
+  @Override
+  public Collection<String> getDatabaseNames() {
+    return Arrays.asList(new String[]{H2TestCase.TEST_DB, "shard1", "shard2"});
+  }
+
+  @Before
+  @Override
+  public void beforeMethod() {
+    deleteDatabasesAfterEachTest = true;
+    super.afterMethod();
+    super.beforeMethod();
+    try {
+      new HiveConfigurationSchemaInstaller(getConnectString(H2TestCase.TEST_DB)).run();
+      Hive hive = Hive.create(getConnectString(H2TestCase.TEST_DB), "member", Types.INTEGER, CachingDataSourceProvider.getInstance(), null);
+      dimension = createPartitionDimension();
+      dimension.setId(hive.getPartitionDimension().getId());
+      hive.setPartitionDimension(dimension);
+      resource = Atom.getFirstOrThrow(dimension.getResources());
+      hive.addResource(resource);
+      nameIndex = resource.getSecondaryIndex("name");
+      hive.addSecondaryIndex(resource, nameIndex);
+      node = hive.addNode(new Node("node", H2TestCase.TEST_DB, "", HiveDbDialect.H2));
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Test
+  public void shouldSpreadKeysAcrossShardsAndFanOutLookups() throws Exception {
+    PartitionedDirectory d = getDirectory();
+    Collection<Object> resourceIds = new ArrayList<Object>();
+    for (int i = 0; i < 20; i++) {
+      d.insertPrimaryIndexKey(node, i);
+      d.insertResourceId(resource, i + 100, i);
+      d.insertSecondaryIndexKey(nameIndex, "shared", i + 100);
+      resourceIds.add(i + 100);
+    }
+
+    for (DbDirectory shard : d.getShards()) {
+      int owned = 0;
+      for (Collection<KeySemaphore> semaphores : shard.getKeySemaphoresOfResourceIds(resource, resourceIds).values())
+        owned += semaphores.size();
+      assertTrue(owned > 0 && owned < resourceIds.size());
+    }
+    for (int i = 0; i < 20; i++) {
+      assertEquals(1, d.getShard(i).getKeySemamphoresOfPrimaryIndexKey(i).size());
+      assertEquals(i, Integer.parseInt(d.getPrimaryIndexKeyOfResourceId(resource, i + 100).toString()));
+    }
+    assertEquals(20, d.getKeySemaphoresOfSecondaryIndexKey(nameIndex, "shared").size());
+    for (Collection<KeySemaphore> semaphores : d.getKeySemaphoresOfResourceIds(resource, resourceIds).values())
+      assertEquals(1, semaphores.size());
+  }
+
+  @Test
+  public void shouldMoveResourceIdsBetweenShards() throws Exception {
+    PartitionedDirectory d = getDirectory();
+    int from = 0, to = 1;
+    while (d.getShard(to) == d.getShard(from))
+      to++;
+    d.insertPrimaryIndexKey(node, from);
+    d.insertPrimaryIndexKey(node, to);
+    d.insertResourceId(resource, 7, from);
+    d.insertSecondaryIndexKey(nameIndex, "seven", 7);
+
+    d.updatePrimaryIndexKeyOfResourceId(resource, 7, to);
+
+    assertEquals(to, Integer.parseInt(d.getPrimaryIndexKeyOfResourceId(resource, 7).toString()));
+    assertFalse(d.getShard(from).doesResourceIdExist(resource, 7));
+    assertTrue(d.getShard(to).doesSecondaryIndexKeyExist(nameIndex, "seven", 7));
+    assertEquals(1, d.getKeySemaphoresOfSecondaryIndexKey(nameIndex, "seven").size());
+  }
+
+  @Test
+  public void shouldReadRoutesFromTheRouteTables() throws Exception {
+    PartitionedDirectory d = getDirectory();
+    d.insertPrimaryIndexKey(node, 3);
+    d.insertResourceId(resource, 7, 3);
+
+    PartitionedDirectory cold = getDirectory();
+    assertEquals(3, Integer.parseInt(cold.getPrimaryIndexKeyOfResourceId(resource, 7).toString()));
+    assertEquals(1, cold.getKeySemaphoresOfResourceId(resource, 7L).size());
+    assertFalse(cold.doesResourceIdExist(resource, 8));
+    assertEquals(0, cold.getKeySemaphoresOfResourceId(resource, 8).size());
+
+    d.deleteResourceId(resource, 7);
+    assertFalse(getDirectory().doesResourceIdExist(resource, 7));
+
+    d.insertResourceId(resource, 9, 3);
+    d.deletePrimaryIndexKey(3);
+    assertNull(getRouteOfResourceId(d, 9));
+  }
+
+  @Test
+  public void shouldFollowAResourceIdMovedByAnotherDirectory() throws Exception {
+    PartitionedDirectory d = getDirectory();
+    int from = 0, to = 1;
+    while (d.getShard(to) == d.getShard(from))
+      to++;
+    d.insertPrimaryIndexKey(node, from);
+    d.insertPrimaryIndexKey(node, to);
+    d.insertResourceId(resource, 7, from);
+    assertTrue(d.doesResourceIdExist(resource, 7));
+
+    getDirectory().updatePrimaryIndexKeyOfResourceId(resource, 7, to);
+
+    assertEquals(to, Integer.parseInt(Atom.getFirstOrThrow(d.getKeySemaphoresOfResourceId(resource, 7)).getKey().toString()));
+  }
+
+  @Test
+  public void shouldCompleteAFailedMove() throws Exception {
+    PartitionedDirectory d = getDirectory();
+    int from = 0, to = 1;
+    while (d.getShard(to) == d.getShard(from))
+      to++;
+    d.insertPrimaryIndexKey(node, from);
+    d.insertPrimaryIndexKey(node, to);
+    d.insertResourceId(resource, 7, from);
+    d.getShard(to).insertResourceId(resource, 7, to);
+    getRouteShard(d, 7).routeResourceId(resource, 7, d.getShards().indexOf(d.getShard(to)));
+
+    assertEquals(to, Integer.parseInt(getDirectory().getPrimaryIndexKeyOfResourceId(resource, 7).toString()));
+    d = getDirectory();
+    d.updatePrimaryIndexKeyOfResourceId(resource, 7, to);
+    assertFalse(d.getShard(from).doesResourceIdExist(resource, 7));
+    d.insertSecondaryIndexKey(nameIndex, "seven", 7);
+    assertTrue(d.getShard(to).doesSecondaryIndexKeyExist(nameIndex, "seven", 7));
+  }
+
+  private DbDirectory getRouteShard(PartitionedDirectory d, Object resourceId) {
+    for (DbDirectory shard : d.getShards())
+      if (shard.getRouteOfResourceId(resource, resourceId) != null)
+        return shard;
+    throw new AssertionError("No route for " + resourceId);
+  }
+
+  private Integer getRouteOfResourceId(PartitionedDirectory d, Object resourceId) {
+    for (DbDirectory shard : d.getShards())
+      if (shard.getRouteOfResourceId(resource, resourceId) != null)
+        return shard.getRouteOfResourceId(resource, resourceId);
+    return null;
+  }
+
+  private PartitionedDirectory getDirectory() {
+    return getFactory().getDirectory(getConnectString(H2TestCase.TEST_DB));
+  }
+
+  private PartitionedDirectoryFactory getFactory() {
+    return new PartitionedDirectoryFactory(
+      CachingDataSourceProvider.getInstance(),
+      Arrays.asList(getConnectString("shard1"), getConnectString("shard2")));
+  }
+
+  private PartitionDimension createPartitionDimension() {
+    Resource resource = new Resource("FOO", Types.INTEGER, false, Arrays.asList(new SecondaryIndex("name", Types.VARCHAR)));
+    return new PartitionDimension(
+      Hive.NEW_OBJECT_ID,
+      "member",
+      Types.INTEGER,
+      getConnectString(H2TestCase.TEST_DB),
+      new ArrayList<Resource>(Arrays.asList(resource)));
+  }
+}
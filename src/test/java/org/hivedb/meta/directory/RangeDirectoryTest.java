@@ -0,0 +1,177 @@
+package org.hivedb.meta.directory;
+
+import org.hivedb.Hive;
+import org.hivedb.HiveChangeBroadcast;
+import org.hivedb.HiveChangeListener;
+import org.hivedb.HiveKeyNotFoundException;
+import org.hivedb.HiveRuntimeException;
+import org.hivedb.Lockable;
+import org.hivedb.Schema;
+import org.hivedb.configuration.HiveConfigurationSchema;
+import org.hivedb.management.HiveConfigurationSchemaInstaller;
+import org.hivedb.meta.HiveChange;
+import org.hivedb.meta.Node;
+import org.hivedb.meta.PartitionDimension;
+import org.hivedb.meta.Resource;
+import org.hivedb.meta.SecondaryIndex;
+import org.hivedb.meta.persistence.CachingDataSourceProvider;
+import org.hivedb.meta.persistence.HiveSemaphoreDao;
+import org.hivedb.meta.persistence.IndexSchema;
+import org.hivedb.util.database.HiveDbDialect;
+import org.hivedb.util.database.test.H2TestCase;
+import org.hivedb.util.functional.Atom;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+public class RangeDirectoryTest extends H2TestCase {
+  private Resource resource;
+  private SecondaryIndex codeIndex;
+  private Node node, other;
+
+  public Collection<Schema> getSchemas() {
+    return Arrays.asList(new Schema[]{
+      new HiveConfigurationSchema(getConnectString(H2TestCase.TEST_DB)),
+      new IndexSchema(createPartitionDimension())});
+  }
+
+  @Before
+  @Override
+  public void beforeMethod() {
+    deleteDatabasesAfterEachTest = true;
+    super.afterMethod();
+    super.beforeMethod();
+    try {
+      new HiveConfigurationSchemaInstaller(getConnectString(H2TestCase.TEST_DB)).run();
+      Hive hive = Hive.create(getConnectString(H2TestCase.TEST_DB), "member", Types.INTEGER, CachingDataSourceProvider.getInstance(), null);
+      PartitionDimension dimension = createPartitionDimension();
+      dimension.setId(hive.getPartitionDimension().getId());
+      hive.setPartitionDimension(dimension);
+      resource = Atom.getFirstOrThrow(dimension.getResources());
+      hive.addResource(resource);
+      codeIndex = resource.getSecondaryIndex("code");
+      hive.addSecondaryIndex(resource, codeIndex);
+      node = hive.addNode(new Node("node", H2TestCase.TEST_DB, "", HiveDbDialect.H2));
+      other = hive.addNode(new Node("other", H2TestCase.TEST_DB, "", HiveDbDialect.H2));
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Test
+  public void shouldResolveKeysByRange() throws Exception {
+    RangeDirectory d = getDirectory();
+    d.addRange(0, 100, node);
+    d.addRange(100, 200, other);
+
+    assertEquals(node.getId().intValue(), Atom.getFirstOrThrow(d.getKeySemamphoresOfPrimaryIndexKey(99)).getNodeId());
+    assertEquals(other.getId().intValue(), Atom.getFirstOrThrow(d.getKeySemamphoresOfPrimaryIndexKey(100)).getNodeId());
+    assertFalse(d.doesPrimaryIndexKeyExist(200));
+    try {
+      d.insertPrimaryIndexKey(node, 200);
+      fail();
+    } catch (HiveKeyNotFoundException e) {
+    }
+
+    d.insertPrimaryIndexKey(node, 150);
+    d.insertResourceId(resource, 7, 150);
+    d.insertSecondaryIndexKey(codeIndex, 70, 7);
+    assertEquals(other.getId().intValue(), Atom.getFirstOrThrow(d.getKeySemaphoresOfResourceId(resource, 7)).getNodeId());
+    assertEquals(other.getId().intValue(), Atom.getFirstOrThrow(d.getKeySemaphoresOfSecondaryIndexKey(codeIndex, 70)).getNodeId());
+    assertEquals(150, Integer.parseInt(d.getPrimaryIndexKeyOfResourceId(resource, 7).toString()));
+  }
+
+  @Test
+  public void shouldSplitAndMergeRangesAndIncrementTheRevision() throws Exception {
+    RangeDirectory d = getDirectory();
+    d.addRange(0, 100, node);
+    HiveSemaphoreDao semaphores = new HiveSemaphoreDao(getDataSource(H2TestCase.TEST_DB));
+    int revision = semaphores.get().getRevision();
+
+    d.split(50);
+    assertEquals(2, d.getRanges().size());
+    assertEquals(revision + 1, semaphores.get().getRevision());
+    assertEquals(50, d.getRange(75).getStart());
+
+    d.updatePrimaryIndexKeyReadOnly(75, true);
+    assertEquals(Lockable.Status.readOnly, d.getRange(75).getStatus());
+    assertEquals(Lockable.Status.writable, d.getRange(25).getStatus());
+    try {
+      d.merge(50);
+      fail();
+    } catch (HiveRuntimeException e) {
+    }
+
+    d.updatePrimaryIndexKeyReadOnly(75, false);
+    d.merge(50);
+    assertEquals(1, d.getRanges().size());
+    assertEquals(100, d.getRange(25).getEnd());
+    assertEquals(1, getDirectory().getRanges().size());
+  }
+
+  @Test
+  public void shouldNotIncrementTheRevisionOfARejectedChange() throws Exception {
+    RangeDirectory d = getDirectory();
+    d.addRange(0, 100, node);
+    HiveSemaphoreDao semaphores = new HiveSemaphoreDao(getDataSource(H2TestCase.TEST_DB));
+    int revision = semaphores.get().getRevision();
+
+    try {
+      d.addRange(50, 150, other);
+      fail();
+    } catch (HiveRuntimeException e) {
+    }
+    try {
+      d.split(0);
+      fail();
+    } catch (HiveRuntimeException e) {
+    }
+    assertEquals(revision, semaphores.get().getRevision());
+    assertEquals(1, getDirectory().getRanges().size());
+  }
+
+  @Test
+  public void shouldPublishTheRevisionOfAChange() throws Exception {
+    RangeDirectory d = getDirectory();
+    final List<HiveChange> changes = new ArrayList<HiveChange>();
+    HiveChangeListener listener = new HiveChangeListener() {
+      public void hiveChanged(HiveChange change) {
+        changes.add(change);
+      }
+    };
+    HiveChangeBroadcast.addListener(listener);
+    try {
+      d.addRange(0, 100, node);
+    } finally {
+      HiveChangeBroadcast.removeListener(listener);
+    }
+    assertEquals(1, changes.size());
+    assertEquals(getConnectString(H2TestCase.TEST_DB), changes.get(0).getHiveUri());
+    assertEquals(new HiveSemaphoreDao(getDataSource(H2TestCase.TEST_DB)).get().getRevision(), changes.get(0).getRevision());
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void shouldRefuseToCountKeysItDoesNotStore() throws Exception {
+    getDirectory().countPrimaryIndexKeysByNode();
+  }
+
+  private RangeDirectory getDirectory() {
+    return new RangeDirectoryFactory(CachingDataSourceProvider.getInstance()).getDirectory(getConnectString(H2TestCase.TEST_DB));
+  }
+
+  private PartitionDimension createPartitionDimension() {
+    Resource resource = new Resource("FOO", Types.INTEGER, false, Arrays.asList(new SecondaryIndex("code", Types.INTEGER)));
+    return new PartitionDimension(
+      Hive.NEW_OBJECT_ID,
+      "member",
+      Types.INTEGER,
+      getConnectString(H2TestCase.TEST_DB),
+      new ArrayList<Resource>(Arrays.asList(resource)));
+  }
+}
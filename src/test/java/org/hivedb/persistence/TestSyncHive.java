@@ -38,6 +38,32 @@ public class TestSyncHive extends HiveTest {
     Assert.assertNotNull(passiveSync.getNode(createNode(getHiveDatabaseName()).getName()));
   }
 
+  /**
+   * A change published in the same JVM reaches a daemon long before its next check of the change log.
+   */
+  @Test
+  public void testDaemonSyncOnBroadcast() throws Exception {
+    Hive hive = loadHive();
+    Hive passiveSync = loadHive();
+    ArrayList<Observer> observers = new ArrayList<Observer>();
+    observers.add(passiveSync);
+    HiveSyncDaemon daemon = HiveSyncDaemon.startDaemon(getConnectString(getHiveDatabaseName()), 60000, observers);
+    try {
+      while (!daemon.isRunning())
+        Thread.sleep(10);
+
+      Node node = hive.addNode(createNode(getHiveDatabaseName()));
+
+      long deadline = System.currentTimeMillis() + 1000;
+      while (passiveSync.getRevision() != hive.getRevision() && System.currentTimeMillis() < deadline)
+        Thread.sleep(10);
+      Assert.assertEquals(hive.getRevision(), passiveSync.getRevision());
+      Assert.assertNotNull(passiveSync.getNode(node.getName()));
+    } finally {
+      daemon.shutdown();
+    }
+  }
+
   @SuppressWarnings("unused")
   private void nodeReport(Hive passiveSync, Hive hive) {
     System.out.println("Passively synced Hive:" + passiveSync.getRevision());